@@ -0,0 +1,252 @@
+/**
+ * Admission control and per-client rate limits for client requests
+ */
+package edu.berkeley.cs162;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which client requests the master takes on, so that excess load
+ * is turned away at once instead of queueing without bound.
+ *
+ * Rate limits are token buckets per client address and message type, set
+ * per message type with setRateLimit; types without a limit are not
+ * limited.
+ *
+ * The concurrency limit bounds the requests admitted and not yet answered,
+ * queued or running. It adapts to the latency of the master, AIMD in the
+ * way of TCP Vegas: each message type keeps the lowest latency recently
+ * seen as its baseline, a request that took more than TOLERANCE times its
+ * baseline shrinks the limit by DECREASE at most once per limit's worth of
+ * requests, and any other request grows it by 1/limit, about one per
+ * round of requests. Latency counts from admission, so time spent queued
+ * at the master is what pulls the limit down.
+ */
+public class AdmissionControl {
+    public static final String OVERLOADED = "Overload Error: Too many requests in progress";
+    public static final String RATE_LIMITED = "Overload Error: Rate limit exceeded";
+
+    // A request slower than this times its baseline signals congestion
+    private static final double TOLERANCE = 2.0;
+    // Latency below which a request never signals congestion, as small
+    // baselines are mostly noise
+    private static final long MIN_CONGESTED_NANOS = 5L * 1000 * 1000;
+    private static final double DECREASE = 0.9;
+    // Requests of a type after which its baseline is measured afresh, so
+    // that it follows lasting changes such as a slower store
+    private static final int BASELINE_WINDOW = 1000;
+    // Buckets kept before full ones, of clients that went quiet, are dropped
+    private static final int MAX_BUCKETS = 10000;
+
+    private int minLimit = 8;
+    private int maxLimit = 1024;
+    private double limit = 64;
+    private int inFlight = 0;
+    // Requests completed since the limit last shrank
+    private int sinceDecrease = 0;
+    private final HashMap<String, Baseline> baselines = new HashMap<String, Baseline>();
+
+    private final ConcurrentHashMap<String, double[]> rateLimits = new ConcurrentHashMap<String, double[]>();
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    private final AtomicLong overloaded = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Limit each client to perSecond requests of the given type, with
+     * bursts of up to burst requests.
+     *
+     * @param perSecond requests per second, 0 or less to remove the limit
+     */
+    public void setRateLimit(String msgType, double perSecond, double burst) {
+        if (perSecond <= 0) {
+            rateLimits.remove(msgType);
+        } else {
+            rateLimits.put(msgType, new double[] { perSecond, Math.max(1, burst) });
+        }
+        buckets.clear();
+    }
+
+    /**
+     * @param min the limit never goes below this, so a few clients are
+     *        always served
+     * @param initial limit to start from
+     * @param max the limit never goes above this
+     */
+    public synchronized void setConcurrencyLimits(int min, int initial, int max) {
+        minLimit = Math.max(1, min);
+        maxLimit = Math.max(minLimit, max);
+        limit = Math.max(minLimit, Math.min(maxLimit, initial));
+    }
+
+    /**
+     * Admit a request if fewer than the limit are in progress. Every
+     * admitted request must be released.
+     *
+     * @return whether the request was admitted
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            overloaded.incrementAndGet();
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * End an admitted request and adapt the limit to its latency.
+     *
+     * @param msgType type of the request, null if it was never read
+     * @param latencyNanos time since the request was admitted
+     * @param timedOut whether the master gave up waiting for a slave, which
+     *        counts as congestion whatever the latency
+     */
+    public synchronized void release(String msgType, long latencyNanos, boolean timedOut) {
+        inFlight--;
+        sinceDecrease++;
+        if (msgType == null) {
+            return;
+        }
+        Baseline baseline = baselines.get(msgType);
+        if (baseline == null) {
+            baseline = new Baseline();
+            baselines.put(msgType, baseline);
+        }
+        long base = baseline.add(latencyNanos);
+        boolean congested = timedOut
+            || (latencyNanos > MIN_CONGESTED_NANOS && latencyNanos > base * TOLERANCE);
+        if (congested) {
+            if (sinceDecrease >= limit) {
+                limit = Math.max(minLimit, limit * DECREASE);
+                sinceDecrease = 0;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Take a token for a request of the given type from the client's
+     * bucket.
+     *
+     * @param client address of the client
+     * @return whether the request is within the client's rate
+     */
+    public boolean tryConsume(String client, String msgType) {
+        double[] rate = rateLimits.get(msgType);
+        if (rate == null) {
+            return true;
+        }
+        String name = client + " " + msgType;
+        TokenBucket bucket = buckets.get(name);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS) {
+                dropFullBuckets();
+            }
+            bucket = new TokenBucket(rate[0], rate[1]);
+            TokenBucket raced = buckets.putIfAbsent(name, bucket);
+            if (raced != null) {
+                bucket = raced;
+            }
+        }
+        if (bucket.tryConsume()) {
+            return true;
+        }
+        rateLimited.incrementAndGet();
+        return false;
+    }
+
+    private void dropFullBuckets() {
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return requests turned away by the concurrency limit
+     */
+    public long getOverloaded() {
+        return overloaded.get();
+    }
+
+    /**
+     * @return requests turned away by rate limits
+     */
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    /**
+     * Lowest latency of a message type, over the current window or the
+     * previous one, whichever is lower.
+     */
+    private static class Baseline {
+        long previous = Long.MAX_VALUE;
+        long current = Long.MAX_VALUE;
+        int samples = 0;
+
+        /**
+         * @return the baseline including this sample
+         */
+        long add(long latencyNanos) {
+            current = Math.min(current, latencyNanos);
+            if (++samples == BASELINE_WINDOW) {
+                previous = current;
+                current = Long.MAX_VALUE;
+                samples = 0;
+            }
+            return Math.min(previous, current);
+        }
+    }
+
+    /**
+     * Holds up to capacity tokens and gains perSecond of them every second.
+     */
+    private static class TokenBucket {
+        final double perNano;
+        final double capacity;
+        double tokens;
+        long refilled = System.nanoTime();
+
+        TokenBucket(double perSecond, double capacity) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized boolean tryConsume() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) * perNano);
+            refilled = now;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Background repair of replicas that diverged
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+/**
+ * Compares every slave with its successor on the ring over the hash ranges
+ * they both replicate, and repairs the keys they disagree on. Each slave keeps
+ * a hash tree of its pairs (see MerkleTree). The two trees are compared one
+ * level at a time from the root, descending only into nodes whose digests
+ * differ, and only the keys of the differing leaves are listed, so replicas
+ * that agree cost one request each per round. Each differing key is then
+ * repaired by the Master under its lock for that key. Rounds run every
+ * intervalMillis and are skipped while a handoff is running.
+ */
+public class AntiEntropy implements Runnable {
+    // Pause between two repair rounds
+    public static final long DEFAULT_INTERVAL_MILLIS = 60000;
+    // Leaves whose keys are listed in one leaf request
+    public static final int LEAVES_PER_REQUEST = 64;
+
+    public long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    private final TPCMaster master;
+    private volatile long keysRepaired = 0;
+
+    public AntiEntropy(TPCMaster master) {
+        this.master = master;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int repaired = repairRound();
+            if (repaired > 0) {
+                Tracer.info("antientropy.repaired", null, repaired + " keys");
+            }
+        }
+    }
+
+    /**
+     * @return keys repaired since the Master started
+     */
+    public long getKeysRepaired() {
+        return keysRepaired;
+    }
+
+    /**
+     * Compare every pair of neighbouring replicas once and repair the keys
+     * they disagree on. Pairs with a slave suspected down are skipped, and so
+     * are keys whose repair fails; the next round retries them.
+     *
+     * @return number of keys repaired
+     */
+    public int repairRound() {
+        RingSnapshot snapshot = master.ring;
+        if (snapshot.getHandoff() != null) {
+            return 0;
+        }
+        int repaired = 0;
+        for (ReplicaPair pair : replicaPairs(snapshot)) {
+            if (pair.first.isSuspected() || pair.second.isSuspected()) {
+                continue;
+            }
+            try {
+                for (String key : differingKeys(pair)) {
+                    try {
+                        if (master.repairKey(key)) {
+                            repaired++;
+                        }
+                    } catch (KVException e) {
+                        // Retried in the next round
+                    }
+                }
+            } catch (KVException e) {
+                // Pair compared again in the next round
+            }
+        }
+        keysRepaired += repaired;
+        return repaired;
+    }
+
+    /**
+     * @return each pair of slaves that are consecutive in the replica set of
+     *         some range, with all the ranges they both replicate
+     */
+    public static List<ReplicaPair> replicaPairs(RingSnapshot ring) {
+        LinkedHashMap<List<SlaveInfo>, ReplicaPair> pairs = new LinkedHashMap<List<SlaveInfo>, ReplicaPair>();
+        if (ring.isEmpty()) {
+            return new ArrayList<ReplicaPair>();
+        }
+        long[] boundaries = Rebalancer.boundaries(ring);
+        for (int i = 0; i < boundaries.length; i++) {
+            long start = boundaries[i];
+            long end = boundaries[(i + 1) % boundaries.length];
+            List<SlaveInfo> replicas = ring.replicasFor(start);
+            for (int j = 0; j + 1 < replicas.size(); j++) {
+                List<SlaveInfo> key = replicas.subList(j, j + 2);
+                ReplicaPair pair = pairs.get(key);
+                if (pair == null) {
+                    pair = new ReplicaPair(replicas.get(j), replicas.get(j + 1));
+                    pairs.put(new ArrayList<SlaveInfo>(key), pair);
+                }
+                pair.addRange(start, end);
+            }
+        }
+        return new ArrayList<ReplicaPair>(pairs.values());
+    }
+
+    /**
+     * Walk the two slaves' hash trees down to the leaves that differ and
+     * list the keys of those leaves that are missing from one slave or have
+     * different values.
+     */
+    private TreeSet<String> differingKeys(ReplicaPair pair) throws KVException {
+        TreeSet<String> keys = new TreeSet<String>();
+        int depth = MerkleTree.DEFAULT_DEPTH;
+        List<Long> nodes = Collections.singletonList(0L);
+        for (int level = 0; ; level++) {
+            Map<String, String> first = request(pair.first, "treereq", level, nodes, pair.ranges);
+            Map<String, String> second = request(pair.second, "treereq", level, nodes, pair.ranges);
+            List<Long> differing = new ArrayList<Long>();
+            for (Long node : nodes) {
+                String name = Long.toString(node);
+                if (!first.get(name).equals(second.get(name))) {
+                    differing.add(node);
+                }
+            }
+            if (differing.isEmpty()) {
+                return keys;
+            }
+            if (level == depth) {
+                nodes = differing;
+                break;
+            }
+            nodes = new ArrayList<Long>();
+            for (Long node : differing) {
+                nodes.add(2 * node);
+                nodes.add(2 * node + 1);
+            }
+        }
+        for (int i = 0; i < nodes.size(); i += LEAVES_PER_REQUEST) {
+            List<Long> leaves = nodes.subList(i, Math.min(nodes.size(), i + LEAVES_PER_REQUEST));
+            Map<String, String> first = request(pair.first, "leafreq", depth, leaves, pair.ranges);
+            Map<String, String> second = request(pair.second, "leafreq", depth, leaves, pair.ranges);
+            for (Map.Entry<String, String> entry : first.entrySet()) {
+                if (!entry.getValue().equals(second.get(entry.getKey()))) {
+                    keys.add(entry.getKey());
+                }
+            }
+            for (String key : second.keySet()) {
+                if (!first.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private Map<String, String> request(SlaveInfo slave, String type, int level, List<Long> nodes,
+            List<long[]> ranges) throws KVException {
+        KVMessage req = new KVMessage(type);
+        req.setLevel(level);
+        req.setNodes(nodes);
+        req.setRanges(ranges);
+        KVMessage resp = slave.request(req, TPCMaster.TIMEOUT_MILLISECONDS);
+        if (resp.getEntries() == null) {
+            throw new KVException(resp);
+        }
+        return resp.getEntries();
+    }
+
+    /**
+     * Two neighbouring replicas and the hash ranges {start, end} they share,
+     * in ring order.
+     */
+    public static class ReplicaPair {
+        public final SlaveInfo first;
+        public final SlaveInfo second;
+        public final List<long[]> ranges = new ArrayList<long[]>();
+
+        ReplicaPair(SlaveInfo first, SlaveInfo second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        void addRange(long start, long end) {
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == start) {
+                last[1] = end;
+            } else {
+                ranges.add(new long[] { start, end });
+            }
+        }
+    }
+}
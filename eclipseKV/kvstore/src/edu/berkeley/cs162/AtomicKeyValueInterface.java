@@ -0,0 +1,40 @@
+/**
+ * Read-modify-write operations on a single key
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Operations that read a key and write it depending on what they read, as
+ * one atomic step. Implemented by the KeyValue servers and the client, but
+ * not by caches and stores, which leave locking to their callers.
+ */
+public interface AtomicKeyValueInterface extends KeyValueInterface {
+    /**
+     * Replace the value of a key only if it currently equals expected
+     * @param key is the object used to index into the store
+     * @param expected is the value the key must have, null if the key must not exist
+     * @param value is the new value of the key
+     * @return true if the key was written, false if its value did not match
+     * @throws KVException if there is an error when writing the entry
+     */
+    public boolean cas(String key, String expected, String value) throws KVException;
+
+    /**
+     * Insert Key, Value pair only if the key does not exist yet
+     * @param key is the object used to index into the store
+     * @param value is the object corresponding to the key
+     * @return true if the pair was inserted, false if the key already existed
+     * @throws KVException if there is an error when writing the entry
+     */
+    public boolean putIfAbsent(String key, String value) throws KVException;
+
+    /**
+     * Add delta to a counter stored as a decimal number, starting from 0 if
+     * the key does not exist
+     * @param key is the object used to index into the store
+     * @param delta is the amount to add, possibly negative
+     * @return the new value of the counter
+     * @throws KVException if the value is not a number or the counter overflows
+     */
+    public long incrementBy(String key, long delta) throws KVException;
+}
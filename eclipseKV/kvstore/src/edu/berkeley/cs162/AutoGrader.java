@@ -137,7 +137,7 @@ public class AutoGrader {
         TEST_OPS = testOps;
 
         // Set STORE_DELAY
-        STORE_DELAY = storeDelay;
+        setStoreDelay(storeDelay);
 
         long[] slaveIds = new long[numSlaves];
         Random slaveIdGenerator = new Random();
@@ -220,7 +220,7 @@ public class AutoGrader {
         curTestID = 1;
 
         // Set STORE_DELAY
-        STORE_DELAY = storeDelay;
+        setStoreDelay(storeDelay);
 
         int numSlaves = 2;
         long[] slaveIds = new long[numSlaves];
@@ -494,23 +494,19 @@ public class AutoGrader {
 
     }
 
-    public static void agCachePutDelay() {
-
-    }
-
-    public static void agCacheGetDelay() {
-
-    }
-
-    public static void agCacheDelDelay() {
-
-    }
-
     /**
-     * KVStore will sleep for STORE_DELAY milliseconds
+     * Make every KVStore operation sleep for a fixed time, by setting a
+     * FaultInjector as the instrumentation. Without a call the store does
+     * not sleep; the tests here use STORE_DELAY.
+     * @param millis delay of each KVStore operation in milliseconds, 0 for
+     *        none
      */
-    public static void agStoreDelay() {
-        delay(STORE_DELAY);
+    public static void setStoreDelay(long millis) {
+        if (millis <= 0) {
+            Instrumentation.set(Instrumentation.NONE);
+        } else {
+            Instrumentation.set(new FaultInjector(0).setStoreLatency(FaultInjector.Latency.fixed(millis)));
+        }
     }
 
     /**
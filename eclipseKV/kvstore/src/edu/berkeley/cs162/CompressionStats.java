@@ -0,0 +1,84 @@
+/**
+ * Compression ratio and CPU cost of a value compression layer
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Counts the values a compression layer compressed, the ones it left as
+ * they were because they did not get smaller, the bytes saved and the time
+ * spent either way. Times are in microseconds.
+ */
+public class CompressionStats {
+    private long compressedValues = 0;
+    private long rawValues = 0;
+    // UTF-8 size of the values that were compressed, and their compressed size
+    private long originalBytes = 0;
+    private long compressedBytes = 0;
+    private long compressNanos = 0;
+    private long decompressedValues = 0;
+    private long decompressNanos = 0;
+
+    public synchronized void recordCompression(int original, int compressed, long nanos) {
+        compressedValues++;
+        originalBytes += original;
+        compressedBytes += compressed;
+        compressNanos += nanos;
+    }
+
+    /**
+     * @param nanos time spent on a value that did not get smaller
+     */
+    public synchronized void recordRaw(long nanos) {
+        rawValues++;
+        compressNanos += nanos;
+    }
+
+    public synchronized void recordDecompression(long nanos) {
+        decompressedValues++;
+        decompressNanos += nanos;
+    }
+
+    public synchronized long getCompressedValues() {
+        return compressedValues;
+    }
+
+    /**
+     * @return number of values compression was tried on but not used for
+     */
+    public synchronized long getRawValues() {
+        return rawValues;
+    }
+
+    public synchronized long getDecompressedValues() {
+        return decompressedValues;
+    }
+
+    /**
+     * @return original over compressed size of the values that were
+     *         compressed, 1 if there are none
+     */
+    public synchronized double getRatio() {
+        return compressedBytes == 0 ? 1.0 : (double) originalBytes / compressedBytes;
+    }
+
+    public synchronized long getBytesSaved() {
+        return originalBytes - compressedBytes;
+    }
+
+    /**
+     * @return time spent compressing, including values left raw
+     */
+    public synchronized long getCompressMicros() {
+        return compressNanos / 1000;
+    }
+
+    public synchronized long getDecompressMicros() {
+        return decompressNanos / 1000;
+    }
+
+    public synchronized String toString() {
+        return String.format("compressed=%d raw=%d ratio=%.2f saved=%dB compress=%dus decompress=%d/%dus",
+            compressedValues, rawValues, getRatio(), getBytesSaved(), getCompressMicros(),
+            decompressedValues, getDecompressMicros());
+    }
+}
@@ -0,0 +1,325 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EndToEndQuorum {
+
+	private final Integer numSlaves = 3;
+
+	private ServerRunner coordinatorRunner;
+
+	private Map<String, ServerRunner> slaveRunners;
+	private TPCMaster master;
+
+	@Before
+	public void setUp() throws Exception {
+		master = new TPCMaster(numSlaves, numSlaves, TPCMaster.DEFAULT_VIRTUAL_NODES);
+		master.setReplicationMode("", TPCMaster.ReplicationMode.QUORUM);
+
+		// Set up Coordinator Server
+		SocketServer kvServer = new RobustSocketServer(
+				InetAddress.getLocalHost().getHostAddress(), 8888);
+		kvServer.addHandler(new KVClientHandler(master));
+
+		coordinatorRunner = new ServerRunner(kvServer,
+				"Coordinator Server",
+				"Handles KVClient requests to the system.");
+		coordinatorRunner.start();
+		System.out.println("INFO EndToEnd.setUp: Coordinator server ready.");
+
+		// Set up Registration Server
+		System.out.print("INFO EndToEnd.setUp: Running registration server... ");
+		master.run();
+		System.out.println("ready.");
+		Thread.sleep(3000);
+
+		// Set up slaves
+		slaveRunners = new HashMap<String, ServerRunner>();
+		setUpSlave("Mr. Slave");
+		setUpSlave("Mrs. Slave");
+		setUpSlave("Ms. Slave");
+		Thread.sleep(3000);
+	}
+
+	private void setUpSlave(String name) throws UnknownHostException, IOException, KVException {
+		System.out.format("INFO EndToEnd.setUp: Set up %s%n", name);
+		SocketServer slave =
+				new RobustSocketServer(InetAddress.getLocalHost().getHostAddress(), 0);
+		long slaveId = hashTo64bit(name);
+		KVServer slaveKvs = new KVServer(1, 3);
+		TPCMasterHandler handler =
+				new TPCMasterHandler(slaveKvs, slaveId);
+		slave.addHandler(handler);
+
+		// Create TPCLog
+		String logPath = "slave" + slaveId + "@" + slave.getHostname();
+		TPCLog mrLog = new TPCLog(logPath, new KVServer(numSlaves, numSlaves));
+
+		// Set log for TPCMasterHandler
+		handler.setTPCLog(mrLog);
+
+		ServerRunner slaveRunner = new ServerRunner(slave, name, "A Slave Server");
+		slaveRunner.start();
+		slaveRunners.put(name, slaveRunner);
+
+		// Register with the Master. Assuming it always succeeds (not catching).
+		handler.registerWithMaster(InetAddress.getLocalHost().getHostAddress(), slave);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		coordinatorRunner.stop();
+		for (ServerRunner slaveRunner : slaveRunners.values()) {
+			slaveRunner.stop();
+		}
+		master.shutdown();
+		master = null;
+	}
+
+	public static class ServerRunner implements Runnable {
+
+		public static final int THREAD_STOP_TIMEOUT_MS = 1000 * 10; // Wait 10 seconds
+
+		public ServerRunner(SocketServer socs, String name, String desc) {
+			sockserver = socs;
+			runnerName = name;
+			runnerDesc = desc;
+		}
+
+		private final SocketServer sockserver;
+		public final String runnerName;
+		public final String runnerDesc;
+
+		private Thread thread = null;
+		private boolean isUp = false;
+
+		@Override
+		public void run() {
+			try {
+				sockserver.connect();
+				System.out.format("Running %s...%n", runnerName);
+				synchronized (this) {
+					isUp = true;
+					notifyAll();
+				}
+				sockserver.run();
+				synchronized (this) {
+					isUp = false;
+					notifyAll();
+				}
+			} catch (Exception e) {
+				System.out.println(String.format(
+						"SERVER-SIDE: Error from %s", runnerName));
+				e.printStackTrace();
+			}
+		}
+
+		public void start() {
+			if (thread == null) {
+				thread = new Thread(this, runnerName);
+				thread.setDaemon(true); // Allow JVM to exit if thread abandoned
+				System.out.format("INFO ServerRunner.start: Starting %s: %s%n",
+						runnerName, runnerDesc);
+				thread.start();
+
+				while (!isUp) {
+					try {
+						synchronized (this) {
+							this.wait(100);
+						}
+					} catch (InterruptedException e) {}
+				}
+				System.out.format("INFO ServerRunner.start: %s is now up.%n", runnerName, runnerDesc);
+			}
+		}
+
+		public void stop() {
+			System.out.format("INFO ServerRunner: Stopping %s%n", runnerName);
+			if (sockserver != null) {
+				sockserver.stop();
+			}
+			if (thread != null) {
+				try {
+					thread.join(THREAD_STOP_TIMEOUT_MS);
+				} catch (InterruptedException e) {
+					System.out.format("ERROR ServerRunner: " +
+							"Failed to stop Server (%s), giving up.%n", runnerName);
+				}
+			}
+			isUp = false;
+			thread = null;
+		}
+
+	}
+
+	public class RobustSocketServer extends SocketServer {
+		private boolean stopSocketServer;
+		
+		public RobustSocketServer(String hostname, int port) {
+			super(hostname);
+			this.hostname = hostname;
+			this.port = port;
+		}
+
+		@Override
+		public void connect() throws IOException {
+			server = new ServerSocket(this.port);
+			server.setReuseAddress(true);
+			server.setSoTimeout(100); // Timeout after a while, instead of blocking forever
+			if (this.port == 0) {
+				this.port = server.getLocalPort();
+			}
+		}
+
+		@Override
+		public void run() throws IOException {
+			while (!stopSocketServer) {
+				try {
+					Socket clientConn = server.accept();
+					if (clientConn != null) {
+						handler.handle(clientConn);
+						// Don't close it here...it's queued for asynchronous handling!
+					}
+				} catch (SocketTimeoutException e) {
+					// Do nothing, this is normal
+				} catch (IOException e) {
+					if (server.isClosed() || !server.isBound()) throw e;
+				}
+			}
+			// Close the socket
+			closeSocket();
+		}
+
+		@Override
+		public void stop() {
+			stopSocketServer = true;
+		}
+
+		public void closeSocket() {
+			if (server.isClosed()) return;
+			try {
+				server.close();
+			} catch (IOException e) {
+				System.out.println("Could not close socket");
+			}
+		}
+	}
+
+	private static long hashTo64bit(String string) {
+		// Take a large prime
+		long h = 1125899906842597L;
+		int len = string.length();
+
+		for (int i = 0; i < len; i++) {
+			h = 31*h + string.charAt(i);
+		}
+		return h;
+	}
+
+	/**
+	 * Store a newer version of a key on its first replica only, as a quorum
+	 * write that reached one replica before the others leaves it.
+	 */
+	private void writeFirstReplica(String key, String value) throws KVException {
+		KVMessage write = new KVMessage("quorumput");
+		write.setKey(key);
+		write.setValue(VersionedValue.encode(9000000000000000L, value));
+		write.setTpcOpId("1");
+		KVMessage resp = master.findReplicas(key).get(0).request(write, 1000);
+		assertEquals("Success", resp.getMessage());
+	}
+
+	/**
+	 * mget and scan of a quorum keyspace return values, not stored versions,
+	 * leave out deleted keys and take the newest version among the replicas
+	 * @throws KVException
+	 * @throws UnknownHostException
+	 */
+	@Test(timeout = 50000)
+	public void testMultiGetAndScan() throws KVException, UnknownHostException {
+		System.out.println("INFO EndToEnd.testMultiGetAndScan: Begin.");
+		KVClient client = new KVClient(InetAddress.getLocalHost().getHostAddress(), 8888);
+
+		client.put("key1", "value1");
+		client.put("key2", "value2");
+		client.put("key3", "value3");
+		client.del("key2");
+		writeFirstReplica("key3", "value3new");
+		// Read the slaves rather than the master's cache
+		master.masterCache = new KVCache(1, 1);
+
+		LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>();
+		expected.put("key1", "value1");
+		expected.put("key3", "value3new");
+		assertEquals(expected, client.mget(Arrays.asList("key1", "key2", "key3")));
+		assertEquals(expected, client.scan("key", "kez", 10));
+		System.out.println("INFO EndToEnd.testMultiGetAndScan: Finished.");
+	}
+
+	/**
+	 * Compare-and-set, increment and batched writes need every replica to
+	 * take part, so they are refused for quorum keys and change nothing
+	 * @throws KVException
+	 * @throws UnknownHostException
+	 */
+	@Test(timeout = 50000)
+	public void testConditionalAndBatchWritesRefused() throws KVException, UnknownHostException {
+		System.out.println("INFO EndToEnd.testConditionalAndBatchWritesRefused: Begin.");
+		KVClient client = new KVClient(InetAddress.getLocalHost().getHostAddress(), 8888);
+
+		client.put("key1", "1");
+		try {
+			client.cas("key1", "1", "2");
+			fail("cas of a quorum key succeeded");
+		} catch (KVException e) {
+			assertEquals("Unknown Error: Compare-and-set is not supported for quorum keyspaces",
+					e.getMsg().getMessage());
+		}
+		try {
+			client.incrementBy("key1", 1);
+			fail("increment of a quorum key succeeded");
+		} catch (KVException e) {
+			assertEquals("Unknown Error: Increment is not supported for quorum keyspaces",
+					e.getMsg().getMessage());
+		}
+		LinkedHashMap<String, String> pairs = new LinkedHashMap<String, String>();
+		pairs.put("key1", "3");
+		pairs.put("key2", "3");
+		try {
+			client.mput(pairs);
+			fail("mput of quorum keys succeeded");
+		} catch (KVException e) {
+			assertEquals("Unknown Error: Batched put is not supported for quorum keyspaces",
+					e.getMsg().getMessage());
+		}
+		try {
+			client.mdel(Arrays.asList("key1"));
+			fail("mdel of a quorum key succeeded");
+		} catch (KVException e) {
+			assertEquals("Unknown Error: Batched del is not supported for quorum keyspaces",
+					e.getMsg().getMessage());
+		}
+
+		master.masterCache = new KVCache(1, 1);
+		assertEquals("1", client.get("key1"));
+		LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>();
+		expected.put("key1", "1");
+		assertEquals(expected, client.mget(Arrays.asList("key1", "key2")));
+		System.out.println("INFO EndToEnd.testConditionalAndBatchWritesRefused: Finished.");
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * Configurable latency and errors for the storage path
+ */
+package edu.berkeley.cs162;
+
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Instrumentation that adds latency drawn from a distribution to each
+ * instrumented point, and fails store operations at a given rate with
+ * INJECTED_ERROR. A slow disk is a latency with a tail on LOG_FLUSH and the
+ * store points. Points left unconfigured cost nothing.
+ *
+ * Configure before setting it as the instrumentation; the settings are not meant to change while
+ * servers run.
+ */
+public class FaultInjector extends Instrumentation {
+    public static final String INJECTED_ERROR = "Unknown Error: Injected fault";
+
+    private final EnumMap<Point, Latency> latencies = new EnumMap<Point, Latency>(Point.class);
+    private final EnumMap<Point, Double> errorRates = new EnumMap<Point, Double>(Point.class);
+    private final EnumMap<Point, AtomicLong> delayNanos = new EnumMap<Point, AtomicLong>(Point.class);
+    private final EnumMap<Point, AtomicLong> errors = new EnumMap<Point, AtomicLong>(Point.class);
+    private final Random random;
+
+    public FaultInjector(long seed) {
+        random = new Random(seed);
+        for (Point point : Point.values()) {
+            delayNanos.put(point, new AtomicLong());
+            errors.put(point, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return this, for chaining
+     */
+    public FaultInjector setLatency(Point point, Latency latency) {
+        latencies.put(point, latency);
+        return this;
+    }
+
+    /**
+     * Same latency at every point of the store: STORE_GET, STORE_PUT and
+     * STORE_DEL.
+     *
+     * @return this, for chaining
+     */
+    public FaultInjector setStoreLatency(Latency latency) {
+        return setLatency(Point.STORE_GET, latency).setLatency(Point.STORE_PUT, latency)
+            .setLatency(Point.STORE_DEL, latency);
+    }
+
+    /**
+     * @param rate probability that an operation at the point fails; only
+     *        the store points can fail
+     * @return this, for chaining
+     */
+    public FaultInjector setErrorRate(Point point, double rate) {
+        if (point != Point.STORE_GET && point != Point.STORE_PUT && point != Point.STORE_DEL) {
+            throw new IllegalArgumentException(point + " cannot fail");
+        }
+        errorRates.put(point, rate);
+        return this;
+    }
+
+    public void delay(Point point) {
+        Latency latency = latencies.get(point);
+        if (latency == null) {
+            return;
+        }
+        long nanos;
+        synchronized (random) {
+            nanos = latency.nextNanos(random);
+        }
+        if (nanos <= 0) {
+            return;
+        }
+        delayNanos.get(point).addAndGet(nanos);
+        long deadline = System.nanoTime() + nanos;
+        long left = nanos;
+        while (left > 0) {
+            LockSupport.parkNanos(left);
+            left = deadline - System.nanoTime();
+        }
+    }
+
+    public void fail(Point point, String key) throws KVException {
+        Double rate = errorRates.get(point);
+        if (rate == null) {
+            return;
+        }
+        boolean failed;
+        synchronized (random) {
+            failed = random.nextDouble() < rate;
+        }
+        if (failed) {
+            errors.get(point).incrementAndGet();
+            throw new KVException(new KVMessage("resp", INJECTED_ERROR));
+        }
+    }
+
+    /**
+     * @return total latency added at the point, in milliseconds
+     */
+    public long getDelayMillis(Point point) {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos.get(point).get());
+    }
+
+    public long getErrors(Point point) {
+        return errors.get(point).get();
+    }
+
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Point point : Point.values()) {
+            if (latencies.containsKey(point) || errorRates.containsKey(point)) {
+                report.append(String.format("%s: delay=%dms errors=%d%n", point, getDelayMillis(point),
+                    getErrors(point)));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * A latency distribution.
+     */
+    public abstract static class Latency {
+        /**
+         * @param random generator to draw from, used by one thread at a time
+         */
+        abstract long nextNanos(Random random);
+
+        public static Latency fixed(final double millis) {
+            return new Latency() {
+                long nextNanos(Random random) {
+                    return toNanos(millis);
+                }
+            };
+        }
+
+        public static Latency uniform(final double minMillis, final double maxMillis) {
+            return new Latency() {
+                long nextNanos(Random random) {
+                    return toNanos(minMillis + random.nextDouble() * (maxMillis - minMillis));
+                }
+            };
+        }
+
+        public static Latency exponential(final double meanMillis) {
+            return new Latency() {
+                long nextNanos(Random random) {
+                    return toNanos(-meanMillis * Math.log(1 - random.nextDouble()));
+                }
+            };
+        }
+
+        /**
+         * Log-normal latency, the usual shape of service times: most close
+         * to the median, a long tail above it.
+         *
+         * @param sigma standard deviation of the latency's logarithm
+         */
+        public static Latency logNormal(final double medianMillis, final double sigma) {
+            return new Latency() {
+                long nextNanos(Random random) {
+                    return toNanos(medianMillis * Math.exp(sigma * random.nextGaussian()));
+                }
+            };
+        }
+
+        /**
+         * With the given probability an operation stalls for stallMillis
+         * on top of the base latency, as on a disk that now and then
+         * stops to flush or remap.
+         */
+        public static Latency withStalls(final Latency base, final double probability, final double stallMillis) {
+            return new Latency() {
+                long nextNanos(Random random) {
+                    long nanos = base.nextNanos(random);
+                    return random.nextDouble() < probability ? nanos + toNanos(stallMillis) : nanos;
+                }
+            };
+        }
+
+        private static long toNanos(double millis) {
+            return (long) (millis * 1000000);
+        }
+    }
+}
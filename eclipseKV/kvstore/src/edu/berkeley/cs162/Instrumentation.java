@@ -0,0 +1,58 @@
+/**
+ * Hooks on the storage path for latency and fault injection
+ */
+package edu.berkeley.cs162;
+
+/**
+ * KVCache, KVStore and TPCLog call the installed instrumentation before
+ * each operation. The default, NONE, does nothing, so that after inlining
+ * an operation pays no more than reading the field; benchmarks and tests
+ * install a FaultInjector to add latency or errors.
+ *
+ * The instrumentation is shared by the whole process. The field is not
+ * volatile, to keep its read a plain load, so set it before starting the
+ * servers that should see it.
+ */
+public abstract class Instrumentation {
+    /**
+     * Places where instrumentation is called.
+     */
+    public enum Point {
+        CACHE_GET, CACHE_PUT, CACHE_DEL, STORE_GET, STORE_PUT, STORE_DEL, LOG_FLUSH
+    }
+
+    /**
+     * No latency and no faults.
+     */
+    public static final Instrumentation NONE = new Instrumentation() {
+        public void delay(Point point) {
+        }
+
+        public void fail(Point point, String key) {
+        }
+    };
+
+    private static Instrumentation current = NONE;
+
+    public static Instrumentation get() {
+        return current;
+    }
+
+    public static void set(Instrumentation instrumentation) {
+        current = instrumentation;
+    }
+
+    /**
+     * Called before every operation at the point; may block to add
+     * latency.
+     */
+    public abstract void delay(Point point);
+
+    /**
+     * Called before the operations at the point that can report an error:
+     * single key gets, puts and dels of KVStore.
+     *
+     * @throws KVException the injected error, if any
+     */
+    public abstract void fail(Point point, String key) throws KVException;
+}
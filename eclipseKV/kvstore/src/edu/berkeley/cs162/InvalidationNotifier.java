@@ -0,0 +1,208 @@
+/**
+ * Invalidation notices for the near caches of clients
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers which clients may hold each key in their near cache, as told by
+ * the gets they send, and tells them when the key is written. Notices are
+ * sent from a single worker thread, batched per client, so writers never
+ * wait for clients. A subscription lasts until the key is next written:
+ * clients subscribe again with their next get.
+ *
+ * At most capacity subscriptions are held; beyond that the oldest keys are
+ * invalidated early, which costs clients a miss but keeps them coherent.
+ * Notices that cannot be delivered are dropped, and clients fall back on
+ * their staleness bound.
+ */
+public class InvalidationNotifier {
+    // Maximum number of (key, client) subscriptions held at once
+    public static final int DEFAULT_CAPACITY = 100000;
+    // Time a client has to accept a notice
+    public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final int capacity;
+    // Clients that may cache each key, oldest subscribed key first
+    private final LinkedHashMap<String, HashSet<String>> subscribers =
+        new LinkedHashMap<String, HashSet<String>>();
+    private int subscriptions = 0;
+    // Keys to invalidate, by client
+    private HashMap<String, LinkedHashSet<String>> outbox = new HashMap<String, LinkedHashSet<String>>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Thread worker = null;
+    private boolean stopped = false;
+
+    /**
+     * @param capacity maximum number of (key, client) subscriptions
+     */
+    public InvalidationNotifier(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Record that a client read a key into its near cache. Called with the
+     * key's lock held, so that a write of the key either happens first or
+     * sees the subscription.
+     *
+     * @param subscriber host:port the client listens on
+     */
+    public void subscribe(String key, String subscriber) {
+        lock.lock();
+        try {
+            HashSet<String> clients = subscribers.get(key);
+            if (clients == null) {
+                clients = new HashSet<String>();
+                subscribers.put(key, clients);
+            }
+            if (clients.add(subscriber)) {
+                subscriptions++;
+            }
+            Iterator<Map.Entry<String, HashSet<String>>> oldest = subscribers.entrySet().iterator();
+            while (subscriptions > capacity && oldest.hasNext()) {
+                Map.Entry<String, HashSet<String>> entry = oldest.next();
+                if (entry.getKey().equals(key)) {
+                    continue;
+                }
+                oldest.remove();
+                queue(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tell the clients that may cache these keys to drop them. Called once
+     * the keys were written, with their locks held.
+     */
+    public void invalidate(Collection<String> keys) {
+        lock.lock();
+        try {
+            for (String key : keys) {
+                HashSet<String> clients = subscribers.remove(key);
+                if (clients != null) {
+                    queue(key, clients);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of (key, client) subscriptions held
+     */
+    public int getSubscriptionCount() {
+        lock.lock();
+        try {
+            return subscriptions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop sending notices. Notices not yet sent are dropped.
+     */
+    public void stop() {
+        Thread stopping;
+        lock.lock();
+        try {
+            stopped = true;
+            stopping = worker;
+            worker = null;
+        } finally {
+            lock.unlock();
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+        }
+    }
+
+    /**
+     * Move the subscriptions of a key to the outbox. The caller holds lock.
+     */
+    private void queue(String key, HashSet<String> clients) {
+        subscriptions -= clients.size();
+        for (String client : clients) {
+            LinkedHashSet<String> keys = outbox.get(client);
+            if (keys == null) {
+                keys = new LinkedHashSet<String>();
+                outbox.put(client, keys);
+            }
+            keys.add(key);
+        }
+        if (worker == null && !stopped) {
+            worker = new Thread(new Worker());
+            worker.setDaemon(true);
+            worker.start();
+        }
+        changed.signalAll();
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (true) {
+                HashMap<String, LinkedHashSet<String>> batch;
+                lock.lock();
+                try {
+                    while (outbox.isEmpty() && !stopped) {
+                        changed.await();
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    batch = outbox;
+                    outbox = new HashMap<String, LinkedHashSet<String>>();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                for (Map.Entry<String, LinkedHashSet<String>> notice : batch.entrySet()) {
+                    send(notice.getKey(), notice.getValue());
+                }
+            }
+        }
+
+        private void send(String subscriber, Collection<String> keys) {
+            int colon = subscriber.lastIndexOf(':');
+            Socket socket = null;
+            try {
+                KVMessage notice = new KVMessage("invalidate");
+                notice.setKeys(keys);
+                socket = Transport.get().connect(subscriber.substring(0, colon),
+                    Integer.parseInt(subscriber.substring(colon + 1)), CONNECT_TIMEOUT_MILLIS);
+                notice.sendMessage(socket);
+            } catch (KVException e) {
+                // Dropped: the client's staleness bound expires the keys
+            } catch (IOException e) {
+                // Dropped, as above
+            } catch (RuntimeException e) {
+                // Malformed address, dropped
+            } finally {
+                try {
+                    if (socket != null) {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+}
@@ -32,7 +32,11 @@ package edu.berkeley.cs162;
 
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
@@ -78,7 +82,7 @@ public class KVCache implements KeyValueInterface {
     public String get(String key) {
         // Must be called before anything else
         AutoGrader.agCacheGetStarted(key);
-        AutoGrader.agCacheGetDelay();
+        Instrumentation.get().delay(Instrumentation.Point.CACHE_GET);
 
         String returnString = null;
         int setId = getSetId(key);
@@ -106,7 +110,7 @@ public class KVCache implements KeyValueInterface {
     public void put(String key, String value) {
         // Must be called before anything else
         AutoGrader.agCachePutStarted(key, value);
-        AutoGrader.agCachePutDelay();
+        Instrumentation.get().delay(Instrumentation.Point.CACHE_PUT);
 
         boolean found = false;
         int setId = getSetId(key);
@@ -155,7 +159,7 @@ public class KVCache implements KeyValueInterface {
     public void del (String key) {
         // Must be called before anything else
         AutoGrader.agCacheGetStarted(key);
-        AutoGrader.agCacheDelDelay();
+        Instrumentation.get().delay(Instrumentation.Point.CACHE_DEL);
         
         int setId = getSetId(key);
         LinkedList<Entry> setlist = sets[setId].list;
@@ -180,6 +184,34 @@ public class KVCache implements KeyValueInterface {
         return set.wl;
     }
     
+    /**
+     * Locks of the sets holding several keys, each once, in set order.
+     * Threads that need more than one set lock take them in this order, so
+     * that two of them cannot wait for each other.
+     *
+     * @param keys
+     * @return    the write locks to take, in the order to take them
+     */
+    public List<WriteLock> getWriteLocks(Collection<String> keys) {
+        TreeMap<Integer, WriteLock> locks = new TreeMap<Integer, WriteLock>();
+        for (String key : keys) {
+            int setId = getSetId(key);
+            locks.put(setId, sets[setId].wl);
+        }
+        return new ArrayList<WriteLock>(locks.values());
+    }
+
+    /**
+     * Wait until no thread holds the lock of any set. Operations that lock a
+     * set after this returns started after it was called.
+     */
+    public void awaitQuiescence() {
+        for (setClass set : sets) {
+            set.wl.lock();
+            set.wl.unlock();
+        }
+    }
+
     public setClass getSetByKey(String key){
     	int c = getSetId(key);
     	return sets[c];
@@ -34,6 +34,11 @@ package edu.berkeley.cs162;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -43,13 +48,15 @@ import java.io.IOException;
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
  */
-public class KVClient implements KeyValueInterface {
+public class KVClient implements AtomicKeyValueInterface {
 
     private String server = null;
     private int port = 0;
     private Socket finallyHolder = null;
     private static final int MAX_KEY_SIZE = 256;
     private final String IGNORE_NEXT = "ignoreNext";
+    // Values read by get(), null unless enableNearCache() was called
+    private volatile NearCache nearCache = null;
     /**
      * @param server is the DNS reference to the Key-Value server
      * @param port is the port on which the Key-Value server is listening
@@ -59,16 +66,61 @@ public class KVClient implements KeyValueInterface {
         this.port = port;
     }
 
+    /**
+     * Serve repeated gets of a key from memory. The master tells this client
+     * when a key it read is written; a value is read again after
+     * maxStaleMillis in any case, in case such a notice was lost. Writes
+     * through this client drop the keys they write.
+     *
+     * @param capacity maximum number of values kept
+     * @param maxStaleMillis age after which a value is read again
+     * @throws KVException if the port for invalidations cannot be opened
+     */
+    public void enableNearCache(int capacity, long maxStaleMillis) throws KVException {
+      disableNearCache();
+      try
+      {
+        nearCache = new NearCache(capacity, maxStaleMillis);
+      }
+      catch(IOException exception)
+      {
+        throw new KVException(new KVMessage("resp", "Network Error: Could not create socket"));
+      }
+    }
+
+    public void disableNearCache() {
+      NearCache cache = nearCache;
+      nearCache = null;
+      if(cache != null)
+      {
+        cache.close();
+      }
+    }
+
+    /**
+     * @return the near cache, null if it is not enabled
+     */
+    public NearCache getNearCache() {
+      return nearCache;
+    }
+
+    private void invalidateNearCache(Collection<String> keys) {
+      NearCache cache = nearCache;
+      if(cache != null && keys != null)
+      {
+        cache.invalidate(keys);
+      }
+    }
+
     private Socket connectHost() throws KVException {
       try
       {
-        Socket socket = new Socket(this.server, this.port);
-        System.out.println("Socket created! Close Status is: " + socket.isClosed() + " Connected Status is: " + socket.isConnected());
+        Socket socket = Transport.get().connect(this.server, this.port, 0);
         return socket;
       }
       catch(Exception exception)
       {
-        System.out.println("There was an exception in connectHost().");
+        Tracer.debug("client.error", null, "connectHost: " + exception);
         handleException(exception);
       }
       return new Socket();
@@ -78,17 +130,15 @@ public class KVClient implements KeyValueInterface {
       try
       {
         sock.close();
-        System.out.println("Socket closed! Close Status is: " + sock.isClosed() + " Connected Status is: " + sock.isConnected());
       }
       catch(Exception exception)
       {
-        System.out.println("There was an exception in closeHost().");
+        Tracer.debug("client.error", null, "closeHost: " + exception);
         handleException(exception);
       }
     }
     
     private void handleException(Exception exception) throws KVException{
-      System.out.println("The exception was: " + exception.toString());
       if(exception.toString() == "edu.berkeley.cs162.KVException")
       {
         throw ((KVException) exception);
@@ -105,15 +155,22 @@ public class KVClient implements KeyValueInterface {
     }
 
     public void put(String key, String value) throws KVException {
+      put(key, value, 0);
+    }
+
+    /**
+     * Put to a quorum keyspace, waiting for the given number of replicas
+     * rather than the master's default. Other keyspaces ignore the quorum.
+     */
+    public void put(String key, String value, int quorum) throws KVException {
       try
       {
-    	
-    	System.out.println("PUt key = " + key + " value = " + value);
         Socket socket = connectHost();
         finallyHolder = socket;
         KVMessage send = new KVMessage("putreq");
         send.setKey(key);
         send.setValue(value);
+        send.setQuorum(quorum);
         send.sendMessage(socket);
         
         KVMessage recieve = new KVMessage(socket);
@@ -125,32 +182,57 @@ public class KVClient implements KeyValueInterface {
       }
       catch(Exception exception)
       {
-        System.out.println("There was an exception in put.");
+        Tracer.debug("client.error", null, "put: " + exception);
         handleException(exception);
       }
       finally
       {
+        invalidateNearCache(Collections.singletonList(key));
         closeHost(finallyHolder);
       }
       return;
     }
 
     public String get(String key) throws KVException {
+      return get(key, 0);
+    }
+
+    /**
+     * Get from a quorum keyspace, waiting for the given number of replicas
+     * rather than the master's default. Other keyspaces ignore the quorum.
+     */
+    public String get(String key, int quorum) throws KVException {
+      NearCache cache = nearCache;
+      long readStart = 0;
+      if(cache != null)
+      {
+        String cached = cache.get(key);
+        if(cached != null)
+        {
+          return cached;
+        }
+        readStart = cache.startRead();
+      }
       try
       {
-    	
-    	System.out.println("Get key = " + key);
         Socket socket = connectHost();
         finallyHolder = socket;
         KVMessage send = new KVMessage("getreq");
         send.setKey(key);
+        send.setQuorum(quorum);
+        if(cache != null)
+        {
+          send.setSubscriber(Integer.toString(cache.getPort()));
+        }
         
         send.sendMessage(socket);
-        System.out.println("Before KVMessage Constructor");
         KVMessage recieve = new KVMessage(socket);
-        System.out.println("Get receive = " + recieve.getValue());
         if(recieve.getValue() != null && recieve.getKey() != null)
         {      
+          if(cache != null)
+          {
+            cache.put(key, recieve.getValue(), readStart);
+          }
           return recieve.getValue();
         }
         else 
@@ -160,7 +242,7 @@ public class KVClient implements KeyValueInterface {
       }
       catch(Exception exception)
       {
-        System.out.println("There was an exception in get.");
+        Tracer.debug("client.error", null, "get: " + exception);
         handleException(exception);
       }
       finally
@@ -171,12 +253,21 @@ public class KVClient implements KeyValueInterface {
     }
 
     public void del(String key) throws KVException {
+      del(key, 0);
+    }
+
+    /**
+     * Del from a quorum keyspace, waiting for the given number of replicas
+     * rather than the master's default. Other keyspaces ignore the quorum.
+     */
+    public void del(String key, int quorum) throws KVException {
       try
       {
         Socket socket = connectHost();
         finallyHolder = socket;
         KVMessage send = new KVMessage("delreq");
         send.setKey(key);
+        send.setQuorum(quorum);
         send.sendMessage(socket);
         KVMessage recieve = new KVMessage(socket);
         if(!recieve.getMessage().equals("Success"))
@@ -187,16 +278,226 @@ public class KVClient implements KeyValueInterface {
       }
       catch(Exception exception)
       {
-        System.out.println("There was an exception in del.");
+        Tracer.debug("client.error", null, "del: " + exception);
         handleException(exception);
       }
       finally
       {
     	
+    		invalidateNearCache(Collections.singletonList(key));
     		closeHost(finallyHolder);
       }
     }
     
+    public boolean cas(String key, String expected, String value) throws KVException {
+      try
+      {
+        Socket socket = connectHost();
+        finallyHolder = socket;
+        KVMessage send = new KVMessage("casreq");
+        send.setKey(key);
+        send.setValue(value);
+        send.setExpectedValue(expected);
+        send.sendMessage(socket);
+        KVMessage recieve = new KVMessage(socket);
+        if(TPCMasterHandler.COMPARE_FAILED.equals(recieve.getMessage()))
+        {
+          return false;
+        }
+        if(!"Success".equals(recieve.getMessage()))
+        {
+          throw new KVException(recieve);
+        }
+        return true;
+      }
+      catch(Exception exception)
+      {
+        Tracer.debug("client.error", null, "cas: " + exception);
+        handleException(exception);
+      }
+      finally
+      {
+        invalidateNearCache(Collections.singletonList(key));
+        closeHost(finallyHolder);
+      }
+      return false;
+    }
+
+    public boolean putIfAbsent(String key, String value) throws KVException {
+      return cas(key, null, value);
+    }
+
+    public long incrementBy(String key, long delta) throws KVException {
+      try
+      {
+        Socket socket = connectHost();
+        finallyHolder = socket;
+        KVMessage send = new KVMessage("incrreq");
+        send.setKey(key);
+        send.setValue(Long.toString(delta));
+        send.sendMessage(socket);
+        KVMessage recieve = new KVMessage(socket);
+        if(recieve.getValue() == null)
+        {
+          throw new KVException(recieve);
+        }
+        return Long.parseLong(recieve.getValue());
+      }
+      catch(Exception exception)
+      {
+        Tracer.debug("client.error", null, "incrementBy: " + exception);
+        handleException(exception);
+      }
+      finally
+      {
+        invalidateNearCache(Collections.singletonList(key));
+        closeHost(finallyHolder);
+      }
+      return 0;
+    }
+
+    /**
+     * Read several keys over one connection. Keys that do not exist are
+     * left out of the result.
+     *
+     * @throws KVException if some key could not be read from any replica
+     */
+    public LinkedHashMap<String, String> mget(List<String> keys) throws KVException {
+      try
+      {
+        Socket socket = connectHost();
+        finallyHolder = socket;
+        KVMessage send = new KVMessage("mgetreq");
+        send.setKeys(keys);
+        send.sendMessage(socket);
+        KVMessage recieve = new KVMessage(socket);
+        if(recieve.getEntries() == null)
+        {
+          throw new KVException(recieve);
+        }
+        if(recieve.getErrors() != null)
+        {
+          Map.Entry<String, String> error = recieve.getErrors().entrySet().iterator().next();
+          throw new KVException(new KVMessage("resp", error.getKey() + ": " + error.getValue()));
+        }
+        return new LinkedHashMap<String, String>(recieve.getEntries());
+      }
+      catch(Exception exception)
+      {
+        Tracer.debug("client.error", null, "mget: " + exception);
+        handleException(exception);
+      }
+      finally
+      {
+        closeHost(finallyHolder);
+      }
+      return null;
+    }
+
+    /**
+     * Write several pairs as one transaction: all of them are written or
+     * none is.
+     */
+    public void mput(Map<String, String> pairs) throws KVException {
+      KVMessage send = new KVMessage("mputreq");
+      send.setEntries(pairs);
+      sendBatch(send);
+    }
+
+    /**
+     * Delete several keys as one transaction. Keys that do not exist are
+     * skipped.
+     */
+    public void mdel(List<String> keys) throws KVException {
+      KVMessage send = new KVMessage("mdelreq");
+      send.setKeys(keys);
+      sendBatch(send);
+    }
+
+    private void sendBatch(KVMessage send) throws KVException {
+      try
+      {
+        Socket socket = connectHost();
+        finallyHolder = socket;
+        send.sendMessage(socket);
+        KVMessage recieve = new KVMessage(socket);
+        if(!"Success".equals(recieve.getMessage()))
+        {
+          throw new KVException(recieve);
+        }
+      }
+      catch(Exception exception)
+      {
+        Tracer.debug("client.error", null, send.getMsgType() + ": " + exception);
+        handleException(exception);
+      }
+      finally
+      {
+        invalidateNearCache(send.getEntries() != null ? send.getEntries().keySet() : send.getKeys());
+        closeHost(finallyHolder);
+      }
+    }
+
+    /**
+     * List the pairs with startKey <= key < endKey in key order, fetching
+     * pages from the Master until limit pairs were read or the range ends.
+     * A null startKey starts at the first key and a null endKey scans to the
+     * last one.
+     */
+    public LinkedHashMap<String, String> scan(String startKey, String endKey, int limit) throws KVException {
+      LinkedHashMap<String, String> pairs = new LinkedHashMap<String, String>();
+      String lastKey = null;
+      boolean more = true;
+      while (more && pairs.size() < limit)
+      {
+        try
+        {
+          Socket socket = connectHost();
+          finallyHolder = socket;
+          KVMessage send = new KVMessage("scanreq");
+          if(lastKey == null)
+          {
+            send.setKey(startKey);
+          }
+          else
+          {
+            send.setAfterKey(lastKey);
+          }
+          send.setEndKey(endKey);
+          send.setLimit(Math.min(limit - pairs.size(), TPCMaster.MAX_SCAN_LIMIT));
+          send.sendMessage(socket);
+          KVMessage recieve = new KVMessage(socket);
+          if(recieve.getEntries() == null)
+          {
+            throw new KVException(recieve);
+          }
+          for(Map.Entry<String, String> pair : recieve.getEntries().entrySet())
+          {
+            pairs.put(pair.getKey(), pair.getValue());
+            lastKey = pair.getKey();
+          }
+          more = recieve.hasMore() && !recieve.getEntries().isEmpty();
+        }
+        catch(Exception exception)
+        {
+          Tracer.debug("client.error", null, "scan: " + exception);
+          handleException(exception);
+        }
+        finally
+        {
+          closeHost(finallyHolder);
+        }
+      }
+      return pairs;
+    }
+
+    /**
+     * List up to limit pairs whose keys start with prefix, in key order.
+     */
+    public LinkedHashMap<String, String> prefixScan(String prefix, int limit) throws KVException {
+      return scan(prefix, KVStore.prefixEnd(prefix), limit);
+    }
+
     public void ignoreNext() throws KVException {
     	KVMessage ignoreNext = new KVMessage(IGNORE_NEXT);
     	ignoreNext.sendMessage(connectHost());
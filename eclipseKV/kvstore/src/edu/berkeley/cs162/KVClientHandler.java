@@ -32,16 +32,61 @@ package edu.berkeley.cs162;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadpool to ensure that none of it's methods are blocking.
  *
+ * Requests pass admission control first: beyond the concurrency limit a
+ * connection is not queued but answered with AdmissionControl.OVERLOADED by
+ * a separate thread, and a request over its client's rate limit is answered
+ * with AdmissionControl.RATE_LIMITED without reaching the master.
+ *
+ * A worker reads each request as an INCOMING job and queues it again in its
+ * RequestClass, so that bulk work does not hold up point gets: the pool
+ * shares its workers among the classes by weight.
  */
 public class KVClientHandler implements NetworkHandler {
+    // Rejected connections waiting for their answer; beyond this they are
+    // closed unanswered
+    private static final int MAX_PENDING_REJECTIONS = 64;
+    // Time a rejected client has to send its request
+    private static final int REJECTION_READ_MILLIS = 1000;
+
+    /**
+     * Classes of client requests, each with its own queue in the pool and
+     * its weight in sharing the workers. INCOMING requests are not read
+     * yet.
+     */
+    public enum RequestClass {
+        INCOMING(8), INTERACTIVE(8), WRITE(4), BULK(1), MAINTENANCE(1);
+
+        final int weight;
+
+        RequestClass(int weight) {
+            this.weight = weight;
+        }
+
+        public static RequestClass of(String msgType) {
+            if (msgType.equals("getreq")) {
+                return INTERACTIVE;
+            } else if (msgType.equals("putreq") || msgType.equals("delreq") || msgType.equals("casreq")
+                    || msgType.equals("incrreq")) {
+                return WRITE;
+            } else if (msgType.equals("scanreq") || msgType.equals("mgetreq") || msgType.equals("mputreq")
+                    || msgType.equals("mdelreq")) {
+                return BULK;
+            }
+            return MAINTENANCE;
+        }
+    }
 
     public ThreadPool threadpool = null;
     public TPCMaster tpcMaster = null;
+    public final AdmissionControl admission = new AdmissionControl();
+    private ThreadPool rejectionPool = null;
+    private final AtomicInteger pendingRejections = new AtomicInteger();
 
     public KVClientHandler(TPCMaster tpcMaster) {
         initialize(1, tpcMaster);
@@ -52,45 +97,113 @@ public class KVClientHandler implements NetworkHandler {
     }
 
     public void initialize(int connections, TPCMaster tpcMaster) {
-        threadpool = new ThreadPool(connections);
+        RequestClass[] classes = RequestClass.values();
+        int[] weights = new int[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            weights[i] = classes[i].weight;
+        }
+        threadpool = new ThreadPool(connections, weights);
+        rejectionPool = new ThreadPool(1);
         this.tpcMaster = tpcMaster;
     }
 
 
+    /**
+     * @return for each class of requests the requests waiting, the
+     *         requests started, and their mean and longest wait in the queue
+     */
+    public String getQueueStats() {
+        StringBuilder stats = new StringBuilder();
+        for (RequestClass requestClass : RequestClass.values()) {
+            int index = requestClass.ordinal();
+            long started = threadpool.getStartedJobs(index);
+            stats.append(String.format("%-12s depth %4d started %8d wait mean %8.2f ms max %8.2f ms%n",
+                requestClass, threadpool.getQueueDepth(index), started,
+                started == 0 ? 0 : threadpool.getTotalWaitNanos(index) / 1e6 / started,
+                threadpool.getMaxWaitNanos(index) / 1e6));
+        }
+        return stats.toString();
+    }
+
     public class ClientHandler implements Runnable {
 
         public Socket client = null;
         KVMessage clientMessage;
         KVMessage responseMessage;
+        // When admission control let the request in
+        final long admitted = System.nanoTime();
         
         @Override
         public void run() {
+        	// Type of a request that reached the master, for its latency
+        	String servedType = null;
+        	boolean timedOut = false;
+        	boolean requeued = false;
         	try {
-	            clientMessage = new KVMessage(client);
+        		if (clientMessage == null) {
+		            // First pass: read the request and queue it in its class
+		            clientMessage = new KVMessage(client);
+		            String messageType = clientMessage.getMsgType();
+		            if (!admission.tryConsume(client.getInetAddress().getHostAddress(), messageType)) {
+		            	throw new KVException(new KVMessage("resp", AdmissionControl.RATE_LIMITED));
+		            }
+		            threadpool.addToQueue(this, RequestClass.of(messageType).ordinal());
+		            requeued = true;
+		            return;
+        		}
 	            String messageType = clientMessage.getMsgType();
+	            servedType = messageType;
 	            if (messageType.equals("getreq")) {
 					handleGet();
 				} else if (messageType.equals("putreq")) {
 					handlePD(true);
 				} else if (messageType.equals("ignoreNext")){
 					handleIN(false);
+				} else if (messageType.equals("scanreq")) {
+					handleScan();
+				} else if (messageType.equals("mgetreq")) {
+					handleMultiGet();
+				} else if (messageType.equals("mputreq")) {
+					handleBatch(true);
+				} else if (messageType.equals("mdelreq")) {
+					handleBatch(false);
+				} else if (messageType.equals("casreq") || messageType.equals("incrreq")) {
+					handleConditional();
 				}
 				else {
 					handlePD(false);
 				}
         	} catch(KVException e) {
         		responseMessage = e.getMsg();
+        		String message = responseMessage.getMessage();
+        		timedOut = message != null && message.startsWith("Timeout Error");
         		try {
         			responseMessage.sendMessage(client);
         		} catch (KVException e1) {
         			//Fail silently
         		}
+        	} catch (InterruptedException e) {
+        		// Not queued; the client sees the connection close
+        	} finally {
+        		if (!requeued) {
+        			admission.release(servedType, System.nanoTime() - admitted, timedOut);
+        		}
         	}
             
         }
         
         void handleGet() throws KVException {
         	String key = clientMessage.getKey();
+        	if (clientMessage.getSubscriber() != null) {
+        		// Clients only send the port they listen on; notices go to
+        		// the address the request came from
+        		try {
+        			int port = Integer.parseInt(clientMessage.getSubscriber());
+        			clientMessage.setSubscriber(client.getInetAddress().getHostAddress() + ":" + port);
+        		} catch (NumberFormatException e) {
+        			clientMessage.setSubscriber(null);
+        		}
+        	}
         	String value = tpcMaster.handleGet(clientMessage);
         	responseMessage = new KVMessage("resp", "Success");
         	responseMessage.setKey(key);
@@ -98,6 +211,36 @@ public class KVClientHandler implements NetworkHandler {
         	responseMessage.sendMessage(client);
         }
         
+        void handleScan() throws KVException {
+        	responseMessage = tpcMaster.handleScan(clientMessage);
+        	responseMessage.sendMessage(client);
+        }
+        
+        void handleMultiGet() throws KVException {
+        	responseMessage = tpcMaster.handleMultiGet(clientMessage);
+        	responseMessage.sendMessage(client);
+        }
+        
+        void handleBatch(boolean isPut) throws KVException {
+        	tpcMaster.performBatchOperation(clientMessage, isPut);
+        	responseMessage = new KVMessage("resp", "Success");
+        	responseMessage.sendMessage(client);
+        }
+        
+        void handleConditional() throws KVException {
+        	String value = tpcMaster.performConditionalOperation(clientMessage);
+        	if (value == null) {
+        		responseMessage = new KVMessage("resp", TPCMasterHandler.COMPARE_FAILED);
+        	} else if (clientMessage.getMsgType().equals("incrreq")) {
+        		responseMessage = new KVMessage("resp");
+        		responseMessage.setKey(clientMessage.getKey());
+        		responseMessage.setValue(value);
+        	} else {
+        		responseMessage = new KVMessage("resp", "Success");
+        	}
+        	responseMessage.sendMessage(client);
+        }
+        
         void handlePD(boolean isPut) throws KVException {
         	tpcMaster.performTPCOperation(clientMessage, isPut);
         	responseMessage = new KVMessage("resp", "Success");
@@ -109,7 +252,6 @@ public class KVClientHandler implements NetworkHandler {
         }
         
         void handleIN(boolean isPut) throws KVException {
-        	System.out.println("Calling Handle Ignore Next");
         	tpcMaster.handleIgnoreNext(clientMessage);
         	responseMessage = new KVMessage("ignoreNext");
         	responseMessage.sendMessage(client);
@@ -123,11 +265,52 @@ public class KVClientHandler implements NetworkHandler {
      */
     @Override
     public void handle(Socket client) throws IOException {
+        if (!admission.tryAcquire()) {
+            reject(client, AdmissionControl.OVERLOADED);
+            return;
+        }
         Runnable r = new ClientHandler(client);
         try {
-            threadpool.addToQueue(r);
+            threadpool.addToQueue(r, RequestClass.INCOMING.ordinal());
         } catch (InterruptedException e) {
+            admission.release(null, 0, false);
             return; // ignore this error
         }
     }
+
+    /**
+     * Answer a connection with an error without queueing it behind admitted
+     * requests. The request is read first, as closing a socket with unread
+     * data resets it and the client would not see the answer.
+     */
+    private void reject(final Socket client, final String reason) throws IOException {
+        if (pendingRejections.incrementAndGet() > MAX_PENDING_REJECTIONS) {
+            pendingRejections.decrementAndGet();
+            client.close();
+            return;
+        }
+        try {
+            rejectionPool.addToQueue(new Runnable() {
+                public void run() {
+                    try {
+                        client.setSoTimeout(REJECTION_READ_MILLIS);
+                        new KVMessage(client);
+                    } catch (Exception e) {
+                        // Answer anyway
+                    }
+                    try {
+                        new KVMessage("resp", reason).sendMessage(client);
+                    } catch (KVException e) {
+                    }
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                    }
+                    pendingRejections.decrementAndGet();
+                }
+            });
+        } catch (InterruptedException e) {
+            pendingRejections.decrementAndGet();
+        }
+    }
 }
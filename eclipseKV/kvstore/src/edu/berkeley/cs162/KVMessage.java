@@ -30,6 +30,11 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,17 +45,22 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
 
 import org.w3c.dom.*;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSOutput;
-import org.w3c.dom.ls.LSSerializer;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import javax.xml.parsers.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * This is the object that is used to generate messages the XML based messages
@@ -63,6 +73,46 @@ public class KVMessage implements Serializable {
 	private String value = null;
 	private String message = null;
 	public String tpcOpId = null;
+	// Key-value pairs carried by a range response or a chunk put, in key
+	// order; null if none
+	private LinkedHashMap<String, String> entries = null;
+	// Hash range [rangeStart, rangeEnd) on the ring asked for by a range
+	// request, which may wrap around; the key, if set, is a cursor and only
+	// keys after it are wanted
+	private long rangeStart = 0;
+	private long rangeEnd = 0;
+	// Maximum number of entries wanted by a range or scan request
+	private int limit = 0;
+	// Key just after the keys a scan request covers, null for no bound; the
+	// key, if set, is the first key of the scan
+	private String endKey = null;
+	// Key a scan request resumes after, instead of starting at the key
+	private String afterKey = null;
+	// Hash tree nodes asked for by a tree or leaf request, and the level
+	// they are on
+	private ArrayList<Long> nodes = null;
+	private int level = 0;
+	// Hash ranges a tree or leaf request is restricted to, as {start, end}
+	private ArrayList<long[]> ranges = null;
+	// Whether a range response stopped before the end of the range
+	private boolean more = false;
+	// Keys of a batched get or del, in request order
+	private ArrayList<String> keys = null;
+	// Error for each key a batched request failed on; null if none
+	private LinkedHashMap<String, String> errors = null;
+	// Value a compare-and-set expects the key to have, null if the key must
+	// not exist
+	private String expectedValue = null;
+	// Port a get's client listens on for invalidations of the key, or
+	// host:port once the master added the client's address; null if the
+	// client does not cache what it reads
+	private String subscriber = null;
+	// host:port of the replicas a chain write is still to be forwarded to,
+	// in chain order
+	private ArrayList<String> successors = null;
+	// Replicas a get, put or del of a quorum keyspace waits for; 0 for the
+	// master's default
+	private int quorum = 0;
 
 	private final String GET_MESSAGE = "getreq";
 	private final String PUT_MESSAGE = "putreq";
@@ -75,10 +125,50 @@ public class KVMessage implements Serializable {
 	private final String ACK_MESSAGE = "ack";
     private final String IGNORE_NEXT = "ignoreNext";
     private final String REGISTER_MESSAGE = "register";
+    private final String HEARTBEAT_MESSAGE = "heartbeat";
+    private final String RANGE_MESSAGE = "rangereq";
+    private final String CHUNK_PUT_MESSAGE = "chunkput";
+    private final String SYNC_MESSAGE = "syncreq";
+    private final String SYNC_DONE_MESSAGE = "syncdone";
+    private final String TREE_MESSAGE = "treereq";
+    private final String LEAF_MESSAGE = "leafreq";
+    private final String SCAN_MESSAGE = "scanreq";
+    private final String MGET_MESSAGE = "mgetreq";
+    private final String MPUT_MESSAGE = "mputreq";
+    private final String MDEL_MESSAGE = "mdelreq";
+    private final String CAS_MESSAGE = "casreq";
+    private final String INCR_MESSAGE = "incrreq";
+    private final String INVALIDATE_MESSAGE = "invalidate";
+    private final String CHAIN_PUT_MESSAGE = "chainput";
+    private final String CHAIN_DEL_MESSAGE = "chaindel";
+    private final String QUORUM_PUT_MESSAGE = "quorumput";
 	
 	private boolean get_response = false;
 	private boolean tpcOperation = false;
 
+	// Marks the start of a frame on a persistent connection ("KVMF"). Its
+	// first byte can never start an XML document, which lets a receiver tell
+	// framed connections apart from one-shot ones.
+	public static final int FRAME_MAGIC = 0x4B564D46;
+	// Frames larger than this are treated as corrupt (value plus XML overhead)
+	// and are not sent
+	public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+	// Error of a message too large to be sent in a frame
+	public static final String OVERSIZED_MESSAGE = "Oversized message";
+	// Id of the frame this message arrived in, -1 if it was not framed
+	private transient long frameId = -1;
+	// Values longer than this are sent as a series of checksummed chunks of
+	// at most this many chars, so no hop has to hold the whole value twice
+	public static final int VALUE_CHUNK_CHARS = 16 * 1024;
+	// Values of more chars than this are sent LZCodec compressed, as base64,
+	// if that makes them smaller; negative to send every value as is.
+	// Receivers decode compressed values whatever their own setting.
+	public static volatile int compressionThreshold = -1;
+	private static final CompressionStats wireStats = new CompressionStats();
+	// The value last encoded for the wire and its encoding, null if it was
+	// sent as is; kept as one array so concurrent senders see a matching pair
+	private transient String[] encodedValue = null;
+
 	public final String getKey() {
 		return key;
 	}
@@ -119,6 +209,190 @@ public class KVMessage implements Serializable {
 		this.tpcOpId = id;
 	}
 
+	public long getFrameId() {
+		return frameId;
+	}
+
+	/**
+	 * @return compression done by this process while sending messages, and
+	 *         decompression while receiving them
+	 */
+	public static CompressionStats getWireCompressionStats() {
+		return wireStats;
+	}
+
+	/**
+	 * @return pairs of a range response or chunk put in key order, null if
+	 *         there are none
+	 */
+	public Map<String, String> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(Map<String, String> entries) {
+		this.entries = entries == null ? null : new LinkedHashMap<String, String>(entries);
+	}
+
+	public long getRangeStart() {
+		return rangeStart;
+	}
+
+	public long getRangeEnd() {
+		return rangeEnd;
+	}
+
+	/**
+	 * @param start first ring position of the range
+	 * @param end ring position just after the range; equal to start for the whole ring
+	 */
+	public void setRange(long start, long end) {
+		this.rangeStart = start;
+		this.rangeEnd = end;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * @return key just after the keys of a scan request, null for no bound
+	 */
+	public String getEndKey() {
+		return endKey;
+	}
+
+	public void setEndKey(String endKey) {
+		this.endKey = endKey;
+	}
+
+	/**
+	 * @return key a scan request resumes after, null if it starts at its key
+	 */
+	public String getAfterKey() {
+		return afterKey;
+	}
+
+	public void setAfterKey(String afterKey) {
+		this.afterKey = afterKey;
+	}
+
+	/**
+	 * @return hash tree nodes of a tree or leaf request, by index on their level
+	 */
+	public List<Long> getNodes() {
+		return nodes;
+	}
+
+	public void setNodes(List<Long> nodes) {
+		this.nodes = nodes == null ? null : new ArrayList<Long>(nodes);
+	}
+
+	/**
+	 * @return level of the nodes of a tree request, 0 being the root
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return hash ranges {start, end} that a tree or leaf request covers
+	 */
+	public List<long[]> getRanges() {
+		return ranges;
+	}
+
+	public void setRanges(List<long[]> ranges) {
+		this.ranges = ranges == null ? null : new ArrayList<long[]>(ranges);
+	}
+
+	public boolean hasMore() {
+		return more;
+	}
+
+	public void setMore(boolean more) {
+		this.more = more;
+	}
+
+	/**
+	 * @return keys of a batched get or del request
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	public void setKeys(Collection<String> keys) {
+		this.keys = keys == null ? null : new ArrayList<String>(keys);
+	}
+
+	/**
+	 * @return error message for each key a batched request failed on, null
+	 *         if there are none
+	 */
+	public Map<String, String> getErrors() {
+		return errors;
+	}
+
+	public void setErrors(Map<String, String> errors) {
+		this.errors = errors == null ? null : new LinkedHashMap<String, String>(errors);
+	}
+
+	/**
+	 * @return value a compare-and-set request expects, null if the key must
+	 *         not exist
+	 */
+	public String getExpectedValue() {
+		return expectedValue;
+	}
+
+	public void setExpectedValue(String expectedValue) {
+		this.expectedValue = expectedValue;
+	}
+
+	/**
+	 * @return port the client of a get listens on for invalidations, or
+	 *         host:port once the master added the client's address; null if
+	 *         the client does not cache the value
+	 */
+	public String getSubscriber() {
+		return subscriber;
+	}
+
+	public void setSubscriber(String subscriber) {
+		this.subscriber = subscriber;
+	}
+
+	/**
+	 * @return host:port of the replicas after the receiver of a chain
+	 *         write, tail last; empty at the tail
+	 */
+	public List<String> getSuccessors() {
+		return successors;
+	}
+
+	public void setSuccessors(List<String> successors) {
+		this.successors = successors == null ? null : new ArrayList<String>(successors);
+	}
+
+	/**
+	 * @return replicas a get, put or del of a quorum keyspace waits for, 0
+	 *         for the master's default
+	 */
+	public int getQuorum() {
+		return quorum;
+	}
+
+	public void setQuorum(int quorum) {
+		this.quorum = quorum;
+	}
+
 	/*
 	 * Solution from
 	 * http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html
@@ -146,7 +420,16 @@ public class KVMessage implements Serializable {
 			this.msgType = msgType;
 			this.tpcOperation = true;
 		} else if (msgType.equals(RESP_MESSAGE) || msgType.equals(RESP_GET_MESSAGE) || msgType.equals(GET_MESSAGE)
-				|| msgType.equals(IGNORE_NEXT) || msgType.equals(REGISTER_MESSAGE)) {
+				|| msgType.equals(IGNORE_NEXT) || msgType.equals(REGISTER_MESSAGE)
+				|| msgType.equals(HEARTBEAT_MESSAGE) || msgType.equals(RANGE_MESSAGE)
+				|| msgType.equals(CHUNK_PUT_MESSAGE) || msgType.equals(SYNC_MESSAGE)
+				|| msgType.equals(SYNC_DONE_MESSAGE) || msgType.equals(TREE_MESSAGE)
+				|| msgType.equals(LEAF_MESSAGE) || msgType.equals(SCAN_MESSAGE)
+				|| msgType.equals(MGET_MESSAGE) || msgType.equals(MPUT_MESSAGE)
+				|| msgType.equals(MDEL_MESSAGE) || msgType.equals(CAS_MESSAGE)
+				|| msgType.equals(INCR_MESSAGE) || msgType.equals(INVALIDATE_MESSAGE)
+				|| msgType.equals(CHAIN_PUT_MESSAGE) || msgType.equals(CHAIN_DEL_MESSAGE)
+				|| msgType.equals(QUORUM_PUT_MESSAGE)) {
 			if (msgType.equals(RESP_GET_MESSAGE)) {
 				this.get_response = true;
 			}
@@ -161,7 +444,6 @@ public class KVMessage implements Serializable {
 	}
 
 	public KVMessage(String msgType, String message) throws KVException {
-		System.out.println("Msgtype = " + msgType);
 		if (msgType.equals(PUT_MESSAGE) || msgType.equals(DEL_MESSAGE)
 				|| msgType.equals(ABORT_MESSAGE) || msgType.equals(COMMIT_MESSAGE) || msgType.equals(ACK_MESSAGE)
 				|| msgType.equals(READY_MESSAGE)) {
@@ -169,7 +451,16 @@ public class KVMessage implements Serializable {
 			this.tpcOperation = true;
 			setMessage(message);
 		} else if (msgType.equals(RESP_MESSAGE) || msgType.equals(RESP_GET_MESSAGE) || msgType.equals(GET_MESSAGE)
-				|| msgType.equals(IGNORE_NEXT) || msgType.equals(REGISTER_MESSAGE)) {
+				|| msgType.equals(IGNORE_NEXT) || msgType.equals(REGISTER_MESSAGE)
+				|| msgType.equals(HEARTBEAT_MESSAGE) || msgType.equals(RANGE_MESSAGE)
+				|| msgType.equals(CHUNK_PUT_MESSAGE) || msgType.equals(SYNC_MESSAGE)
+				|| msgType.equals(SYNC_DONE_MESSAGE) || msgType.equals(TREE_MESSAGE)
+				|| msgType.equals(LEAF_MESSAGE) || msgType.equals(SCAN_MESSAGE)
+				|| msgType.equals(MGET_MESSAGE) || msgType.equals(MPUT_MESSAGE)
+				|| msgType.equals(MDEL_MESSAGE) || msgType.equals(CAS_MESSAGE)
+				|| msgType.equals(INCR_MESSAGE) || msgType.equals(INVALIDATE_MESSAGE)
+				|| msgType.equals(CHAIN_PUT_MESSAGE) || msgType.equals(CHAIN_DEL_MESSAGE)
+				|| msgType.equals(QUORUM_PUT_MESSAGE)) {
 			if (msgType.equals(RESP_GET_MESSAGE)) {
 				this.get_response = true;
 			}
@@ -201,109 +492,7 @@ public class KVMessage implements Serializable {
 			KVException exception = new KVException(exceptionMessage);
 			throw exception;
 		}
-
-		org.w3c.dom.Document document = null;
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder db = null;
-
-		try {
-			db = dbf.newDocumentBuilder();
-		} catch (ParserConfigurationException e1) {
-			e1.printStackTrace();
-		}
-
-		try {
-			document = db.parse(new InputSource(inputData));
-		} catch (IOException e) {
-			System.out.println("In the catch for IOException");
-			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-					"XML Error: Received unparseable message");
-			KVException exception = new KVException(exceptionMessage);
-			throw exception;
-		} catch (SAXException e) {
-			System.out.println("In the SAXException");
-			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-					"XML Error: Received unparseable message");
-			KVException exception = new KVException(exceptionMessage);
-			throw exception;
-		}
-		
-		try {
-			NodeList nList = document.getElementsByTagName("KVMessage");
-			Node nNode = nList.item(0);
-			String messageType = null;
-			Element eElement = null;
-			if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-				eElement = (Element) nNode;
-				messageType = eElement.getAttribute("type");
-			}
-			if (messageType.equals(GET_MESSAGE) || messageType.equals(DEL_MESSAGE)) {
-				String keyString = eElement.getElementsByTagName("Key").item(0).getTextContent();
-				if(keyString == null || keyString.length() < 1) {
-					KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-							"Unknown Error: invalid key");
-					KVException exception = new KVException(exceptionMessage);
-					throw exception;
-				}
-				setMsgType(messageType);
-				System.out.println("Setting key in KVMessage constructor");
-				setKey(keyString);
-				if (messageType.equals(DEL_MESSAGE)) {
-					this.tpcOperation = true;
-					String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
-					setTpcOpId(tpcString);
-				}
-			}else if (messageType.equals(PUT_MESSAGE)) {
-				//System.out.println("In put request");
-				setMsgType(messageType);
-				setKeyValueForSocket(eElement);
-				this.tpcOperation = true;
-				String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
-				setTpcOpId(tpcString);
-			} else if (messageType.equals(READY_MESSAGE) || messageType.equals(ABORT_MESSAGE) || messageType.equals(ACK_MESSAGE)
-					|| messageType.equals(COMMIT_MESSAGE)) {
-				setMsgType(messageType);
-				this.tpcOperation = true;
-				String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
-				setTpcOpId(tpcString);
-			} else if (messageType.equals(IGNORE_NEXT) || messageType.equals(REGISTER_MESSAGE)) {
-				setMsgType(messageType);
-				if (messageType.equals(REGISTER_MESSAGE) && eElement.getElementsByTagName("Message").item(0).getTextContent() != null) {
-					setMessage(eElement.getElementsByTagName("Message").item(0).getTextContent());
-				}
-			} else if (messageType.equals(RESP_MESSAGE)) {
-				boolean hasValue = true;
-				boolean hasKey = true;
-				try {
-					String keyString = eElement.getElementsByTagName("Key").item(0).getTextContent();
-				}
-				catch (Exception e){
-					hasKey = false;
-				}
-				try {
-					String valueString = eElement.getElementsByTagName("Value").item(0).getTextContent();
-				}catch(Exception e){
-					hasValue = false;
-				}
-				if (hasKey || hasValue){
-					System.out.println("True");
-					System.out.println("New place holder");
-					setKeyValueForSocket(eElement);
-				}else 
-				{
-					setMessage(eElement.getElementsByTagName("Message").item(0).getTextContent());
-				}
-				setMsgType(messageType);
-				
-			}
-				
-		} catch (Exception e) {
-			System.out.println("Exception in KVMessage bottom nNode");
-			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-					"Message format incorrect");
-			KVException exception = new KVException(exceptionMessage);
-			throw exception;
-		}
+		parse(inputData);
 	}
 	   
 //	public KVMessage(String msgType, boolean tpcMessage) throws KVException {
@@ -339,7 +528,6 @@ public class KVMessage implements Serializable {
 	 *             incorrect message type.
 	 */
 	public KVMessage(Socket sock) throws KVException {
-		System.out.println("In KVMessage Constructor socket");
 		NoCloseInputStream inputData;
 		try {
 			inputData = new NoCloseInputStream(sock.getInputStream());
@@ -350,32 +538,146 @@ public class KVMessage implements Serializable {
 			KVException exception = new KVException(exceptionMessage);
 			throw exception;
 		}
+		parse(inputData);
+	}
 
-		org.w3c.dom.Document document = null;
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		DocumentBuilder db = null;
+	/***
+	 * Parse KVMessage from an input stream that has already been positioned
+	 * at the start of an XML document, e.g. after peeking at a connection.
+	 * The stream is read up to end of file but not closed.
+	 *
+	 * @param in
+	 *            stream to receive from
+	 * @throws KVException
+	 *             with the same messages as {@link #KVMessage(Socket)}
+	 */
+	public KVMessage(InputStream in) throws KVException {
+		parse(new NoCloseInputStream(in));
+	}
 
+	/***
+	 * Read one length-prefixed frame from a persistent connection. A frame
+	 * is FRAME_MAGIC, the frame id chosen by the sender, the payload length
+	 * and the UTF-8 XML payload. Unlike {@link #KVMessage(Socket)} this does
+	 * not need the peer to shut down its output, so the connection can be
+	 * reused for further requests.
+	 *
+	 * @param in
+	 *            stream of the persistent connection
+	 * @throws KVException
+	 *             "Timeout Error: Could not receive data" on a network error
+	 *             or read timeout, "Network Error: Connection closed" if the
+	 *             peer closed the connection before a full frame arrived
+	 *             and "Message format incorrect" if the frame is corrupt.
+	 */
+	public KVMessage(DataInputStream in) throws KVException {
+		FrameInputStream payload;
+		try {
+			if (in.readInt() != FRAME_MAGIC) {
+				throw new KVException(new KVMessage(RESP_MESSAGE, "Message format incorrect"));
+			}
+			frameId = in.readLong();
+			int length = in.readInt();
+			if (length < 0 || length > MAX_FRAME_SIZE) {
+				throw new KVException(new KVMessage(RESP_MESSAGE, "Message format incorrect"));
+			}
+			payload = new FrameInputStream(in, length);
+		} catch (IOException e) {
+			throw frameReadError(e);
+		}
+		// The payload is parsed as it arrives rather than read into a buffer
+		// first, but it is always consumed to its end so that the connection
+		// stays usable after a malformed message
+		KVException malformed = null;
 		try {
-			db = dbf.newDocumentBuilder();
-		} catch (ParserConfigurationException e1) {
-			e1.printStackTrace();
+			parse(payload);
+		} catch (KVException e) {
+			if (payload.failure != null) {
+				throw frameReadError(payload.failure);
+			}
+			malformed = e;
 		}
-
 		try {
-			document = db.parse(new InputSource(inputData));
+			payload.skipRemaining();
 		} catch (IOException e) {
-			System.out.println("In the catch for IOException");
-			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-					"XML Error: Received unparseable message");
-			KVException exception = new KVException(exceptionMessage);
-			throw exception;
-		} catch (SAXException e) {
-			System.out.println("In the SAXException");
-			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
-					"XML Error: Received unparseable message");
-			KVException exception = new KVException(exceptionMessage);
-			throw exception;
+			throw frameReadError(e);
+		}
+		if (malformed != null) {
+			throw malformed;
 		}
+	}
+
+	private static KVException frameReadError(IOException e) throws KVException {
+		if (e instanceof EOFException) {
+			return new KVException(new KVMessage("resp", "Network Error: Connection closed"));
+		}
+		return new KVException(new KVMessage("resp", "Timeout Error: Could not receive data"));
+	}
+
+	/**
+	 * The payload of one frame: reads end at the end of the frame and never
+	 * close the connection, and the first network error is kept so it can be
+	 * told apart from a malformed payload.
+	 */
+	private static class FrameInputStream extends FilterInputStream {
+		private int remaining;
+		private IOException failure = null;
+
+		FrameInputStream(InputStream in, int length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int n;
+			try {
+				n = in.read(b, off, Math.min(len, remaining));
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+			if (n < 0) {
+				failure = new EOFException();
+				throw failure;
+			}
+			remaining -= n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			byte[] discard = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+			int read = read(discard, 0, discard.length);
+			return read < 0 ? 0 : read;
+		}
+
+		public int available() throws IOException {
+			return Math.min(in.available(), remaining);
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		void skipRemaining() throws IOException {
+			while (remaining > 0) {
+				skip(remaining);
+			}
+		}
+
+		public void close() {
+		} // the connection outlives the frame
+	}
+
+	private void parse(InputStream inputData) throws KVException {
+		org.w3c.dom.Document document = readDocument(inputData);
 		
 		try {
 			NodeList nList = document.getElementsByTagName("KVMessage");
@@ -395,8 +697,12 @@ public class KVMessage implements Serializable {
 					throw exception;
 				}
 				setMsgType(messageType);
-				System.out.println("Setting key in KVMessage constructor");
 				setKey(keyString);
+				NodeList subscriberElement = eElement.getElementsByTagName("Subscriber");
+				if (subscriberElement.getLength() > 0) {
+					setSubscriber(subscriberElement.item(0).getTextContent());
+				}
+				setQuorumForSocket(eElement);
 				if (messageType.equals(DEL_MESSAGE)) {
 					this.tpcOperation = true;
 					String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
@@ -406,6 +712,7 @@ public class KVMessage implements Serializable {
 				//System.out.println("In put request");
 				setMsgType(messageType);
 				setKeyValueForSocket(eElement);
+				setQuorumForSocket(eElement);
 				this.tpcOperation = true;
 				String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
 				setTpcOpId(tpcString);
@@ -415,13 +722,128 @@ public class KVMessage implements Serializable {
 				this.tpcOperation = true;
 				String tpcString = eElement.getElementsByTagName("TPCOpId").item(0).getTextContent();
 				setTpcOpId(tpcString);
-			}else if (messageType.equals(IGNORE_NEXT) || messageType.equals(REGISTER_MESSAGE)) {
+				// Why a slave voted abort, and the value a conditional write
+				// will leave behind
+				NodeList reason = eElement.getElementsByTagName("Message");
+				if (reason.getLength() > 0) {
+					setMessage(reason.item(0).getTextContent());
+				}
+				NodeList result = eElement.getElementsByTagName("Value");
+				if (result.getLength() > 0) {
+					setValue(valueOf((Element) result.item(0)));
+				}
+			} else if (messageType.equals(CHAIN_PUT_MESSAGE) || messageType.equals(CHAIN_DEL_MESSAGE)
+					|| messageType.equals(QUORUM_PUT_MESSAGE)) {
+				setMsgType(messageType);
+				setKey(eElement.getElementsByTagName("Key").item(0).getTextContent());
+				NodeList value = eElement.getElementsByTagName("Value");
+				if (value.getLength() > 0) {
+					setValue(valueOf((Element) value.item(0)));
+				}
+				successors = new ArrayList<String>();
+				NodeList successorList = eElement.getElementsByTagName("Successor");
+				for (int i = 0; i < successorList.getLength(); i++) {
+					successors.add(successorList.item(i).getTextContent());
+				}
+				NodeList opId = eElement.getElementsByTagName("TPCOpId");
+				if (opId.getLength() > 0) {
+					setTpcOpId(opId.item(0).getTextContent());
+				}
+			} else if (messageType.equals(CAS_MESSAGE) || messageType.equals(INCR_MESSAGE)) {
+				setMsgType(messageType);
+				setKeyValueForSocket(eElement);
+				NodeList expected = eElement.getElementsByTagName("ExpectedValue");
+				if (expected.getLength() > 0) {
+					expectedValue = expected.item(0).getTextContent();
+				}
+				NodeList opId = eElement.getElementsByTagName("TPCOpId");
+				if (opId.getLength() > 0) {
+					setTpcOpId(opId.item(0).getTextContent());
+				}
+			}else if (messageType.equals(IGNORE_NEXT) || messageType.equals(REGISTER_MESSAGE)
+					|| messageType.equals(HEARTBEAT_MESSAGE) || messageType.equals(SYNC_MESSAGE)
+					|| messageType.equals(SYNC_DONE_MESSAGE)) {
 				setMsgType(messageType);
 				if (messageType.equals(REGISTER_MESSAGE) && eElement.getElementsByTagName("Message").item(0).getTextContent() != null) {
 					setMessage(eElement.getElementsByTagName("Message").item(0).getTextContent());
 				}
+			} else if (messageType.equals(RANGE_MESSAGE)) {
+				setMsgType(messageType);
+				rangeStart = Long.parseLong(eElement.getElementsByTagName("RangeStart").item(0).getTextContent());
+				rangeEnd = Long.parseLong(eElement.getElementsByTagName("RangeEnd").item(0).getTextContent());
+				limit = Integer.parseInt(eElement.getElementsByTagName("Limit").item(0).getTextContent());
+				NodeList cursor = eElement.getElementsByTagName("Key");
+				if (cursor.getLength() > 0) {
+					setKey(cursor.item(0).getTextContent());
+				}
+			} else if (messageType.equals(SCAN_MESSAGE)) {
+				setMsgType(messageType);
+				limit = Integer.parseInt(eElement.getElementsByTagName("Limit").item(0).getTextContent());
+				NodeList start = eElement.getElementsByTagName("Key");
+				if (start.getLength() > 0) {
+					setKey(start.item(0).getTextContent());
+				}
+				NodeList end = eElement.getElementsByTagName("EndKey");
+				if (end.getLength() > 0) {
+					endKey = end.item(0).getTextContent();
+				}
+				NodeList after = eElement.getElementsByTagName("AfterKey");
+				if (after.getLength() > 0) {
+					afterKey = after.item(0).getTextContent();
+				}
+			} else if (messageType.equals(TREE_MESSAGE) || messageType.equals(LEAF_MESSAGE)) {
+				setMsgType(messageType);
+				NodeList levelElement = eElement.getElementsByTagName("Level");
+				if (levelElement.getLength() > 0) {
+					level = Integer.parseInt(levelElement.item(0).getTextContent());
+				}
+				nodes = new ArrayList<Long>();
+				NodeList nodeList = eElement.getElementsByTagName("Node");
+				for (int i = 0; i < nodeList.getLength(); i++) {
+					nodes.add(Long.parseLong(nodeList.item(i).getTextContent()));
+				}
+				ranges = new ArrayList<long[]>();
+				NodeList rangeList = eElement.getElementsByTagName("Range");
+				for (int i = 0; i < rangeList.getLength(); i++) {
+					Element range = (Element) rangeList.item(i);
+					ranges.add(new long[] { Long.parseLong(range.getAttribute("start")),
+							Long.parseLong(range.getAttribute("end")) });
+				}
+			} else if (messageType.equals(MGET_MESSAGE) || messageType.equals(MDEL_MESSAGE)
+					|| messageType.equals(INVALIDATE_MESSAGE)) {
+				setMsgType(messageType);
+				keys = new ArrayList<String>();
+				NodeList keyList = eElement.getElementsByTagName("Key");
+				for (int i = 0; i < keyList.getLength(); i++) {
+					keys.add(keyList.item(i).getTextContent());
+				}
+				NodeList opId = eElement.getElementsByTagName("TPCOpId");
+				if (opId.getLength() > 0) {
+					setTpcOpId(opId.item(0).getTextContent());
+				}
+			} else if (messageType.equals(CHUNK_PUT_MESSAGE) || messageType.equals(MPUT_MESSAGE)
+					|| (messageType.equals(RESP_MESSAGE) && eElement.getElementsByTagName("Entries").getLength() > 0)) {
+				setMsgType(messageType);
+				entries = new LinkedHashMap<String, String>();
+				NodeList pairs = eElement.getElementsByTagName("Entry");
+				for (int i = 0; i < pairs.getLength(); i++) {
+					Element pair = (Element) pairs.item(i);
+					entries.put(pair.getAttribute("key"), valueOf(pair));
+				}
+				more = eElement.getElementsByTagName("More").getLength() > 0;
+				NodeList errorList = eElement.getElementsByTagName("Error");
+				if (errorList.getLength() > 0) {
+					errors = new LinkedHashMap<String, String>();
+					for (int i = 0; i < errorList.getLength(); i++) {
+						Element error = (Element) errorList.item(i);
+						errors.put(error.getAttribute("key"), error.getTextContent());
+					}
+				}
+				NodeList opId = eElement.getElementsByTagName("TPCOpId");
+				if (opId.getLength() > 0) {
+					setTpcOpId(opId.item(0).getTextContent());
+				}
 			} else if (messageType.equals(RESP_MESSAGE)) {
-				System.out.println("TOXML resp_message");
 				boolean hasValue = true;
 				boolean hasKey = true;
 				try {
@@ -436,12 +858,9 @@ public class KVMessage implements Serializable {
 					hasValue = false;
 				}
 				if (hasKey || hasValue){
-					System.out.println("True");
-					System.out.println("New place holder");
 					setKeyValueForSocket(eElement);
 				}else 
 				{
-					System.out.println("Else");
 					setMessage(eElement.getElementsByTagName("Message").item(0).getTextContent());
 				}
 				setMsgType(messageType);
@@ -449,7 +868,7 @@ public class KVMessage implements Serializable {
 			}
 				
 		} catch (Exception e) {
-			System.out.println("Exception in KVMessage bottom nNode");
+			Tracer.warn("message.malformed", null, e);
 			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
 					"Message format incorrect");
 			KVException exception = new KVException(exceptionMessage);
@@ -457,13 +876,200 @@ public class KVMessage implements Serializable {
 		}
 	}
 	
+	/**
+	 * Read the quorum of a get, put or del, if it has one.
+	 */
+	private void setQuorumForSocket(Element eElement) throws KVException {
+		NodeList quorumElement = eElement.getElementsByTagName("Quorum");
+		if (quorumElement.getLength() > 0) {
+			try {
+				setQuorum(Integer.parseInt(quorumElement.item(0).getTextContent()));
+			} catch (NumberFormatException e) {
+				throw new KVException(new KVMessage(RESP_MESSAGE, "Message format incorrect"));
+			}
+		}
+	}
+
 	public void setKeyValueForSocket(Element eElement) throws KVException{
 		String keyString = eElement.getElementsByTagName("Key").item(0).getTextContent();
-		String valueString = eElement.getElementsByTagName("Value").item(0).getTextContent();
+		String valueString = valueOf((Element) eElement.getElementsByTagName("Value").item(0));
 		setKey(keyString);
 		setValue(valueString);
 	}
 
+	/**
+	 * @return the value a Value or Entry element carries: its text, or the
+	 *         text readDocument() assembled from its chunks, decompressed if
+	 *         the element is flagged as compressed
+	 * @throws IllegalArgumentException if the element names an unknown codec
+	 *         or its compressed value is corrupt
+	 */
+	private static String valueOf(Element valueElement) {
+		Object chunked = valueElement.getUserData(CHUNKED_VALUE);
+		String text = chunked != null ? (String) chunked : valueElement.getTextContent();
+		if (!valueElement.hasAttribute("codec")) {
+			return text;
+		}
+		if (!LZ_CODEC.equals(valueElement.getAttribute("codec"))) {
+			throw new IllegalArgumentException("Unknown codec " + valueElement.getAttribute("codec"));
+		}
+		return LZCodec.decompress(fromBase64(text), wireStats);
+	}
+
+	// Key of the user data a Value element keeps its chunks' text under
+	private static final String CHUNKED_VALUE = "chunkedValue";
+	// Codec attribute of a value sent compressed
+	private static final String LZ_CODEC = "lz";
+
+	/**
+	 * Read an XML message into a DOM tree as it arrives. A Value element
+	 * with a length attribute holds its value as Chunk elements, each with
+	 * the CRC32 of its chars; those are checked and appended to a single
+	 * builder of that length instead of becoming part of the tree, and the
+	 * value is attached to the element.
+	 *
+	 * @throws KVException
+	 *             "XML Error: Received unparseable message" if the input is
+	 *             not valid XML or could not be read, "Message format
+	 *             incorrect" if chunks are malformed and "Network Error:
+	 *             Value checksum mismatch" if a chunk is corrupt
+	 */
+	private static Document readDocument(InputStream in) throws KVException {
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			Node current = doc;
+			ChunkedValueReader chunks = null;
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					if (chunks != null) {
+						if (!"Chunk".equals(reader.getLocalName())) {
+							throw new KVException(new KVMessage("resp", "Message format incorrect"));
+						}
+						chunks.startChunk(reader.getAttributeValue(null, "crc"));
+						break;
+					}
+					Element element = doc.createElement(reader.getLocalName());
+					for (int i = 0; i < reader.getAttributeCount(); i++) {
+						element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					}
+					current.appendChild(element);
+					current = element;
+					if ("Value".equals(element.getTagName()) && element.hasAttribute("length")) {
+						chunks = new ChunkedValueReader(Integer.parseInt(element.getAttribute("length")));
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (chunks != null) {
+						chunks.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					} else if (current != doc) {
+						current.appendChild(doc.createTextNode(reader.getText()));
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (chunks != null && "Chunk".equals(reader.getLocalName())) {
+						chunks.endChunk();
+						break;
+					}
+					if (chunks != null) {
+						current.setUserData(CHUNKED_VALUE, chunks.finish(), null);
+						chunks = null;
+					}
+					current = current.getParentNode();
+					break;
+				}
+			}
+			reader.close();
+			if (doc.getDocumentElement() == null) {
+				throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+			}
+			return doc;
+		} catch (XMLStreamException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+		} catch (ParserConfigurationException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+		} catch (NumberFormatException e) {
+			throw new KVException(new KVMessage("resp", "Message format incorrect"));
+		}
+	}
+
+	/**
+	 * Collects a value sent as chunks, checking each chunk as it ends.
+	 * The value is handed on as a String, so finish copies the builder and
+	 * both copies are held until the builder is dropped; chunks are not
+	 * passed straight to the store, which keeps whole Strings.
+	 */
+	private static class ChunkedValueReader {
+		private final int length;
+		private final StringBuilder value;
+		private final CRC32 crc = new CRC32();
+		private final byte[] buffer = new byte[2 * VALUE_CHUNK_CHARS];
+		// Checksum the chunk being read announced, null between chunks
+		private String expected = null;
+
+		ChunkedValueReader(int length) throws KVException {
+			if (length < 0 || length > MAX_FRAME_SIZE) {
+				throw new KVException(new KVMessage("resp", "Message format incorrect"));
+			}
+			this.length = length;
+			this.value = new StringBuilder(length);
+		}
+
+		void startChunk(String checksum) throws KVException {
+			if (checksum == null || expected != null) {
+				throw new KVException(new KVMessage("resp", "Message format incorrect"));
+			}
+			expected = checksum;
+			crc.reset();
+		}
+
+		void append(char[] text, int start, int count) throws KVException {
+			if (expected == null || value.length() + count > length) {
+				throw new KVException(new KVMessage("resp", "Message format incorrect"));
+			}
+			updateChecksum(crc, text, start, count, buffer);
+			value.append(text, start, count);
+		}
+
+		void endChunk() throws KVException {
+			if (!Long.toString(crc.getValue()).equals(expected)) {
+				throw new KVException(new KVMessage("resp", "Network Error: Value checksum mismatch"));
+			}
+			expected = null;
+		}
+
+		String finish() throws KVException {
+			if (expected != null || value.length() != length) {
+				throw new KVException(new KVMessage("resp", "Message format incorrect"));
+			}
+			return value.toString();
+		}
+	}
+
+	/**
+	 * Add chars to a chunk checksum as UTF-16BE, encoding them through
+	 * buffer a part at a time.
+	 */
+	private static void updateChecksum(CRC32 crc, char[] chars, int offset, int length, byte[] buffer) {
+		while (length > 0) {
+			int n = Math.min(length, buffer.length / 2);
+			for (int i = 0; i < n; i++) {
+				char c = chars[offset + i];
+				buffer[2 * i] = (byte) (c >>> 8);
+				buffer[2 * i + 1] = (byte) c;
+			}
+			crc.update(buffer, 0, 2 * n);
+			offset += n;
+			length -= n;
+		}
+	}
+
 	/**
 	 * Generate the XML representation for this message.
 	 * 
@@ -474,15 +1080,35 @@ public class KVMessage implements Serializable {
 	 */
 	public String toXML() throws KVException {
 		String returnString = null;
+		Document doc = buildDocument();
+		try {
+			Writer stringWriter = new StringWriter();
+			writeDocument(doc, stringWriter);
+			returnString = stringWriter.toString();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+		}
+		Tracer.debug("message.xml", tpcOpId, returnString);
+ 
+		return returnString;	 		
+	}
+
+	/**
+	 * Build the DOM tree of this message. A value longer than
+	 * VALUE_CHUNK_CHARS is left out of the tree; writeDocument() streams it.
+	 *
+	 * @throws KVException
+	 *             if not enough data is available to generate a valid KV XML
+	 *             message
+	 */
+	private Document buildDocument() throws KVException {
 		try {
-			System.out.println("In to XML");
 			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
 			DocumentBuilder docBuilder  = docFactory.newDocumentBuilder();
     		Document doc = docBuilder.newDocument();
 			Element rootElement = doc.createElement("KVMessage");
 			doc.appendChild(rootElement);
 			Attr type = doc.createAttribute("type");
-			System.out.println("Message = " + this.msgType + " TCPOpId = " + this.tpcOpId);
 			
 			//System.out.println("Message Type = " + this.msgType);
 			if (!this.msgType.equals(RESP_GET_MESSAGE)) {
@@ -492,21 +1118,21 @@ public class KVMessage implements Serializable {
 			
 			if (this.msgType.equals(RESP_MESSAGE)) {
 				
-			System.out.println("In reponse message");
 				
 				
-				if(this.key != null || this.value != null) {
-					System.out.println("Triggered new get resp");
+				if (this.entries != null) {
+					appendEntries(doc, rootElement);
+				}
+				else if(this.key != null || this.value != null) {
 					Element key = doc.createElement("Key");
 		    		key.appendChild(doc.createTextNode(this.key));
 		    		rootElement.appendChild(key);
 		    		
 		    		Element value = doc.createElement("Value");
-		    		value.appendChild(doc.createTextNode(this.value));
+		    		appendValue(doc, value);
 		    		rootElement.appendChild(value);
 				}
 				else {
-					System.out.println("Triggered normal get resp");
 					Element message = doc.createElement("Message");
 					message.appendChild(doc.createTextNode(this.message));
 					rootElement.appendChild(message);
@@ -515,7 +1141,6 @@ public class KVMessage implements Serializable {
 	        }
 			else if (this.msgType.equals(GET_MESSAGE) || this.msgType.equals(DEL_MESSAGE)) {
 				//checkForValidInput();
-				System.out.println("In get message toXML()");
 				if(this.key == null || this.key.length() < 1) {
 					KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
 							"Unknown Error: invalid key");
@@ -525,20 +1150,26 @@ public class KVMessage implements Serializable {
 	        	Element key = doc.createElement("Key");
 	    		key.appendChild(doc.createTextNode(this.key));
 	    		rootElement.appendChild(key);
+	        	if (this.msgType.equals(GET_MESSAGE) && this.subscriber != null) {
+	        		Element subscriberElement = doc.createElement("Subscriber");
+	        		subscriberElement.appendChild(doc.createTextNode(this.subscriber));
+	        		rootElement.appendChild(subscriberElement);
+	        	}
+	        	appendQuorum(doc, rootElement);
 	        	if (this.msgType.equals(DEL_MESSAGE)) {
 	        		Element opId = doc.createElement("TPCOpId");
 	        		opId.appendChild(doc.createTextNode(this.tpcOpId));
 		    		rootElement.appendChild(opId);
 	        	}
 	        }  else if (this.msgType.equals(PUT_MESSAGE)) {
-	        	System.out.println("In put message=" + this.key);
 	        	Element key = doc.createElement("Key");
 	    		key.appendChild(doc.createTextNode(this.key));
 	    		rootElement.appendChild(key);
 	    		
 	    		Element value = doc.createElement("Value");
-	    		value.appendChild(doc.createTextNode(this.value));
+	    		appendValue(doc, value);
 	    		rootElement.appendChild(value);
+	    		appendQuorum(doc, rootElement);
 	    		
 	    		Element opId = doc.createElement("TPCOpId");
         		opId.appendChild(doc.createTextNode(this.tpcOpId));
@@ -550,6 +1181,11 @@ public class KVMessage implements Serializable {
 	        		message.appendChild(doc.createTextNode(this.message));
 		    		rootElement.appendChild(message);
 	        	}
+	        	if (this.msgType.equals(READY_MESSAGE) && this.value != null) {
+	        		Element value = doc.createElement("Value");
+	        		appendValue(doc, value);
+		    		rootElement.appendChild(value);
+	        	}
 	        	Element opId = doc.createElement("TPCOpId");
         		opId.appendChild(doc.createTextNode(this.tpcOpId));
 	    		rootElement.appendChild(opId);
@@ -557,38 +1193,410 @@ public class KVMessage implements Serializable {
 	        	Element message = doc.createElement("Message");
         		message.appendChild(doc.createTextNode(this.message));
 	    		rootElement.appendChild(message);
-	        } else if (this.msgType.equals(IGNORE_NEXT)){
+	        } else if (this.msgType.equals(RANGE_MESSAGE)) {
+	        	Element start = doc.createElement("RangeStart");
+	        	start.appendChild(doc.createTextNode(Long.toString(this.rangeStart)));
+	        	rootElement.appendChild(start);
+	        	Element end = doc.createElement("RangeEnd");
+	        	end.appendChild(doc.createTextNode(Long.toString(this.rangeEnd)));
+	        	rootElement.appendChild(end);
+	        	Element max = doc.createElement("Limit");
+	        	max.appendChild(doc.createTextNode(Integer.toString(this.limit)));
+	        	rootElement.appendChild(max);
+	        	if (this.key != null) {
+	        		Element cursor = doc.createElement("Key");
+	        		cursor.appendChild(doc.createTextNode(this.key));
+	        		rootElement.appendChild(cursor);
+	        	}
+	        } else if (this.msgType.equals(SCAN_MESSAGE)) {
+	        	Element max = doc.createElement("Limit");
+	        	max.appendChild(doc.createTextNode(Integer.toString(this.limit)));
+	        	rootElement.appendChild(max);
+	        	if (this.key != null) {
+	        		Element start = doc.createElement("Key");
+	        		start.appendChild(doc.createTextNode(this.key));
+	        		rootElement.appendChild(start);
+	        	}
+	        	if (this.endKey != null) {
+	        		Element end = doc.createElement("EndKey");
+	        		end.appendChild(doc.createTextNode(this.endKey));
+	        		rootElement.appendChild(end);
+	        	}
+	        	if (this.afterKey != null) {
+	        		Element after = doc.createElement("AfterKey");
+	        		after.appendChild(doc.createTextNode(this.afterKey));
+	        		rootElement.appendChild(after);
+	        	}
+	        } else if (this.msgType.equals(TREE_MESSAGE) || this.msgType.equals(LEAF_MESSAGE)) {
+	        	if (this.nodes == null || this.ranges == null) {
+	        		throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+	        	}
+	        	if (this.msgType.equals(TREE_MESSAGE)) {
+	        		Element levelElement = doc.createElement("Level");
+	        		levelElement.appendChild(doc.createTextNode(Integer.toString(this.level)));
+	        		rootElement.appendChild(levelElement);
+	        	}
+	        	Element nodeList = doc.createElement("Nodes");
+	        	for (Long node : this.nodes) {
+	        		Element nodeElement = doc.createElement("Node");
+	        		nodeElement.appendChild(doc.createTextNode(Long.toString(node)));
+	        		nodeList.appendChild(nodeElement);
+	        	}
+	        	rootElement.appendChild(nodeList);
+	        	Element rangeList = doc.createElement("Ranges");
+	        	for (long[] range : this.ranges) {
+	        		Element rangeElement = doc.createElement("Range");
+	        		rangeElement.setAttribute("start", Long.toString(range[0]));
+	        		rangeElement.setAttribute("end", Long.toString(range[1]));
+	        		rangeList.appendChild(rangeElement);
+	        	}
+	        	rootElement.appendChild(rangeList);
+	        } else if (this.msgType.equals(CHUNK_PUT_MESSAGE) || this.msgType.equals(MPUT_MESSAGE)) {
+	        	if (this.entries == null) {
+	        		throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+	        	}
+	        	appendEntries(doc, rootElement);
+	        	appendTpcOpId(doc, rootElement);
+	        } else if (this.msgType.equals(CHAIN_PUT_MESSAGE) || this.msgType.equals(CHAIN_DEL_MESSAGE)
+	        		|| this.msgType.equals(QUORUM_PUT_MESSAGE)) {
+	        	if (this.key == null || (!this.msgType.equals(CHAIN_DEL_MESSAGE) && this.value == null)) {
+	        		throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+	        	}
+	        	Element key = doc.createElement("Key");
+	        	key.appendChild(doc.createTextNode(this.key));
+	        	rootElement.appendChild(key);
+	        	if (!this.msgType.equals(CHAIN_DEL_MESSAGE)) {
+	        		Element value = doc.createElement("Value");
+	        		appendValue(doc, value);
+	        		rootElement.appendChild(value);
+	        	}
+	        	if (this.successors != null) {
+	        		for (String successor : this.successors) {
+	        			Element successorElement = doc.createElement("Successor");
+	        			successorElement.appendChild(doc.createTextNode(successor));
+	        			rootElement.appendChild(successorElement);
+	        		}
+	        	}
+	        	appendTpcOpId(doc, rootElement);
+	        } else if (this.msgType.equals(CAS_MESSAGE) || this.msgType.equals(INCR_MESSAGE)) {
+	        	if (this.key == null || this.value == null) {
+	        		throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+	        	}
+	        	Element key = doc.createElement("Key");
+	        	key.appendChild(doc.createTextNode(this.key));
+	        	rootElement.appendChild(key);
+	        	Element value = doc.createElement("Value");
+	        	appendValue(doc, value);
+	        	rootElement.appendChild(value);
+	        	if (this.expectedValue != null) {
+	        		Element expected = doc.createElement("ExpectedValue");
+	        		expected.appendChild(doc.createTextNode(this.expectedValue));
+	        		rootElement.appendChild(expected);
+	        	}
+	        	appendTpcOpId(doc, rootElement);
+	        } else if (this.msgType.equals(MGET_MESSAGE) || this.msgType.equals(MDEL_MESSAGE)
+	        		|| this.msgType.equals(INVALIDATE_MESSAGE)) {
+	        	if (this.keys == null) {
+	        		throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+	        	}
+	        	Element keyList = doc.createElement("Keys");
+	        	for (String key : this.keys) {
+	        		Element keyElement = doc.createElement("Key");
+	        		keyElement.appendChild(doc.createTextNode(key));
+	        		keyList.appendChild(keyElement);
+	        	}
+	        	rootElement.appendChild(keyList);
+	        	appendTpcOpId(doc, rootElement);
+	        } else if (this.msgType.equals(IGNORE_NEXT) || this.msgType.equals(HEARTBEAT_MESSAGE)
+	        		|| this.msgType.equals(SYNC_MESSAGE) || this.msgType.equals(SYNC_DONE_MESSAGE)){
 	        
 	        } else {
-	        	System.out.println("Succesfully recognized error message");
 				type.setValue(RESP_MESSAGE);
 				Element message = doc.createElement("Message");
 				message.appendChild(doc.createTextNode("Error Message"));
 				rootElement.appendChild(message);
 	        }
-			
-			DOMImplementationLS domImplementation = (DOMImplementationLS) doc.getImplementation();
- 		    LSSerializer lsSerializer = domImplementation.createLSSerializer();
- 		    LSOutput ls = domImplementation.createLSOutput();
- 		    ls.setEncoding("UTF-8");
- 		    Writer stringWriter = new StringWriter();
- 		    ls.setCharacterStream(stringWriter);
- 		    lsSerializer.write(doc, ls);
- 		    returnString = stringWriter.toString();
- 		    
+			return doc;
 		} catch (Exception e) {
 			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data");
 			KVException exception = new KVException(exceptionMessage);
 			throw exception;
 		}
-		System.out.println("ReturnString= " + returnString);
- 
-		return returnString;	 		
+	}
+
+	/**
+	 * Fill in the Value element, compressing the value if it is long enough.
+	 * Text longer than VALUE_CHUNK_CHARS is not put in the tree: the element
+	 * gets its length and keeps the text as user data for writeChunks().
+	 * The encoding is kept, so a message sent to several slaves is only
+	 * compressed once.
+	 */
+	private void appendValue(Document doc, Element valueElement) {
+		String text = this.value;
+		if (text != null) {
+			String[] encoded = encodedValue;
+			if (encoded == null || encoded[0] != text) {
+				encoded = new String[] { text, encode(text) };
+				encodedValue = encoded;
+			}
+			if (encoded[1] != null) {
+				valueElement.setAttribute("codec", LZ_CODEC);
+				text = encoded[1];
+			}
+		}
+		if (text != null && text.length() > VALUE_CHUNK_CHARS) {
+			valueElement.setAttribute("length", Integer.toString(text.length()));
+			valueElement.setUserData(CHUNKED_VALUE, text, null);
+		} else {
+			valueElement.appendChild(doc.createTextNode(text));
+		}
+	}
+
+	/**
+	 * @return the base64 of the compressed value, null if the value is too
+	 *         short to compress or does not get smaller
+	 */
+	private static String encode(String value) {
+		int threshold = compressionThreshold;
+		if (threshold < 0 || value.length() <= threshold) {
+			return null;
+		}
+		byte[] packed = LZCodec.compress(value, wireStats);
+		return packed == null ? null : toBase64(packed);
+	}
+
+	private static final char[] BASE64_DIGITS =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static String toBase64(byte[] data) {
+		StringBuilder text = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int bits = (data[i] & 0xFF) << 16;
+			if (i + 1 < data.length) {
+				bits |= (data[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < data.length) {
+				bits |= data[i + 2] & 0xFF;
+			}
+			text.append(BASE64_DIGITS[bits >>> 18]);
+			text.append(BASE64_DIGITS[(bits >>> 12) & 63]);
+			text.append(i + 1 < data.length ? BASE64_DIGITS[(bits >>> 6) & 63] : '=');
+			text.append(i + 2 < data.length ? BASE64_DIGITS[bits & 63] : '=');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if text is not base64
+	 */
+	private static byte[] fromBase64(String text) {
+		int length = text.length();
+		if (length % 4 != 0) {
+			throw new IllegalArgumentException("Corrupt base64");
+		}
+		int padding = 0;
+		while (padding < 2 && length > padding && text.charAt(length - 1 - padding) == '=') {
+			padding++;
+		}
+		byte[] data = new byte[length / 4 * 3 - padding];
+		int out = 0;
+		for (int i = 0; i < length; i += 4) {
+			int bits = 0;
+			for (int j = 0; j < 4; j++) {
+				char c = text.charAt(i + j);
+				int digit;
+				if (c >= 'A' && c <= 'Z') {
+					digit = c - 'A';
+				} else if (c >= 'a' && c <= 'z') {
+					digit = c - 'a' + 26;
+				} else if (c >= '0' && c <= '9') {
+					digit = c - '0' + 52;
+				} else if (c == '+') {
+					digit = 62;
+				} else if (c == '/') {
+					digit = 63;
+				} else if (c == '=' && i + j >= length - padding) {
+					digit = 0;
+				} else {
+					throw new IllegalArgumentException("Corrupt base64");
+				}
+				bits = (bits << 6) | digit;
+			}
+			for (int j = 0; j < 3 && out < data.length; j++) {
+				data[out++] = (byte) (bits >>> (16 - 8 * j));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Write the XML of a tree built by buildDocument(). A chunked value is
+	 * copied out of the value string one chunk at a time, so nothing here
+	 * grows with the size of the value.
+	 */
+	private void writeDocument(Document doc, Writer out) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		writeElement(doc.getDocumentElement(), out);
+		out.flush();
+	}
+
+	private void writeElement(Element element, Writer out) throws IOException {
+		out.write('<');
+		out.write(element.getTagName());
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Node attribute = attributes.item(i);
+			out.write(' ');
+			out.write(attribute.getNodeName());
+			out.write("=\"");
+			escape(out, attribute.getNodeValue(), true);
+			out.write('"');
+		}
+		out.write('>');
+		Object chunked = element.getUserData(CHUNKED_VALUE);
+		if (chunked != null) {
+			writeChunks(out, (String) chunked);
+		}
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				writeElement((Element) child, out);
+			} else if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue() != null) {
+				escape(out, child.getNodeValue(), false);
+			}
+		}
+		out.write("</");
+		out.write(element.getTagName());
+		out.write('>');
+	}
+
+	private static void writeChunks(Writer out, String value) throws IOException {
+		char[] chunk = new char[VALUE_CHUNK_CHARS];
+		byte[] buffer = new byte[2 * VALUE_CHUNK_CHARS];
+		CRC32 crc = new CRC32();
+		int offset = 0;
+		while (offset < value.length()) {
+			int n = Math.min(VALUE_CHUNK_CHARS, value.length() - offset);
+			// Never split a surrogate pair, or the halves could not be encoded
+			if (n > 1 && offset + n < value.length() && Character.isHighSurrogate(value.charAt(offset + n - 1))) {
+				n--;
+			}
+			value.getChars(offset, offset + n, chunk, 0);
+			crc.reset();
+			updateChecksum(crc, chunk, 0, n, buffer);
+			out.write("<Chunk crc=\"");
+			out.write(Long.toString(crc.getValue()));
+			out.write("\">");
+			for (int start = 0, i = 0; i <= n; i++) {
+				String entity = i < n ? entity(chunk[i], false) : null;
+				if (entity != null || i == n) {
+					out.write(chunk, start, i - start);
+					if (entity != null) {
+						out.write(entity);
+					}
+					start = i + 1;
+				}
+			}
+			out.write("</Chunk>");
+			offset += n;
+		}
+	}
+
+	private static void escape(Writer out, String text, boolean attribute) throws IOException {
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			String entity = entity(text.charAt(i), attribute);
+			if (entity != null) {
+				out.write(text, start, i - start);
+				out.write(entity);
+				start = i + 1;
+			}
+		}
+		out.write(text, start, text.length() - start);
+	}
+
+	/**
+	 * @return the reference to write instead of c, or null if c can be
+	 *         written as is. Carriage returns, and whitespace in attributes,
+	 *         would otherwise be normalized away by the parser.
+	 */
+	private static String entity(char c, boolean attribute) {
+		switch (c) {
+		case '&':
+			return "&amp;";
+		case '<':
+			return "&lt;";
+		case '>':
+			return "&gt;";
+		case '\r':
+			return "&#13;";
+		case '"':
+			return attribute ? "&quot;" : null;
+		case '\n':
+			return attribute ? "&#10;" : null;
+		case '\t':
+			return attribute ? "&#9;" : null;
+		default:
+			return null;
+		}
 	}
 	
 	
+	/**
+	 * Write the entries, the More flag if set and the per-key errors if any
+	 * under the root element.
+	 */
+	private void appendEntries(Document doc, Element rootElement) {
+		Element list = doc.createElement("Entries");
+		for (Map.Entry<String, String> entry : this.entries.entrySet()) {
+			Element pair = doc.createElement("Entry");
+			pair.setAttribute("key", entry.getKey());
+			String encoded = encode(entry.getValue());
+			if (encoded != null) {
+				pair.setAttribute("codec", LZ_CODEC);
+			}
+			pair.appendChild(doc.createTextNode(encoded != null ? encoded : entry.getValue()));
+			list.appendChild(pair);
+		}
+		rootElement.appendChild(list);
+		if (this.more) {
+			rootElement.appendChild(doc.createElement("More"));
+		}
+		if (this.errors != null) {
+			Element errorList = doc.createElement("Errors");
+			for (Map.Entry<String, String> error : this.errors.entrySet()) {
+				Element errorElement = doc.createElement("Error");
+				errorElement.setAttribute("key", error.getKey());
+				errorElement.appendChild(doc.createTextNode(error.getValue()));
+				errorList.appendChild(errorElement);
+			}
+			rootElement.appendChild(errorList);
+		}
+	}
+
+	/**
+	 * Write the quorum, if set, under the root element.
+	 */
+	private void appendQuorum(Document doc, Element rootElement) {
+		if (this.quorum > 0) {
+			Element quorumElement = doc.createElement("Quorum");
+			quorumElement.appendChild(doc.createTextNode(Integer.toString(this.quorum)));
+			rootElement.appendChild(quorumElement);
+		}
+	}
+
+	/**
+	 * Write the tpcOpId, if set, under the root element. Batched writes carry
+	 * one only once the master sends them to slaves as phase-1 requests.
+	 */
+	private void appendTpcOpId(Document doc, Element rootElement) {
+		if (this.tpcOpId != null) {
+			Element opId = doc.createElement("TPCOpId");
+			opId.appendChild(doc.createTextNode(this.tpcOpId));
+			rootElement.appendChild(opId);
+		}
+	}
+
 	public void checkForValidInput() throws KVException{
-		System.out.println("CHeck for valid input key= " + this.key);
 		if(this.key == null || this.key.length() < 1) {
 			
 			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
@@ -617,11 +1625,11 @@ public class KVMessage implements Serializable {
 	}
 
 	public void sendMessage(Socket sock) throws KVException {
-		OutputStreamWriter stream = null;
+		Writer stream = null;
 		try {
-			stream = new OutputStreamWriter(sock.getOutputStream());
-			stream.write(toXML());
-			stream.flush();
+			Document doc = buildDocument();
+			stream = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), "UTF-8"));
+			writeDocument(doc, stream);
 			sock.shutdownOutput();
 		}
 		catch(Exception e){
@@ -631,4 +1639,42 @@ public class KVMessage implements Serializable {
 			throw exception;
 		}
 	}
+
+	/**
+	 * Write this message as a single frame on a persistent connection. The
+	 * output is flushed but not shut down, so the connection stays usable.
+	 *
+	 * @param out
+	 *            stream of the persistent connection
+	 * @param frameId
+	 *            id echoed back by the receiver in its response frame
+	 * @throws KVException
+	 *             "Network Error: Could not send data" on a network error,
+	 *             or OVERSIZED_MESSAGE, with nothing sent, if the payload is
+	 *             larger than MAX_FRAME_SIZE
+	 */
+	public void sendFramedMessage(DataOutputStream out, long frameId) throws KVException {
+		Document doc = buildDocument();
+		// Encoded once into a buffer, which gives the length for the header
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		try {
+			writeDocument(doc, new BufferedWriter(new OutputStreamWriter(payload, "UTF-8")));
+		} catch (IOException e) {
+			throw new KVException(new KVMessage(RESP_MESSAGE, "Unknown Error: Not enough Data"));
+		}
+		if (payload.size() > MAX_FRAME_SIZE) {
+			throw new KVException(new KVMessage(RESP_MESSAGE, OVERSIZED_MESSAGE));
+		}
+		try {
+			out.writeInt(FRAME_MAGIC);
+			out.writeLong(frameId);
+			out.writeInt(payload.size());
+			payload.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			KVMessage exceptionMessage = new KVMessage(RESP_MESSAGE,
+					"Network Error: Could not send data");
+			throw new KVException(exceptionMessage);
+		}
+	}
 }
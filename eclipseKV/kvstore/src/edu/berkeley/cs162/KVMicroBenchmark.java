@@ -0,0 +1,364 @@
+/**
+ * Throughput and allocation micro-benchmarks of the building blocks
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+/**
+ * Measures KVCache, KVStore, KVServer and KVMessage in a single process,
+ * in the manner of JMH: each benchmark runs warmup iterations that are
+ * thrown away, then timed iterations during which every thread calls the
+ * operation in a loop. The score is operations per second over all threads,
+ * with the standard deviation across iterations, and the bytes allocated
+ * per operation where the JVM can count them. Results of the operations
+ * are folded into a sink so the JIT cannot drop the work.
+ *
+ * The simulated store delay is turned off, so the numbers are those of the
+ * code alone.
+ *
+ * Compile the sources and run from the directory holding the classes:
+ *
+ * USAGE: java edu.berkeley.cs162.KVMicroBenchmark [filter] [iterations] [iterationMillis]
+ *
+ * Only benchmarks whose name contains filter run. Baseline results are kept
+ * in benchmarks/baseline.txt of the kvstore project; compare a run against
+ * them on the same machine before and after a change.
+ */
+public class KVMicroBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int KEYS = 1000;
+    private static final int CACHE_ELEMS_PER_SET = 10;
+
+    private static final int[] SET_COUNTS = { 1, 16, 256 };
+    private static final int[] THREAD_COUNTS = { 1, 4, 8 };
+
+    private static int iterations = 5;
+    private static long iterationMillis = 1000;
+    private static PrintStream out = System.out;
+    private static volatile int sink;
+
+    /**
+     * A benchmarked operation. setUp() runs once before the warmup, op()
+     * is called concurrently by all threads.
+     */
+    abstract static class Benchmark {
+        final String name;
+        final String params;
+        final int threads;
+
+        Benchmark(String name, String params, int threads) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        /**
+         * @param random generator owned by the calling thread
+         * @return anything derived from the result, folded into the sink
+         */
+        abstract int op(Random random) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        iterations = args.length > 1 ? Integer.parseInt(args[1]) : iterations;
+        iterationMillis = args.length > 2 ? Long.parseLong(args[2]) : iterationMillis;
+
+        AutoGrader.setStoreDelay(0);
+
+        out.println(String.format("# JVM %s %s, %d processors", System.getProperty("java.vm.name"),
+            System.getProperty("java.version"), Runtime.getRuntime().availableProcessors()));
+        out.println(String.format("# %d warmup and %d measured iterations of %d ms", WARMUP_ITERATIONS,
+            iterations, iterationMillis));
+        out.println(String.format("%-20s %-24s %14s %12s %12s", "Benchmark", "Params", "ops/s", "+-sd", "B/op"));
+        for (Benchmark benchmark : benchmarks()) {
+            if (benchmark.name.contains(filter)) {
+                run(benchmark);
+            }
+        }
+        System.exit(0);
+    }
+
+    static ArrayList<Benchmark> benchmarks() throws Exception {
+        ArrayList<Benchmark> all = new ArrayList<Benchmark>();
+        for (int sets : SET_COUNTS) {
+            for (int threads : THREAD_COUNTS) {
+                all.add(cacheGet(sets, threads));
+                all.add(cachePut(sets, threads));
+            }
+        }
+        for (int threads : THREAD_COUNTS) {
+            all.add(storePut(threads));
+            all.add(storeGet(threads));
+            all.add(storePutDel(threads));
+        }
+        for (int threads : THREAD_COUNTS) {
+            all.add(serverMix(threads, 90));
+            all.add(serverMix(threads, 50));
+        }
+        for (int size : new int[] { 16, 256 * 1024 }) {
+            all.add(messageEncode(size));
+            all.add(messageDecode(size));
+        }
+        return all;
+    }
+
+    static String key(int i) {
+        return "key" + i;
+    }
+
+    static String value(int size, Random random) {
+        StringBuilder value = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    static Benchmark cacheGet(int sets, int threads) {
+        final KVCache cache = new KVCache(sets, CACHE_ELEMS_PER_SET);
+        // As many keys as the cache holds, so that gets mostly hit
+        final int keys = Math.min(KEYS, sets * CACHE_ELEMS_PER_SET);
+        return new Benchmark("cache.get", "sets=" + sets, threads) {
+            void setUp() {
+                for (int i = 0; i < keys; i++) {
+                    cache.put(key(i), "value" + i);
+                }
+            }
+
+            int op(Random random) {
+                String key = key(random.nextInt(keys));
+                WriteLock lock = cache.getWriteLock(key);
+                lock.lock();
+                try {
+                    String value = cache.get(key);
+                    return value == null ? 0 : value.length();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    static Benchmark cachePut(int sets, int threads) {
+        final KVCache cache = new KVCache(sets, CACHE_ELEMS_PER_SET);
+        return new Benchmark("cache.put", "sets=" + sets, threads) {
+            int op(Random random) {
+                String key = key(random.nextInt(KEYS));
+                WriteLock lock = cache.getWriteLock(key);
+                lock.lock();
+                try {
+                    cache.put(key, key);
+                    return 1;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    static Benchmark storePut(int threads) {
+        final KVStore store = new KVStore();
+        return new Benchmark("store.put", "", threads) {
+            int op(Random random) throws KVException {
+                String key = key(random.nextInt(KEYS));
+                store.put(key, key);
+                return 1;
+            }
+        };
+    }
+
+    static Benchmark storeGet(int threads) {
+        final KVStore store = new KVStore();
+        return new Benchmark("store.get", "", threads) {
+            void setUp() throws KVException {
+                for (int i = 0; i < KEYS; i++) {
+                    store.put(key(i), "value" + i);
+                }
+            }
+
+            int op(Random random) throws KVException {
+                return store.get(key(random.nextInt(KEYS))).length();
+            }
+        };
+    }
+
+    static Benchmark storePutDel(int threads) {
+        final KVStore store = new KVStore();
+        return new Benchmark("store.putdel", "", threads) {
+            int op(Random random) throws KVException {
+                // Keys of their own per call, so that del always finds one
+                String key = Thread.currentThread().getId() + ":" + random.nextInt();
+                store.put(key, key);
+                store.del(key);
+                return 1;
+            }
+        };
+    }
+
+    /**
+     * Gets and puts over a key set that fits the cache only in part, so
+     * that gets both hit and miss and threads contend on the sets.
+     */
+    static Benchmark serverMix(int threads, final int readPercent) {
+        final KVServer server = new KVServer(16, CACHE_ELEMS_PER_SET);
+        return new Benchmark("server.mix", "read=" + readPercent + "%", threads) {
+            void setUp() throws KVException {
+                for (int i = 0; i < KEYS; i++) {
+                    server.put(key(i), "value" + i);
+                }
+            }
+
+            int op(Random random) throws KVException {
+                String key = key(random.nextInt(KEYS));
+                if (random.nextInt(100) < readPercent) {
+                    return server.get(key).length();
+                }
+                server.put(key, key);
+                return 1;
+            }
+        };
+    }
+
+    static KVMessage putMessage(int size) throws KVException {
+        KVMessage put = new KVMessage("putreq");
+        put.setKey("benchmark-key");
+        put.setValue(value(size, new Random(size)));
+        return put;
+    }
+
+    static Benchmark messageEncode(final int size) throws KVException {
+        final KVMessage message = putMessage(size);
+        return new Benchmark("message.encode", "value=" + size + "B", 1) {
+            int op(Random random) throws KVException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                message.sendFramedMessage(new DataOutputStream(bytes), 1);
+                return bytes.size();
+            }
+        };
+    }
+
+    static Benchmark messageDecode(final int size) throws KVException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        putMessage(size).sendFramedMessage(new DataOutputStream(bytes), 1);
+        final byte[] frame = bytes.toByteArray();
+        return new Benchmark("message.decode", "value=" + size + "B", 1) {
+            int op(Random random) throws KVException {
+                KVMessage message = new KVMessage(new DataInputStream(new ByteArrayInputStream(frame)));
+                return message.getValue().length();
+            }
+        };
+    }
+
+    static void run(final Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        double[] scores = new double[iterations];
+        long ops = 0;
+        long allocated = 0;
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            long[] result = iterate(benchmark);
+            if (i >= 0) {
+                scores[i] = result[0] * 1e9 / result[1];
+                ops += result[0];
+                allocated += result[2];
+            }
+        }
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / iterations;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+        }
+        String bytesPerOp = allocated < 0 ? "n/a" : String.format("%.0f", (double) allocated / ops);
+        out.println(String.format("%-20s %-24s %14.0f %12.0f %12s", benchmark.name,
+            (benchmark.params.length() > 0 ? benchmark.params + " " : "") + "threads=" + benchmark.threads,
+            mean, Math.sqrt(variance), bytesPerOp));
+    }
+
+    /**
+     * @return {operations, elapsed nanos, bytes allocated or -1}
+     */
+    static long[] iterate(final Benchmark benchmark) throws Exception {
+        final long[] counts = new long[benchmark.threads];
+        final long[] allocated = new long[benchmark.threads];
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[benchmark.threads];
+        for (int t = 0; t < workers.length; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random random = new Random(id);
+                    long allocatedBefore = allocatedBytes();
+                    int folded = 0;
+                    long n = 0;
+                    try {
+                        start.await();
+                        // The clock is read every 64 calls only
+                        do {
+                            for (int i = 0; i < 64; i++) {
+                                folded += benchmark.op(random);
+                            }
+                            n += 64;
+                        } while (System.nanoTime() < deadline[0]);
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                    long allocatedAfter = allocatedBytes();
+                    allocated[id] = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+                    counts[id] = n;
+                    sink += folded;
+                }
+            };
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + iterationMillis * 1000000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        long total = 0;
+        long bytes = 0;
+        for (int t = 0; t < workers.length; t++) {
+            total += counts[t];
+            bytes = bytes < 0 || allocated[t] < 0 ? -1 : bytes + allocated[t];
+        }
+        return new long[] { total, elapsed, bytes };
+    }
+
+    /**
+     * @return bytes the calling thread allocated so far, -1 if the JVM
+     *         does not count them
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -30,10 +30,11 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 /**
@@ -44,16 +45,15 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
  * different part of the key namespace.
  *
  */
-public class KVServer implements KeyValueInterface {
+public class KVServer implements AtomicKeyValueInterface {
     private KVStore dataStore = null;
     private KVCache dataCache = null;
+    // Writes not yet in dataStore, null unless in write-behind mode
+    private volatile WriteBehindBuffer writeBehind = null;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
     
-    WriteLock cacheLock;
-    ReadLock readLock;
-    Lock storeLock;
 
     /**
      * @param numSets number of sets in the data Cache.
@@ -61,9 +61,41 @@ public class KVServer implements KeyValueInterface {
     public KVServer(int numSets, int maxElemsPerSet) {
         dataStore = new KVStore();
         dataCache = new KVCache(numSets, maxElemsPerSet);
-        storeLock = new ReentrantLock();
         AutoGrader.registerKVServer(dataStore, dataCache);
     }
+
+    /**
+     * Switch write-behind mode on or off. In write-behind mode a write goes
+     * to the cache and a WriteBehindBuffer and returns; the buffer writes
+     * it to the store in the background, in batches. Reads of a key look
+     * in the buffer before the store; reads of many keys at once flush the
+     * buffer first. Switch before the server takes requests.
+     *
+     * @param maxDirty keys the buffer holds before writers wait, 0 or less
+     *        to flush the buffer and write straight to the store again
+     * @param flushIntervalMillis longest time between flushes
+     */
+    public void setWriteBehind(int maxDirty, long flushIntervalMillis) {
+        WriteBehindBuffer old = writeBehind;
+        if (old != null) {
+            old.stop();
+            writeBehind = null;
+            // Writes that came in while the buffer stopped
+            old.flush();
+        }
+        if (maxDirty > 0) {
+            WriteBehindBuffer buffer = new WriteBehindBuffer(dataStore, maxDirty, flushIntervalMillis);
+            buffer.start();
+            writeBehind = buffer;
+        }
+    }
+
+    /**
+     * @return the write-behind buffer, null if not in write-behind mode
+     */
+    public WriteBehindBuffer getWriteBehind() {
+        return writeBehind;
+    }
     
     public void put(String key, String value) throws KVException {
         // Must be called before anything else
@@ -90,17 +122,17 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(exceptionMessage);
         }
         
-        cacheLock = dataCache.getWriteLock(key);
+        // The write lock of the key's cache set also serializes store
+        // operations on the key; other keys proceed in parallel
+        WriteLock cacheLock = dataCache.getWriteLock(key);
 
-        storeLock.lock();
         cacheLock.lock();
         try {
-            dataStore.put(key, value);  //Can throw exception, unlock no matter what
+            storePut(key, value);  //Can throw exception, unlock no matter what
             
             dataCache.put(key, value);
         } finally {
             cacheLock.unlock();
-            storeLock.unlock();
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerPutFinished(key, value);
         }
@@ -125,24 +157,24 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(exceptionMessage);
         }
 
-        cacheLock = dataCache.getWriteLock(key);
+        WriteLock cacheLock = dataCache.getWriteLock(key);
         
         String value = null;
         
-        storeLock.lock();
         cacheLock.lock();
         try {
             value = dataCache.get(key);
             if (value != null) {
+                Tracer.debug("slave.cache.hit", null, key);
                 return value;
             }
+            Tracer.debug("slave.cache.miss", null, key);
             
-            value = dataStore.get(key); //Can throw exception, make sure to unlock no matter what
+            value = storeGet(key); //Can throw exception, make sure to unlock no matter what
             
             dataCache.put(key, value);
             return value;
         } finally {
-            storeLock.unlock();
             cacheLock.unlock();
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerGetFinished(key);
@@ -168,21 +200,318 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(exceptionMessage);
         }
 
-        cacheLock = dataCache.getWriteLock(key);
+        WriteLock cacheLock = dataCache.getWriteLock(key);
         
-        storeLock.lock();
         cacheLock.lock();
         try {
-            dataStore.del(key); //Can throw exception make sure to unlock
+            storeDel(key); //Can throw exception make sure to unlock
             dataCache.del(key);
         } finally {
-            storeLock.unlock();
             cacheLock.unlock();
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerDelFinished(key);
         }
     }
     
+    public boolean cas(String key, String expected, String value) throws KVException {
+        checkPair(key, value);
+        WriteLock cacheLock = dataCache.getWriteLock(key);
+        cacheLock.lock();
+        try {
+            String current = currentValue(key);
+            if (current == null ? expected != null : !current.equals(expected)) {
+                return false;
+            }
+            storePut(key, value);
+            dataCache.put(key, value);
+            return true;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Store a versioned value unless the key holds one at least as new.
+     *
+     * @param stored value in the form of VersionedValue
+     * @return whether the value was stored
+     */
+    public boolean putIfNewer(String key, String stored) throws KVException {
+        checkPair(key, stored);
+        WriteLock cacheLock = dataCache.getWriteLock(key);
+        cacheLock.lock();
+        try {
+            if (VersionedValue.versionOf(currentValue(key)) >= VersionedValue.versionOf(stored)) {
+                return false;
+            }
+            storePut(key, stored);
+            dataCache.put(key, stored);
+            return true;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    public boolean putIfAbsent(String key, String value) throws KVException {
+        return cas(key, null, value);
+    }
+
+    public long incrementBy(String key, long delta) throws KVException {
+        checkPair(key, "0");
+        WriteLock cacheLock = dataCache.getWriteLock(key);
+        cacheLock.lock();
+        try {
+            String value = incremented(currentValue(key), delta);
+            storePut(key, value);
+            dataCache.put(key, value);
+            return Long.parseLong(value);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * @return current value of the key, null if it does not exist
+     */
+    public String getIfPresent(String key) {
+        WriteLock cacheLock = dataCache.getWriteLock(key);
+        cacheLock.lock();
+        try {
+            return currentValue(key);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Value of a counter after adding delta to it.
+     *
+     * @param current current value of the counter, null if it does not exist
+     * @param delta amount to add
+     * @return new value of the counter as a decimal number
+     * @throws KVException if current is not a number or the counter overflows
+     */
+    public static String incremented(String current, long delta) throws KVException {
+        long count = 0;
+        if (current != null) {
+            try {
+                count = Long.parseLong(current);
+            } catch (NumberFormatException e) {
+                throw new KVException(new KVMessage("resp", "Value is not a number"));
+            }
+        }
+        long result = count + delta;
+        if (((count ^ result) & (delta ^ result)) < 0) {
+            throw new KVException(new KVMessage("resp", "Counter overflow"));
+        }
+        return Long.toString(result);
+    }
+
+    /* Value of a key whose cache set the caller has locked */
+    private String currentValue(String key) {
+        String value = dataCache.get(key);
+        if (value != null) {
+            return value;
+        }
+        try {
+            value = storeGet(key);
+        } catch (KVException e) {
+            // KVStore reports a missing key as an error
+            return null;
+        }
+        dataCache.put(key, value);
+        return value;
+    }
+
+    /* Store operations on a key whose cache set the caller has locked; in
+     * write-behind mode they go through the buffer */
+    private String storeGet(String key) throws KVException {
+        WriteBehindBuffer buffer = writeBehind;
+        WriteBehindBuffer.Entry dirty = buffer == null ? null : buffer.lookup(key);
+        if (dirty == null) {
+            return dataStore.get(key);
+        }
+        if (dirty.value == null) {
+            throw new KVException(new KVMessage("resp", "Does not exist"));
+        }
+        return dirty.value;
+    }
+
+    private void storePut(String key, String value) throws KVException {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer == null) {
+            dataStore.put(key, value);
+        } else {
+            buffer.put(key, value);
+        }
+    }
+
+    private void storeDel(String key) throws KVException {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer == null) {
+            dataStore.del(key);
+            return;
+        }
+        if (currentValue(key) == null) {
+            throw new KVException(new KVMessage("resp", "key \"" + key + "\" does not exist"));
+        }
+        buffer.del(key);
+    }
+
+    /* Bring the store up to date before reading it directly */
+    private void flushWriteBehind() {
+        WriteBehindBuffer buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    private void checkPair(String key, String value) throws KVException {
+        if (key == null || value == null) {
+            throw new KVException(new KVMessage("resp", "Null"));
+        }
+        if (key.length() > MAX_KEY_SIZE) {
+            throw new KVException(new KVMessage("resp", "Oversized key"));
+        }
+        if (value.length() > MAX_VAL_SIZE) {
+            throw new KVException(new KVMessage("resp", "Oversized value"));
+        }
+    }
+
+    /**
+     * @return copy of the keys stored on this server, in no particular order
+     */
+    public ArrayList<String> keySnapshot() {
+        flushWriteBehind();
+        return dataStore.keySnapshot();
+    }
+
+    /**
+     * Read the pairs from startKey up to endKey (excluded) in key order,
+     * straight from the store; see KVStore.scan().
+     */
+    public LinkedHashMap<String, String> scan(String startKey, boolean inclusive, String endKey, int limit) {
+        flushWriteBehind();
+        return dataStore.scan(startKey, inclusive, endKey, limit);
+    }
+
+    /**
+     * @return keys whose ring position lies in the hash range [start, end)
+     */
+    public ArrayList<String> keysInRange(long start, long end) {
+        flushWriteBehind();
+        return dataStore.keysInRange(start, end);
+    }
+
+    /**
+     * @return digest of a node of the store's hash tree, restricted to the
+     *         given hash ranges; see KVStore.digest()
+     */
+    public long digest(int level, long index, List<long[]> ranges) {
+        flushWriteBehind();
+        return dataStore.digest(level, index, ranges);
+    }
+
+    /**
+     * @return digests of the pairs of a hash tree leaf in the given ranges,
+     *         by key
+     */
+    public LinkedHashMap<String, Long> leafDigests(long leaf, List<long[]> ranges) {
+        flushWriteBehind();
+        return dataStore.leafDigests(leaf, ranges);
+    }
+
+    public int getTreeDepth() {
+        return dataStore.getTreeDepth();
+    }
+
+    /**
+     * @param threshold values of more chars than this are stored compressed
+     *        if that makes them smaller; negative to store them as they are
+     */
+    public void setCompressionThreshold(int threshold) {
+        dataStore.setCompressionThreshold(threshold);
+    }
+
+    public CompressionStats getCompressionStats() {
+        return dataStore.getCompressionStats();
+    }
+
+    /**
+     * Read several keys straight from the store, bypassing the cache. Used
+     * for bulk transfers, which would otherwise flush the cache.
+     *
+     * @param keys keys to read
+     * @return values of the keys that exist, in the order of keys
+     */
+    public LinkedHashMap<String, String> getBatch(Collection<String> keys) {
+        flushWriteBehind();
+        return dataStore.getBatch(keys);
+    }
+
+    /**
+     * Write several pairs straight to the store, dropping any cached copies.
+     * Used for bulk transfers and batched writes. The cache sets of all the
+     * keys stay locked while the batch is written; they are taken in set
+     * order, so batches cannot wait for each other.
+     *
+     * @param entries pairs to write
+     */
+    public void putBatch(Map<String, String> entries) {
+        List<WriteLock> locks = dataCache.getWriteLocks(entries.keySet());
+        for (WriteLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer == null) {
+                dataStore.putBatch(entries);
+            } else {
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    buffer.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (String key : entries.keySet()) {
+                dataCache.del(key);
+            }
+        } finally {
+            for (WriteLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Delete several keys straight from the store, along with any cached
+     * copies, locking their cache sets as putBatch() does. Keys that do not
+     * exist are skipped.
+     *
+     * @param keys keys to delete
+     */
+    public void delBatch(Collection<String> keys) {
+        List<WriteLock> locks = dataCache.getWriteLocks(keys);
+        for (WriteLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            WriteBehindBuffer buffer = writeBehind;
+            if (buffer == null) {
+                dataStore.delBatch(keys);
+            } else {
+                for (String key : keys) {
+                    buffer.del(key);
+                }
+            }
+            for (String key : keys) {
+                dataCache.del(key);
+            }
+        } finally {
+            for (WriteLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but that
@@ -192,12 +521,12 @@ public class KVServer implements KeyValueInterface {
      * @param key key to check for
      */
     public boolean hasKey(String key) throws KVException {
-        boolean returnValue;
-        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-        readLock = lock.readLock();
-        readLock.lock();
-        returnValue = dataStore.get(key) != null;
-        readLock.unlock();
-        return returnValue;
+        WriteLock cacheLock = dataCache.getWriteLock(key);
+        cacheLock.lock();
+        try {
+            return storeGet(key) != null;
+        } finally {
+            cacheLock.unlock();
+        }
     }
 }
@@ -35,8 +35,17 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import edu.berkeley.cs162.*;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -63,21 +72,109 @@ import org.xml.sax.SAXException;
  *
  */
 public class KVStore implements KeyValueInterface {
-    private Map<String, String> store     = null;
+    // Each value is a String, or a CompressedValue if it was stored compressed
+    private Map<String, Object> store     = null;
+    // Keys in key order, for scans
+    private final ConcurrentSkipListSet<String> sortedKeys = new ConcurrentSkipListSet<String>();
+    // Keys in ring order, with the digest of their current value
+    private final ConcurrentSkipListMap<PositionedKey, Long> digests =
+        new ConcurrentSkipListMap<PositionedKey, Long>();
+    // Digests of the stored pairs by ring bucket, compared between replicas
+    private final MerkleTree tree = new MerkleTree(MerkleTree.DEFAULT_DEPTH);
+    // Values of more chars than this are compressed if that makes them
+    // smaller; negative to store every value as is
+    private volatile int compressionThreshold = -1;
+    private final CompressionStats compressionStats = new CompressionStats();
 
     public KVStore() {
         resetStore();
     }
 
     private void resetStore() {
-        store = new HashMap<String, String>();
+        // Operations on one key are serialized by the caller (KVServer holds
+        // the key's cache set lock); different keys may be accessed at once
+        store = new ConcurrentHashMap<String, Object>();
+        sortedKeys.clear();
+        digests.clear();
+        tree.clear();
+    }
+
+    /**
+     * @param threshold values of more chars than this are stored compressed
+     *        if that makes them smaller; negative to store them as they are.
+     *        Values already stored keep their form.
+     */
+    public void setCompressionThreshold(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * A value kept as its LZCodec compressed UTF-8 encoding
+     */
+    private static class CompressedValue {
+        final byte[] data;
+
+        CompressedValue(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * @return the form value is stored in
+     */
+    private Object pack(String value) {
+        int threshold = compressionThreshold;
+        if (threshold >= 0 && value.length() > threshold) {
+            byte[] data = LZCodec.compress(value, compressionStats);
+            if (data != null) {
+                return new CompressedValue(data);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the value a stored entry holds, null if there is no entry
+     */
+    private String unpack(Object stored) {
+        if (stored instanceof CompressedValue) {
+            return LZCodec.decompress(((CompressedValue) stored).data, compressionStats);
+        }
+        return (String) stored;
+    }
+
+    /**
+     * Record a change of a key's value in the index and the hash tree. The
+     * old value's digest comes from the index, so a compressed old value
+     * never has to be decompressed.
+     *
+     * @param newValue value after the change, null if the key was removed
+     */
+    private void track(String key, String newValue) {
+        long position = TPCMaster.hashKey(key);
+        long newDigest = newValue == null ? 0 : MerkleTree.digest(key, newValue);
+        Long oldDigest;
+        if (newValue == null) {
+            sortedKeys.remove(key);
+            oldDigest = digests.remove(new PositionedKey(position, key));
+        } else {
+            sortedKeys.add(key);
+            oldDigest = digests.put(new PositionedKey(position, key), newDigest);
+        }
+        tree.update(position, oldDigest == null ? 0 : oldDigest, newDigest);
     }
 
     public void put(String key, String value) throws KVException {
         AutoGrader.agStorePutStarted(key, value);
         try {
             putDelay();
-            store.put(key, value);
+            Instrumentation.get().fail(Instrumentation.Point.STORE_PUT, key);
+            store.put(key, pack(value));
+            track(key, value);
         } finally {
             AutoGrader.agStorePutFinished(key, value);
         }
@@ -88,8 +185,8 @@ public class KVStore implements KeyValueInterface {
 
         try {
             getDelay();
-            String retVal = this.store.get(key);
-            System.out.println("RV= " + retVal);
+            Instrumentation.get().fail(Instrumentation.Point.STORE_GET, key);
+            String retVal = unpack(this.store.get(key));
             if (retVal == null) {
                 KVMessage msg = new KVMessage("resp", "Does not exist");
                 throw new KVException(msg);
@@ -100,14 +197,196 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    /**
+     * @return copy of the keys currently stored, in no particular order
+     */
+    public ArrayList<String> keySnapshot() {
+        return new ArrayList<String>(store.keySet());
+    }
+
+    /**
+     * Read the pairs from startKey up to endKey (excluded) in key order, in
+     * one pass over the store, which costs a single store delay.
+     *
+     * @param startKey first key of the scan, null to start at the smallest key
+     * @param inclusive whether startKey itself is part of the scan
+     * @param endKey key just after the scan, null for no bound
+     * @param limit maximum number of pairs returned
+     * @return pairs in key order
+     */
+    public LinkedHashMap<String, String> scan(String startKey, boolean inclusive, String endKey, int limit) {
+        getDelay();
+        NavigableSet<String> keys = sortedKeys;
+        if (startKey != null) {
+            keys = keys.tailSet(startKey, inclusive);
+        }
+        if (endKey != null) {
+            keys = keys.headSet(endKey, false);
+        }
+        LinkedHashMap<String, String> pairs = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            if (pairs.size() == limit) {
+                break;
+            }
+            String value = unpack(store.get(key));
+            if (value != null) {
+                pairs.put(key, value);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return smallest key greater than every key starting with prefix, to
+     *         be used as the end of a prefix scan; null if there is none
+     */
+    public static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return keys whose ring position lies in [start, end), found through
+     *         the index rather than by scanning the store
+     */
+    public ArrayList<String> keysInRange(long start, long end) {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (PositionedKey key : slice(start, end).keySet()) {
+            keys.add(key.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Digest of a hash tree node, counting only the pairs that lie in the
+     * given ranges. Nodes inside one range come straight from the tree, and
+     * only the leaves that a range boundary cuts are summed key by key.
+     *
+     * @param level level of the node, 0 being the root
+     * @param index index of the node on its level
+     * @param ranges hash ranges {start, end} to count pairs from
+     * @return digest of the pairs of the node in the ranges, 0 if none
+     */
+    public long digest(int level, long index, List<long[]> ranges) {
+        long start = MerkleTree.nodeStart(level, index);
+        long end = MerkleTree.nodeEnd(level, index);
+        boolean overlaps = false;
+        for (long[] range : ranges) {
+            if (RingSnapshot.containsRange(range[0], range[1], start, end)) {
+                return tree.get(level, index);
+            }
+            overlaps |= RingSnapshot.overlaps(range[0], range[1], start, end);
+        }
+        if (!overlaps) {
+            return 0;
+        }
+        if (level < tree.getDepth()) {
+            return digest(level + 1, 2 * index, ranges) ^ digest(level + 1, 2 * index + 1, ranges);
+        }
+        long sum = 0;
+        for (Map.Entry<PositionedKey, Long> entry : slice(start, end).entrySet()) {
+            if (inRanges(entry.getKey().position, ranges)) {
+                sum ^= entry.getValue();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param leaf index of a hash tree leaf
+     * @param ranges hash ranges {start, end} to list pairs from
+     * @return digests of the pairs of the leaf in the ranges, by key
+     */
+    public LinkedHashMap<String, Long> leafDigests(long leaf, List<long[]> ranges) {
+        int depth = tree.getDepth();
+        LinkedHashMap<String, Long> leafDigests = new LinkedHashMap<String, Long>();
+        for (Map.Entry<PositionedKey, Long> entry
+                : slice(MerkleTree.nodeStart(depth, leaf), MerkleTree.nodeEnd(depth, leaf)).entrySet()) {
+            if (inRanges(entry.getKey().position, ranges)) {
+                leafDigests.put(entry.getKey().key, entry.getValue());
+            }
+        }
+        return leafDigests;
+    }
+
+    public int getTreeDepth() {
+        return tree.getDepth();
+    }
+
+    private static boolean inRanges(long position, List<long[]> ranges) {
+        for (long[] range : ranges) {
+            if (RingSnapshot.inRange(position, range[0], range[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return index entries with ring position in [start, end), in ring order
+     */
+    private SortedMap<PositionedKey, Long> slice(long start, long end) {
+        PositionedKey from = new PositionedKey(start, null);
+        PositionedKey to = new PositionedKey(end, null);
+        if (start == end) {
+            return digests;
+        }
+        if (from.compareTo(to) < 0) {
+            return digests.subMap(from, to);
+        }
+        // The range wraps around the end of the ring
+        TreeMap<PositionedKey, Long> wrapped = new TreeMap<PositionedKey, Long>(digests.tailMap(from));
+        wrapped.putAll(digests.headMap(to));
+        return wrapped;
+    }
+
+    /**
+     * Read several keys in one pass over the store, which costs a single
+     * store delay rather than one per key.
+     *
+     * @param keys keys to read
+     * @return values of the keys that exist, in the order of keys
+     */
+    public LinkedHashMap<String, String> getBatch(Collection<String> keys) {
+        getDelay();
+        LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+        for (String key : keys) {
+            String value = unpack(store.get(key));
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write several pairs in one pass over the store, which costs a single
+     * store delay rather than one per key.
+     *
+     * @param entries pairs to write
+     */
+    public void putBatch(Map<String, String> entries) {
+        putDelay();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            store.put(entry.getKey(), pack(entry.getValue()));
+            track(entry.getKey(), entry.getValue());
+        }
+    }
+
     public void del(String key) throws KVException {
         AutoGrader.agStoreDelStarted(key);
 
         try {
             delDelay();
+            Instrumentation.get().fail(Instrumentation.Point.STORE_DEL, key);
             if (key != null) {
-                if (this.store.containsKey(key)) {
-                    this.store.remove(key);
+                if (this.store.remove(key) != null) {
+                    track(key, null);
                 } else {
                     KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist");
                     throw new KVException(msg);
@@ -118,16 +397,32 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    /**
+     * Delete several keys in one pass over the store, which costs a single
+     * store delay rather than one per key. Keys that do not exist are
+     * skipped.
+     *
+     * @param keys keys to delete
+     */
+    public void delBatch(Collection<String> keys) {
+        delDelay();
+        for (String key : keys) {
+            if (store.remove(key) != null) {
+                track(key, null);
+            }
+        }
+    }
+
     private void getDelay() {
-        AutoGrader.agStoreDelay();
+        Instrumentation.get().delay(Instrumentation.Point.STORE_GET);
     }
 
     private void putDelay() {
-        AutoGrader.agStoreDelay();
+        Instrumentation.get().delay(Instrumentation.Point.STORE_PUT);
     }
 
     private void delDelay() {
-        AutoGrader.agStoreDelay();
+        Instrumentation.get().delay(Instrumentation.Point.STORE_DEL);
     }
 
     public String toXML() throws Exception {
@@ -148,7 +443,7 @@ public class KVStore implements KeyValueInterface {
 				keyElement.appendChild(doc.createTextNode(key));
 				KVPairEle.appendChild(keyElement);
 				Element valElement = doc.createElement("Value");
-				valElement.appendChild(doc.createTextNode(store.get(key)));
+				valElement.appendChild(doc.createTextNode(unpack(store.get(key))));
 				KVPairEle.appendChild(valElement);
 			}
 			
@@ -238,8 +533,36 @@ public class KVStore implements KeyValueInterface {
 				Element e = (Element) curNode;
 				String key = e.getElementsByTagName("Key").item(0).getTextContent();
 				String val = e.getElementsByTagName("Value").item(0).getTextContent();
-				store.put(key, val);
+				store.put(key, pack(val));
+				track(key, val);
 			}
 		}
     }
+
+    /**
+     * A key with its ring position, ordered by unsigned position and then by
+     * key. A null key sorts before every key at its position, which makes it
+     * a bound for range lookups.
+     */
+    private static class PositionedKey implements Comparable<PositionedKey> {
+        final long position;
+        final String key;
+
+        PositionedKey(long position, String key) {
+            this.position = position;
+            this.key = key;
+        }
+
+        public int compareTo(PositionedKey other) {
+            long a = position ^ Long.MIN_VALUE;
+            long b = other.position ^ Long.MIN_VALUE;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+            if (key == null || other.key == null) {
+                return key == other.key ? 0 : (key == null ? -1 : 1);
+            }
+            return key.compareTo(other.key);
+        }
+    }
 }
@@ -0,0 +1,210 @@
+/**
+ * Fast LZ77 compression of values
+ */
+package edu.berkeley.cs162;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A byte oriented LZ77 codec in the spirit of LZ4: greedy matching through a
+ * hash table of 4-byte sequences, no entropy coding. It trades ratio for
+ * speed, which suits text and JSON values that repeat field names and
+ * phrases.
+ *
+ * A compressed blob starts with the uncompressed length as a varint,
+ * followed by sequences of a token byte (literal length in the high nibble,
+ * match length minus 4 in the low nibble, 15 meaning more length bytes
+ * follow), the literals, a 2-byte little-endian match offset and the extra
+ * match length bytes. The last sequence has literals only.
+ */
+public class LZCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    /**
+     * Compress the UTF-8 encoding of a string, recording the outcome.
+     *
+     * @return the compressed blob, or null if it is not smaller than the
+     *         UTF-8 encoding
+     */
+    public static byte[] compress(String value, CompressionStats stats) {
+        long start = System.nanoTime();
+        byte[] raw = value.getBytes(UTF8);
+        byte[] packed = compress(raw);
+        if (packed == null) {
+            stats.recordRaw(System.nanoTime() - start);
+        } else {
+            stats.recordCompression(raw.length, packed.length, System.nanoTime() - start);
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed blob returned by {@link #compress(String, CompressionStats)}
+     * @throws IllegalArgumentException if packed is corrupt
+     */
+    public static String decompress(byte[] packed, CompressionStats stats) {
+        long start = System.nanoTime();
+        String value = new String(decompress(packed), UTF8);
+        stats.recordDecompression(System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * @return the compressed blob, or null if it is not smaller than src
+     */
+    public static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] dst = new byte[n + n / 255 + 16];
+        int op = writeVarint(dst, 0, n);
+        int[] table = new int[1 << HASH_LOG];
+        int anchor = 0;
+        int ip = 0;
+        while (ip + MIN_MATCH <= n) {
+            int sequence = readInt(src, ip);
+            int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            // Table entries are positions plus one, so that 0 means empty
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int length = MIN_MATCH;
+            while (ip + length < n && src[ref + length] == src[ip + length]) {
+                length++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, length);
+            ip += length;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, n - anchor, 0, 0);
+        return op < n ? Arrays.copyOf(dst, op) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if src is corrupt
+     */
+    public static byte[] decompress(byte[] src) {
+        try {
+            int[] header = readVarint(src, 0);
+            // No sequence expands to more than about 255 times its size
+            if (header[0] / 255 > src.length) {
+                throw new IllegalArgumentException("Corrupt compressed data");
+            }
+            byte[] dst = new byte[header[0]];
+            int ip = header[1];
+            int op = 0;
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == src.length) {
+                    break;
+                }
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                int length = token & 0x0F;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        length += b;
+                    } while (b == 255);
+                }
+                length += MIN_MATCH;
+                if (offset == 0 || offset > op || op + length > dst.length) {
+                    throw new IllegalArgumentException("Corrupt compressed data");
+                }
+                // Byte by byte, as a match may overlap the bytes it produces
+                for (int i = 0; i < length; i++) {
+                    dst[op + i] = dst[op - offset + i];
+                }
+                op += length;
+            }
+            if (op != dst.length) {
+                throw new IllegalArgumentException("Corrupt compressed data");
+            }
+            return dst;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt compressed data");
+        } catch (NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Corrupt compressed data");
+        }
+    }
+
+    /**
+     * Write literals followed by a match; a match length of 0 ends the blob.
+     */
+    private static int writeSequence(byte[] dst, int op, byte[] src, int start, int literals,
+            int offset, int length) {
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15) {
+            op = writeLength(dst, op, literals - 15);
+        }
+        System.arraycopy(src, start, dst, op, literals);
+        op += literals;
+        if (length > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            int extra = length - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15) {
+                op = writeLength(dst, op, extra - 15);
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int writeVarint(byte[] dst, int op, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[op++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[op++] = (byte) value;
+        return op;
+    }
+
+    /**
+     * @return {value, position after it}
+     */
+    private static int[] readVarint(byte[] src, int ip) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = src[ip++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return new int[] { value, ip };
+            }
+        }
+        throw new IllegalArgumentException("Corrupt compressed data");
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16)
+            | ((src[i + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Recent latency statistics for requests to one server
+ */
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+
+/**
+ * Keeps an exponentially weighted moving average of request latency and the
+ * most recent samples, from which percentiles are computed on demand. All
+ * times are in microseconds.
+ */
+public class LatencyTracker {
+    // Number of recent samples kept for percentiles
+    public static final int WINDOW_SIZE = 128;
+    // Weight of a new sample in the moving average
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final long[] window = new long[WINDOW_SIZE];
+    private int next = 0;
+    private int count = 0;
+    private double ewma = 0.0;
+
+    /**
+     * @param micros latency of one request
+     */
+    public synchronized void record(long micros) {
+        window[next] = micros;
+        next = (next + 1) % WINDOW_SIZE;
+        if (count < WINDOW_SIZE) {
+            count++;
+        }
+        ewma = (count == 1) ? micros : ewma + EWMA_WEIGHT * (micros - ewma);
+    }
+
+    /**
+     * @return moving average latency, 0 if nothing was recorded yet
+     */
+    public synchronized double getAverageMicros() {
+        return ewma;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 1, e.g. 0.99
+     * @return latency below which that fraction of recent samples fall, -1
+     *         if nothing was recorded yet
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(window, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
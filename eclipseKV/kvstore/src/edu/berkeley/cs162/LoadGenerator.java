@@ -0,0 +1,540 @@
+/**
+ * YCSB style load generator for a whole cluster
+ */
+package edu.berkeley.cs162;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a master through KVClients with a mix of gets and puts and prints
+ * throughput and latency percentiles for every reporting interval, then
+ * for the whole run.
+ *
+ * Unless -master names a running master, a TPCMaster, its client port and
+ * -slaves slaves are started in this process first, with the store delay
+ * set by -storeDelay, and every key is loaded once before measuring.
+ *
+ * In closed loop (-mode closed) each of -threads clients sends its next
+ * request as soon as the previous one completes. In open loop (-mode open)
+ * requests are due at a fixed total rate of -rate per second, spread over
+ * the clients; a request is timed from when it was due rather than from
+ * when it was sent, so a slow server shows as latency instead of silently
+ * lowering the offered load.
+ *
+ * Gets of keys that do not exist count as reads; any other failure counts
+ * as an error and is timed like a success.
+ *
+ * USAGE: LoadGenerator [-option value]...
+ *   -master host:port  running master to target (default: start one)
+ *   -slaves n          slaves of the local cluster (2)
+ *   -storeDelay ms     store delay of the local cluster (0)
+ *   -replicas n        replication factor of the local cluster (2)
+ *   -replication r     2pc, chain or quorum, how the local cluster
+ *                      replicates (2pc)
+ *   -readQuorum n      replicas a quorum get waits for (majority)
+ *   -writeBehind n     write-behind buffer of each slave of the local
+ *                      cluster, in keys; 0 to write through (0)
+ *   -writeQuorum n     replicas a quorum put waits for (majority)
+ *   -keys n            number of distinct keys (1000)
+ *   -dist d            uniform, zipfian or hotspot (zipfian)
+ *   -theta t           skew of zipfian (0.99)
+ *   -hotKeys f         fraction of keys that are hot for hotspot (0.2)
+ *   -hotOps f          fraction of requests to hot keys for hotspot (0.8)
+ *   -reads f           fraction of requests that are gets (0.9)
+ *   -valueSize n       size of written values in characters (100)
+ *   -threads n         concurrent clients (8)
+ *   -mode m            closed or open (closed)
+ *   -rate n            requests per second in open loop (1000)
+ *   -duration s        length of the measurement (30)
+ *   -interval s        length of a reporting interval (1)
+ *   -load b            load every key before measuring (true when local)
+ *   -seed n            seed of the request mix (1)
+ *   -trace file        write spans of the local cluster to file (none)
+ */
+public class LoadGenerator {
+    // Client port of the master of a local cluster
+    private static final int CLIENT_PORT = 8080;
+
+    private static PrintStream out = System.out;
+    // Client handler of the local cluster, null when targeting a running
+    // master
+    private static KVClientHandler clientHandler = null;
+    // Master of the local cluster, null when targeting a running master
+    private static TPCMaster master = null;
+    // Slaves of the local cluster
+    private static final List<KVServer> slaves = new ArrayList<KVServer>();
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final int keys;
+    private final double reads;
+    private final int valueSize;
+    private final int threads;
+    private final boolean openLoop;
+    private final double rate;
+    private final KeyDistribution distribution;
+
+    // Current reporting interval and whole run; swapped by the reporter
+    private Histogram interval = new Histogram();
+    private final Histogram total = new Histogram();
+    private final AtomicLong intervalReads = new AtomicLong();
+    private final AtomicLong intervalWrites = new AtomicLong();
+    private final AtomicLong intervalErrors = new AtomicLong();
+    private final AtomicLong totalErrors = new AtomicLong();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) {
+                throw new IllegalArgumentException("Expected an option, got " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+
+        String hostPort = options.get("master");
+        boolean local = hostPort == null;
+        String trace = options.get("trace");
+        if (trace != null) {
+            Tracer.start(trace, Tracer.Level.INFO);
+        }
+        if (local) {
+            String replication = stringOption(options, "replication", "2pc");
+            TPCMaster.ReplicationMode mode;
+            if ("2pc".equals(replication)) {
+                mode = TPCMaster.ReplicationMode.TWO_PHASE_COMMIT;
+            } else if ("chain".equals(replication)) {
+                mode = TPCMaster.ReplicationMode.CHAIN;
+            } else if ("quorum".equals(replication)) {
+                mode = TPCMaster.ReplicationMode.QUORUM;
+            } else {
+                throw new IllegalArgumentException("Unknown replication " + replication);
+            }
+            hostPort = startCluster(intOption(options, "slaves", 2), intOption(options, "replicas", 2),
+                mode, longOption(options, "storeDelay", 0), intOption(options, "writeBehind", 0));
+            master.readQuorum = intOption(options, "readQuorum", 0);
+            master.writeQuorum = intOption(options, "writeQuorum", 0);
+        }
+        LoadGenerator generator = new LoadGenerator(options, hostPort);
+        if (Boolean.parseBoolean(stringOption(options, "load", Boolean.toString(local)))) {
+            generator.load();
+        }
+        generator.run(longOption(options, "duration", 30) * 1000, longOption(options, "interval", 1) * 1000);
+        if (clientHandler != null) {
+            out.print(clientHandler.getQueueStats());
+        }
+        for (KVServer slave : slaves) {
+            if (slave.getWriteBehind() != null) {
+                out.println(slave.getWriteBehind());
+            }
+        }
+        Tracer.stop();
+        System.exit(0);
+    }
+
+    LoadGenerator(Map<String, String> options, String hostPort) {
+        this.options = options;
+        int colon = hostPort.lastIndexOf(':');
+        this.host = hostPort.substring(0, colon);
+        this.port = Integer.parseInt(hostPort.substring(colon + 1));
+        this.keys = intOption(options, "keys", 1000);
+        this.reads = doubleOption(options, "reads", 0.9);
+        this.valueSize = intOption(options, "valueSize", 100);
+        this.threads = intOption(options, "threads", 8);
+        this.openLoop = "open".equals(stringOption(options, "mode", "closed"));
+        this.rate = doubleOption(options, "rate", 1000);
+        String dist = stringOption(options, "dist", "zipfian");
+        if ("uniform".equals(dist)) {
+            distribution = new UniformKeys(keys);
+        } else if ("zipfian".equals(dist)) {
+            distribution = new ZipfianKeys(keys, doubleOption(options, "theta", 0.99));
+        } else if ("hotspot".equals(dist)) {
+            distribution = new HotspotKeys(keys, doubleOption(options, "hotKeys", 0.2),
+                doubleOption(options, "hotOps", 0.8));
+        } else {
+            throw new IllegalArgumentException("Unknown key distribution " + dist);
+        }
+    }
+
+    /**
+     * Start a master, its client port and slaves in this process.
+     *
+     * @return host:port clients connect to
+     */
+    static String startCluster(int numSlaves, int replicationFactor, TPCMaster.ReplicationMode mode,
+        long storeDelay, int maxDirty) throws Exception {
+        AutoGrader.setStoreDelay(storeDelay);
+        master = new TPCMaster(numSlaves, replicationFactor, TPCMaster.DEFAULT_VIRTUAL_NODES);
+        master.setReplicationMode("", mode);
+        master.run();
+        String hostName = InetAddress.getLocalHost().getHostAddress();
+        final SocketServer clientServer = new SocketServer(hostName, CLIENT_PORT);
+        clientHandler = new KVClientHandler(master);
+        clientServer.addHandler(clientHandler);
+        clientServer.connect();
+        Thread clientThread = new Thread() {
+            public void run() {
+                try {
+                    clientServer.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        clientThread.setDaemon(true);
+        clientThread.start();
+        // Let the registration server bind before slaves register
+        Thread.sleep(500);
+        for (int i = 0; i < numSlaves; i++) {
+            slaves.add(TPCBenchmark.startSlave(1000L * (i + 1), hostName, maxDirty));
+        }
+        return hostName + ":" + CLIENT_PORT;
+    }
+
+    static String key(int i) {
+        return "user" + i;
+    }
+
+    String value(Random random) {
+        StringBuilder value = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Put every key once, from all clients at once.
+     */
+    void load() throws Exception {
+        long start = System.nanoTime();
+        Thread[] loaders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            loaders[t] = new Thread() {
+                public void run() {
+                    KVClient client = new KVClient(host, port);
+                    Random random = new Random(first);
+                    for (int i = first; i < keys; i += threads) {
+                        try {
+                            client.put(key(i), value(random));
+                        } catch (KVException e) {
+                            totalErrors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            loaders[t].start();
+        }
+        for (Thread loader : loaders) {
+            loader.join();
+        }
+        out.println(String.format("# Loaded %d keys in %.1f s, %d errors", keys,
+            (System.nanoTime() - start) / 1e9, totalErrors.getAndSet(0)));
+    }
+
+    void run(long durationMillis, long intervalMillis) throws Exception {
+        out.println(String.format("# %s loop, %d clients%s, %d keys %s, %.0f%% gets, %d character values",
+            openLoop ? "open" : "closed", threads, openLoop ? String.format(", %.0f requests/s", rate) : "",
+            keys, distribution, reads * 100, valueSize));
+        out.println(String.format("%8s %10s %8s %8s %8s %10s %10s %10s %10s", "time(s)", "ops/s", "gets",
+            "puts", "errors", "p50(ms)", "p95(ms)", "p99(ms)", "max(ms)"));
+        Thread[] clients = new Thread[threads];
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            clients[t] = new Thread(new Client(t, start));
+            clients[t].start();
+        }
+        long end = start + durationMillis * 1000000L;
+        long next = start;
+        while (next < end) {
+            next = Math.min(end, next + intervalMillis * 1000000L);
+            long sleep = (next - System.nanoTime()) / 1000000L;
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+            report((System.nanoTime() - start) / 1e9, intervalMillis / 1000.0);
+        }
+        running = false;
+        for (Thread client : clients) {
+            client.join();
+        }
+        out.println(String.format("# Total: %d requests in %.1f s, %.0f ops/s, %d errors, p50 %.2f p95 %.2f "
+            + "p99 %.2f p99.9 %.2f max %.2f ms", total.getCount(), durationMillis / 1000.0,
+            total.getCount() * 1000.0 / durationMillis, totalErrors.get(), total.getPercentile(0.5) / 1000.0,
+            total.getPercentile(0.95) / 1000.0, total.getPercentile(0.99) / 1000.0,
+            total.getPercentile(0.999) / 1000.0, total.getMax() / 1000.0));
+    }
+
+    private void report(double elapsed, double seconds) {
+        Histogram done;
+        synchronized (this) {
+            done = interval;
+            interval = new Histogram();
+        }
+        total.add(done);
+        out.println(String.format("%8.1f %10.0f %8d %8d %8d %10.2f %10.2f %10.2f %10.2f", elapsed,
+            done.getCount() / seconds, intervalReads.getAndSet(0), intervalWrites.getAndSet(0),
+            intervalErrors.getAndSet(0), done.getPercentile(0.5) / 1000.0, done.getPercentile(0.95) / 1000.0,
+            done.getPercentile(0.99) / 1000.0, done.getMax() / 1000.0));
+    }
+
+    private void record(long micros, boolean read, boolean failed) {
+        synchronized (this) {
+            interval.record(micros);
+        }
+        (read ? intervalReads : intervalWrites).incrementAndGet();
+        if (failed) {
+            intervalErrors.incrementAndGet();
+            totalErrors.incrementAndGet();
+        }
+    }
+
+    private class Client implements Runnable {
+        private final KVClient client = new KVClient(host, port);
+        private final Random random;
+        private final long start;
+
+        Client(int id, long start) {
+            this.random = new Random(longOption(options, "seed", 1) * 31 + id);
+            this.start = start;
+        }
+
+        public void run() {
+            // In open loop each client is due every threads / rate seconds,
+            // the clients offset from each other
+            double period = threads * 1e9 / rate;
+            long due = start + (long) (period * random.nextDouble());
+            while (running) {
+                if (openLoop) {
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!running) {
+                        return;
+                    }
+                }
+                long sent = openLoop ? due : System.nanoTime();
+                boolean read = random.nextDouble() < reads;
+                String key = key(distribution.next(random));
+                boolean failed = false;
+                try {
+                    if (read) {
+                        client.get(key);
+                    } else {
+                        client.put(key, value(random));
+                    }
+                } catch (KVException e) {
+                    failed = !"Does not exist".equals(e.getMsg().getMessage());
+                }
+                record((System.nanoTime() - sent) / 1000, read, failed);
+                due += (long) period;
+            }
+        }
+    }
+
+    /**
+     * Chooses the index of the key each request goes to.
+     */
+    abstract static class KeyDistribution {
+        abstract int next(Random random);
+    }
+
+    static class UniformKeys extends KeyDistribution {
+        private final int keys;
+
+        UniformKeys(int keys) {
+            this.keys = keys;
+        }
+
+        int next(Random random) {
+            return random.nextInt(keys);
+        }
+
+        public String toString() {
+            return "uniform";
+        }
+    }
+
+    /**
+     * Zipfian ranks as generated by YCSB, after Gray et al., "Quickly
+     * generating billion-record synthetic databases". Ranks are hashed to
+     * keys so that the popular keys are not neighbours.
+     */
+    static class ZipfianKeys extends KeyDistribution {
+        private final int keys;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        ZipfianKeys(int keys, double theta) {
+            this.keys = keys;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(keys, theta);
+            this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (keys * Math.pow(eta * u - eta + 1, alpha));
+            }
+            // FNV-1a of the rank
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= (rank >>> (i * 8)) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return (int) ((hash & Long.MAX_VALUE) % keys);
+        }
+
+        public String toString() {
+            return "zipfian(" + theta + ")";
+        }
+    }
+
+    /**
+     * A fraction of the keys gets a fraction of the requests, uniformly
+     * within the hot and the cold keys.
+     */
+    static class HotspotKeys extends KeyDistribution {
+        private final int keys;
+        private final int hotKeys;
+        private final double hotOps;
+
+        HotspotKeys(int keys, double hotKeys, double hotOps) {
+            this.keys = keys;
+            this.hotKeys = Math.max(1, Math.min(keys, (int) (keys * hotKeys)));
+            this.hotOps = hotOps;
+        }
+
+        int next(Random random) {
+            if (hotKeys == keys || random.nextDouble() < hotOps) {
+                return random.nextInt(hotKeys);
+            }
+            return hotKeys + random.nextInt(keys - hotKeys);
+        }
+
+        public String toString() {
+            return String.format("hotspot(%.0f%% of requests to %d keys)", hotOps * 100, hotKeys);
+        }
+    }
+
+    /**
+     * Latency histogram with buckets about 3% wide from 1 us to over an
+     * hour. Not synchronized.
+     */
+    static class Histogram {
+        // Buckets per power of two
+        private static final int SUB_BUCKETS = 32;
+        private static final int MAGNITUDES = 33;
+
+        private final long[] counts = new long[SUB_BUCKETS * MAGNITUDES];
+        private long count = 0;
+        private long max = 0;
+
+        void record(long micros) {
+            micros = Math.max(0, micros);
+            counts[bucket(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the percentile, 0 if
+         *         nothing was recorded
+         */
+        long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(max, upperBound(i));
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            // The top six bits of micros pick the bucket within its power of two
+            int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+            int bucket = shift * SUB_BUCKETS + (int) (micros >>> shift);
+            return Math.min(bucket, SUB_BUCKETS * MAGNITUDES - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    static String stringOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return Integer.parseInt(stringOption(options, name, Integer.toString(defaultValue)));
+    }
+
+    static long longOption(Map<String, String> options, String name, long defaultValue) {
+        return Long.parseLong(stringOption(options, name, Long.toString(defaultValue)));
+    }
+
+    static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+        return Double.parseDouble(stringOption(options, name, Double.toString(defaultValue)));
+    }
+}
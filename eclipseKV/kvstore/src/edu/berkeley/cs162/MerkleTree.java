@@ -0,0 +1,88 @@
+/**
+ * Hash tree over the ring positions of the keys stored on a slave
+ */
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+
+/**
+ * Complete binary tree whose leaves split the ring into 2^depth equal
+ * buckets by the top bits of a key's ring position. A node's digest is the
+ * XOR of the digests of every key-value pair under it, so a write updates one
+ * node per level, and two replicas holding the same pairs in a bucket have
+ * the same digest for it. Node i of level l covers positions
+ * [i * 2^(64-l), (i+1) * 2^(64-l)); level 0 is the root.
+ */
+public class MerkleTree {
+    // Levels below the root; 2^DEFAULT_DEPTH leaves
+    public static final int DEFAULT_DEPTH = 10;
+
+    private final int depth;
+    // Heap layout: the root is 1 and node n has children 2n and 2n+1
+    private final long[] nodes;
+
+    public MerkleTree(int depth) {
+        this.depth = depth;
+        this.nodes = new long[2 << depth];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Replace the digest of one pair. Pass 0 as the old digest for a new key
+     * and as the new digest for a deleted one.
+     */
+    public synchronized void update(long position, long oldDigest, long newDigest) {
+        long change = oldDigest ^ newDigest;
+        for (int node = (1 << depth) + (int) nodeIndex(position, depth); node > 0; node >>>= 1) {
+            nodes[node] ^= change;
+        }
+    }
+
+    /**
+     * @return digest of node index of the level
+     */
+    public synchronized long get(int level, long index) {
+        return nodes[(1 << level) + (int) index];
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(nodes, 0);
+    }
+
+    /**
+     * @return index of the node of the level that covers the position
+     */
+    public static long nodeIndex(long position, int level) {
+        return level == 0 ? 0 : position >>> (64 - level);
+    }
+
+    /**
+     * @return first position covered by a node
+     */
+    public static long nodeStart(int level, long index) {
+        return level == 0 ? 0 : index << (64 - level);
+    }
+
+    /**
+     * @return first position after a node, which wraps around to 0 for the
+     *         last node of a level; [nodeStart, nodeEnd) is a RingSnapshot
+     *         range
+     */
+    public static long nodeEnd(int level, long index) {
+        return level == 0 ? 0 : (index + 1) << (64 - level);
+    }
+
+    /**
+     * @return digest of a key-value pair, never 0
+     */
+    public static long digest(String key, String value) {
+        long z = TPCMaster.hashKey(key) * 31 + TPCMaster.hashKey(value);
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        z ^= z >>> 33;
+        return z == 0 ? 1 : z;
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Bounded client-side cache of values read through the master
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the values a KVClient read, least recently used first out, and
+ * listens for the master's invalidation notices on a port of its own. The
+ * master only sends notices for keys read with the listener's port, and
+ * notices may be lost, so an entry is also never served once it is older
+ * than the staleness bound.
+ *
+ * A read whose key is invalidated while the read is in flight may carry the
+ * old value; it is not cached. Only the latest invalidations are kept for
+ * that check, and a read older than all of them is not cached either.
+ */
+public class NearCache {
+    // Latest invalidations remembered for reads in flight
+    private static final int RECENT_INVALIDATIONS = 1024;
+    // Time the listener waits for a notice once a master connected
+    private static final int NOTICE_TIMEOUT_MILLIS = 1000;
+
+    private final int capacity;
+    private final long maxStaleNanos;
+    private final LinkedHashMap<String, CachedValue> entries;
+    // Sequence number of the latest invalidation of recently invalidated
+    // keys, oldest first
+    private final LinkedHashMap<String, Long> recentInvalidations;
+    private long invalidations = 0;
+    // Sequence number of the latest invalidation no longer remembered
+    private long forgottenInvalidation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private final ServerSocket listener;
+
+    /**
+     * @param capacity maximum number of values kept
+     * @param maxStaleMillis age after which a value is read again even if
+     *        no invalidation arrived
+     * @throws IOException if the listener for invalidations cannot be opened
+     */
+    public NearCache(int capacity, long maxStaleMillis) throws IOException {
+        this.capacity = capacity;
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > NearCache.this.capacity;
+            }
+        };
+        this.recentInvalidations = new LinkedHashMap<String, Long>() {
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > RECENT_INVALIDATIONS) {
+                    forgottenInvalidation = eldest.getValue();
+                    return true;
+                }
+                return false;
+            }
+        };
+        listener = Transport.get().listen(0);
+        Thread listenerThread = new Thread(new Listener());
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    private static class CachedValue {
+        final String value;
+        final long readAt;
+
+        CachedValue(String value, long readAt) {
+            this.value = value;
+            this.readAt = readAt;
+        }
+    }
+
+    /**
+     * @return the cached value, null if there is none or it is too old
+     */
+    public synchronized String get(String key) {
+        CachedValue cached = entries.get(key);
+        if (cached != null && System.nanoTime() - cached.readAt <= maxStaleNanos) {
+            hits++;
+            return cached.value;
+        }
+        if (cached != null) {
+            entries.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Called before reading a key from the master.
+     *
+     * @return token to pass to put() with the value read
+     */
+    public synchronized long startRead() {
+        return invalidations;
+    }
+
+    /**
+     * Cache a value read from the master, unless the key may have been
+     * invalidated since the read started.
+     *
+     * @param readStart token returned by startRead() before the read
+     */
+    public synchronized void put(String key, String value, long readStart) {
+        Long invalidated = recentInvalidations.get(key);
+        if ((invalidated != null && invalidated > readStart) || forgottenInvalidation > readStart) {
+            return;
+        }
+        entries.put(key, new CachedValue(value, System.nanoTime()));
+    }
+
+    public synchronized void invalidate(Collection<String> keys) {
+        for (String key : keys) {
+            invalidations++;
+            entries.remove(key);
+            // Reinserted, so that the order stays oldest first
+            recentInvalidations.remove(key);
+            recentInvalidations.put(key, invalidations);
+        }
+    }
+
+    public void invalidate(String key) {
+        invalidate(Collections.singletonList(key));
+    }
+
+    /**
+     * @return port the master sends invalidation notices to
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Stop listening for invalidations. Values already cached are still
+     * served until they reach the staleness bound.
+     */
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Accepts notices one at a time: the master sends them from a single
+     * thread.
+     */
+    private class Listener implements Runnable {
+        public void run() {
+            while (!listener.isClosed()) {
+                Socket master;
+                try {
+                    master = listener.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    KVMessage notice = new KVMessage(master, NOTICE_TIMEOUT_MILLIS);
+                    if ("invalidate".equals(notice.getMsgType()) && notice.getKeys() != null) {
+                        invalidate(notice.getKeys());
+                    }
+                } catch (KVException e) {
+                    // Malformed or late notice; the staleness bound covers it
+                } finally {
+                    try {
+                        master.close();
+                    } catch (IOException e) {
+                        // Nothing more to do
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Background redelivery of 2PC decisions that a slave did not acknowledge
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+/**
+ * Holds phase-2 decisions (commit or abort) that could not be delivered to a
+ * slave and resends them from a single worker thread with exponential
+ * backoff, so that client threads return as soon as the decision is made.
+ * Decisions are never dropped: a transaction reserves a slot for each of its
+ * participants before phase 1, and fails at once if the queue has no room,
+ * so add() never waits. Slaves that are suspected down are not contacted
+ * until the failure detector sees them again, at which point retryNow()
+ * makes their decisions due immediately.
+ *
+ * The master also keeps the hints of quorum writes in one, added with
+ * offer(), which drops them rather than wait when the queue is full.
+ */
+public class Phase2RetryQueue {
+    // Maximum number of undelivered decisions held at once
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Delay before the first resend of a decision
+    public static final long INITIAL_BACKOFF_MILLIS = 100;
+    // Upper bound on the delay between resends
+    public static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private final int capacity;
+    private final int timeoutMillis;
+
+    private final PriorityQueue<PendingDecision> queue = new PriorityQueue<PendingDecision>();
+    // Number of queued decisions per slave
+    private final HashMap<SlaveInfo, Integer> pendingPerSlave = new HashMap<SlaveInfo, Integer>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Thread worker = null;
+    private boolean stopped = false;
+    private long sequence = 0;
+    // Slots held for decisions of transactions in progress
+    private int reserved = 0;
+
+    /**
+     * @param capacity maximum number of undelivered decisions
+     * @param timeoutMillis read timeout for each resend
+     */
+    public Phase2RetryQueue(int capacity, int timeoutMillis) {
+        this.capacity = capacity;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Hold slots for decisions that may have to be queued, one per
+     * participant of a transaction about to start.
+     *
+     * @return whether the slots were free; if not, none are held
+     */
+    public boolean reserve(int slots) {
+        lock.lock();
+        try {
+            if (queue.size() + reserved + slots > capacity) {
+                return false;
+            }
+            reserved += slots;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back reserved slots that were not needed.
+     */
+    public void cancel(int slots) {
+        lock.lock();
+        try {
+            reserved -= slots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a decision for redelivery in a slot held by reserve().
+     *
+     * @param slave slave that has not acknowledged the decision
+     * @param decision commit or abort message
+     */
+    public void add(SlaveInfo slave, KVMessage decision) {
+        lock.lock();
+        try {
+            reserved--;
+            enqueue(slave, decision);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a message for redelivery unless the queue is full.
+     *
+     * @return whether the message was queued
+     */
+    public boolean offer(SlaveInfo slave, KVMessage message) {
+        lock.lock();
+        try {
+            if (queue.size() + reserved >= capacity) {
+                return false;
+            }
+            enqueue(slave, message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void enqueue(SlaveInfo slave, KVMessage decision) {
+        long now = System.currentTimeMillis();
+        queue.add(new PendingDecision(slave, decision, now + INITIAL_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS, sequence++));
+        Integer pending = pendingPerSlave.get(slave);
+        pendingPerSlave.put(slave, pending == null ? 1 : pending + 1);
+        if (worker == null && !stopped) {
+            worker = new Thread(new Worker());
+            worker.setDaemon(true);
+            worker.start();
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Stop resending. Messages still queued are not delivered.
+     */
+    public void stop() {
+        Thread stopping;
+        lock.lock();
+        try {
+            stopped = true;
+            stopping = worker;
+            worker = null;
+        } finally {
+            lock.unlock();
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+        }
+    }
+
+    /**
+     * @return whether a decision for the slave is still waiting to be delivered
+     */
+    public boolean hasPending(SlaveInfo slave) {
+        lock.lock();
+        try {
+            return pendingPerSlave.containsKey(slave);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make every decision for a slave due now, e.g. after it came back up.
+     */
+    public void retryNow(SlaveInfo slave) {
+        lock.lock();
+        try {
+            ArrayList<PendingDecision> due = new ArrayList<PendingDecision>();
+            Iterator<PendingDecision> it = queue.iterator();
+            while (it.hasNext()) {
+                PendingDecision pending = it.next();
+                if (pending.slave == slave) {
+                    it.remove();
+                    due.add(pending);
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (PendingDecision pending : due) {
+                pending.dueAt = now;
+                pending.backoff = INITIAL_BACKOFF_MILLIS;
+                queue.add(pending);
+            }
+            if (!due.isEmpty()) {
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next decision once it is due, null once stopped
+     */
+    private PendingDecision takeDue() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (stopped) {
+                    return null;
+                }
+                PendingDecision head = queue.peek();
+                if (head == null) {
+                    changed.await();
+                    continue;
+                }
+                long wait = head.dueAt - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return queue.poll();
+                }
+                changed.await(wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void delivered(PendingDecision pending) {
+        lock.lock();
+        try {
+            int left = pendingPerSlave.get(pending.slave) - 1;
+            if (left == 0) {
+                pendingPerSlave.remove(pending.slave);
+            } else {
+                pendingPerSlave.put(pending.slave, left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reschedule(PendingDecision pending) {
+        lock.lock();
+        try {
+            pending.dueAt = System.currentTimeMillis() + pending.backoff;
+            pending.backoff = Math.min(MAX_BACKOFF_MILLIS, pending.backoff * 2);
+            queue.add(pending);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (true) {
+                PendingDecision pending;
+                try {
+                    pending = takeDue();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending == null) {
+                    return;
+                }
+                if (pending.slave.isSuspected()) {
+                    reschedule(pending);
+                    continue;
+                }
+                try {
+                    pending.slave.request(pending.decision, timeoutMillis);
+                    delivered(pending);
+                } catch (KVException e) {
+                    reschedule(pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * One undelivered decision, ordered by the time it is next due.
+     */
+    private static class PendingDecision implements Comparable<PendingDecision> {
+        final SlaveInfo slave;
+        final KVMessage decision;
+        long dueAt;
+        long backoff;
+        // Keeps decisions due at the same time in the order they were queued
+        final long sequence;
+
+        PendingDecision(SlaveInfo slave, KVMessage decision, long dueAt, long backoff, long sequence) {
+            this.slave = slave;
+            this.decision = decision;
+            this.dueAt = dueAt;
+            this.backoff = backoff;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(PendingDecision other) {
+            if (dueAt != other.dueAt) {
+                return dueAt < other.dueAt ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
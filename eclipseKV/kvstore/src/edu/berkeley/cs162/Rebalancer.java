@@ -0,0 +1,527 @@
+/**
+ * Moves keys onto their new replicas when slaves join the ring, and back onto
+ * slaves that lost them
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+/**
+ * When the ring changes, every hash range whose replica set gained a slave
+ * is copied from one of its previous replicas to the new ones. The same
+ * copy bootstraps a registered slave that came back without its data: each
+ * range it replicates is copied to it from the range's other replicas.
+ * A range is read in batches through range requests, resuming after the last
+ * key copied when a source fails, and each batch is written to the new
+ * replicas as one chunk, under the Master's locks for its keys. The copy
+ * runs in the background at a bounded rate while the Master keeps serving
+ * requests: a write to a key that was not copied yet copies it first, and a
+ * read that misses on the new replicas falls back to the previous ones. One
+ * handoff runs at a time. Ranges that could not be copied are tried again,
+ * with a growing delay, and the handoff stays in place, fallback reads
+ * included, until every range has been copied.
+ */
+public class Rebalancer {
+    // Keys asked for in one range request
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    // Pause between two batches, which bounds the load put on the slaves
+    public static final long DEFAULT_THROTTLE_MILLIS = 20;
+    // Failed attempts at a batch after which its range is given up
+    public static final int MAX_ATTEMPTS = 5;
+    // Delay before retrying a failed batch, doubled on every failure
+    public static final long INITIAL_BACKOFF_MILLIS = 100;
+    // Upper bound on the delay before copying failed ranges again
+    public static final long MAX_RETRY_BACKOFF_MILLIS = 10000;
+    // Characters of keys and values copied per second, across all ranges
+    public static final long DEFAULT_MAX_CHARS_PER_SECOND = 1024 * 1024;
+
+    public int batchSize = DEFAULT_BATCH_SIZE;
+    public long throttleMillis = DEFAULT_THROTTLE_MILLIS;
+    public long maxCharsPerSecond = DEFAULT_MAX_CHARS_PER_SECOND;
+
+    private final TPCMaster master;
+    private final Lock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();
+    private Handoff running = null;
+
+    public Rebalancer(TPCMaster master) {
+        this.master = master;
+    }
+
+    /**
+     * Work out which ranges move between two rings. The returned handoff must
+     * be published together with newRing and then started with launch().
+     *
+     * @param oldRing ring the keys are stored on
+     * @param newRing ring the keys should be stored on
+     * @param joined slave that joined, told once all its ranges are copied
+     * @return handoff to run, null if no range gains a replica
+     */
+    public Handoff plan(RingSnapshot oldRing, RingSnapshot newRing, SlaveInfo joined) {
+        return start(new Handoff(oldRing, newRing, movedRanges(oldRing, newRing), joined, false));
+    }
+
+    /**
+     * Work out which ranges must be copied back to a slave of the ring that
+     * lost its data. The returned handoff must be published with the ring
+     * and then started with launch().
+     *
+     * @return handoff to run, null if none of the slave's ranges has another
+     *         replica
+     */
+    public Handoff planBootstrap(RingSnapshot ring, SlaveInfo slave) {
+        return start(new Handoff(ring, ring, bootstrapRanges(ring, slave), slave, true));
+    }
+
+    private Handoff start(Handoff handoff) {
+        if (handoff.ranges.isEmpty()) {
+            return null;
+        }
+        lock.lock();
+        try {
+            running = handoff;
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask a slave that registered again whether it lost its data, and if so
+     * copy its ranges back to it. Runs in a background thread, since the
+     * slave may not serve requests yet.
+     */
+    public void checkSync(final SlaveInfo slave) {
+        Thread thread = new Thread() {
+            public void run() {
+                long backoff = INITIAL_BACKOFF_MILLIS;
+                for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                    try {
+                        KVMessage resp = slave.request(new KVMessage("syncreq"), TPCMaster.TIMEOUT_MILLISECONDS);
+                        if (TPCMasterHandler.SYNC_NEEDED.equals(resp.getMessage())
+                                && !master.startBootstrap(slave)) {
+                            // Nothing to copy, e.g. the slave is the only replica
+                            syncDone(slave);
+                        }
+                        return;
+                    } catch (KVException e) {
+                        try {
+                            Thread.sleep(backoff);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                        backoff *= 2;
+                    }
+                }
+                Tracer.warn("rebalance.sync.failed", null, "slave " + slave.getSlaveID());
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tell a slave that all of its ranges were copied to it.
+     */
+    private void syncDone(SlaveInfo slave) {
+        try {
+            slave.request(new KVMessage("syncdone"), TPCMaster.TIMEOUT_MILLISECONDS);
+        } catch (KVException e) {
+            // The slave asks for a transfer again when it next registers
+        }
+    }
+
+    /**
+     * Start copying the ranges of a planned handoff in a background thread.
+     */
+    public void launch(Handoff handoff) {
+        Thread thread = new Thread(handoff);
+        thread.setDaemon(true);
+        handoff.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop copying, e.g. when the Master shuts down. The running handoff
+     * is left unfinished.
+     */
+    public void stop() {
+        Handoff handoff = getRunning();
+        if (handoff != null && handoff.thread != null) {
+            handoff.thread.interrupt();
+        }
+    }
+
+    /**
+     * Wait until no handoff is running.
+     */
+    public void awaitIdle() {
+        lock.lock();
+        try {
+            while (running != null) {
+                idle.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the running handoff, null if there is none
+     */
+    public Handoff getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished(Handoff handoff) {
+        lock.lock();
+        try {
+            if (running == handoff) {
+                running = null;
+            }
+            idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compare the replica sets of two rings over every arc between their
+     * combined virtual node positions.
+     *
+     * @return maximal ranges whose replica set gained slaves, in ring order
+     */
+    public static List<MovedRange> movedRanges(RingSnapshot oldRing, RingSnapshot newRing) {
+        List<MovedRange> ranges = new ArrayList<MovedRange>();
+        if (oldRing.isEmpty() || newRing.isEmpty()) {
+            return ranges;
+        }
+        long[] boundaries = boundaries(oldRing, newRing);
+        for (int i = 0; i < boundaries.length; i++) {
+            long start = boundaries[i];
+            long end = boundaries[(i + 1) % boundaries.length];
+            List<SlaveInfo> sources = oldRing.replicasFor(start);
+            List<SlaveInfo> targets = new ArrayList<SlaveInfo>(newRing.replicasFor(start));
+            targets.removeAll(sources);
+            if (!targets.isEmpty()) {
+                addRange(ranges, start, end, sources, targets);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return maximal ranges replicated by the slave and at least one other
+     *         slave, with those other slaves as sources, in ring order
+     */
+    public static List<MovedRange> bootstrapRanges(RingSnapshot ring, SlaveInfo slave) {
+        List<MovedRange> ranges = new ArrayList<MovedRange>();
+        if (ring.isEmpty()) {
+            return ranges;
+        }
+        long[] boundaries = boundaries(ring);
+        for (int i = 0; i < boundaries.length; i++) {
+            long start = boundaries[i];
+            long end = boundaries[(i + 1) % boundaries.length];
+            List<SlaveInfo> sources = new ArrayList<SlaveInfo>(ring.replicasFor(start));
+            if (sources.remove(slave) && !sources.isEmpty()) {
+                addRange(ranges, start, end, sources, Collections.singletonList(slave));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Replica sets are constant on [b(i), b(i+1)) for consecutive boundaries
+     * b, so each arc can be checked at its start.
+     *
+     * @return the distinct virtual node positions of the rings, in unsigned
+     *         order
+     */
+    static long[] boundaries(RingSnapshot... rings) {
+        int n = 0;
+        for (RingSnapshot ring : rings) {
+            n += ring.size();
+        }
+        long[] boundaries = new long[n];
+        n = 0;
+        for (RingSnapshot ring : rings) {
+            for (int i = 0; i < ring.size(); i++) {
+                boundaries[n++] = ring.positionAt(i) ^ Long.MIN_VALUE;
+            }
+        }
+        Arrays.sort(boundaries);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || boundaries[i] != boundaries[unique - 1]) {
+                boundaries[unique++] = boundaries[i];
+            }
+        }
+        long[] positions = new long[unique];
+        for (int i = 0; i < unique; i++) {
+            positions[i] = boundaries[i] ^ Long.MIN_VALUE;
+        }
+        return positions;
+    }
+
+    /**
+     * Append a range, merging it into the previous one when they are
+     * adjacent and move between the same slaves.
+     */
+    private static void addRange(List<MovedRange> ranges, long start, long end,
+            List<SlaveInfo> sources, List<SlaveInfo> targets) {
+        MovedRange last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last.end == start && last.sources.equals(sources) && last.targets.equals(targets)) {
+            ranges.set(ranges.size() - 1, new MovedRange(last.start, end, sources, targets));
+        } else {
+            ranges.add(new MovedRange(start, end, sources, targets));
+        }
+    }
+
+    /**
+     * Hash range [start, end) whose keys move, with their replicas on the old
+     * ring and the replicas they gain on the new one.
+     */
+    public static class MovedRange {
+        public final long start;
+        public final long end;
+        public final List<SlaveInfo> sources;
+        public final List<SlaveInfo> targets;
+
+        public MovedRange(long start, long end, List<SlaveInfo> sources, List<SlaveInfo> targets) {
+            this.start = start;
+            this.end = end;
+            this.sources = sources;
+            this.targets = Collections.unmodifiableList(targets);
+        }
+    }
+
+    /**
+     * Keys being moved from one ring to the next, or copied back to a slave
+     * of an unchanged ring.
+     */
+    public class Handoff implements Runnable {
+        public final RingSnapshot oldRing;
+        public final RingSnapshot newRing;
+        private final List<MovedRange> ranges;
+        // Slave told once all ranges were copied, null if none
+        private final SlaveInfo syncedSlave;
+        // Whether the keys are copied back to syncedSlave rather than moved
+        // between rings
+        private final boolean bootstrap;
+        // Keys already copied, or written through the new ring
+        private final Set<String> migrated = Collections.synchronizedSet(new HashSet<String>());
+        private volatile boolean complete = false;
+        private final AtomicLong keysMoved = new AtomicLong();
+        // Ranges that had to be copied again after failing
+        private int retriedRanges = 0;
+        // Characters copied so far and when copying started, for the rate limit
+        private long charsCopied = 0;
+        private long startedAt;
+        private volatile Thread thread = null;
+
+        Handoff(RingSnapshot oldRing, RingSnapshot newRing, List<MovedRange> ranges,
+                SlaveInfo syncedSlave, boolean bootstrap) {
+            this.oldRing = oldRing;
+            this.newRing = newRing;
+            this.ranges = ranges;
+            this.syncedSlave = syncedSlave;
+            this.bootstrap = bootstrap;
+        }
+
+        public List<MovedRange> getRanges() {
+            return Collections.unmodifiableList(ranges);
+        }
+
+        /**
+         * @return replicas of the key on the previous ring, other than the
+         *         slave being bootstrapped
+         */
+        public List<SlaveInfo> sourcesFor(String key) {
+            List<SlaveInfo> sources = oldRing.replicasFor(TPCMaster.hashKey(key));
+            if (bootstrap) {
+                sources = new ArrayList<SlaveInfo>(sources);
+                sources.remove(syncedSlave);
+            }
+            return sources;
+        }
+
+        /**
+         * @return replicas the key gains on the new ring, or the slave being
+         *         bootstrapped if it replicates the key
+         */
+        public List<SlaveInfo> targetsFor(String key) {
+            List<SlaveInfo> replicas = newRing.replicasFor(TPCMaster.hashKey(key));
+            if (bootstrap) {
+                return replicas.contains(syncedSlave) && replicas.size() > 1
+                    ? Collections.singletonList(syncedSlave) : Collections.<SlaveInfo>emptyList();
+            }
+            List<SlaveInfo> targets = new ArrayList<SlaveInfo>(replicas);
+            targets.removeAll(sourcesFor(key));
+            return targets;
+        }
+
+        /**
+         * @return whether the key may still be missing from its new replicas
+         */
+        public boolean needsMigration(String key) {
+            return !complete && !migrated.contains(key) && !targetsFor(key).isEmpty();
+        }
+
+        public void markMigrated(String key) {
+            if (migrated.add(key)) {
+                keysMoved.incrementAndGet();
+            }
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getKeysMoved() {
+            return keysMoved.get();
+        }
+
+        public void run() {
+            // Operations that read the ring before this handoff was published
+            // must finish first, or a batch could miss their writes
+            master.masterCache.awaitQuiescence();
+            startedAt = System.currentTimeMillis();
+            List<MovedRange> pending = ranges;
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            try {
+                while (true) {
+                    List<MovedRange> failed = new ArrayList<MovedRange>();
+                    for (MovedRange range : pending) {
+                        if (!copyRange(range)) {
+                            failed.add(range);
+                        }
+                    }
+                    if (failed.isEmpty()) {
+                        break;
+                    }
+                    // Keys of the failed ranges may only be on their previous
+                    // replicas, so the handoff is kept until they are copied
+                    retriedRanges += failed.size();
+                    Tracer.warn("rebalance.retry", null, failed.size() + " ranges");
+                    Thread.sleep(backoff);
+                    backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, backoff * 2);
+                    pending = failed;
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+                return;
+            }
+            complete = true;
+            master.finishHandoff(this);
+            Tracer.info(bootstrap ? "rebalance.bootstrap.done" : "rebalance.done", null,
+                (bootstrap ? "slave " + syncedSlave.getSlaveID() + ": " : "") + keysMoved.get() + " keys in "
+                    + ranges.size() + " ranges, " + retriedRanges + " ranges retried");
+            finished(this);
+            if (syncedSlave != null) {
+                syncDone(syncedSlave);
+            }
+        }
+
+        /**
+         * @return whether the whole range was copied
+         * @throws InterruptedException if the handoff was stopped
+         */
+        private boolean copyRange(MovedRange range) throws InterruptedException {
+            String cursor = null;
+            int attempts = 0;
+            long backoff = INITIAL_BACKOFF_MILLIS;
+            while (true) {
+                try {
+                    KVMessage batch = fetch(range, cursor);
+                    Map<String, String> entries = batch.getEntries();
+                    if (!entries.isEmpty()) {
+                        master.migrateBatch(this, entries);
+                    }
+                    // A failed batch is fetched again from after the last
+                    // key of the previous one
+                    long chars = 0;
+                    for (Map.Entry<String, String> entry : entries.entrySet()) {
+                        cursor = entry.getKey();
+                        chars += entry.getKey().length() + entry.getValue().length();
+                    }
+                    if (!batch.hasMore()) {
+                        return true;
+                    }
+                    attempts = 0;
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                    pace(chars);
+                } catch (KVException e) {
+                    if (++attempts >= MAX_ATTEMPTS) {
+                        Tracer.warn("rebalance.range.failed", null, e.getMsg().getMessage());
+                        return false;
+                    }
+                    Thread.sleep(backoff);
+                    backoff *= 2;
+                }
+            }
+        }
+
+        /**
+         * Sleep after a batch for at least throttleMillis, and long enough to
+         * keep the copy under maxCharsPerSecond since it started.
+         */
+        private void pace(long chars) throws InterruptedException {
+            charsCopied += chars;
+            long due = startedAt + charsCopied * 1000 / maxCharsPerSecond;
+            Thread.sleep(Math.max(throttleMillis, due - System.currentTimeMillis()));
+        }
+
+        /**
+         * Read the next batch of a range from a previous replica, trying
+         * replicas that are not suspected down first.
+         */
+        private KVMessage fetch(MovedRange range, String cursor) throws KVException {
+            KVMessage req = new KVMessage("rangereq");
+            req.setRange(range.start, range.end);
+            req.setLimit(batchSize);
+            req.setKey(cursor);
+            List<SlaveInfo> sources = new ArrayList<SlaveInfo>();
+            for (SlaveInfo source : range.sources) {
+                if (!source.isSuspected()) {
+                    sources.add(source);
+                }
+            }
+            for (SlaveInfo source : range.sources) {
+                if (source.isSuspected()) {
+                    sources.add(source);
+                }
+            }
+            KVException error = null;
+            for (SlaveInfo source : sources) {
+                try {
+                    KVMessage resp = source.request(req, TPCMaster.TIMEOUT_MILLISECONDS);
+                    if (resp.getEntries() != null) {
+                        return resp;
+                    }
+                    error = new KVException(resp);
+                } catch (KVException e) {
+                    error = e;
+                }
+            }
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Immutable view of the consistent hash ring used by the Master
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+/**
+ * Sorted array snapshot of all virtual nodes on the ring. A new snapshot is
+ * built whenever ring membership changes and published by swapping a single
+ * reference, so lookups never take a lock. The replica list for every virtual
+ * node is computed up front, which makes a lookup one binary search with no
+ * allocation. The returned lists are shared and unmodifiable. While keys are
+ * being moved after a membership change, the snapshot also carries the
+ * handoff from the previous ring, so that an operation sees the ring and the
+ * handoff state it must respect in one read.
+ */
+public final class RingSnapshot {
+
+    public static final RingSnapshot EMPTY =
+        new RingSnapshot(new long[0], new SlaveInfo[0], new ArrayList<List<SlaveInfo>>(), new ArrayList<SlaveInfo>(), null);
+
+    // Ring positions with the sign bit flipped, so that signed order of the
+    // array is the unsigned order of the positions
+    private final long[] positions;
+    private final SlaveInfo[] owners;
+    // replicaSets.get(i) are the distinct slaves clockwise from virtual node i
+    private final List<List<SlaveInfo>> replicaSets;
+    private final List<SlaveInfo> slaves;
+    // Keys still being moved onto this ring from the previous one, or null
+    private final Rebalancer.Handoff handoff;
+
+    private RingSnapshot(long[] positions, SlaveInfo[] owners,
+            List<List<SlaveInfo>> replicaSets, List<SlaveInfo> slaves, Rebalancer.Handoff handoff) {
+        this.positions = positions;
+        this.owners = owners;
+        this.replicaSets = replicaSets;
+        this.slaves = slaves;
+        this.handoff = handoff;
+    }
+
+    /**
+     * Build a snapshot for a set of slaves.
+     *
+     * @param slaves physical slaves on the ring
+     * @param virtualNodesPerSlave number of ring positions per slave
+     * @param replicationFactor number of distinct slaves per replica list
+     * @return new snapshot
+     */
+    public static RingSnapshot build(Collection<SlaveInfo> slaves, int virtualNodesPerSlave,
+            int replicationFactor) {
+        int size = slaves.size() * virtualNodesPerSlave;
+        long[] sortKeys = new long[size];
+        SlaveInfo[] byKey = new SlaveInfo[size];
+        int n = 0;
+        for (SlaveInfo slave : slaves) {
+            for (int i = 0; i < virtualNodesPerSlave; i++) {
+                sortKeys[n] = TPCMaster.virtualNodePosition(slave.slaveID, i) ^ Long.MIN_VALUE;
+                byKey[n] = slave;
+                n++;
+            }
+        }
+        // Sort positions and owners together through an index permutation
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        final long[] keys = sortKeys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long x = keys[a];
+                long y = keys[b];
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        long[] positions = new long[size];
+        SlaveInfo[] owners = new SlaveInfo[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = sortKeys[order[i]];
+            owners[i] = byKey[order[i]];
+        }
+
+        int wanted = Math.min(replicationFactor, slaves.size());
+        List<List<SlaveInfo>> replicaSets = new ArrayList<List<SlaveInfo>>(size);
+        for (int i = 0; i < size; i++) {
+            ArrayList<SlaveInfo> replicas = new ArrayList<SlaveInfo>(wanted);
+            for (int j = 0; j < size && replicas.size() < wanted; j++) {
+                SlaveInfo owner = owners[(i + j) % size];
+                if (!replicas.contains(owner)) {
+                    replicas.add(owner);
+                }
+            }
+            replicaSets.add(Collections.unmodifiableList(replicas));
+        }
+        return new RingSnapshot(positions, owners, replicaSets,
+            Collections.unmodifiableList(new ArrayList<SlaveInfo>(slaves)), null);
+    }
+
+    /**
+     * @param handoff handoff onto this ring, null once it is finished
+     * @return the same ring carrying the given handoff
+     */
+    public RingSnapshot withHandoff(Rebalancer.Handoff handoff) {
+        return new RingSnapshot(positions, owners, replicaSets, slaves, handoff);
+    }
+
+    /**
+     * @return keys being moved onto this ring, null if no handoff is running
+     */
+    public Rebalancer.Handoff getHandoff() {
+        return handoff;
+    }
+
+    /**
+     * Whether a ring position lies in [start, end), going clockwise and
+     * wrapping around at the end of the ring. A range with start equal to
+     * end is the whole ring.
+     */
+    public static boolean inRange(long position, long start, long end) {
+        long offset = position - start;
+        long length = end - start;
+        if (length == 0) {
+            return true;
+        }
+        return (offset ^ Long.MIN_VALUE) < (length ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Whether the range [innerStart, innerEnd) lies entirely within
+     * [start, end). Ranges wrap around the ring as in inRange().
+     */
+    public static boolean containsRange(long start, long end, long innerStart, long innerEnd) {
+        if (start == end) {
+            return true;
+        }
+        if (innerStart == innerEnd) {
+            return false;
+        }
+        long offset = innerStart - start;
+        long length = end - start;
+        long innerLength = innerEnd - innerStart;
+        return (offset ^ Long.MIN_VALUE) < (length ^ Long.MIN_VALUE)
+                && (innerLength ^ Long.MIN_VALUE) <= ((length - offset) ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Whether two ranges, wrapping around the ring as in inRange(), share
+     * at least one position.
+     */
+    public static boolean overlaps(long start, long end, long otherStart, long otherEnd) {
+        return inRange(otherStart, start, end) || inRange(start, otherStart, otherEnd);
+    }
+
+    /**
+     * @return number of virtual nodes on the ring
+     */
+    public int size() {
+        return positions.length;
+    }
+
+    public boolean isEmpty() {
+        return positions.length == 0;
+    }
+
+    /**
+     * @return all physical slaves on the ring
+     */
+    public List<SlaveInfo> getSlaves() {
+        return slaves;
+    }
+
+    /**
+     * @return unsigned ring position of the i-th virtual node
+     */
+    public long positionAt(int i) {
+        return positions[i] ^ Long.MIN_VALUE;
+    }
+
+    public SlaveInfo ownerAt(int i) {
+        return owners[i];
+    }
+
+    /**
+     * Index of the first virtual node strictly after a position, wrapping
+     * around at the end of the ring. The ring must not be empty.
+     */
+    public int indexAfter(long position) {
+        long key = position ^ Long.MIN_VALUE;
+        int lo = 0;
+        int hi = positions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == positions.length ? 0 : lo;
+    }
+
+    /**
+     * @param hash 64-bit hash of a key
+     * @return distinct replicas for the key, primary first; empty if the ring is empty
+     */
+    public List<SlaveInfo> replicasFor(long hash) {
+        if (positions.length == 0) {
+            return Collections.emptyList();
+        }
+        return replicaSets.get(indexAfter(hash));
+    }
+
+    /**
+     * @param hash 64-bit hash of a key
+     * @return primary replica for the key, null if the ring is empty
+     */
+    public SlaveInfo primaryFor(long hash) {
+        if (positions.length == 0) {
+            return null;
+        }
+        return owners[indexAfter(hash)];
+    }
+
+    /**
+     * @return the next slave other than the given one clockwise from the
+     *         given slave's first virtual node, or the slave itself if it
+     *         is alone on the ring
+     */
+    public SlaveInfo successorOf(SlaveInfo slave) {
+        if (positions.length == 0) {
+            return slave;
+        }
+        int start = indexAfter(TPCMaster.virtualNodePosition(slave.slaveID, 0));
+        for (int j = 0; j < positions.length; j++) {
+            SlaveInfo owner = owners[(start + j) % positions.length];
+            if (owner != slave) {
+                return owner;
+            }
+        }
+        return slave;
+    }
+}
@@ -0,0 +1,649 @@
+/**
+ * In-memory network with random delays, drops and crashes
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A transport whose connections are pairs of in-memory pipes, so that a
+ * master, its slaves and clients run in one process without touching the
+ * operating system's network. Install it with Transport.set() before any
+ * server starts.
+ *
+ * All endpoints share one simulated host: servers are told apart by port
+ * only, whatever host name a client connects to.
+ *
+ * Each write on a connection is delivered after a delay drawn between the
+ * minimum and maximum delay, in order. With the drop rate as probability a
+ * write is lost, and so is everything written after it in that direction,
+ * as when a TCP peer disappears without closing: the reader only notices
+ * through its timeout. A crashed port refuses connections and resets the
+ * ones it accepted. The delays and drops of the n-th connection depend
+ * only on the seed and n, but which connection is the n-th depends on
+ * thread scheduling, and delays are waited out on the real clock, so two
+ * runs with the same seed do not see the same network.
+ *
+ * Read timeouts can be cut to a bound far below the real ones of the code
+ * under test, in proportion to the simulated delays, so that a lost
+ * message costs milliseconds instead of seconds.
+ */
+public class SimulatedNetwork extends Transport {
+    // Ports handed out to servers listening on port 0
+    private static final int FIRST_EPHEMERAL_PORT = 40000;
+    private static final InetAddress SIMULATED_HOST;
+
+    static {
+        try {
+            SIMULATED_HOST = InetAddress.getByAddress("localhost", new byte[] { 127, 0, 0, 1 });
+        } catch (UnknownHostException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long seed;
+    private volatile int minDelayMillis = 0;
+    private volatile int maxDelayMillis = 0;
+    private volatile double dropRate = 0;
+    private volatile int maxTimeoutMillis = 0;
+
+    private final HashMap<Integer, Listener> listeners = new HashMap<Integer, Listener>();
+    // Server side of the connections accepted on each port
+    private final HashMap<Integer, ArrayList<Endpoint>> accepted = new HashMap<Integer, ArrayList<Endpoint>>();
+    private int nextPort = FIRST_EPHEMERAL_PORT;
+    private long connections = 0;
+    private long writes = 0;
+    private long drops = 0;
+    private boolean closed = false;
+
+    public SimulatedNetwork(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Delay every write by a time between min and max milliseconds.
+     */
+    public void setDelay(int minMillis, int maxMillis) {
+        this.minDelayMillis = minMillis;
+        this.maxDelayMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @param rate probability that a write is lost, and with it its
+     *        direction of the connection
+     */
+    public void setDropRate(double rate) {
+        this.dropRate = rate;
+    }
+
+    /**
+     * Cut every read timeout longer than the given one to it. Reads that
+     * wait forever still do.
+     *
+     * @param millis longest read timeout, 0 to keep the timeouts asked for
+     */
+    public void setMaxTimeout(int millis) {
+        this.maxTimeoutMillis = millis;
+    }
+
+    public synchronized Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        Listener listener = listeners.get(port);
+        if (closed || listener == null) {
+            throw new ConnectException("Connection refused: " + port);
+        }
+        connections++;
+        // Scrambled, as Randoms seeded with neighbouring numbers start alike
+        long connectionSeed = (seed * 1000003L + connections) * 0x9E3779B97F4A7C15L;
+        Pipe toServer = new Pipe(new Random(connectionSeed));
+        Pipe toClient = new Pipe(new Random(connectionSeed ^ 0x5DEECE66DL));
+        Endpoint client = new Endpoint(toClient, toServer, port, nextPort++);
+        Endpoint server = new Endpoint(toServer, toClient, client.localPort, port);
+        ArrayList<Endpoint> sockets = accepted.get(port);
+        if (sockets == null) {
+            sockets = new ArrayList<Endpoint>();
+            accepted.put(port, sockets);
+        } else if (sockets.size() % 64 == 0) {
+            // Forget connections both sides are done with
+            Iterator<Endpoint> it = sockets.iterator();
+            while (it.hasNext()) {
+                if (it.next().isClosed()) {
+                    it.remove();
+                }
+            }
+        }
+        sockets.add(server);
+        listener.enqueue(server);
+        return client;
+    }
+
+    public synchronized ServerSocket listen(int port) throws IOException {
+        if (port == 0) {
+            port = nextPort++;
+        }
+        if (closed || listeners.containsKey(port)) {
+            throw new BindException("Address already in use: " + port);
+        }
+        Listener listener = new Listener(port);
+        listeners.put(port, listener);
+        return listener;
+    }
+
+    /**
+     * @return whether a server listens on the port
+     */
+    public synchronized boolean isListening(int port) {
+        return listeners.containsKey(port);
+    }
+
+    /**
+     * Wait until a server listens on the port.
+     *
+     * @return false if none did within the timeout
+     */
+    public boolean awaitListening(int port, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isListening(port)) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Stop listening on the port and reset every connection accepted there,
+     * as if the server's process died. The server's threads keep running
+     * but see their sockets fail.
+     */
+    public void crash(int port) {
+        Listener listener;
+        ArrayList<Endpoint> sockets;
+        synchronized (this) {
+            listener = listeners.get(port);
+            sockets = accepted.remove(port);
+        }
+        if (listener != null) {
+            listener.close();
+        }
+        if (sockets != null) {
+            for (Endpoint socket : sockets) {
+                socket.reset();
+            }
+        }
+    }
+
+    /**
+     * Crash every port and refuse any further connection.
+     */
+    public void close() {
+        ArrayList<Integer> ports;
+        synchronized (this) {
+            closed = true;
+            ports = new ArrayList<Integer>(listeners.keySet());
+            ports.addAll(accepted.keySet());
+        }
+        for (int port : ports) {
+            crash(port);
+        }
+    }
+
+    public synchronized long getConnections() {
+        return connections;
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return whether the next write of a pipe should be lost
+     */
+    private synchronized boolean drop(Random random) {
+        writes++;
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            drops++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void unlisten(Listener listener) {
+        if (listeners.get(listener.port) == listener) {
+            listeners.remove(listener.port);
+        }
+    }
+
+    /**
+     * Bytes written in one direction of a connection, each write held back
+     * until its delivery time.
+     */
+    private class Pipe {
+        private final Random random;
+        private final Lock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final LinkedList<Segment> segments = new LinkedList<Segment>();
+        private long lastDelivery = 0;
+        // The writer shut its side down; the reader sees end of file once
+        // the segments are read
+        private boolean eof = false;
+        // The reader closed its side, or the connection was reset
+        private boolean readerGone = false;
+        private boolean reset = false;
+        // A write was lost; nothing more is delivered
+        private boolean stalled = false;
+
+        Pipe(Random random) {
+            this.random = random;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                if (reset || readerGone) {
+                    throw new SocketException("Connection reset");
+                }
+                if (eof) {
+                    throw new SocketException("Socket output is shutdown");
+                }
+                if (stalled || len == 0) {
+                    return;
+                }
+                if (drop(random)) {
+                    stalled = true;
+                    return;
+                }
+                int delay = minDelayMillis + (maxDelayMillis > minDelayMillis
+                    ? random.nextInt(maxDelayMillis - minDelayMillis + 1) : 0);
+                // Segments arrive in the order they were written
+                lastDelivery = Math.max(lastDelivery, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+                byte[] data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+                segments.add(new Segment(data, lastDelivery));
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param timeoutMillis 0 to wait forever
+         */
+        int read(byte[] b, int off, int len, int timeoutMillis) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (true) {
+                    if (reset) {
+                        throw new SocketException("Connection reset");
+                    }
+                    long now = System.nanoTime();
+                    long wait;
+                    if (!segments.isEmpty()) {
+                        Segment head = segments.getFirst();
+                        if (head.deliverAt <= now) {
+                            int n = Math.min(len, head.data.length - head.offset);
+                            System.arraycopy(head.data, head.offset, b, off, n);
+                            head.offset += n;
+                            if (head.offset == head.data.length) {
+                                segments.removeFirst();
+                            }
+                            return n;
+                        }
+                        wait = head.deliverAt - now;
+                    } else if (eof) {
+                        return -1;
+                    } else {
+                        wait = Long.MAX_VALUE;
+                    }
+                    if (timeoutMillis > 0) {
+                        if (now >= deadline) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        wait = Math.min(wait, deadline - now);
+                    }
+                    try {
+                        if (wait == Long.MAX_VALUE) {
+                            changed.await();
+                        } else {
+                            changed.awaitNanos(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Read interrupted");
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void shutdownWriter() {
+            lock.lock();
+            try {
+                eof = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void shutdownReader() {
+            lock.lock();
+            try {
+                readerGone = true;
+                segments.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void reset() {
+            lock.lock();
+            try {
+                reset = true;
+                segments.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Segment {
+        final byte[] data;
+        final long deliverAt;
+        int offset = 0;
+
+        Segment(byte[] data, long deliverAt) {
+            this.data = data;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    /**
+     * One end of a simulated connection.
+     */
+    private class Endpoint extends Socket {
+        private final Pipe in;
+        private final Pipe out;
+        private final int remotePort;
+        private final int localPort;
+        private volatile int timeoutMillis = 0;
+        private volatile boolean closed = false;
+        private volatile boolean inputShutdown = false;
+        private volatile boolean outputShutdown = false;
+
+        Endpoint(Pipe in, Pipe out, int remotePort, int localPort) {
+            this.in = in;
+            this.out = out;
+            this.remotePort = remotePort;
+            this.localPort = localPort;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            return new InputStream() {
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    int n = read(one, 0, 1);
+                    return n == -1 ? -1 : one[0] & 0xFF;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    if (inputShutdown) {
+                        return -1;
+                    }
+                    int timeout = timeoutMillis;
+                    if (maxTimeoutMillis > 0 && timeout > maxTimeoutMillis) {
+                        timeout = maxTimeoutMillis;
+                    }
+                    return in.read(b, off, len, timeout);
+                }
+
+                public void close() throws IOException {
+                    Endpoint.this.close();
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            return new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    out.write(b, off, len);
+                }
+
+                public void close() throws IOException {
+                    Endpoint.this.close();
+                }
+            };
+        }
+
+        void reset() {
+            in.reset();
+            out.reset();
+        }
+
+        public void close() {
+            closed = true;
+            out.shutdownWriter();
+            in.shutdownReader();
+        }
+
+        public void shutdownInput() {
+            inputShutdown = true;
+        }
+
+        public void shutdownOutput() {
+            outputShutdown = true;
+            out.shutdownWriter();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public boolean isConnected() {
+            return true;
+        }
+
+        public boolean isBound() {
+            return true;
+        }
+
+        public boolean isInputShutdown() {
+            return inputShutdown;
+        }
+
+        public boolean isOutputShutdown() {
+            return outputShutdown;
+        }
+
+        public void setSoTimeout(int timeout) throws SocketException {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            timeoutMillis = timeout;
+        }
+
+        public int getSoTimeout() {
+            return timeoutMillis;
+        }
+
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        public void setKeepAlive(boolean on) {
+        }
+
+        public void connect(SocketAddress endpoint) throws IOException {
+            throw new SocketException("Already connected");
+        }
+
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            throw new SocketException("Already connected");
+        }
+
+        public InetAddress getInetAddress() {
+            return SIMULATED_HOST;
+        }
+
+        public InetAddress getLocalAddress() {
+            return SIMULATED_HOST;
+        }
+
+        public int getPort() {
+            return remotePort;
+        }
+
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        public String toString() {
+            return "SimulatedSocket[port=" + remotePort + ",localport=" + localPort + "]";
+        }
+    }
+
+    /**
+     * Server side of a port: connections wait in a queue until accepted.
+     */
+    private class Listener extends ServerSocket {
+        private final int port;
+        private final Lock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final LinkedList<Endpoint> backlog = new LinkedList<Endpoint>();
+        private volatile int timeoutMillis = 0;
+        private volatile boolean closed = false;
+
+        Listener(int port) throws IOException {
+            this.port = port;
+        }
+
+        void enqueue(Endpoint socket) {
+            lock.lock();
+            try {
+                backlog.add(socket);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Socket accept() throws IOException {
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (backlog.isEmpty()) {
+                    if (closed) {
+                        throw new SocketException("Socket is closed");
+                    }
+                    try {
+                        if (timeoutMillis == 0) {
+                            changed.await();
+                        } else {
+                            long wait = deadline - System.nanoTime();
+                            if (wait <= 0) {
+                                throw new SocketTimeoutException("Accept timed out");
+                            }
+                            changed.awaitNanos(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Accept interrupted");
+                    }
+                }
+                return backlog.removeFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void close() {
+            unlisten(this);
+            lock.lock();
+            try {
+                closed = true;
+                for (Endpoint pending : backlog) {
+                    pending.reset();
+                }
+                backlog.clear();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public boolean isBound() {
+            return true;
+        }
+
+        public int getLocalPort() {
+            return port;
+        }
+
+        public InetAddress getInetAddress() {
+            return SIMULATED_HOST;
+        }
+
+        public void setSoTimeout(int timeout) {
+            timeoutMillis = timeout;
+        }
+
+        public int getSoTimeout() {
+            return timeoutMillis;
+        }
+
+        public String toString() {
+            return "SimulatedServerSocket[port=" + port + "]";
+        }
+    }
+}
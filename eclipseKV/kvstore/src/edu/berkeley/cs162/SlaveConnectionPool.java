@@ -0,0 +1,351 @@
+/**
+ * Pool of persistent connections from the Master to one SlaveServer
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps idle framed connections to a SlaveServer so that 2PC phases, retries
+ * and gets do not each pay for a TCP handshake and an ephemeral port. A
+ * connection is used by one request at a time; every request frame carries a
+ * fresh frame id which the slave echoes back, so a late response to an
+ * earlier (timed out) request can never be mistaken for the current one.
+ *
+ * The slave serves each open connection with a thread of its own for as long
+ * as the connection stays open, and queues connections beyond
+ * MAX_OPEN_CONNECTIONS until one closes. So that a request never waits there,
+ * where its timeout is already running, no more connections than that are
+ * opened; a request that finds them all in use waits for one to be released.
+ */
+public class SlaveConnectionPool {
+    // Maximum number of idle connections kept open to the slave
+    public static final int MAX_IDLE_CONNECTIONS = 4;
+    // Maximum number of connections open to the slave, idle or in use
+    public static final int MAX_OPEN_CONNECTIONS = TPCMasterHandler.MAX_POOLED_CONNECTIONS;
+    // Idle connections older than this are probed before being reused
+    public static final long HEALTH_CHECK_IDLE_MILLIS = 1000;
+    // Idle connections older than this are closed instead of being reused
+    public static final long MAX_IDLE_MILLIS = 60000;
+
+    private static final String CONNECTION_CLOSED = "Network Error: Connection closed";
+
+    private final String hostName;
+    private final int port;
+    private final int timeoutMillis;
+
+    // Most recently released connection first, so the hot ones stay warm
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+    private final Lock idleLock = new ReentrantLock();
+    // Signalled when a connection is released or closed
+    private final Condition released = idleLock.newCondition();
+    // Connections open or being opened, idle or in use
+    private int open = 0;
+    private final AtomicLong nextFrameId = new AtomicLong();
+    private boolean closed = false;
+
+    /**
+     * @param hostName host the slave is listening on
+     * @param port port the slave is listening on
+     * @param timeoutMillis connect timeout for new connections
+     */
+    public SlaveConnectionPool(String hostName, int port, int timeoutMillis) {
+        this.hostName = hostName;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Take an idle healthy connection, or open a new one if there is none.
+     * If MAX_OPEN_CONNECTIONS are in use, waits until one is released.
+     * The caller must hand the connection back with {@link #release}.
+     *
+     * @return connection reserved for the caller
+     * @throws KVException if a new connection cannot be established
+     */
+    public Connection acquire() throws KVException {
+        while (true) {
+            Connection conn = null;
+            idleLock.lock();
+            try {
+                while ((conn = idle.poll()) == null && open == MAX_OPEN_CONNECTIONS) {
+                    awaitRelease();
+                }
+                if (conn == null) {
+                    open++;
+                }
+            } finally {
+                idleLock.unlock();
+            }
+            if (conn == null) {
+                return connect();
+            }
+            if (conn.isHealthy()) {
+                conn.reused = true;
+                return conn;
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * Return a connection to the pool. Connections that saw an error or are
+     * in excess of MAX_IDLE_CONNECTIONS are closed instead.
+     *
+     * @param conn connection obtained from {@link #acquire}
+     */
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        if (!conn.broken) {
+            conn.lastUsed = System.currentTimeMillis();
+            idleLock.lock();
+            try {
+                if (!closed && idle.size() < MAX_IDLE_CONNECTIONS) {
+                    idle.addFirst(conn);
+                    released.signal();
+                    return;
+                }
+            } finally {
+                idleLock.unlock();
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Send a message and wait for its response on a pooled connection. If a
+     * reused connection turns out to have been closed by the slave, the
+     * request is retried once on a new connection.
+     *
+     * @param msg request to send
+     * @param timeout read timeout for the response
+     * @return response from the slave
+     * @throws KVException on connection failure or timeout
+     */
+    public KVMessage request(KVMessage msg, int timeout) throws KVException {
+        Connection conn = acquire();
+        try {
+            return conn.sendAndReceive(msg, timeout);
+        } catch (KVException e) {
+            if (!conn.reused || !CONNECTION_CLOSED.equals(e.getMsg().getMessage())) {
+                throw e;
+            }
+        } finally {
+            release(conn);
+        }
+        idleLock.lock();
+        try {
+            while (open == MAX_OPEN_CONNECTIONS) {
+                awaitRelease();
+            }
+            open++;
+        } finally {
+            idleLock.unlock();
+        }
+        conn = connect();
+        try {
+            return conn.sendAndReceive(msg, timeout);
+        } finally {
+            release(conn);
+        }
+    }
+
+    /**
+     * Close all idle connections. Connections currently in use are closed
+     * when they are released.
+     */
+    public void close() {
+        idleLock.lock();
+        try {
+            closed = true;
+            for (Connection conn : idle) {
+                conn.close();
+            }
+            idle.clear();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for a connection to be released or closed. The caller holds
+     * idleLock.
+     */
+    private void awaitRelease() throws KVException {
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            throw new KVException(new KVMessage("resp", "Unknown Error: Interrupted"));
+        }
+    }
+
+    /**
+     * A connection was closed, or could not be opened: let a waiting request
+     * open another one.
+     */
+    private void connectionClosed() {
+        idleLock.lock();
+        try {
+            open--;
+            released.signal();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    /**
+     * Open a connection. The caller counted it in open beforehand.
+     */
+    private Connection connect() throws KVException {
+        Socket socket = null;
+        try {
+            socket = Transport.get().connect(hostName, port, timeoutMillis);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing left to clean up
+                }
+            }
+            connectionClosed();
+            throw new KVException(new KVMessage("resp", "Unknown Network Error: Unable to create socket"));
+        }
+    }
+
+    /**
+     * One persistent connection to the slave.
+     */
+    public class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private long lastUsed = System.currentTimeMillis();
+        private long pendingFrameId = -1;
+        // Set after any error; the connection is then closed on release
+        private boolean broken = false;
+        // Whether this connection served an earlier request
+        private boolean reused = false;
+        private boolean isClosed = false;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Send a request frame. Only one request may be outstanding.
+         *
+         * @param msg request to send
+         * @throws KVException if the frame cannot be written
+         */
+        public void send(KVMessage msg) throws KVException {
+            pendingFrameId = nextFrameId.incrementAndGet();
+            try {
+                msg.sendFramedMessage(out, pendingFrameId);
+            } catch (KVException e) {
+                // Nothing was written for a message too large to send
+                if (!KVMessage.OVERSIZED_MESSAGE.equals(e.getMsg().getMessage())) {
+                    broken = true;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Wait for the response to the last request sent.
+         *
+         * @param timeout read timeout in milliseconds
+         * @return response from the slave
+         * @throws KVException "Timeout Error: Could not receive data" on
+         *             timeout, or the error raised while parsing the frame
+         */
+        public KVMessage receive(int timeout) throws KVException {
+            try {
+                socket.setSoTimeout(timeout);
+                KVMessage resp = new KVMessage(in);
+                if (resp.getFrameId() != pendingFrameId) {
+                    throw new KVException(new KVMessage("resp", "Message format incorrect"));
+                }
+                return resp;
+            } catch (IOException e) {
+                broken = true;
+                throw new KVException(new KVMessage("resp", "Setting timeout on socket exception"));
+            } catch (KVException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Hand this connection back to the pool it came from.
+         */
+        public void release() {
+            SlaveConnectionPool.this.release(this);
+        }
+
+        public KVMessage sendAndReceive(KVMessage msg, int timeout) throws KVException {
+            send(msg);
+            return receive(timeout);
+        }
+
+        /**
+         * Health check for idle connections: recently used ones are assumed
+         * fine, older ones are probed with a 1 ms read which must time out.
+         * A read returning end of file or data means the slave closed the
+         * connection or the stream is out of sync.
+         */
+        boolean isHealthy() {
+            if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown()) {
+                return false;
+            }
+            long idleFor = System.currentTimeMillis() - lastUsed;
+            if (idleFor > MAX_IDLE_MILLIS) {
+                return false;
+            }
+            if (idleFor < HEALTH_CHECK_IDLE_MILLIS) {
+                return true;
+            }
+            try {
+                socket.setSoTimeout(1);
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+            connectionClosed();
+        }
+    }
+}
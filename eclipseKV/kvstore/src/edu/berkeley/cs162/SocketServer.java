@@ -73,11 +73,11 @@ public class SocketServer {
     		port = server.getLocalPort();
     	}*/
     	if (port == -1){
-    		server = new ServerSocket(0);
+    		server = Transport.get().listen(0);
     		port = server.getLocalPort();
     	}
     	else 
-    		server = new ServerSocket(port);
+    		server = Transport.get().listen(port);
     }
 
     /**
@@ -91,7 +91,7 @@ public class SocketServer {
                 Socket client = server.accept();
                 handler.handle(client);
             } catch (IOException e){
-                System.out.println(e);
+                Tracer.warn("server.error", null, e);
                 stop();
             }
         }
@@ -111,13 +111,13 @@ public class SocketServer {
      */
     public void stop() {
         isActive = false;
-        System.out.println("Server stop called");
     }
 
     public void closeSocket() {
     	isActive = false;
         try {
-            server.close();
+            if (server != null)
+                server.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
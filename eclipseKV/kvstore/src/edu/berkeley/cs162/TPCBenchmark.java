@@ -0,0 +1,113 @@
+/**
+ * Throughput benchmark for concurrent 2PC writes
+ */
+package edu.berkeley.cs162;
+
+import java.net.InetAddress;
+
+/**
+ * Starts a TPCMaster and its slaves in one process and measures put
+ * throughput through performTPCOperation, first from a single thread and
+ * then from several threads writing independent keys. Every put pays a
+ * simulated store delay of one second on each replica, so the ratio between the two runs
+ * shows how many transactions the slaves keep in flight at once.
+ *
+ * USAGE: TPCBenchmark [threads] [putsPerThread] [numSlaves]
+ */
+public class TPCBenchmark {
+
+    static TPCMaster master = null;
+
+    // Longest time a slave's write-behind buffer holds a write
+    static final long WRITE_BEHIND_FLUSH_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int putsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int numSlaves = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        AutoGrader.setStoreDelay(1000);
+        master = new TPCMaster(numSlaves);
+        master.run();
+        // Let the registration server bind before slaves register
+        Thread.sleep(500);
+        String hostName = InetAddress.getLocalHost().getHostAddress();
+        for (int i = 0; i < numSlaves; i++) {
+            startSlave(1000L * (i + 1), hostName);
+        }
+
+        double sequential = run("sequential", 1, putsPerThread);
+        double concurrent = run("concurrent", threads, putsPerThread);
+        System.out.println(String.format("Speedup with %d threads: %.2fx", threads, concurrent / sequential));
+        System.exit(0);
+    }
+
+    static KVServer startSlave(long slaveID, String hostName) throws Exception {
+        return startSlave(slaveID, hostName, 0);
+    }
+
+    /**
+     * @param maxDirty size of the slave's write-behind buffer, 0 to write
+     *        straight to the store
+     */
+    static KVServer startSlave(long slaveID, String hostName, int maxDirty) throws Exception {
+        KVServer keyServer = new KVServer(100, 10);
+        keyServer.setWriteBehind(maxDirty, WRITE_BEHIND_FLUSH_MILLIS);
+        final SocketServer server = new SocketServer(hostName);
+        TPCMasterHandler handler = new TPCMasterHandler(keyServer, slaveID);
+        server.addHandler(handler);
+        server.connect();
+        String logPath = System.getProperty("java.io.tmpdir") + "/bench-" + slaveID + "-" + System.nanoTime();
+        TPCLog tpcLog = new TPCLog(logPath, keyServer);
+        tpcLog.rebuildKeyServer();
+        handler.setTPCLog(tpcLog);
+        new Thread() {
+            public void run() {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+        handler.registerWithMaster(hostName, server);
+        return keyServer;
+    }
+
+    /**
+     * @return puts per second
+     */
+    static double run(final String name, int threads, final int putsPerThread) throws Exception {
+        Thread[] workers = new Thread[threads];
+        final int[] failures = new int[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < putsPerThread; i++) {
+                        try {
+                            KVMessage put = new KVMessage("putreq");
+                            put.setKey(name + "-" + id + "-" + i);
+                            put.setValue("value" + i);
+                            master.performTPCOperation(put, true);
+                        } catch (KVException e) {
+                            failures[id]++;
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        int failed = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            failed += failures[t];
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double throughput = (threads * putsPerThread - failed) / seconds;
+        System.out.println(String.format("%s: %d threads, %d puts, %d failed, %.2f s, %.2f puts/s",
+                name, threads, threads * putsPerThread, failed, seconds, throughput));
+        return throughput;
+    }
+}
@@ -35,6 +35,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class TPCLog {
 	
@@ -47,6 +50,14 @@ public class TPCLog {
 	private final String ABORT_MESSAGE = "abort";
 	private final String COMMIT_MESSAGE = "commit";
 	private final String ACK_MESSAGE = "ack";
+	private final String CHUNK_PUT_MESSAGE = "chunkput";
+	private final String SYNC_MESSAGE = "syncreq";
+	private final String SYNC_DONE_MESSAGE = "syncdone";
+	private final String MPUT_MESSAGE = "mputreq";
+	private final String MDEL_MESSAGE = "mdelreq";
+	private final String CHAIN_PUT_MESSAGE = "chainput";
+	private final String CHAIN_DEL_MESSAGE = "chaindel";
+	private final String QUORUM_PUT_MESSAGE = "quorumput";
 
     // Path to log file
     public String logPath = null;
@@ -57,12 +68,12 @@ public class TPCLog {
     public ArrayList<KVMessage> entries = null;
 
     /*
-     * Keeps track of the interrupted 2PC operation if there is one.
-     * There can be at most one, ie., when the last 2PC operation before
-     * crashing was in READY state. This should be set during a call to
-     * rebuildKeyServer() during recovery.
+     * Keeps track of the interrupted 2PC operations, by tpcOpId in log order.
+     * These are the operations the slave was in READY state for when it
+     * crashed; several can be in flight at once. This should be set during a
+     * call to rebuildKeyServer() during recovery.
      */
-    public KVMessage interruptedTpcOperation = null;
+    public LinkedHashMap<String, KVMessage> interruptedTpcOperations = new LinkedHashMap<String, KVMessage>();
 
     /**
      *
@@ -90,7 +101,7 @@ public class TPCLog {
      *
      * @param entry KVMessage to write to the log
      */
-    public void appendAndFlush(KVMessage entry) {
+    public synchronized void appendAndFlush(KVMessage entry) {
     	loadFromDisk();
     	entries.add(entry);
     	flushToDisk();
@@ -130,6 +141,7 @@ public class TPCLog {
     public void flushToDisk() {
         ObjectOutputStream outputStream = null;
 
+        Instrumentation.get().delay(Instrumentation.Point.LOG_FLUSH);
         try {
             outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
             outputStream.writeObject(entries);
@@ -153,45 +165,145 @@ public class TPCLog {
     /**
      * Load log and rebuild KVServer by iterating over log entries. You do not
      * need to restore the previous cache state (ie. ignore GETS).
-     * Set interruptedTpcOperation, if there is one (ie., slave crashed
-     * in the READY state).
+     * Set interruptedTpcOperations, if there are any (ie., slave crashed
+     * in the READY state). Decisions are matched with their phase-1 entry by
+     * tpcOpId; a decision logged without one applies to the latest entry.
+     * The parts of a batched put logged as several entries are joined.
+     * Chunks received during a state transfer, chain writes and quorum writes
+     * are applied as they come.
      * @throws KVException if an error occurs in KVServer (we do not expect any)
      */
-    public void rebuildKeyServer() throws KVException {
+    public synchronized void rebuildKeyServer() throws KVException {
         loadFromDisk();
+        interruptedTpcOperations.clear();
         for(KVMessage entry: entries) {
-        	if (entry.getMsgType() != GET_MESSAGE) {
-        		if (entry.getMsgType() == COMMIT_MESSAGE && interruptedTpcOperation != null) {
-        			if (interruptedTpcOperation.getMsgType() == DEL_MESSAGE) {
-        				kvServer.del(interruptedTpcOperation.getKey());
-        			} else if (interruptedTpcOperation.getMsgType() == PUT_MESSAGE) {
-        				kvServer.put(interruptedTpcOperation.getKey(), interruptedTpcOperation.getValue());
+        	String type = entry.getMsgType();
+        	if (type.equals(DEL_MESSAGE) || type.equals(PUT_MESSAGE)
+        			|| type.equals(MPUT_MESSAGE) || type.equals(MDEL_MESSAGE)) {
+        		KVMessage earlier = interruptedTpcOperations.get(entry.getTpcOpId());
+        		if (earlier != null && isPartOf(entry, earlier)) {
+        			entry = joinParts(earlier, entry);
+        		}
+        		interruptedTpcOperations.put(entry.getTpcOpId(), entry);
+        	} else if (type.equals(CHUNK_PUT_MESSAGE)) {
+        		kvServer.putBatch(entry.getEntries());
+        	} else if (type.equals(CHAIN_PUT_MESSAGE)) {
+        		kvServer.put(entry.getKey(), entry.getValue());
+        	} else if (type.equals(QUORUM_PUT_MESSAGE)) {
+        		kvServer.putIfNewer(entry.getKey(), entry.getValue());
+        	} else if (type.equals(CHAIN_DEL_MESSAGE)) {
+        		try {
+        			kvServer.del(entry.getKey());
+        		} catch (KVException e) {
+        			// Key was already gone when the delete was replayed
+        		}
+        	} else if (type.equals(COMMIT_MESSAGE) || type.equals(ABORT_MESSAGE)) {
+        		KVMessage operation = removeInterrupted(entry.getTpcOpId());
+        		if (operation == null || type.equals(ABORT_MESSAGE)) {
+        			continue;
+        		}
+        		if (operation.getMsgType().equals(MPUT_MESSAGE)) {
+        			kvServer.putBatch(operation.getEntries());
+        		} else if (operation.getMsgType().equals(MDEL_MESSAGE)) {
+        			kvServer.delBatch(operation.getKeys());
+        		} else if (operation.getMsgType().equals(DEL_MESSAGE)) {
+        			try {
+        				kvServer.del(operation.getKey());
+        			} catch (KVException e) {
+        				// Key was already gone when the delete was replayed
         			}
-        			interruptedTpcOperation = null;
-        		} else if (entry.getMsgType() == ABORT_MESSAGE) {
-        			interruptedTpcOperation = null;
-        		} else if (entry.getMsgType() == DEL_MESSAGE || entry.getMsgType() == PUT_MESSAGE) {
-        			interruptedTpcOperation = entry;
+        		} else {
+        			kvServer.put(operation.getKey(), operation.getValue());
         		}
         	}
         }
     }
 
     /**
+     * A slave needs a state transfer when it starts with no log at all, e.g.
+     * after losing its disk, and until the transfer it was told about with a
+     * sync request has been completed by a sync done entry.
      *
-     * @return Interrupted 2PC operation, if any
+     * @return True if this slave's data must be copied from its peers
      */
-    public KVMessage getInterruptedTpcOperation() {
-        KVMessage logEntry = interruptedTpcOperation;
-        interruptedTpcOperation = null;
+    public synchronized boolean isSyncNeeded() {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            String type = entries.get(i).getMsgType();
+            if (type.equals(SYNC_MESSAGE)) {
+                return true;
+            } else if (type.equals(SYNC_DONE_MESSAGE)) {
+                return false;
+            }
+        }
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return whether a phase-1 request is a further part of a prepared
+     *         batched put, which the master splits when it does not fit in
+     *         one frame
+     */
+    boolean isPartOf(KVMessage part, KVMessage prepared) {
+        return part.getMsgType().equals(MPUT_MESSAGE) && prepared.getMsgType().equals(MPUT_MESSAGE);
+    }
+
+    /**
+     * @return one batched put with the pairs of both parts, and their tpcOpId
+     */
+    KVMessage joinParts(KVMessage prepared, KVMessage part) throws KVException {
+        KVMessage joined = new KVMessage(prepared.getMsgType());
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(prepared.getEntries());
+        entries.putAll(part.getEntries());
+        joined.setEntries(entries);
+        joined.setTpcOpId(prepared.getTpcOpId());
+        return joined;
+    }
+
+    private KVMessage removeInterrupted(String tpcOpId) {
+        if (tpcOpId != null) {
+            return interruptedTpcOperations.remove(tpcOpId);
+        }
+        KVMessage last = null;
+        Iterator<KVMessage> it = interruptedTpcOperations.values().iterator();
+        while (it.hasNext()) {
+            last = it.next();
+        }
+        if (last != null) {
+            interruptedTpcOperations.remove(last.getTpcOpId());
+        }
+        return last;
+    }
+
+    /**
+     *
+     * @return Oldest interrupted 2PC operation, if any
+     */
+    public synchronized KVMessage getInterruptedTpcOperation() {
+        Iterator<KVMessage> it = interruptedTpcOperations.values().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        KVMessage logEntry = it.next();
+        it.remove();
         return logEntry;
     }
 
+    /**
+     * Take all interrupted 2PC operations, oldest first.
+     *
+     * @return interrupted operations, empty if there are none
+     */
+    public synchronized List<KVMessage> getInterruptedTpcOperations() {
+        List<KVMessage> operations = new ArrayList<KVMessage>(interruptedTpcOperations.values());
+        interruptedTpcOperations.clear();
+        return operations;
+    }
+
     /**
      *
      * @return True if TPCLog contains an interrupted 2PC operation
      */
-    public boolean hasInterruptedTpcOperation() {
-        return interruptedTpcOperation != null;
+    public synchronized boolean hasInterruptedTpcOperation() {
+        return !interruptedTpcOperations.isEmpty();
     }
 }
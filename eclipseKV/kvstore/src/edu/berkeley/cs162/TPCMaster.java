@@ -32,13 +32,21 @@ package edu.berkeley.cs162;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayDeque;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -54,10 +62,64 @@ public class TPCMaster {
 	private final String READY = "ready";
 	private final String COMMIT = "commit";
 	 private final String IGNORE_NEXT = "ignoreNext";
+	private final String HEARTBEAT = "heartbeat";
+	private final String CHUNK_PUT = "chunkput";
+	private final String SUCCESS = "Success";
+	private final String SCAN = "scanreq";
+	private final String MGET = "mgetreq";
+	private final String MPUT = "mputreq";
+	private final String MDEL = "mdelreq";
+	private final String CAS = "casreq";
+	private final String INCR = "incrreq";
+	private final String CHAIN_PUT = "chainput";
+	private final String CHAIN_DEL = "chaindel";
+	private final String QUORUM_PUT = "quorumput";
+	// What a slave answers a get of a key it does not have with
+	private final String KEY_NOT_HERE = "KEY NOT HERE";
 
 	// Timeout value used during 2PC operations
 	public static final int TIMEOUT_MILLISECONDS = 5000;
 
+	// Default number of distinct slaves each key is stored on
+	public static final int DEFAULT_REPLICATION_FACTOR = 2;
+
+	// Default number of positions each slave takes on the hash ring
+	public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+	// Hedge delay used until a replica has enough latency samples
+	public static final int DEFAULT_HEDGE_DELAY_MILLIS = 50;
+
+	// Lower bound on the hedge delay, so fast replicas are not hedged constantly
+	public static final int MIN_HEDGE_DELAY_MILLIS = 2;
+
+	// Time between heartbeats sent to each slave
+	public static final int HEARTBEAT_INTERVAL_MILLIS = 500;
+
+	// Time a slave has to answer a heartbeat
+	public static final int HEARTBEAT_TIMEOUT_MILLIS = 1000;
+
+	// Consecutive failed requests after which a slave is suspected down
+	public static final int SUSPECT_AFTER_MISSES = 3;
+
+	// Threads available for issuing (possibly hedged) reads to slaves
+	private static final int READ_THREADS = 16;
+
+	// Largest number of keys in one batched get, put or del
+	public static final int MAX_BATCH_KEYS = 1000;
+
+	// Value characters in one part of a batched put sent to a slave, so
+	// that it fits in a frame
+	public static final int MAX_BATCH_REQUEST_CHARS = 512 * 1024;
+
+	// Largest number of pairs a client may ask for in one scan
+	public static final int MAX_SCAN_LIMIT = 1000;
+
+	// Value characters in one scan response to a client
+	public static final int MAX_SCAN_RESPONSE_CHARS = 512 * 1024;
+
+	// Number of positions on the hash ring (2^64)
+	private static final double RING_SIZE = 18446744073709551616.0;
+
 	// Port on localhost to run registration server on
 	private static final int REGISTRATION_PORT = 9090;
 
@@ -75,7 +137,86 @@ public class TPCMaster {
 	
 	public static boolean ignoreNextMessage = false;
 
+	// Number of distinct slaves each key is replicated on
+	public int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+
+	// Number of ring positions (virtual nodes) per slave
+	public int virtualNodesPerSlave = DEFAULT_VIRTUAL_NODES;
+
+	// Whether a get is also sent to the next replica when the first is slow
+	public boolean hedgeReads = true;
+
+	// Latency percentile of the first replica after which a get is hedged
+	public double hedgePercentile = 0.95;
+
+	// Threads issuing reads to slaves, created on the first cache miss
+	private ThreadPool readPool = null;
+	// Started by run(), stopped by shutdown()
+	private Thread heartbeatThread = null;
+	private Thread antiEntropyThread = null;
+
+	// Phase-2 decisions still to be delivered to slaves that missed them
+	public final Phase2RetryQueue phase2Retries =
+		new Phase2RetryQueue(Phase2RetryQueue.DEFAULT_CAPACITY, TIMEOUT_MILLISECONDS);
+
+	// Quorum writes, read repairs and anti-entropy repairs of quorum keys
+	// that could not be delivered: the hints of hinted handoff, kept here
+	// until the replica they are for is back
+	public final Phase2RetryQueue hintedWrites =
+		new Phase2RetryQueue(Phase2RetryQueue.DEFAULT_CAPACITY, TIMEOUT_MILLISECONDS);
+
+	// Replicas a quorum get waits for, R, and a quorum put or del, W; 0 for
+	// a majority of the replicas. A request can ask for its own.
+	public int readQuorum = 0;
+	public int writeQuorum = 0;
+
+	// Copies keys to their new replicas when slaves join
+	public final Rebalancer rebalancer = new Rebalancer(this);
+
+	// Compares neighbouring replicas and repairs the keys they disagree on
+	public final AntiEntropy antiEntropy = new AntiEntropy(this);
+
+	/**
+	 * How writes of a key reach its replicas. TWO_PHASE_COMMIT prepares the
+	 * write on every replica, then commits it. CHAIN sends it to the first
+	 * replica, which applies it and forwards it down the replica list; the
+	 * last replica, the tail, acknowledges it back up the chain and serves
+	 * the key's reads, so a read never sees a write that is not on every
+	 * replica. A chain write that fails is not rolled back: the replicas
+	 * before the failure keep it until the next write of the key or
+	 * anti-entropy. QUORUM sends the write, with a new version, to every
+	 * replica and waits for W of them; a get asks every replica, waits for
+	 * R of them and returns the newest version, writing it back to the
+	 * replicas that answered with an older one. Writes for replicas that
+	 * are down are held as hints and delivered once they are back. With
+	 * R + W above the replication factor a get sees the latest write.
+	 * Batched and conditional writes always use 2PC.
+	 */
+	public enum ReplicationMode {
+		TWO_PHASE_COMMIT, CHAIN, QUORUM
+	}
+
+	// Replication mode of each keyspace, by key prefix, replaced as a whole
+	// on every change; keys under no prefix use 2PC
+	private volatile TreeMap<String, ReplicationMode> replicationModes = new TreeMap<String, ReplicationMode>();
+
+	// Version of the latest quorum write, in microseconds since the epoch
+	// or just above the previous one, so versions keep growing across
+	// restarts of the master
+	private long lastVersion = 0;
+
+	// Tells clients with a near cache when keys they read are written
+	public final InvalidationNotifier nearCacheInvalidations =
+		new InvalidationNotifier(InvalidationNotifier.DEFAULT_CAPACITY);
+
+	// Whether keys are moved to their new replicas when a slave joins, and
+	// copied back to a registered slave that comes back without its data
+	public boolean rebalanceOnJoin = true;
+
 	TreeMap<Long, SlaveInfo> registeredSlaves;
+	// Immutable snapshot of the ring, replaced whenever a slave joins. Lookups
+	// read it without locking; registeredSlavesLock only serializes writers.
+	volatile RingSnapshot ring = RingSnapshot.EMPTY;
 	Lock registeredSlavesLock; 
 
 	/**
@@ -86,7 +227,23 @@ public class TPCMaster {
 	 * @throws Exception
 	 */
 	public TPCMaster(int numSlaves) {
+		this(numSlaves, DEFAULT_REPLICATION_FACTOR, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Creates TPCMaster
+	 * 
+	 * @param numSlaves
+	 *            number of slave servers expected to register
+	 * @param replicationFactor
+	 *            number of distinct slaves each key is stored on
+	 * @param virtualNodesPerSlave
+	 *            number of positions each slave takes on the hash ring
+	 */
+	public TPCMaster(int numSlaves, int replicationFactor, int virtualNodesPerSlave) {
 		this.numSlaves = numSlaves;
+		this.replicationFactor = replicationFactor;
+		this.virtualNodesPerSlave = virtualNodesPerSlave;
 		try {
 			regServer = new SocketServer(InetAddress.getLocalHost().getHostAddress(), REGISTRATION_PORT);
 		} catch (UnknownHostException e) {
@@ -102,7 +259,7 @@ public class TPCMaster {
 	 * 
 	 * @return
 	 */
-	public String getNextTpcOpId() {
+	public synchronized String getNextTpcOpId() {
 		tpcOpId++;
 		return tpcOpId.toString();
 	}
@@ -125,7 +282,32 @@ public class TPCMaster {
 	}
 
 	/**
-	 * Start registration server in a separate thread.
+	 * Failure detector: pings every registered slave each
+	 * HEARTBEAT_INTERVAL_MILLIS. A slave is suspected down after
+	 * SUSPECT_AFTER_MISSES consecutive failed requests of any kind, and is
+	 * trusted again as soon as one request succeeds.
+	 */
+	class heartbeatRunnable implements Runnable {
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (SlaveInfo slave : ring.getSlaves()) {
+					try {
+						slave.request(new KVMessage(HEARTBEAT), HEARTBEAT_TIMEOUT_MILLIS);
+					} catch (KVException e) {
+						// Already counted as a miss by request()
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start registration server and failure detector in separate threads.
 	 */
 	public void run() {
 		AutoGrader.agTPCMasterStarted();
@@ -134,9 +316,44 @@ public class TPCMaster {
 		Thread myThread = new Thread(myRunnable);
 		myThread.start();
 
+		heartbeatThread = new Thread(new heartbeatRunnable());
+		heartbeatThread.setDaemon(true);
+		heartbeatThread.start();
+
+		antiEntropyThread = new Thread(antiEntropy);
+		antiEntropyThread.setDaemon(true);
+		antiEntropyThread.start();
+
 		AutoGrader.agTPCMasterFinished();
 	}
 
+	/**
+	 * Stop the registration server, the failure detector, anti-entropy and
+	 * the read threads, e.g. to run several masters one after the other in
+	 * one process. Operations in progress are not waited for, and a running
+	 * handoff is left unfinished. Decisions and hints not yet redelivered,
+	 * and invalidations not yet sent, are dropped.
+	 */
+	public void shutdown() {
+		regServer.closeSocket();
+		if (regServer.handler instanceof TPCRegistrationHandler) {
+			((TPCRegistrationHandler) regServer.handler).threadpool.shutdown();
+		}
+		if (heartbeatThread != null) {
+			heartbeatThread.interrupt();
+			antiEntropyThread.interrupt();
+		}
+		synchronized (this) {
+			if (readPool != null) {
+				readPool.shutdown();
+			}
+		}
+		rebalancer.stop();
+		phase2Retries.stop();
+		hintedWrites.stop();
+		nearCacheInvalidations.stop();
+	}
+
 	/**
 	 * Converts Strings to 64-bit longs. Borrowed from http://goo.gl/le1o0W, adapted from String.hashCode().
 	 * 
@@ -145,6 +362,14 @@ public class TPCMaster {
 	 * @return long hashcode
 	 */
 	public long hashTo64bit(String string) {
+		return hashKey(string);
+	}
+
+	/**
+	 * Static form of hashTo64bit(), for slaves that need to know where a key
+	 * sits on the ring.
+	 */
+	public static long hashKey(String string) {
 		long h = 1125899906842597L;
 		int len = string.length();
 
@@ -175,7 +400,7 @@ public class TPCMaster {
 		public int compare (Long a, Long b) {
 			if (isLessThanUnsigned(a, b)) {
 				return -1;
-			} else if (a == b) {
+			} else if (a.longValue() == b.longValue()) {
 				return 0;
 			} else {
 				return 1;
@@ -184,53 +409,167 @@ public class TPCMaster {
 		
 	}
 	
+	/**
+	 * Ring position of one virtual node of a slave. Slave IDs are mixed with
+	 * a 64-bit finalizer so that the virtual nodes of a slave spread evenly
+	 * over the ring even when slave IDs are close to each other.
+	 * 
+	 * @param slaveID
+	 *            ID of the slave
+	 * @param index
+	 *            which of the slave's virtual nodes
+	 * @return position of the virtual node on the ring
+	 */
+	public static long virtualNodePosition(long slaveID, int index) {
+		long z = slaveID + 0x9E3779B97F4A7C15L * (index + 1);
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * Add a slave to registeredSlaves and place its virtual nodes on the ring.
+	 * A slave that is already registered only has its address updated, and
+	 * is asked in the background whether it lost its data. Keys whose
+	 * replicas change are then moved in the background; if an earlier move is
+	 * still running, this waits for it first, without holding
+	 * registeredSlavesLock.
+	 * 
+	 * @param newSlave
+	 *            slave that asked to register
+	 * @return false if the maximum number of slaves is already registered
+	 */
+	public boolean registerSlave(SlaveInfo newSlave) {
+		while (true) {
+			registeredSlavesLock.lock();
+			try {
+				SlaveInfo existingSlave = registeredSlaves.get(newSlave.slaveID);
+				if (existingSlave != null) {
+					existingSlave.setAddress(newSlave.hostName, newSlave.port);
+					if (rebalanceOnJoin) {
+						rebalancer.checkSync(existingSlave);
+					}
+					return true;
+				}
+				if (registeredSlaves.size() == numSlaves) {
+					return false;
+				}
+				// Handoffs only start under registeredSlavesLock, so none
+				// can start before the new ring is published
+				if (!rebalanceOnJoin || rebalancer.getRunning() == null) {
+					registeredSlaves.put(newSlave.slaveID, newSlave);
+					RingSnapshot oldRing = ring;
+					RingSnapshot newRing = RingSnapshot.build(registeredSlaves.values(), virtualNodesPerSlave, replicationFactor);
+					Rebalancer.Handoff handoff = rebalanceOnJoin ? rebalancer.plan(oldRing, newRing, newSlave) : null;
+					ring = newRing.withHandoff(handoff);
+					if (handoff != null) {
+						rebalancer.launch(handoff);
+					}
+					return true;
+				}
+			} finally {
+				registeredSlavesLock.unlock();
+			}
+			rebalancer.awaitIdle();
+		}
+	}
+
+	/**
+	 * Find the replicas for a given key: the first replicationFactor distinct
+	 * slaves whose virtual nodes follow the key's hash on the ring.
+	 * 
+	 * @param key
+	 * @return replicas in ring order, primary first; fewer than
+	 *         replicationFactor if not enough slaves are registered. The list
+	 *         is shared and must not be modified.
+	 */
+	public List<SlaveInfo> findReplicas(String key) {
+		return ring.replicasFor(hashTo64bit(key));
+	}
+
 	/**
 	 * Find primary replica for a given key.
 	 * 
 	 * @param key
-	 * @return SlaveInfo of first replica
+	 * @return SlaveInfo of first replica, null if no slave is registered
 	 */
 	public SlaveInfo findFirstReplica(String key) {
 		// 64-bit hash of the key
-		long hashedKey = hashTo64bit(key.toString());
-		registeredSlavesLock.lock();
-		Map.Entry<Long, SlaveInfo> entry = registeredSlaves.higherEntry(hashedKey);
-		SlaveInfo slave;
-		System.out.println(registeredSlaves.size());
-		if (entry == null) {
-			// registeredSlaves.firstEntry().getValue();
-			slave = registeredSlaves.firstEntry().getValue();
-		} else {
-			slave = entry.getValue();
-		}
-		registeredSlavesLock.unlock();
-		return slave;
+		return ring.primaryFor(hashTo64bit(key));
 	}
 
 	/**
-	 * Find the successor of firstReplica.
+	 * Find the successor of firstReplica: the next other slave clockwise
+	 * from firstReplica's first virtual node. Replica sets for keys are
+	 * given by findReplicas(), which this agrees with only for keys hashing
+	 * just before that virtual node.
 	 * 
 	 * @param firstReplica
 	 *            SlaveInfo of primary replica
 	 * @return SlaveInfo of successor replica
 	 */
 	public SlaveInfo findSuccessor(SlaveInfo firstReplica) {
-		registeredSlavesLock.lock();
-		Map.Entry<Long, SlaveInfo> entry = registeredSlaves.higherEntry(firstReplica.slaveID);
-		SlaveInfo slave;
-		if (entry == null) {
-			slave = registeredSlaves.firstEntry().getValue();
-		} else {
-			slave = entry.getValue();
+		return ring.successorOf(firstReplica);
+	}
+
+	/**
+	 * Fraction of the key space for which each slave is the primary replica,
+	 * i.e. the total length of the ring arcs ending at its virtual nodes.
+	 * 
+	 * @return slave ID to share of the key space, in ring order of slave ID
+	 */
+	public Map<Long, Double> getKeySpaceShares() {
+		TreeMap<Long, Double> shares = new TreeMap<Long, Double>(new LongComparator());
+		RingSnapshot snapshot = ring;
+		for (SlaveInfo slave : snapshot.getSlaves()) {
+			shares.put(slave.slaveID, 0.0);
+		}
+		if (snapshot.isEmpty()) {
+			return shares;
+		}
+		if (snapshot.size() == 1) {
+			shares.put(snapshot.ownerAt(0).slaveID, 1.0);
+			return shares;
+		}
+		// Keys hashing to [previous position, position) go to the slave at position
+		long previous = snapshot.positionAt(snapshot.size() - 1);
+		for (int i = 0; i < snapshot.size(); i++) {
+			long arc = snapshot.positionAt(i) - previous;
+			double fraction = ((arc >>> 1) * 2.0 + (arc & 1)) / RING_SIZE;
+			long slaveID = snapshot.ownerAt(i).slaveID;
+			shares.put(slaveID, shares.get(slaveID) + fraction);
+			previous = snapshot.positionAt(i);
+		}
+		return shares;
+	}
+
+	/**
+	 * Human readable report of how evenly the key space is split between
+	 * slaves, with the largest share relative to a perfectly even split.
+	 * 
+	 * @return one line per slave followed by a summary line
+	 */
+	public String getSkewReport() {
+		Map<Long, Double> shares = getKeySpaceShares();
+		StringBuilder report = new StringBuilder();
+		double max = 0.0;
+		for (Map.Entry<Long, Double> share : shares.entrySet()) {
+			report.append(String.format("Slave %d: %.2f%% of key space%n",
+					share.getKey(), share.getValue() * 100));
+			max = Math.max(max, share.getValue());
 		}
-		registeredSlavesLock.unlock();
-		return slave;
+		double even = shares.isEmpty() ? 0.0 : 1.0 / shares.size();
+		report.append(String.format("%d slaves, %d virtual nodes each, replication factor %d, max/even share %.3f%n",
+				shares.size(), virtualNodesPerSlave, replicationFactor, even == 0.0 ? 0.0 : max / even));
+		return report.toString();
 	}
 
 	/**
-	 * Synchronized method to perform 2PC operations. This method contains the bulk of the two-phase commit logic.
+	 * Perform a 2PC operation. This method contains the bulk of the two-phase commit logic.
 	 * It performs phase 1 and phase 2 with appropriate timeouts and retries.
-	 * See the spec for details on the expected behavior.
+	 * See the spec for details on the expected behavior. Operations on keys in
+	 * different masterCache sets run concurrently; slaves keep their
+	 * transactions apart by tpcOpId.
 	 * 
 	 * @param msg
 	 * @param isPutReq
@@ -238,7 +577,7 @@ public class TPCMaster {
 	 * @throws KVException
 	 *             if the operation cannot be carried out
 	 */
-	public synchronized void performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
+	public void performTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
 		AutoGrader.agPerformTPCOperationStarted(isPutReq);
 		WriteLock keyLock = null;
 		String id = getNextTpcOpId();
@@ -250,78 +589,27 @@ public class TPCMaster {
 			
 			keyLock.lock();
 			
-			/*for(Entry<Long, SlaveInfo> slaveServer :  registeredSlaves.entrySet()) {
-				System.out.println("Registered Slaves = " + slaveServer.getValue().slaveID);
-			}*/
-			
-			SlaveInfo firstServer = findFirstReplica(key);
-			System.out.println("Find Successor = " + findSuccessor(firstServer).port);
-			SlaveInfo secondServer = findSuccessor(firstServer);
-			Socket firstSocket = null;
-			Socket secondSocket = null;
-			boolean isFirstSuccess = false;
-			boolean isSecondSuccess = false;
-			try {
-				firstSocket = firstServer.connectHost();
-				isFirstSuccess = true;
-			} catch (KVException e) {
-				//
-			}
-			try {
-				secondSocket = secondServer.connectHost();
-				isSecondSuccess = true;
-			} catch (KVException e) {
-				//
-			}
-			System.out.println("isFirstSuccess = " + isFirstSuccess + " isSecondSuccess " + isSecondSuccess);
-			/** Does connectHost fail? If one fails, we must send ABORT to the other one and continue
-			 *  1. Both succeed
-			 *  2. #1 Success
-			 *  3. #2 Success
-			 *  4. Both fail
-			 *  
-			 *  If anything else happens besides a successful COMMIT, I throw an error that gets propagated to KVClientHandler.
-			 */
+			ReplicationMode mode = getReplicationMode(key);
+			List<SlaveInfo> replicas = writableReplicas(key, mode != ReplicationMode.QUORUM);
 			String type = setType(isPutReq);
-			if (isFirstSuccess && isSecondSuccess) {
-				sendRequestPhase1(type, firstSocket, secondSocket, msg, id);
-				KVMessage first = readResponsePhase1(firstServer, firstSocket);
-				KVMessage second = readResponsePhase1(secondServer, secondSocket);
-				KVMessage decide = decidePhase2Response(first, second);
-
-				decide.setTpcOpId(id);
-
-				phase2SendRequest(firstServer, firstSocket, decide, true, key);
-				phase2SendRequest(secondServer, secondSocket, decide, false, key);
-				phase2CacheResponse(type, msg);
-				
-				if (decide.getMsgType().equals(ABORTED)) {
-					throw buildKVException("Connected to both, but ABORTED");
-				}
-			} else if (isFirstSuccess) {
-				System.out.println("Recognized first success");
-				sendRequestPhase1Failure(type, firstSocket, msg, id);
-				KVMessage abortDeciscion = new KVMessage(ABORTED);
-				
-				abortDeciscion.setTpcOpId(id);
-				
-				phase2SendRequest(firstServer, firstSocket, abortDeciscion, true, key);
-				phase2CacheResponse(type, msg);
-				
-				throw buildKVException(secondServer.slaveID + ": Connection failed. " + firstServer.slaveID + ": Connection succeeded.");
-			} else if(isSecondSuccess) {
-				sendRequestPhase1Failure(type, secondSocket, msg, id);
-				KVMessage abortDeciscion = new KVMessage(ABORTED);
-				
-				abortDeciscion.setTpcOpId(id);
-				
-				phase2SendRequest(secondServer, secondSocket, abortDeciscion, false, key);
-				phase2CacheResponse(type, msg);
-				
-				throw buildKVException(firstServer.slaveID + ": Connection failed. " + secondServer.slaveID + ": Connection succeeded.");
+			String error;
+			if (mode == ReplicationMode.CHAIN) {
+				error = chainWrite(type, msg, replicas, id);
+			} else if (mode == ReplicationMode.QUORUM) {
+				error = quorumWrite(type, msg, replicas, id);
 			} else {
-				throw buildKVException("Failed connected to both slaves." + firstServer.slaveID + ": Connection failed. " + secondServer.slaveID + ": Connection failed.");
+				error = twoPhaseCommit(type, msg, replicas, id);
+			}
+			if (error != null) {
+				if (mode != ReplicationMode.TWO_PHASE_COMMIT) {
+					// Some replicas may hold the new value
+					masterCache.del(key);
+				}
+				// Otherwise nothing was written, so the cached value still holds
+				throw buildKVException(error);
 			}
+			phase2CacheResponse(type, msg);
+			nearCacheInvalidations.invalidate(Collections.singletonList(key));
 		} catch (KVException e) {
 			throw e;
 		} finally {
@@ -331,211 +619,1915 @@ public class TPCMaster {
 		return;
 	}
 
-	public static void turnOnIgnoreNext(){
-		ignoreNextMessage = true;
-	}
-	
-	public static void turnOffIgnoreNext(){
-		ignoreNextMessage = false;
-	}
-	
-	private String setType(Boolean isPutReq) {
-		if (ignoreNextMessage){
-			return IGNORE_NEXT;
-		}
-		
-		if (isPutReq)
-			return PUT_MESSAGE; // make constant
-		return DEL_MESSAGE;
+	/**
+	 * Set how writes of the keys starting with keyPrefix are replicated.
+	 * The longest matching prefix applies; "" covers every key. Change
+	 * modes only while the keyspace is not written.
+	 */
+	public synchronized void setReplicationMode(String keyPrefix, ReplicationMode mode) {
+		TreeMap<String, ReplicationMode> modes = new TreeMap<String, ReplicationMode>(replicationModes);
+		modes.put(keyPrefix, mode);
+		replicationModes = modes;
 	}
 
-	private void sendRequestPhase1(String type, Socket firstSocket, Socket secondSocket, KVMessage msg, String id) throws KVException {
-		KVMessage req = new KVMessage(type);
-		req.setKey(msg.getKey());
-		if (type.equals(PUT_MESSAGE)) {
-			req.setValue(msg.getValue());
-		}
-		req.setTpcOpId(id);
-		req.sendMessage(firstSocket);
-		req.sendMessage(secondSocket);
-	}
-	
-	private void sendRequestPhase1Failure(String type, Socket successSocket, KVMessage msg, String id) throws KVException {
-		KVMessage req = new KVMessage(type);
-		req.setKey(msg.getKey());
-		if (type.equals(PUT_MESSAGE)) {
-			req.setValue(msg.getValue());
+	/**
+	 * @return how writes of the key are replicated
+	 */
+	public ReplicationMode getReplicationMode(String key) {
+		TreeMap<String, ReplicationMode> modes = replicationModes;
+		// The longest prefix of the key sorts last among those not after it
+		Map.Entry<String, ReplicationMode> entry = modes.floorEntry(key);
+		while (entry != null) {
+			if (key.startsWith(entry.getKey())) {
+				return entry.getValue();
+			}
+			entry = modes.lowerEntry(entry.getKey());
 		}
-		req.setTpcOpId(id);
-		req.sendMessage(successSocket);
+		return ReplicationMode.TWO_PHASE_COMMIT;
 	}
 
-	private KVMessage readResponsePhase1(SlaveInfo server, Socket socket) throws KVException {
-		KVMessage msg = null;
-		try {
-			msg = new KVMessage(socket, TIMEOUT_MILLISECONDS);
-		} catch (KVException exception) {
-			msg = new KVMessage(ABORTED, "Timeout Error: Could not receive data");
-		} finally {
-			server.closeHost(socket);
+	/**
+	 * Replicas a get of the key may read from: any of them under 2PC, the
+	 * tail only under chain replication.
+	 */
+	private List<SlaveInfo> readableReplicas(String key, List<SlaveInfo> replicas) {
+		if (replicas.size() <= 1 || getReplicationMode(key) != ReplicationMode.CHAIN) {
+			return replicas;
 		}
-		return msg;
+		return replicas.subList(replicas.size() - 1, replicas.size());
 	}
 
-
-	private KVMessage decidePhase2Response(KVMessage first, KVMessage second) throws KVException {
-		String decision = null;
-		if (first.getMsgType().equals(READY) && second.getMsgType().equals(READY)) {
-			decision = COMMIT;
-		} else {
-			decision = ABORTED;
+	/**
+	 * Replicas a key can be written on now. A key that is moving to new
+	 * replicas is moved before it is written. The caller holds the key's lock.
+	 *
+	 * @param requireAll
+	 *            whether every replica must be up; a quorum write only needs
+	 *            some of them
+	 * 
+	 * @return the key's replicas on the current ring
+	 * @throws KVException
+	 *             if no slave is registered, or a replica is known to be down
+	 *             or has not yet received the decision of an earlier
+	 *             operation, so that the write fails before anything is
+	 *             prepared
+	 */
+	private List<SlaveInfo> writableReplicas(String key, boolean requireAll) throws KVException {
+		// Ring and handoff state are read together, once
+		RingSnapshot snapshot = ring;
+		List<SlaveInfo> replicas = snapshot.replicasFor(hashTo64bit(key));
+		if (replicas.isEmpty()) {
+			throw buildKVException("Unknown Error: No slave servers registered");
+		}
+		String unavailable = "";
+		if (requireAll) {
+			for (SlaveInfo replica : replicas) {
+				if (replica.isSuspected()) {
+					unavailable += replica.slaveID + ": Slave suspected down. ";
+				} else if (phase2Retries.hasPending(replica)) {
+					unavailable += replica.slaveID + ": Slave has undelivered decisions. ";
+				}
+			}
+		}
+		if (unavailable.length() > 0) {
+			throw buildKVException(unavailable);
 		}
-		return new KVMessage(decision);
+		if (snapshot.getHandoff() != null) {
+			migrateKey(snapshot.getHandoff(), key, null);
+		}
+		return replicas;
 	}
 
-	private void phase2SendRequest(SlaveInfo server, Socket socket, KVMessage decide, boolean firstServer, String key) throws KVException {
+	/**
+	 * Perform a compare-and-set or an increment as one 2PC operation. Each
+	 * replica checks the condition, or computes the counter, against its own
+	 * copy of the key while preparing, so no read is needed first. A
+	 * compare that the cached value already contradicts fails without
+	 * contacting the slaves; the cache is only updated on commit, so it
+	 * never holds a value that was not written. Keys of quorum keyspaces are
+	 * refused, since a write there does not reach every replica.
+	 * 
+	 * @param msg
+	 *            compare-and-set with the key, the new value and the expected
+	 *            one (none if the key must not exist), or increment with the
+	 *            key and the amount as its value
+	 * @return the key's new value, or null if a compare failed
+	 * @throws KVException
+	 *             if the operation could not be carried out, e.g. the value
+	 *             is not a number or the replicas disagree on the counter
+	 */
+	public String performConditionalOperation(KVMessage msg) throws KVException {
+		String key = msg.getKey();
+		boolean isIncrement = msg.getMsgType().equals(INCR);
+		rejectQuorumKeys(Collections.singletonList(key), isIncrement ? "Increment" : "Compare-and-set");
+		WriteLock keyLock = masterCache.getWriteLock(key);
+		keyLock.lock();
 		try {
-			socket = server.connectHost();
-			decide.sendMessage(socket);
-			KVMessage msg = new KVMessage(socket, TIMEOUT_MILLISECONDS);
-		} catch (KVException exception) {
-			if (exception.getMsg().getMessage().equals("Timeout Error: Could not receive data") || exception.getMsg().getMessage().equals("Setting timeout on socket exception")) // placeholder
-			{
-				phase2Retry(key, decide, firstServer);
+			if (!isIncrement) {
+				String cached = masterCache.get(key);
+				if (cached != null && !cached.equals(msg.getExpectedValue())) {
+					return null;
+				}
+			}
+			List<SlaveInfo> replicas = writableReplicas(key, true);
+			String id = getNextTpcOpId();
+			KVMessage req = new KVMessage(msg.getMsgType());
+			req.setKey(key);
+			req.setValue(msg.getValue());
+			req.setExpectedValue(msg.getExpectedValue());
+			req.setTpcOpId(id);
+			ArrayList<KVMessage> votes = new ArrayList<KVMessage>();
+			String error = twoPhaseCommit(replicas, Collections.nCopies(replicas.size(), Collections.singletonList(req)),
+					id, votes);
+			if (error == null) {
+				String value = isIncrement ? votes.get(0).getValue() : msg.getValue();
+				masterCache.put(key, value);
+				nearCacheInvalidations.invalidate(Collections.singletonList(key));
+				return value;
+			}
+			for (KVMessage vote : votes) {
+				if (TPCMasterHandler.COMPARE_FAILED.equals(vote.getMessage())) {
+					return null;
+				} else if (ABORTED.equals(vote.getMsgType()) && vote.getMessage() != null) {
+					error = vote.getMessage();
+				}
 			}
+			throw buildKVException(error);
 		} finally {
-			server.closeHost(socket);
+			keyLock.unlock();
 		}
 	}
 
-	private void phase2Retry(String key, KVMessage decide, boolean firstServer) throws KVException {
-		KVMessage msg = null;
-		SlaveInfo server1 = null;
-		SlaveInfo server2 = null;
-		Socket socket = null;
-		if (firstServer) {
-			while (msg == null) {
-				try {
-					server1 = findFirstReplica(key);
-					socket = server1.connectHost();
-					decide.sendMessage(socket);
-					msg = new KVMessage(socket, TIMEOUT_MILLISECONDS);
-				} catch (KVException exception) {
-					if (!exception.getMsg().getMessage().equals("Timeout Error: Could not receive data") || exception.getMsg().getMessage().equals("Setting timeout on socket exception")) {
-						throw exception;
+	/**
+	 * Write or delete several keys in a single 2PC transaction. Every slave
+	 * that replicates one of the keys takes part and is sent only its share
+	 * of the batch, so either every key is written on all its replicas or
+	 * none is. A share of a put with more than MAX_BATCH_REQUEST_CHARS of
+	 * values is sent as several phase-1 parts, which the slave joins. Keys of a delete that do not exist are skipped. The locks of
+	 * all the keys are held for the whole transaction, taken in set order.
+	 * Batches with keys of a quorum keyspace are refused, since quorum writes
+	 * of several keys cannot be made atomic.
+	 * 
+	 * @param msg
+	 *            batched put with the pairs to write, or batched del with
+	 *            the keys to delete
+	 * @param isPutReq
+	 *            boolean to distinguish put and del requests
+	 * @throws KVException
+	 *             if the batch is invalid or has keys of a quorum keyspace,
+	 *             or the transaction was aborted
+	 */
+	public void performBatchOperation(KVMessage msg, boolean isPutReq) throws KVException {
+		Collection<String> keys = isPutReq
+			? (msg.getEntries() == null ? null : msg.getEntries().keySet()) : msg.getKeys();
+		if (keys == null || keys.isEmpty() || keys.size() > MAX_BATCH_KEYS) {
+			throw buildKVException("Unknown Error: Batch size out of range");
+		}
+		rejectQuorumKeys(keys, isPutReq ? "Batched put" : "Batched del");
+		if (isPutReq) {
+			for (String value : msg.getEntries().values()) {
+				if (value == null || value.length() < 1) {
+					throw buildKVException("Unknown Error: invalid value");
+				}
+			}
+		}
+		String id = getNextTpcOpId();
+		List<WriteLock> keyLocks = masterCache.getWriteLocks(keys);
+		for (WriteLock keyLock : keyLocks) {
+			keyLock.lock();
+		}
+		try {
+			RingSnapshot snapshot = ring;
+			if (snapshot.isEmpty()) {
+				throw buildKVException("Unknown Error: No slave servers registered");
+			}
+			LinkedHashMap<SlaveInfo, ArrayList<String>> shares = new LinkedHashMap<SlaveInfo, ArrayList<String>>();
+			for (String key : new LinkedHashSet<String>(keys)) {
+				for (SlaveInfo replica : snapshot.replicasFor(hashTo64bit(key))) {
+					ArrayList<String> share = shares.get(replica);
+					if (share == null) {
+						share = new ArrayList<String>();
+						shares.put(replica, share);
 					}
-				} finally {
-					server1.closeHost(socket);
+					share.add(key);
 				}
 			}
-		} else {
-			while (msg == null) {
-				try {
-					server1 = findFirstReplica(key);
-					server2 = findSuccessor(server1);
-					socket = server2.connectHost();
-					decide.sendMessage(socket);
-					msg = new KVMessage(socket, TIMEOUT_MILLISECONDS);
-				} catch (KVException exception) {
-					if (!exception.getMsg().getMessage().equals("Timeout Error: Could not receive data")) {
-						throw exception;
+			String unavailable = "";
+			for (SlaveInfo replica : shares.keySet()) {
+				if (replica.isSuspected()) {
+					unavailable += replica.slaveID + ": Slave suspected down. ";
+				} else if (phase2Retries.hasPending(replica)) {
+					unavailable += replica.slaveID + ": Slave has undelivered decisions. ";
+				}
+			}
+			if (unavailable.length() > 0) {
+				throw buildKVException(unavailable);
+			}
+			if (snapshot.getHandoff() != null) {
+				for (String key : keys) {
+					migrateKey(snapshot.getHandoff(), key, null);
+				}
+			}
+			ArrayList<SlaveInfo> participants = new ArrayList<SlaveInfo>(shares.keySet());
+			ArrayList<List<KVMessage>> requests = new ArrayList<List<KVMessage>>();
+			for (SlaveInfo participant : participants) {
+				ArrayList<KVMessage> parts = new ArrayList<KVMessage>();
+				if (isPutReq) {
+					// Split into parts of MAX_BATCH_REQUEST_CHARS of values
+					LinkedHashMap<String, String> pairs = new LinkedHashMap<String, String>();
+					int chars = 0;
+					for (String key : shares.get(participant)) {
+						String value = msg.getEntries().get(key);
+						if (!pairs.isEmpty() && chars + value.length() > MAX_BATCH_REQUEST_CHARS) {
+							parts.add(batchPart(pairs, id));
+							pairs = new LinkedHashMap<String, String>();
+							chars = 0;
+						}
+						pairs.put(key, value);
+						chars += value.length();
 					}
-				} finally {
-					server2.closeHost(socket);
+					parts.add(batchPart(pairs, id));
+				} else {
+					KVMessage req = new KVMessage(MDEL);
+					req.setKeys(shares.get(participant));
+					req.setTpcOpId(id);
+					parts.add(req);
+				}
+				requests.add(parts);
+			}
+			String error = twoPhaseCommit(participants, requests, id, null);
+			for (String key : keys) {
+				if (isPutReq && error == null) {
+					masterCache.put(key, msg.getEntries().get(key));
+				} else {
+					masterCache.del(key);
 				}
 			}
+			nearCacheInvalidations.invalidate(keys);
+			if (error != null) {
+				throw buildKVException(error);
+			}
+		} finally {
+			for (WriteLock keyLock : keyLocks) {
+				keyLock.unlock();
+			}
 		}
 	}
 
-	private void phase2CacheResponse(String type, KVMessage msg) {
-		if (type.equals(PUT_MESSAGE)) {
-			masterCache.put(msg.getKey(), msg.getValue());
-		} else if (type.equals(DEL_MESSAGE)) {
-			masterCache.del(msg.getKey());
-		}
+	/**
+	 * @return phase-1 request with one part of a slave's share of a batched
+	 *         put
+	 */
+	private KVMessage batchPart(Map<String, String> pairs, String id) throws KVException {
+		KVMessage part = new KVMessage(MPUT);
+		part.setEntries(pairs);
+		part.setTpcOpId(id);
+		return part;
 	}
 
 	/**
-	 * Put some useful comments here asshole
+	 * Refuse an operation that only 2PC offers if one of its keys belongs to
+	 * a quorum keyspace.
+	 * 
+	 * @param operation
+	 *            name of the operation for the error message
 	 */
-	public void handleIgnoreNext(KVMessage msg) throws KVException {
-		KVMessage resp = null;
-		for(Entry<Long, SlaveInfo> slaveServer :  registeredSlaves.entrySet()) {
-			try {
-				Socket firstSocket = slaveServer.getValue().connectHost();
-				msg.sendMessage(firstSocket);
-				resp = new KVMessage(firstSocket, TIMEOUT_MILLISECONDS);
-				slaveServer.getValue().closeHost(firstSocket);
-			}
-			catch (KVException e) {
-				KVMessage combinedErrorMessage = new KVMessage(RESP_MESSAGE, e.getMessage() + "\n" + e.getMessage());
-				throw new KVException(combinedErrorMessage);
+	private void rejectQuorumKeys(Collection<String> keys, String operation) throws KVException {
+		for (String key : keys) {
+			if (getReplicationMode(key) == ReplicationMode.QUORUM) {
+				throw buildKVException("Unknown Error: " + operation + " is not supported for quorum keyspaces");
 			}
 		}
 	}
-	
+
 	/**
-	 * Perform GET operation in the following manner:
-	 * - Try to GET from cache, return immediately if found
-	 * - Try to GET from first/primary replica
-	 * - If primary succeeded, return value
-	 * - If primary failed, try to GET from the other replica
-	 * - If secondary succeeded, return value
-	 * - If secondary failed, return KVExceptions from both replicas Please see spec for more details.
+	 * Run both phases of 2PC for one request on the given replicas.
 	 * 
-	 * @param msg
-	 *            Message containing Key to get
-	 * @return Value corresponding to the Key
+	 * @return null if every replica committed, otherwise a description of
+	 *         why the request was aborted
 	 * @throws KVException
+	 *             if no replica could be reached at all
 	 */
-	public String handleGet(KVMessage msg) throws KVException {
-		AutoGrader.aghandleGetStarted();
-		String key = msg.getKey();
-		WriteLock keyLock = masterCache.getWriteLock(key);
-		keyLock.lock();
+	private String twoPhaseCommit(String type, KVMessage msg, List<SlaveInfo> replicas, String id) throws KVException {
+		KVMessage req = new KVMessage(type);
+		req.setKey(msg.getKey());
+		if (type.equals(PUT_MESSAGE)) {
+			req.setValue(msg.getValue());
+		}
+		req.setTpcOpId(id);
+		return twoPhaseCommit(replicas, Collections.nCopies(replicas.size(), Collections.singletonList(req)), id, null);
+	}
+
+	/**
+	 * Run both phases of 2PC for one transaction whose participants are
+	 * each sent their own phase-1 request, e.g. their share of a batch.
+	 * A request too large for one frame is sent as several parts, one
+	 * after the other on the participant's connection; the participant's
+	 * vote is that on its last part, or the first that was not ready.
+	 * A ready vote may carry the value the participant's write will leave;
+	 * the transaction is aborted if participants report different values.
+	 * 
+	 * @param replicas
+	 *            participants of the transaction
+	 * @param requests
+	 *            phase-1 request parts of each participant, carrying the
+	 *            tpcOpId
+	 * @param votes
+	 *            receives the vote of each participant reached, unless null
+	 * @return null if every participant committed, otherwise a description
+	 *         of why the transaction was aborted
+	 * @throws KVException
+	 *             if no participant could be reached at all
+	 */
+	private String twoPhaseCommit(List<SlaveInfo> replicas, List<? extends List<KVMessage>> requests, String id,
+			List<KVMessage> votes) throws KVException {
+		// Room for each decision that may have to be redelivered, taken
+		// before anything is prepared so that phase 2 never waits for it
+		if (!phase2Retries.reserve(replicas.size())) {
+			throw buildKVException("Unknown Error: Too many undelivered decisions");
+		}
+		int queued = 0;
+		try {
+			SlaveConnectionPool.Connection[] conns = new SlaveConnectionPool.Connection[replicas.size()];
+			String connectionErrors = "";
+			boolean anyConnected = false;
+			for (int i = 0; i < replicas.size(); i++) {
+				try {
+					conns[i] = replicas.get(i).acquireConnection();
+					anyConnected = true;
+				} catch (KVException e) {
+					connectionErrors += replicas.get(i).slaveID + ": Connection failed. ";
+				}
+			}
+			/** Does a connection fail? If one fails, we must send ABORT to the others and continue.
+			 *  Replicas we connected to still get phase 1 and then the decision, so that they
+			 *  can release whatever they prepared.
+			 *  
+			 *  If anything else happens besides a successful COMMIT, I throw an error that gets propagated to KVClientHandler.
+			 */
+			if (!anyConnected) {
+				Tracer.warn("2pc.unreachable", id, connectionErrors);
+				throw buildKVException("Failed to connect to all replicas. " + connectionErrors);
+			}
+			long phase1 = Tracer.startSpan();
+			KVMessage[] partVotes = new KVMessage[replicas.size()];
+			try {
+				boolean partsReady = true;
+				for (int part = 0; partsReady; part++) {
+					boolean[] sending = new boolean[replicas.size()];
+					boolean anySending = false;
+					for (int i = 0; i < replicas.size(); i++) {
+						sending[i] = conns[i] != null && part < requests.get(i).size();
+						anySending |= sending[i];
+					}
+					if (!anySending) {
+						break;
+					}
+					sendRequestPhase1(conns, requests, part, sending);
+					for (int i = 0; i < replicas.size(); i++) {
+						if (sending[i]) {
+							partVotes[i] = readResponsePhase1(conns[i]);
+							partsReady &= partVotes[i].getMsgType().equals(READY);
+						}
+					}
+				}
+			} finally {
+				for (int i = 0; i < replicas.size(); i++) {
+					replicas.get(i).releaseConnection(conns[i]);
+				}
+			}
+			boolean allReady = connectionErrors.length() == 0;
+			String result = null;
+			boolean agreed = true;
+			for (int i = 0; i < replicas.size(); i++) {
+				if (conns[i] != null) {
+					KVMessage vote = partVotes[i];
+					allReady &= vote.getMsgType().equals(READY);
+					if (vote.getMsgType().equals(READY) && vote.getValue() != null) {
+						if (result == null) {
+							result = vote.getValue();
+						} else {
+							agreed &= result.equals(vote.getValue());
+						}
+					}
+					if (votes != null) {
+						votes.add(vote);
+					}
+				}
+			}
+			allReady &= agreed;
+			KVMessage decide = new KVMessage(allReady ? COMMIT : ABORTED);
+			decide.setTpcOpId(id);
+			Tracer.endSpan("2pc.phase1", id, requests.get(0).get(0).getMsgType(), phase1);
+
+			long phase2 = Tracer.startSpan();
+			for (int i = 0; i < replicas.size(); i++) {
+				if (conns[i] != null) {
+					if (phase2SendRequest(replicas.get(i), decide)) {
+						queued++;
+					}
+				}
+			}
+			Tracer.endSpan("2pc.phase2", id, decide.getMsgType(), phase2);
+
+			if (connectionErrors.length() > 0) {
+				return connectionErrors;
+			}
+			if (!agreed) {
+				return "Replicas disagree on the result";
+			}
+			if (!allReady) {
+				return "Connected to all replicas, but ABORTED";
+			}
+			return null;
+		} finally {
+			phase2Retries.cancel(replicas.size() - queued);
+		}
+	}
+
+	/**
+	 * Send a write down the chain of the key's replicas, first replica
+	 * first, and wait for the tail's acknowledgement to come back. Like a
+	 * 2PC del, a del of a key the tail does not have fails; the caller
+	 * holds the key's lock, so the tail cannot gain it meanwhile.
+	 * 
+	 * @return null if every replica applied the write, otherwise why it
+	 *         failed
+	 */
+	private String chainWrite(String type, KVMessage msg, List<SlaveInfo> replicas, String id) throws KVException {
+		if (type.equals(DEL_MESSAGE) && masterCache.get(msg.getKey()) == null) {
+			KVMessage get = new KVMessage(GET_MESSAGE);
+			get.setKey(msg.getKey());
+			if (readFromReplicas(get, replicas.subList(replicas.size() - 1, replicas.size())).getValue() == null) {
+				return "Connected to all replicas, but ABORTED";
+			}
+		}
+		KVMessage write = new KVMessage(type.equals(PUT_MESSAGE) ? CHAIN_PUT : CHAIN_DEL);
+		write.setKey(msg.getKey());
+		if (type.equals(PUT_MESSAGE)) {
+			write.setValue(msg.getValue());
+		}
+		write.setTpcOpId(id);
+		ArrayList<String> successors = new ArrayList<String>();
+		for (SlaveInfo replica : replicas.subList(1, replicas.size())) {
+			successors.add(replica.getAddress());
+		}
+		write.setSuccessors(successors);
+		long span = Tracer.startSpan();
+		try {
+			KVMessage resp = replicas.get(0).request(write, TIMEOUT_MILLISECONDS * replicas.size());
+			return SUCCESS.equals(resp.getMessage()) ? null : String.valueOf(resp.getMessage());
+		} catch (KVException e) {
+			return e.getMsg().getMessage();
+		} finally {
+			Tracer.endSpan("chain.write", id, type, span);
+		}
+	}
+
+	/**
+	 * Send a write with a new version to every replica of the key and wait
+	 * until W of them stored it. Replicas that are down, or fail to answer,
+	 * get the write later through hinted handoff; the hints do not count
+	 * towards W. As with 2PC, a del of a key a quorum read does not find
+	 * fails.
+	 * 
+	 * @return null if W replicas stored the write, otherwise why it failed
+	 */
+	private String quorumWrite(String type, KVMessage msg, List<SlaveInfo> replicas, String id) throws KVException {
+		if (type.equals(DEL_MESSAGE) && masterCache.get(msg.getKey()) == null
+				&& quorumRead(msg, replicas).getValue() == null) {
+			return "Connected to all replicas, but ABORTED";
+		}
+		String stored = VersionedValue.encode(nextVersion(), type.equals(PUT_MESSAGE) ? msg.getValue() : null);
+		KVMessage write = versionedWrite(msg.getKey(), stored, id);
+		int needed = quorumSize(msg.getQuorum() > 0 ? msg.getQuorum() : writeQuorum, replicas.size());
+		long span = Tracer.startSpan();
+		QuorumCall call = new QuorumCall(write, needed);
+		for (SlaveInfo replica : replicas) {
+			call.launch(replica);
+		}
+		boolean reached = call.await();
+		Tracer.endSpan("quorum.write", id, type, span);
+		if (!reached) {
+			return "Quorum Error: Fewer than " + needed + " replicas stored the write\n" + call.getErrors();
+		}
+		return null;
+	}
+
+	/**
+	 * Read a key from every live replica and wait until R of them answered.
+	 * The newest version among the answers is returned, and written back to
+	 * the replicas that answered with an older one, including those that
+	 * answer after the get returned.
+	 * 
+	 * @return response with the key's value, or without one if the key does
+	 *         not exist or was deleted
+	 * @throws KVException
+	 *             if fewer than R replicas answered
+	 */
+	private KVMessage quorumRead(KVMessage msg, List<SlaveInfo> replicas) throws KVException {
+		if (replicas.isEmpty()) {
+			throw buildKVException("Unknown Error: No slave servers registered");
+		}
+		KVMessage get = new KVMessage(GET_MESSAGE);
+		get.setKey(msg.getKey());
+		int needed = quorumSize(msg.getQuorum() > 0 ? msg.getQuorum() : readQuorum, replicas.size());
+		long span = Tracer.startSpan();
+		QuorumCall call = new QuorumCall(get, needed);
+		for (SlaveInfo replica : replicas) {
+			if (replica.isSuspected()) {
+				call.skip(replica);
+			} else {
+				call.launch(replica);
+			}
+		}
+		boolean reached = call.await();
+		Tracer.endSpan("quorum.read", null, msg.getKey(), span);
+		if (!reached) {
+			throw buildKVException("Quorum Error: Fewer than " + needed + " replicas answered\n" + call.getErrors());
+		}
+		String newest = call.decide();
+		KVMessage resp = new KVMessage(RESP_MESSAGE);
+		resp.setKey(msg.getKey());
+		String value = VersionedValue.valueOf(newest);
+		if (value == null) {
+			resp.setMessage(KEY_NOT_HERE);
+		} else {
+			resp.setValue(value);
+		}
+		return resp;
+	}
+
+	/**
+	 * @param requested replicas asked for, 0 for a majority
+	 * @return replicas to wait for, at least one and at most all of them
+	 */
+	private static int quorumSize(int requested, int replicas) {
+		int size = requested > 0 ? requested : replicas / 2 + 1;
+		return Math.max(1, Math.min(size, replicas));
+	}
+
+	private synchronized long nextVersion() {
+		lastVersion = Math.max(lastVersion + 1, System.currentTimeMillis() * 1000);
+		return lastVersion;
+	}
+
+	/**
+	 * Write a versioned value to a replica in the background, as a hint if
+	 * the replica cannot be reached.
+	 */
+	private void sendVersioned(final SlaveInfo replica, String key, String stored) throws KVException {
+		final KVMessage write = versionedWrite(key, stored, getNextTpcOpId());
+		Runnable send = new Runnable() {
+			public void run() {
+				deliverOrHint(replica, write);
+			}
+		};
+		try {
+			getReadPool().addToQueue(send);
+		} catch (InterruptedException e) {
+			throw buildKVException("Unknown Error: Interrupted");
+		}
+	}
+
+	private KVMessage versionedWrite(String key, String stored, String id) throws KVException {
+		KVMessage write = new KVMessage(QUORUM_PUT);
+		write.setKey(key);
+		write.setValue(stored);
+		write.setTpcOpId(id);
+		return write;
+	}
+
+	/**
+	 * Send a quorum write to a replica, or hold it as a hint for when the
+	 * replica is back if it is suspected down or does not answer.
+	 * 
+	 * @return the replica's response, null if the write became a hint
+	 */
+	private KVMessage deliverOrHint(SlaveInfo replica, KVMessage write) {
+		if (!replica.isSuspected()) {
+			try {
+				return replica.request(write, TIMEOUT_MILLISECONDS);
+			} catch (KVException e) {
+				// Held as a hint below
+			}
+		}
+		if (hintedWrites.offer(replica, write)) {
+			Tracer.info("quorum.hint", write.getTpcOpId(), replica.slaveID);
+		} else {
+			// Too many hints held: left to anti-entropy
+			Tracer.warn("quorum.hint.dropped", write.getTpcOpId(), replica.slaveID);
+		}
+		return null;
+	}
+
+	/**
+	 * Copy a key from its replicas on the previous ring to the replicas it
+	 * gained on the new ring, unless that was already done. Takes the key's
+	 * lock, which the caller may already hold.
+	 * 
+	 * @param handoff
+	 *            handoff the key is moved by
+	 * @param key
+	 *            key to move
+	 * @param value
+	 *            current value of the key if already known, null to read it
+	 *            from the previous replicas
+	 * @throws KVException
+	 *             if the key could not be read or written
+	 */
+	void migrateKey(Rebalancer.Handoff handoff, String key, String value) throws KVException {
+		WriteLock keyLock = masterCache.getWriteLock(key);
+		keyLock.lock();
+		try {
+			if (!handoff.needsMigration(key)) {
+				return;
+			}
+			if (value == null) {
+				KVMessage get = new KVMessage(GET_MESSAGE);
+				get.setKey(key);
+				value = readFromReplicas(get, handoff.sourcesFor(key)).getValue();
+			}
+			if (value != null) {
+				KVMessage put = new KVMessage(PUT_MESSAGE);
+				put.setKey(key);
+				put.setValue(value);
+				String error = twoPhaseCommit(PUT_MESSAGE, put, handoff.targetsFor(key), getNextTpcOpId());
+				if (error != null) {
+					throw buildKVException(error);
+				}
+			}
+			handoff.markMigrated(key);
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Copy a batch of keys read from a moved range to the replicas they gain,
+	 * as one chunk per target slave. Keys already migrated, or written since
+	 * the handoff started, are skipped. The locks of all the batch's keys are
+	 * held until the chunks are written; they are taken in set order, as by
+	 * every operation on several keys, so this cannot deadlock.
+	 * 
+	 * @param handoff
+	 *            handoff the keys are moved by
+	 * @param entries
+	 *            keys and values read from a previous replica
+	 * @throws KVException
+	 *             if a chunk could not be written
+	 */
+	void migrateBatch(Rebalancer.Handoff handoff, Map<String, String> entries) throws KVException {
+		List<WriteLock> keyLocks = masterCache.getWriteLocks(entries.keySet());
+		for (WriteLock keyLock : keyLocks) {
+			keyLock.lock();
+		}
+		try {
+			LinkedHashMap<SlaveInfo, LinkedHashMap<String, String>> chunks =
+				new LinkedHashMap<SlaveInfo, LinkedHashMap<String, String>>();
+			ArrayList<String> copied = new ArrayList<String>();
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				if (!handoff.needsMigration(entry.getKey())) {
+					continue;
+				}
+				for (SlaveInfo target : handoff.targetsFor(entry.getKey())) {
+					LinkedHashMap<String, String> chunk = chunks.get(target);
+					if (chunk == null) {
+						chunk = new LinkedHashMap<String, String>();
+						chunks.put(target, chunk);
+					}
+					chunk.put(entry.getKey(), entry.getValue());
+				}
+				copied.add(entry.getKey());
+			}
+			for (Map.Entry<SlaveInfo, LinkedHashMap<String, String>> chunk : chunks.entrySet()) {
+				KVMessage put = new KVMessage(CHUNK_PUT);
+				put.setEntries(chunk.getValue());
+				KVMessage resp = chunk.getKey().request(put, TIMEOUT_MILLISECONDS);
+				if (!SUCCESS.equals(resp.getMessage())) {
+					throw new KVException(resp);
+				}
+			}
+			for (String key : copied) {
+				handoff.markMigrated(key);
+			}
+		} finally {
+			for (WriteLock keyLock : keyLocks) {
+				keyLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Make every replica of a key hold the same value, or no value: the one
+	 * held by most replicas, or by the first replica on the ring on a tie.
+	 * Under chain replication it is the tail's, since a chain write that
+	 * failed partway reached only the replicas before it and was never
+	 * acknowledged. Used by the anti-entropy task once it found that
+	 * replicas disagree.
+	 * 
+	 * @param key
+	 *            key the replicas disagree on
+	 * @return true if some replica was changed
+	 * @throws KVException
+	 *             if a replica could not be read or written
+	 */
+	boolean repairKey(String key) throws KVException {
+		WriteLock keyLock = masterCache.getWriteLock(key);
+		keyLock.lock();
+		try {
+			List<SlaveInfo> replicas = findReplicas(key);
+			ArrayList<String> values = new ArrayList<String>();
+			for (SlaveInfo replica : replicas) {
+				KVMessage get = new KVMessage(GET_MESSAGE);
+				get.setKey(key);
+				KVMessage resp = replica.request(get, TIMEOUT_MILLISECONDS);
+				// A slave answers a get for a missing key with KEY_NOT_HERE,
+				// or with an abort when its store reports the key missing
+				if (resp.getValue() == null && !KEY_NOT_HERE.equals(resp.getMessage())
+						&& !ABORTED.equals(resp.getMsgType())) {
+					throw new KVException(resp);
+				}
+				values.add(resp.getValue());
+			}
+			if (getReplicationMode(key) == ReplicationMode.QUORUM) {
+				return repairVersions(key, replicas, values);
+			}
+			String winner;
+			if (getReplicationMode(key) == ReplicationMode.CHAIN) {
+				winner = values.get(values.size() - 1);
+			} else {
+				winner = values.get(0);
+				int winnerVotes = Collections.frequency(values, winner);
+				for (String value : values) {
+					if (Collections.frequency(values, value) > winnerVotes) {
+						winner = value;
+						winnerVotes = Collections.frequency(values, value);
+					}
+				}
+			}
+			ArrayList<SlaveInfo> stale = new ArrayList<SlaveInfo>();
+			for (int i = 0; i < replicas.size(); i++) {
+				String value = values.get(i);
+				if (winner == null ? value != null : !winner.equals(value)) {
+					stale.add(replicas.get(i));
+				}
+			}
+			if (stale.isEmpty()) {
+				return false;
+			}
+			KVMessage fix = new KVMessage(winner == null ? DEL_MESSAGE : PUT_MESSAGE);
+			fix.setKey(key);
+			fix.setValue(winner);
+			String error = twoPhaseCommit(fix.getMsgType(), fix, stale, getNextTpcOpId());
+			if (error != null) {
+				throw buildKVException(error);
+			}
+			masterCache.del(key);
+			nearCacheInvalidations.invalidate(Collections.singletonList(key));
+			return true;
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	/**
+	 * Write the newest version of a quorum key to its replicas that hold an
+	 * older one.
+	 * 
+	 * @param values stored value of each replica, null if it has none
+	 * @return true if some replica was changed
+	 */
+	private boolean repairVersions(String key, List<SlaveInfo> replicas, List<String> values) throws KVException {
+		String newest = null;
+		for (String value : values) {
+			if (VersionedValue.versionOf(value) > VersionedValue.versionOf(newest)) {
+				newest = value;
+			}
+		}
+		boolean repaired = false;
+		for (int i = 0; i < replicas.size(); i++) {
+			if (VersionedValue.versionOf(values.get(i)) < VersionedValue.versionOf(newest)) {
+				KVMessage resp = replicas.get(i).request(versionedWrite(key, newest, getNextTpcOpId()), TIMEOUT_MILLISECONDS);
+				if (!SUCCESS.equals(resp.getMessage())) {
+					throw new KVException(resp);
+				}
+				repaired = true;
+			}
+		}
+		return repaired;
+	}
+
+	/**
+	 * Copy the ranges of a registered slave that came back without its data
+	 * from their other replicas. Waits for a running handoff first, without
+	 * holding registeredSlavesLock.
+	 * 
+	 * @param slave
+	 *            slave that reported it needs a state transfer
+	 * @return false if no range of the slave has another replica to copy from
+	 */
+	boolean startBootstrap(SlaveInfo slave) {
+		while (true) {
+			registeredSlavesLock.lock();
+			try {
+				if (rebalancer.getRunning() == null) {
+					RingSnapshot snapshot = ring;
+					Rebalancer.Handoff handoff = rebalancer.planBootstrap(snapshot, slave);
+					if (handoff == null) {
+						return false;
+					}
+					ring = snapshot.withHandoff(handoff);
+					rebalancer.launch(handoff);
+					return true;
+				}
+			} finally {
+				registeredSlavesLock.unlock();
+			}
+			rebalancer.awaitIdle();
+		}
+	}
+
+	/**
+	 * Called by the rebalancer once every moved range was copied: publish the
+	 * ring without the handoff, so operations stop checking it.
+	 */
+	void finishHandoff(Rebalancer.Handoff handoff) {
+		RingSnapshot snapshot = ring;
+		if (snapshot.getHandoff() == handoff) {
+			ring = snapshot.withHandoff(null);
+		}
+	}
+
+	public static void turnOnIgnoreNext(){
+		ignoreNextMessage = true;
+	}
+	
+	public static void turnOffIgnoreNext(){
+		ignoreNextMessage = false;
+	}
+	
+	private String setType(Boolean isPutReq) {
+		if (ignoreNextMessage){
+			return IGNORE_NEXT;
+		}
+		
+		if (isPutReq)
+			return PUT_MESSAGE; // make constant
+		return DEL_MESSAGE;
+	}
+
+	private void sendRequestPhase1(SlaveConnectionPool.Connection[] conns, List<? extends List<KVMessage>> requests,
+			int part, boolean[] sending) {
+		// Send to every replica before reading any vote so they prepare in
+		// parallel. A failed send shows up as a timeout when reading the vote.
+		for (int i = 0; i < conns.length; i++) {
+			if (sending[i]) {
+				try {
+					conns[i].send(requests.get(i).get(part));
+				} catch (KVException e) {
+				}
+			}
+		}
+	}
+
+	private KVMessage readResponsePhase1(SlaveConnectionPool.Connection conn) throws KVException {
+		try {
+			return conn.receive(TIMEOUT_MILLISECONDS);
+		} catch (KVException exception) {
+			return new KVMessage(ABORTED, "Timeout Error: Could not receive data");
+		}
+	}
+
+
+	/**
+	 * Send the decision to a replica. If the replica does not acknowledge it,
+	 * the decision is handed to phase2Retries and redelivered in the
+	 * background, so the client does not wait for the replica to come back.
+	 * 
+	 * @return whether the decision took one of the transaction's reserved
+	 *         slots of phase2Retries
+	 */
+	private boolean phase2SendRequest(SlaveInfo server, KVMessage decide) {
+		if (!server.isSuspected()) {
+			try {
+				server.request(decide, TIMEOUT_MILLISECONDS);
+				return false;
+			} catch (KVException exception) {
+				// Fall through to the retry queue
+			}
+		}
+		phase2Retries.add(server, decide);
+		return true;
+	}
+
+	private void phase2CacheResponse(String type, KVMessage msg) {
+		if (type.equals(PUT_MESSAGE)) {
+			masterCache.put(msg.getKey(), msg.getValue());
+		} else if (type.equals(DEL_MESSAGE)) {
+			masterCache.del(msg.getKey());
+		}
+	}
+
+	/**
+	 * Put some useful comments here asshole
+	 */
+	public void handleIgnoreNext(KVMessage msg) throws KVException {
+		KVMessage resp = null;
+		for (SlaveInfo slaveServer : ring.getSlaves()) {
+			try {
+				resp = slaveServer.request(msg, TIMEOUT_MILLISECONDS);
+			}
+			catch (KVException e) {
+				KVMessage combinedErrorMessage = new KVMessage(RESP_MESSAGE, e.getMessage() + "\n" + e.getMessage());
+				throw new KVException(combinedErrorMessage);
+			}
+		}
+	}
+	
+	/**
+	 * Perform GET operation in the following manner:
+	 * - Try to GET from cache, return immediately if found
+	 * - Try to GET from first/primary replica
+	 * - If primary succeeded, return value
+	 * - If primary failed, try to GET from the other replica
+	 * - If secondary succeeded, return value
+	 * - If secondary failed, return KVExceptions from both replicas Please see spec for more details.
+	 * A client that caches the value is subscribed to its invalidations
+	 * while the key's lock is held.
+	 * 
+	 * @param msg
+	 *            Message containing Key to get
+	 * @return Value corresponding to the Key
+	 * @throws KVException
+	 */
+	public String handleGet(KVMessage msg) throws KVException {
+		AutoGrader.aghandleGetStarted();
+		String key = msg.getKey();
+		WriteLock keyLock = masterCache.getWriteLock(key);
+		keyLock.lock();
 		String value = masterCache.get(key);
 		if (value != null) {
+			Tracer.info("master.cache.hit", null, key);
+			if (msg.getSubscriber() != null) {
+				nearCacheInvalidations.subscribe(key, msg.getSubscriber());
+			}
 			keyLock.unlock();
 			AutoGrader.aghandleGetFinished();
 			return value;
 		}
-		SlaveInfo firstServer = findFirstReplica(key);
-		SlaveInfo secondServer = findSuccessor(firstServer);
-		KVMessage resp = null;
-		Socket firstSocket = null;
-		Socket secondSocket = null;
-		while (resp == null) {
+		Tracer.info("master.cache.miss", null, key);
+		KVMessage resp = null;
+		try {
+			RingSnapshot snapshot = ring;
+			resp = readKey(msg, snapshot.replicasFor(hashTo64bit(key)));
+			Rebalancer.Handoff handoff = snapshot.getHandoff();
+			if (resp.getValue() == null && handoff != null && handoff.needsMigration(key)) {
+				// Not moved to its new replicas yet: read the previous ones
+				resp = readKey(msg, handoff.sourcesFor(key));
+			}
+			if (resp.getValue() == null) {
+				// Replica answered but does not have the key
+				throw buildKVException(resp.getMessage());
+			}
+		} finally {
+			if (resp == null || resp.getValue() == null) {
+				keyLock.unlock();
+				AutoGrader.aghandleGetFinished();
+			}
+		}
+		
+		value = resp.getValue();
+		masterCache.put(key, value);
+		if (msg.getSubscriber() != null) {
+			nearCacheInvalidations.subscribe(key, msg.getSubscriber());
+		}
+		keyLock.unlock();
+		AutoGrader.aghandleGetFinished();
+		return value;
+	}
+	
+	/**
+	 * Read a key from the replicas its replication mode reads from.
+	 */
+	private KVMessage readKey(KVMessage msg, List<SlaveInfo> replicas) throws KVException {
+		String key = msg.getKey();
+		if (getReplicationMode(key) == ReplicationMode.QUORUM) {
+			return quorumRead(msg, replicas);
+		}
+		return readFromReplicas(msg, readableReplicas(key, replicas));
+	}
+
+	/**
+	 * Read a key from its live replicas, fastest replica (by recent latency) first.
+	 * If the first replica has not answered within its hedgePercentile latency,
+	 * the request is also sent to the next replica and whichever answers first
+	 * wins. A replica that fails outright is replaced by the next one at once.
+	 * 
+	 * @param msg
+	 *            get request to forward
+	 * @param replicas
+	 *            replicas of the key
+	 * @return response of the first replica to answer
+	 * @throws KVException
+	 *             if every replica failed
+	 */
+	private KVMessage readFromReplicas(KVMessage msg, List<SlaveInfo> replicas) throws KVException {
+		if (replicas.isEmpty()) {
+			throw buildKVException("Unknown Error: No slave servers registered");
+		}
+		// Replicas suspected down are skipped without waiting for a timeout
+		ArrayList<SlaveInfo> ordered = new ArrayList<SlaveInfo>(replicas.size());
+		String suspected = "";
+		for (SlaveInfo replica : replicas) {
+			if (replica.isSuspected()) {
+				suspected += (suspected.length() > 0 ? "\n" : "") + replica.slaveID + ":= Slave suspected down";
+			} else {
+				ordered.add(replica);
+			}
+		}
+		if (ordered.isEmpty()) {
+			throw buildKVException(suspected);
+		}
+		Collections.sort(ordered, new Comparator<SlaveInfo>() {
+			public int compare(SlaveInfo a, SlaveInfo b) {
+				return Double.compare(a.latency.getAverageMicros(), b.latency.getAverageMicros());
+			}
+		});
+		if (!hedgeReads || ordered.size() == 1) {
+			String errors = "";
+			for (SlaveInfo replica : ordered) {
+				try {
+					return replica.request(msg, TIMEOUT_MILLISECONDS);
+				} catch (KVException e) {
+					/**
+					 * Spec: "Multiple error messages in case of an abort should be placed in the same Message field 
+					 * of a"resp" message prefixed by @SlaveServerID:= and separated by the newline character '\n'.
+					 * These will be created by TPCMaster and returned to the client if multiple slaves return error messages.
+					 * Use this as you deem necessary." It's never really supposed to happen though. -George
+					 */
+					errors += (errors.length() > 0 ? "\n" : "") + replica.slaveID + ":= " + e.getMsg().getMessage();
+				}
+			}
+			throw buildKVException(errors);
+		}
+
+		HedgedRead read = new HedgedRead(msg);
+		int launched = 0;
+		read.launch(ordered.get(launched++));
+		while (true) {
+			long wait = (launched < ordered.size())
+					? ordered.get(launched - 1).getHedgeDelayMillis(hedgePercentile)
+					: 3L * TIMEOUT_MILLISECONDS;
+			KVMessage resp = read.awaitOutcome(launched, wait);
+			if (resp != null) {
+				return resp;
+			}
+			if (launched < ordered.size()) {
+				// Slow or failed: hedge with the next replica
+				read.launch(ordered.get(launched++));
+			} else if (read.getFailures() >= launched) {
+				throw buildKVException(read.getErrors());
+			} else {
+				throw buildKVException("Timeout Error: Could not receive data");
+			}
+		}
+	}
+
+	/**
+	 * Read several keys at once. Keys found in the cache are answered from
+	 * it; the others are grouped by the first live replica of each, and each
+	 * of those slaves is sent one batched get, all in parallel. Keys of a
+	 * slave that failed are asked of their next replica in another round.
+	 * Keys of quorum keyspaces are read from all their replicas instead, as
+	 * a quorum get reads them.
+	 * Keys are not locked while they are read, so a key written at the same
+	 * time may be read before or after the write.
+	 * 
+	 * @param msg
+	 *            batched get with the keys to read
+	 * @return response with the pair of each key that exists, in request
+	 *         order, and an error for each key none of whose replicas could
+	 *         be read; keys that do not exist are left out
+	 * @throws KVException
+	 *             if the batch is invalid
+	 */
+	public KVMessage handleMultiGet(KVMessage msg) throws KVException {
+		List<String> keys = msg.getKeys();
+		if (keys == null || keys.isEmpty() || keys.size() > MAX_BATCH_KEYS) {
+			throw buildKVException("Unknown Error: Batch size out of range");
+		}
+		LinkedHashMap<String, String> values = new LinkedHashMap<String, String>();
+		LinkedHashMap<String, String> errors = new LinkedHashMap<String, String>();
+		RingSnapshot snapshot = ring;
+		LinkedHashMap<String, List<SlaveInfo>> misses = new LinkedHashMap<String, List<SlaveInfo>>();
+		for (String key : keys) {
+			WriteLock keyLock = masterCache.getWriteLock(key);
+			keyLock.lock();
+			try {
+				String value = masterCache.get(key);
+				if (value != null) {
+					values.put(key, value);
+					continue;
+				}
+			} finally {
+				keyLock.unlock();
+			}
+			misses.put(key, readableReplicas(key, snapshot.replicasFor(hashTo64bit(key))));
+		}
+		List<String> notFound = readKeys(misses, values, errors);
+		Rebalancer.Handoff handoff = snapshot.getHandoff();
+		if (handoff != null) {
+			// Not moved to their new replicas yet: read the previous ones
+			LinkedHashMap<String, List<SlaveInfo>> unmoved = new LinkedHashMap<String, List<SlaveInfo>>();
+			for (String key : notFound) {
+				if (handoff.needsMigration(key)) {
+					unmoved.put(key, readableReplicas(key, handoff.sourcesFor(key)));
+				}
+			}
+			readKeys(unmoved, values, errors);
+		}
+		LinkedHashMap<String, String> ordered = new LinkedHashMap<String, String>();
+		for (String key : keys) {
+			if (values.containsKey(key)) {
+				ordered.put(key, values.get(key));
+			}
+		}
+		KVMessage resp = new KVMessage(RESP_MESSAGE);
+		resp.setEntries(ordered);
+		if (!errors.isEmpty()) {
+			resp.setErrors(errors);
+		}
+		return resp;
+	}
+
+	/**
+	 * Read keys with the batched get of their replication mode.
+	 * 
+	 * @return keys that no replica has a value for
+	 */
+	private List<String> readKeys(Map<String, List<SlaveInfo>> replicas, Map<String, String> values,
+			Map<String, String> errors) throws KVException {
+		LinkedHashMap<String, List<SlaveInfo>> quorumKeys = new LinkedHashMap<String, List<SlaveInfo>>();
+		LinkedHashMap<String, List<SlaveInfo>> otherKeys = new LinkedHashMap<String, List<SlaveInfo>>();
+		for (Map.Entry<String, List<SlaveInfo>> entry : replicas.entrySet()) {
+			if (getReplicationMode(entry.getKey()) == ReplicationMode.QUORUM) {
+				quorumKeys.put(entry.getKey(), entry.getValue());
+			} else {
+				otherKeys.put(entry.getKey(), entry.getValue());
+			}
+		}
+		List<String> notFound = readBatch(otherKeys, values, errors);
+		if (!quorumKeys.isEmpty()) {
+			notFound.addAll(quorumReadBatch(quorumKeys, values, errors));
+		}
+		return notFound;
+	}
+
+	/**
+	 * Read keys of quorum keyspaces with one batched get per slave, sent to
+	 * every live replica of each key, and keep the newest version among the
+	 * answers of each key, as a quorum get does. Unlike a quorum get, it waits
+	 * for every replica it asked rather than the first R. A slave whose
+	 * pairs do not fit in one response is asked again for the rest.
+	 * Replicas that answered with an older version are repaired in the
+	 * background.
+	 * 
+	 * @param replicas
+	 *            replicas of each key to read
+	 * @param values
+	 *            receives the value of each key found
+	 * @param errors
+	 *            receives the error of each key fewer than R of whose
+	 *            replicas could be read
+	 * @return keys that do not exist or were deleted
+	 */
+	private List<String> quorumReadBatch(Map<String, List<SlaveInfo>> replicas, Map<String, String> values,
+			Map<String, String> errors) throws KVException {
+		LinkedHashMap<SlaveInfo, ArrayList<String>> shares = new LinkedHashMap<SlaveInfo, ArrayList<String>>();
+		for (Map.Entry<String, List<SlaveInfo>> entry : replicas.entrySet()) {
+			for (SlaveInfo replica : entry.getValue()) {
+				if (replica.isSuspected()) {
+					continue;
+				}
+				ArrayList<String> share = shares.get(replica);
+				if (share == null) {
+					share = new ArrayList<String>();
+					shares.put(replica, share);
+				}
+				share.add(entry.getKey());
+			}
+		}
+		// Stored value of each key a slave answered for, null if it has none
+		HashMap<SlaveInfo, HashMap<String, String>> answers = new HashMap<SlaveInfo, HashMap<String, String>>();
+		HashMap<SlaveInfo, KVException> failed = new HashMap<SlaveInfo, KVException>();
+		Map<SlaveInfo, ? extends List<String>> pending = shares;
+		while (!pending.isEmpty()) {
+			FanOut round = new FanOut();
+			for (Map.Entry<SlaveInfo, ? extends List<String>> share : pending.entrySet()) {
+				KVMessage get = new KVMessage(MGET);
+				get.setKeys(share.getValue());
+				round.launch(share.getKey(), get);
+			}
+			round.awaitAll();
+			LinkedHashMap<SlaveInfo, List<String>> rest = new LinkedHashMap<SlaveInfo, List<String>>();
+			for (Map.Entry<SlaveInfo, ? extends List<String>> share : pending.entrySet()) {
+				SlaveInfo replica = share.getKey();
+				try {
+					KVMessage resp = round.getResponse(replica);
+					if (resp.getEntries() == null) {
+						throw new KVException(resp);
+					}
+					List<String> keys = share.getValue();
+					int answered = answeredKeys(keys, resp);
+					if (!answers.containsKey(replica)) {
+						answers.put(replica, new HashMap<String, String>());
+					}
+					for (String key : keys.subList(0, answered)) {
+						answers.get(replica).put(key, resp.getEntries().get(key));
+					}
+					if (answered < keys.size()) {
+						rest.put(replica, keys.subList(answered, keys.size()));
+					}
+				} catch (KVException e) {
+					failed.put(replica, e);
+				}
+			}
+			pending = rest;
+		}
+		ArrayList<String> notFound = new ArrayList<String>();
+		for (Map.Entry<String, List<SlaveInfo>> entry : replicas.entrySet()) {
+			String key = entry.getKey();
+			int needed = quorumSize(readQuorum, entry.getValue().size());
+			LinkedHashMap<SlaveInfo, String> copies = new LinkedHashMap<SlaveInfo, String>();
+			String failures = "";
+			String newest = null;
+			for (SlaveInfo replica : entry.getValue()) {
+				try {
+					if (!shares.containsKey(replica)) {
+						throw buildKVException("Slave suspected down");
+					}
+					if (failed.containsKey(replica)) {
+						throw failed.get(replica);
+					}
+					String copy = answers.get(replica).get(key);
+					copies.put(replica, copy);
+					if (VersionedValue.versionOf(copy) > VersionedValue.versionOf(newest)) {
+						newest = copy;
+					}
+				} catch (KVException e) {
+					failures += "\n" + replica.slaveID + ": " + e.getMsg().getMessage();
+				}
+			}
+			if (copies.size() < needed) {
+				errors.put(key, "Quorum Error: Fewer than " + needed + " replicas answered" + failures);
+				continue;
+			}
+			for (Map.Entry<SlaveInfo, String> copy : copies.entrySet()) {
+				if (VersionedValue.versionOf(copy.getValue()) < VersionedValue.versionOf(newest)) {
+					Tracer.info("quorum.repair", null, key);
+					sendVersioned(copy.getKey(), key, newest);
+				}
+			}
+			String value = VersionedValue.valueOf(newest);
+			if (value != null) {
+				values.put(key, value);
+			} else {
+				notFound.add(key);
+			}
+		}
+		return notFound;
+	}
+
+	/**
+	 * @return how many of the keys of a batched get the slave answered for:
+	 *         all of them, or those up to the last pair it returned if the
+	 *         rest did not fit in its response
+	 * @throws KVException
+	 *             if the slave returned no pair but said more were left
+	 */
+	private int answeredKeys(List<String> keys, KVMessage resp) throws KVException {
+		if (!resp.hasMore()) {
+			return keys.size();
+		}
+		int answered = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			if (resp.getEntries().containsKey(keys.get(i))) {
+				answered = i + 1;
+			}
+		}
+		if (answered == 0) {
+			throw new KVException(new KVMessage(RESP_MESSAGE, "Message format incorrect"));
+		}
+		return answered;
+	}
+
+	/**
+	 * Read keys with one batched get per slave, sending each key to the first
+	 * of its replicas that is live and has not failed yet. A slave whose
+	 * pairs do not fit in one response is asked again for the rest.
+	 * 
+	 * @param replicas
+	 *            replicas of each key to read
+	 * @param values
+	 *            receives the value of each key found
+	 * @param errors
+	 *            receives the error of each key none of whose replicas
+	 *            could be read
+	 * @return keys that a replica answered for but does not have
+	 */
+	private List<String> readBatch(Map<String, List<SlaveInfo>> replicas, Map<String, String> values,
+			Map<String, String> errors) throws KVException {
+		ArrayList<String> notFound = new ArrayList<String>();
+		HashMap<String, Integer> tried = new HashMap<String, Integer>();
+		HashMap<String, String> lastError = new HashMap<String, String>();
+		ArrayList<String> pending = new ArrayList<String>(replicas.keySet());
+		while (!pending.isEmpty()) {
+			LinkedHashMap<SlaveInfo, ArrayList<String>> shares = new LinkedHashMap<SlaveInfo, ArrayList<String>>();
+			for (String key : pending) {
+				List<SlaveInfo> candidates = replicas.get(key);
+				int next = tried.containsKey(key) ? tried.get(key) : 0;
+				while (next < candidates.size() && candidates.get(next).isSuspected()) {
+					next++;
+				}
+				tried.put(key, next);
+				if (next == candidates.size()) {
+					String error = lastError.get(key);
+					errors.put(key, error != null ? error : "Unknown Error: No live replica");
+					continue;
+				}
+				ArrayList<String> share = shares.get(candidates.get(next));
+				if (share == null) {
+					share = new ArrayList<String>();
+					shares.put(candidates.get(next), share);
+				}
+				share.add(key);
+			}
+			FanOut round = new FanOut();
+			for (Map.Entry<SlaveInfo, ArrayList<String>> share : shares.entrySet()) {
+				KVMessage get = new KVMessage(MGET);
+				get.setKeys(share.getValue());
+				round.launch(share.getKey(), get);
+			}
+			round.awaitAll();
+			pending = new ArrayList<String>();
+			for (Map.Entry<SlaveInfo, ArrayList<String>> share : shares.entrySet()) {
+				try {
+					KVMessage resp = round.getResponse(share.getKey());
+					if (resp.getEntries() == null) {
+						throw new KVException(resp);
+					}
+					List<String> keys = share.getValue();
+					int answered = answeredKeys(keys, resp);
+					for (String key : keys.subList(0, answered)) {
+						String value = resp.getEntries().get(key);
+						if (value != null) {
+							values.put(key, value);
+						} else {
+							notFound.add(key);
+						}
+					}
+					// Did not fit in the response: asked of the same slave again
+					pending.addAll(keys.subList(answered, keys.size()));
+				} catch (KVException e) {
+					for (String key : share.getValue()) {
+						lastError.put(key, share.getKey().slaveID + ": " + e.getMsg().getMessage());
+						tried.put(key, tried.get(key) + 1);
+						pending.add(key);
+					}
+				}
+			}
+		}
+		return notFound;
+	}
+
+	/**
+	 * Scan the pairs with startKey <= key < endKey in key order. Keys are
+	 * spread over the slaves by hash, so every live slave is scanned from the
+	 * first key, one page at a time, and the pages are merged as in a merge
+	 * sort; the first pages are requested from all slaves in parallel. A
+	 * key's value is taken from a slave that replicates it on the current
+	 * ring, or that it was not moved away from yet, so copies left behind by
+	 * rebalancing are skipped. Only one page per slave is held at a time.
+	 * Keys whose replicas are all suspected down are left out. A key of a
+	 * quorum keyspace takes the newest version among its replicas' copies,
+	 * and is left out if it was deleted or fewer than R of its replicas
+	 * could be scanned.
+	 * 
+	 * @param msg
+	 *            scan request with the first key, the end key and the limit
+	 * @return response with up to limit pairs in key order, and More set if
+	 *         the scan may not have reached the end key
+	 * @throws KVException
+	 *             if the limit is out of range or a slave could not be read
+	 */
+	public KVMessage handleScan(KVMessage msg) throws KVException {
+		int limit = msg.getLimit();
+		if (limit < 1 || limit > MAX_SCAN_LIMIT) {
+			throw buildKVException("Unknown Error: Scan limit out of range");
+		}
+		RingSnapshot snapshot = ring;
+		ArrayList<ScanCursor> cursors = new ArrayList<ScanCursor>();
+		for (SlaveInfo slave : snapshot.getSlaves()) {
+			if (!slave.isSuspected()) {
+				cursors.add(new ScanCursor(slave, msg, limit));
+			}
+		}
+		if (cursors.isEmpty()) {
+			throw buildKVException("Unknown Error: No slave servers available");
+		}
+		FanOut firstPages = new FanOut();
+		for (ScanCursor cursor : cursors) {
+			firstPages.launch(cursor.slave, cursor.nextRequest());
+		}
+		firstPages.awaitAll();
+		for (ScanCursor cursor : cursors) {
+			cursor.accept(firstPages.getResponse(cursor.slave));
+		}
+
+		LinkedHashMap<String, String> pairs = new LinkedHashMap<String, String>();
+		boolean more = false;
+		int chars = 0;
+		while (true) {
+			String smallest = null;
+			for (ScanCursor cursor : cursors) {
+				cursor.fill();
+				String head = cursor.head();
+				if (head != null && (smallest == null || head.compareTo(smallest) < 0)) {
+					smallest = head;
+				}
+			}
+			if (smallest == null) {
+				break;
+			}
+			if (pairs.size() == limit) {
+				more = true;
+				break;
+			}
+			boolean quorum = getReplicationMode(smallest) == ReplicationMode.QUORUM;
+			String value = null;
+			for (ScanCursor cursor : cursors) {
+				if (smallest.equals(cursor.head())) {
+					String copy = cursor.pop();
+					if (!holdsCurrentCopy(cursor.slave, smallest, snapshot)) {
+						continue;
+					}
+					if (value == null || (quorum && VersionedValue.versionOf(copy) > VersionedValue.versionOf(value))) {
+						value = copy;
+					}
+				}
+			}
+			if (quorum) {
+				value = scansReadQuorum(smallest, snapshot, cursors) ? VersionedValue.valueOf(value) : null;
+			}
+			if (value != null) {
+				if (!pairs.isEmpty() && chars + value.length() > MAX_SCAN_RESPONSE_CHARS) {
+					more = true;
+					break;
+				}
+				pairs.put(smallest, value);
+				chars += value.length();
+			}
+		}
+		KVMessage resp = new KVMessage(RESP_MESSAGE);
+		resp.setEntries(pairs);
+		resp.setMore(more);
+		return resp;
+	}
+
+	/**
+	 * @return whether the slave is meant to hold the key's current value:
+	 *         it replicates the key, or the key was not moved away from it
+	 *         yet; only the tail does under chain replication
+	 */
+	private boolean holdsCurrentCopy(SlaveInfo slave, String key, RingSnapshot snapshot) {
+		if (readableReplicas(key, snapshot.replicasFor(hashTo64bit(key))).contains(slave)) {
+			return true;
+		}
+		Rebalancer.Handoff handoff = snapshot.getHandoff();
+		return handoff != null && handoff.needsMigration(key)
+				&& readableReplicas(key, handoff.sourcesFor(key)).contains(slave);
+	}
+
+	/**
+	 * @return whether R of the quorum key's replicas are scanned
+	 */
+	private boolean scansReadQuorum(String key, RingSnapshot snapshot, List<ScanCursor> cursors) {
+		List<SlaveInfo> replicas = snapshot.replicasFor(hashTo64bit(key));
+		int needed = quorumSize(readQuorum, replicas.size());
+		int scanned = 0;
+		for (ScanCursor cursor : cursors) {
+			if (replicas.contains(cursor.slave)) {
+				scanned++;
+			}
+		}
+		return scanned >= needed;
+	}
+
+	/**
+	 * Position of a scan on one slave: the page last received from it and
+	 * where the next page starts.
+	 */
+	private class ScanCursor {
+		final SlaveInfo slave;
+		private final KVMessage scan;
+		private final int pageSize;
+		private final ArrayDeque<Map.Entry<String, String>> page = new ArrayDeque<Map.Entry<String, String>>();
+		// Last key received, null until the first page arrives
+		private String lastKey = null;
+		private boolean more = true;
+
+		ScanCursor(SlaveInfo slave, KVMessage scan, int pageSize) {
+			this.slave = slave;
+			this.scan = scan;
+			this.pageSize = pageSize;
+		}
+
+		KVMessage nextRequest() throws KVException {
+			KVMessage req = new KVMessage(SCAN);
+			if (lastKey == null) {
+				req.setKey(scan.getKey());
+				req.setAfterKey(scan.getAfterKey());
+			} else {
+				req.setAfterKey(lastKey);
+			}
+			req.setEndKey(scan.getEndKey());
+			req.setLimit(pageSize);
+			return req;
+		}
+
+		void accept(KVMessage resp) throws KVException {
+			if (resp.getEntries() == null) {
+				throw new KVException(resp);
+			}
+			for (Map.Entry<String, String> entry : resp.getEntries().entrySet()) {
+				page.add(entry);
+				lastKey = entry.getKey();
+			}
+			more = resp.hasMore();
+		}
+
+		/**
+		 * Fetch the next page once the current one is used up.
+		 */
+		void fill() throws KVException {
+			if (page.isEmpty() && more) {
+				accept(slave.request(nextRequest(), TIMEOUT_MILLISECONDS));
+			}
+		}
+
+		/**
+		 * @return smallest key not merged yet, null if the slave has no more
+		 */
+		String head() {
+			return page.isEmpty() ? null : page.peek().getKey();
+		}
+
+		/**
+		 * @return value of the head, which is removed
+		 */
+		String pop() {
+			return page.poll().getValue();
+		}
+	}
+
+	/**
+	 * Requests sent to several slaves at once through the read pool, whose
+	 * responses are collected as they arrive.
+	 */
+	private class FanOut {
+		private final Lock lock = new ReentrantLock();
+		private final Condition finished = lock.newCondition();
+		private final HashMap<SlaveInfo, KVMessage> responses = new HashMap<SlaveInfo, KVMessage>();
+		private final HashMap<SlaveInfo, KVException> errors = new HashMap<SlaveInfo, KVException>();
+		private int launched = 0;
+
+		void launch(final SlaveInfo slave, final KVMessage msg) throws KVException {
+			Runnable request = new Runnable() {
+				public void run() {
+					KVMessage resp = null;
+					KVException error = null;
+					try {
+						resp = slave.request(msg, TIMEOUT_MILLISECONDS);
+					} catch (KVException e) {
+						error = e;
+					}
+					lock.lock();
+					try {
+						if (resp != null) {
+							responses.put(slave, resp);
+						} else {
+							errors.put(slave, error);
+						}
+						finished.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			};
+			launched++;
+			try {
+				getReadPool().addToQueue(request);
+			} catch (InterruptedException e) {
+				throw buildKVException("Unknown Error: Interrupted");
+			}
+		}
+
+		/**
+		 * Wait until every launched request was answered or failed. Requests
+		 * time out on their own, so this does not block forever.
+		 */
+		void awaitAll() {
+			lock.lock();
+			try {
+				while (responses.size() + errors.size() < launched) {
+					finished.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return the slave's response
+		 * @throws KVException
+		 *             the error of the slave's request if it failed
+		 */
+		KVMessage getResponse(SlaveInfo slave) throws KVException {
+			lock.lock();
+			try {
+				KVException error = errors.get(slave);
+				if (error != null) {
+					throw error;
+				}
+				return responses.get(slave);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private synchronized ThreadPool getReadPool() {
+		if (readPool == null) {
+			readPool = new ThreadPool(READ_THREADS);
+		}
+		return readPool;
+	}
+
+	/**
+	 * State of one get sent to one or more replicas. The first response is
+	 * kept; later ones are dropped but still count towards replica latency.
+	 */
+	private class HedgedRead {
+		private final KVMessage msg;
+		private final Lock lock = new ReentrantLock();
+		private final Condition finished = lock.newCondition();
+		private KVMessage response = null;
+		private int failures = 0;
+		private String errors = "";
+
+		HedgedRead(KVMessage msg) {
+			this.msg = msg;
+		}
+
+		void launch(final SlaveInfo replica) throws KVException {
+			Runnable attempt = new Runnable() {
+				public void run() {
+					KVMessage resp = null;
+					String error = null;
+					try {
+						resp = replica.request(msg, TIMEOUT_MILLISECONDS);
+					} catch (KVException e) {
+						error = replica.slaveID + ":= " + e.getMsg().getMessage();
+					}
+					lock.lock();
+					try {
+						if (resp != null) {
+							if (response == null) {
+								response = resp;
+							}
+						} else {
+							failures++;
+							errors += (errors.length() > 0 ? "\n" : "") + error;
+						}
+						finished.signalAll();
+					} finally {
+						lock.unlock();
+					}
+				}
+			};
+			try {
+				getReadPool().addToQueue(attempt);
+			} catch (InterruptedException e) {
+				throw buildKVException("Unknown Error: Interrupted");
+			}
+		}
+
+		/**
+		 * Wait until a response arrived, every launched attempt failed or the
+		 * wait time elapsed.
+		 * 
+		 * @return the response, or null if there is none yet
+		 */
+		KVMessage awaitOutcome(int launched, long waitMillis) {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			lock.lock();
+			try {
+				while (response == null && failures < launched && remaining > 0) {
+					remaining = finished.awaitNanos(remaining);
+				}
+				return response;
+			} catch (InterruptedException e) {
+				return response;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int getFailures() {
+			lock.lock();
 			try {
-				firstSocket = firstServer.connectHost();
-				msg.sendMessage(firstSocket);
-				resp = new KVMessage(firstSocket, TIMEOUT_MILLISECONDS);
-				firstServer.closeHost(firstSocket);
-				// what if the server had shut off???
-			} catch (KVException e1) {
+				return failures;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		String getErrors() {
+			lock.lock();
+			try {
+				return errors;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * State of one quorum get or write sent to several replicas at once, of
+	 * which the first needed successes are waited for. A write succeeds on
+	 * a replica that acknowledged it; one that fails is held as a hint. A
+	 * get succeeds on every replica that answered. Once a get is decided,
+	 * replicas answering with an older version, then or later, are
+	 * repaired.
+	 */
+	private class QuorumCall {
+		private final KVMessage msg;
+		private final int needed;
+		private final boolean isWrite;
+		private final Lock lock = new ReentrantLock();
+		private final Condition answered = lock.newCondition();
+		// Stored value each replica answered a get with, null if it has none
+		private final LinkedHashMap<SlaveInfo, String> values = new LinkedHashMap<SlaveInfo, String>();
+		private int successes = 0;
+		private int outstanding = 0;
+		private String errors = "";
+		// Newest stored value, once the get is decided
+		private String newest = null;
+		private boolean decided = false;
+
+		QuorumCall(KVMessage msg, int needed) {
+			this.msg = msg;
+			this.needed = needed;
+			this.isWrite = msg.getMsgType().equals(QUORUM_PUT);
+		}
+
+		void launch(final SlaveInfo replica) throws KVException {
+			Runnable attempt = new Runnable() {
+				public void run() {
+					KVMessage resp = null;
+					String error = null;
+					if (isWrite) {
+						resp = deliverOrHint(replica, msg);
+						if (resp == null) {
+							error = "Slave could not be reached, write held as a hint";
+						} else if (!SUCCESS.equals(resp.getMessage())) {
+							error = resp.getMessage();
+						}
+					} else {
+						try {
+							resp = replica.request(msg, TIMEOUT_MILLISECONDS);
+						} catch (KVException e) {
+							error = e.getMsg().getMessage();
+						}
+					}
+					finished(replica, error == null ? resp : null, error);
+				}
+			};
+			lock.lock();
+			try {
+				outstanding++;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				getReadPool().addToQueue(attempt);
+			} catch (InterruptedException e) {
+				throw buildKVException("Unknown Error: Interrupted");
+			}
+		}
+
+		/**
+		 * Count a replica suspected down as failed without asking it.
+		 */
+		void skip(SlaveInfo replica) {
+			lock.lock();
+			try {
+				errors += (errors.length() > 0 ? "\n" : "") + replica.slaveID + ":= Slave suspected down";
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void finished(SlaveInfo replica, KVMessage resp, String error) {
+			String repair = null;
+			lock.lock();
+			try {
+				outstanding--;
+				if (resp == null) {
+					errors += (errors.length() > 0 ? "\n" : "") + replica.slaveID + ":= " + error;
+				} else {
+					successes++;
+					values.put(replica, resp.getValue());
+					if (decided && VersionedValue.versionOf(resp.getValue()) < VersionedValue.versionOf(newest)) {
+						repair = newest;
+					}
+				}
+				answered.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (repair != null) {
 				try {
-					secondSocket = secondServer.connectHost();
-					msg.sendMessage(secondSocket);
-					resp = new KVMessage(secondSocket, TIMEOUT_MILLISECONDS);
-					secondServer.closeHost(secondSocket);
-				} catch (KVException e2) {
-					/**
-					 * Spec: "Multiple error messages in case of an abort should be placed in the same Message field 
-					 * of a"resp" message prefixed by @SlaveServerID:= and separated by the newline character '\n'.
-					 * These will be created by TPCMaster and returned to the client if multiple slaves return error messages.
-					 * Use this as you deem necessary." It's never really supposed to happen though. -George
-					 */
-					throw buildKVException(firstServer.slaveID+":= "+e1.getMessage() + "\n" + secondServer.slaveID+":= "+e2.getMessage());
+					deliverOrHint(replica, versionedWrite(msg.getKey(), repair, getNextTpcOpId()));
+				} catch (KVException e) {
+					// Left to anti-entropy
 				}
 			}
 		}
-		
-		value = resp.getValue();
-		masterCache.put(key, value);
-		keyLock.unlock();
-		AutoGrader.aghandleGetFinished();
-		return value;
+
+		/**
+		 * Wait until needed replicas succeeded, too many failed for that,
+		 * or the timeout of a request elapsed.
+		 * 
+		 * @return whether needed replicas succeeded
+		 */
+		boolean await() {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLISECONDS);
+			lock.lock();
+			try {
+				while (successes < needed && successes + outstanding >= needed && remaining > 0) {
+					remaining = answered.awaitNanos(remaining);
+				}
+				return successes >= needed;
+			} catch (InterruptedException e) {
+				return successes >= needed;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Pick the newest value among the answers of a get and repair the
+		 * replicas that answered with an older one.
+		 * 
+		 * @return newest stored value, null if no replica has the key
+		 */
+		String decide() throws KVException {
+			ArrayList<SlaveInfo> stale = new ArrayList<SlaveInfo>();
+			lock.lock();
+			try {
+				for (String value : values.values()) {
+					if (VersionedValue.versionOf(value) > VersionedValue.versionOf(newest)) {
+						newest = value;
+					}
+				}
+				for (Map.Entry<SlaveInfo, String> answer : values.entrySet()) {
+					if (VersionedValue.versionOf(answer.getValue()) < VersionedValue.versionOf(newest)) {
+						stale.add(answer.getKey());
+					}
+				}
+				decided = true;
+			} finally {
+				lock.unlock();
+			}
+			for (SlaveInfo replica : stale) {
+				Tracer.info("quorum.repair", null, msg.getKey());
+				sendVersioned(replica, msg.getKey(), newest);
+			}
+			return newest;
+		}
+
+		String getErrors() {
+			lock.lock();
+			try {
+				return errors;
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
-	
+
 	private KVException buildKVException(String errorMessage) throws KVException {
 		KVException exception = new KVException(new KVMessage(RESP_MESSAGE, errorMessage));
 		return exception;
@@ -555,14 +2547,12 @@ public class TPCMaster {
 		}
 
 		public TPCRegistrationHandler(int connections) {
-			System.out.println("TPCRegistrationHanlder is called");
 			threadpool = new ThreadPool(connections);
 		}
 
 		@Override
 		public void handle(Socket client) throws IOException {
 			try {
-				System.out.println("In the handle method ");
 				threadpool.addToQueue(new RegistrationHandler(client));
 			} catch (InterruptedException e) {
 				return;
@@ -581,39 +2571,19 @@ public class TPCMaster {
 			public void run() {
 				KVMessage requestMsg;
 				try {
-					System.out.println("Before return statement in RegistrationHandler");
 					requestMsg = new KVMessage(client);
 					KVMessage responseMsg;
-					registeredSlavesLock.lock(); 
 					if (!requestMsg.getMsgType().equals("register")) {
 						responseMsg = new KVMessage("resp", "Unknown Error: Not a register message.");
 						responseMsg.sendMessage(client);
 						return;
 					}
 					SlaveInfo newSlave = new SlaveInfo(requestMsg.getMessage()); 
-					boolean found = false;
-					SlaveInfo foundSlave = null;
-					for(Entry<Long, SlaveInfo> slaveServer :  registeredSlaves.entrySet()) {
-						if (slaveServer.getValue().slaveID == newSlave.slaveID){
-							found = true;
-							foundSlave = slaveServer.getValue();
-						}
-					}
-					
-					
-					if (found) {
-						System.out.println(" SHOULD GET here");
-						//SlaveInfo existingSlave = registeredSlaves.get(newSlave.slaveID);
-						SlaveInfo existingSlave = foundSlave;
-						existingSlave.hostName = newSlave.hostName;
-						existingSlave.port = newSlave.port;
-					} else if (registeredSlaves.size() == numSlaves){
-						responseMsg = new KVMessage("resp", "Unknown Error: Max amount of slaves already registered");
+					if (registerSlave(newSlave)) {
+						responseMsg = new KVMessage("resp", "Successfully registered " + newSlave.slaveID + "@" + newSlave.hostName + ":" + newSlave.port);
 					} else {
-						registeredSlaves.put(newSlave.slaveID, newSlave);
+						responseMsg = new KVMessage("resp", "Unknown Error: Max amount of slaves already registered");
 					}
-
-					responseMsg = new KVMessage("resp", "Successfully registered " + newSlave.slaveID + "@" + newSlave.hostName + ":" + newSlave.port);
 					responseMsg.sendMessage(client);
 
 				} catch (KVException e) {
@@ -626,8 +2596,6 @@ public class TPCMaster {
 
 						}
 					}
-				} finally {
-					registeredSlavesLock.unlock();
 				}
 			}
 		}
@@ -644,6 +2612,13 @@ public class TPCMaster {
 		public String hostName = null;
 		// Port which SlaveServer is listening to
 		public int port = -1;
+		// Persistent connections to this SlaveServer
+		private SlaveConnectionPool connectionPool = null;
+		// Round trip latency of recent requests to this SlaveServer
+		public final LatencyTracker latency = new LatencyTracker();
+		// Consecutive failed requests, reset by any successful one
+		private int missedRequests = 0;
+		private volatile boolean suspected = false;
 
 		/**
 		 * 
@@ -660,25 +2635,116 @@ public class TPCMaster {
 			slaveID = Long.parseLong(m.group(1));
 			hostName = m.group(2);
 			port = Integer.parseInt(m.group(3));
+			connectionPool = new SlaveConnectionPool(hostName, port, TIMEOUT_MILLISECONDS);
+		}
 
+		/**
+		 * Point this SlaveInfo at a new address after the slave re-registered.
+		 * Pooled connections to the old address are dropped.
+		 */
+		public synchronized void setAddress(String hostName, int port) {
+			this.hostName = hostName;
+			this.port = port;
+			connectionPool.close();
+			connectionPool = new SlaveConnectionPool(hostName, port, TIMEOUT_MILLISECONDS);
 		}
 
-		public long getSlaveID() {
-			
-			return slaveID;
+		/**
+		 * @return address of the slave as host:port
+		 */
+		public synchronized String getAddress() {
+			return hostName + ":" + port;
+		}
+
+		private synchronized SlaveConnectionPool getConnectionPool() {
+			return connectionPool;
 		}
 
-		public Socket connectHost() throws KVException {
+		/**
+		 * Reserve a persistent connection to this slave. It must be handed
+		 * back with releaseConnection() once the response has been read.
+		 */
+		public SlaveConnectionPool.Connection acquireConnection() throws KVException {
 			try {
-				Socket soc = new Socket();
-				soc.setSoTimeout(TIMEOUT_MILLISECONDS);
-				soc.connect(new InetSocketAddress(this.hostName, this.port), TIMEOUT_MILLISECONDS);
-				return soc;
-			} catch (UnknownHostException e) {
-				throw new KVException(new KVMessage("resp", "Unknown Network Error: Unable to connect to Host"));
-			} catch (IOException e) {
-				throw new KVException(new KVMessage("resp", "Unknown Network Error: Unable to create socket"));
+				return getConnectionPool().acquire();
+			} catch (KVException e) {
+				recordFailure();
+				throw e;
+			}
+		}
+
+		public void releaseConnection(SlaveConnectionPool.Connection conn) {
+			if (conn != null) {
+				conn.release();
+			}
+		}
+
+		/**
+		 * Send a message over a pooled connection and wait for the response.
+		 */
+		public KVMessage request(KVMessage msg, int timeout) throws KVException {
+			long start = System.nanoTime();
+			try {
+				KVMessage resp = getConnectionPool().request(msg, timeout);
+				latency.record((System.nanoTime() - start) / 1000);
+				recordSuccess();
+				return resp;
+			} catch (KVException e) {
+				if (KVMessage.OVERSIZED_MESSAGE.equals(e.getMsg().getMessage())) {
+					// Refused before it was sent: not the slave's failure
+					throw e;
+				}
+				// Count failures as slow so that reads move to the other replicas
+				latency.record(TimeUnit.MILLISECONDS.toMicros(timeout));
+				recordFailure();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return whether SUSPECT_AFTER_MISSES requests in a row have failed
+		 */
+		public boolean isSuspected() {
+			return suspected;
+		}
+
+		private void recordSuccess() {
+			boolean recovered;
+			synchronized (this) {
+				missedRequests = 0;
+				recovered = suspected;
+				suspected = false;
+			}
+			if (recovered) {
+				phase2Retries.retryNow(this);
+				hintedWrites.retryNow(this);
+			}
+		}
+
+		private synchronized void recordFailure() {
+			missedRequests++;
+			if (missedRequests >= SUSPECT_AFTER_MISSES) {
+				suspected = true;
+			}
+		}
+
+		/**
+		 * How long to wait for this slave before hedging a read.
+		 * 
+		 * @param percentile
+		 *            latency percentile to wait for, e.g. 0.95
+		 */
+		public long getHedgeDelayMillis(double percentile) {
+			if (latency.getSampleCount() < LatencyTracker.WINDOW_SIZE / 8) {
+				return DEFAULT_HEDGE_DELAY_MILLIS;
 			}
+			long micros = latency.getPercentileMicros(percentile);
+			return Math.max(MIN_HEDGE_DELAY_MILLIS, TimeUnit.MICROSECONDS.toMillis(micros));
+		}
+
+		public long getSlaveID() {
+			
+			return slaveID;
 		}
 
 		public void closeHost(Socket sock) throws KVException {
@@ -30,9 +30,22 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PushbackInputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
@@ -43,18 +56,36 @@ public class TPCMasterHandler implements NetworkHandler {
 
     public KVServer kvServer = null;
     public ThreadPool threadpool = null;
+    // Serves the master's persistent connections, each for as long as it
+    // stays open, so that they cannot take every thread of threadpool
+    public ThreadPool pooledConnections = null;
     public TPCLog tpcLog = null;
     public long slaveID = -1;
 
     // Used to handle the "ignoreNext" message
     public boolean ignoreNext = false;
 
-    // Stored phase-1 request message from TPCMaster
-    public KVMessage originalMessage = null;
+    // Number of threads serving requests when none is given
+    public static final int DEFAULT_CONNECTIONS = 8;
+    // Persistent connections from the master served at once; more wait
+    // until one is closed, but the master opens no more than this many
+    public static final int MAX_POOLED_CONNECTIONS = 4 * SlaveConnectionPool.MAX_IDLE_CONNECTIONS;
+    // Time to connect to the next replica of a chain, and per replica left
+    // in the chain to wait for its acknowledgement
+    public static final int CHAIN_TIMEOUT_MILLISECONDS = TPCMaster.TIMEOUT_MILLISECONDS;
 
-    // Whether we sent back an abort decision in phase 1. Used and checked by
-    // autograder. Is not used for any other logic.
-    private boolean aborted = true;
+    // Value characters in one range, scan or batched get response, so that
+    // it fits in a frame
+    public static final int MAX_RANGE_RESPONSE_CHARS = 512 * 1024;
+
+    // Phase-1 requests this slave voted ready on, by tpcOpId, until the
+    // master's decision arrives
+    private final Map<String, KVMessage> preparedTransactions = new HashMap<String, KVMessage>();
+    // Keys of prepared transactions, mapped to the tpcOpId holding them. A key
+    // stays locked from the ready vote until the decision is applied; a
+    // batched write locks all of its keys.
+    private final Map<String, String> lockedKeys = new HashMap<String, String>();
+    private final Lock transactionLock = new ReentrantLock();
     
     private final String ACK  = "ack";
     private final String IGNORE_MESSAGE_RESPONSE = "IgnoreNext Error: SlaveServer " + slaveID + " has ignored this 2PC request during the first phase";
@@ -65,31 +96,181 @@ public class TPCMasterHandler implements NetworkHandler {
     private final String GET_MESSAGE = "getreq";
 	private final String PUT_MESSAGE = "putreq";
 	private final String DEL_MESSAGE = "delreq";
+	private final String HEARTBEAT = "heartbeat";
+	private final String RANGE = "rangereq";
+	private final String CHUNK_PUT = "chunkput";
+	private final String SYNC = "syncreq";
+	private final String SYNC_DONE = "syncdone";
+	private final String TREE = "treereq";
+	private final String LEAF = "leafreq";
+	private final String SCAN = "scanreq";
+	private final String MGET = "mgetreq";
+	private final String MPUT = "mputreq";
+	private final String MDEL = "mdelreq";
+	private final String CAS = "casreq";
+	private final String INCR = "incrreq";
+	private final String CHAIN_PUT = "chainput";
+	private final String CHAIN_DEL = "chaindel";
+	private final String QUORUM_PUT = "quorumput";
 	private final String SUCCESS = "Success";
+
+	// Answers to a sync request from the master
+	public static final String SYNC_NEEDED = "Sync needed";
+	public static final String IN_SYNC = "In sync";
+
+	// Reason given when voting down a compare-and-set whose key does not
+	// have the expected value
+	public static final String COMPARE_FAILED = "Compare failed";
     
     public TPCMasterHandler(KVServer keyserver) {
         this(keyserver, 1);
     }
 
     public TPCMasterHandler(KVServer keyserver, long sID) {
-        kvServer = keyserver;
-        slaveID = sID;
-        threadpool = new ThreadPool(1);
+        this(keyserver, sID, DEFAULT_CONNECTIONS);
     }
 
     public TPCMasterHandler(KVServer kvS, long sID, int connections) {
         kvServer = kvS;
         slaveID = sID;
-        threadpool = new ThreadPool(1);
+        threadpool = new ThreadPool(connections);
+        pooledConnections = new ThreadPool(MAX_POOLED_CONNECTIONS);
+    }
+
+    /**
+     * Stop the threads serving the master.
+     */
+    public void shutdown() {
+        threadpool.shutdown();
+        pooledConnections.shutdown();
     }
 
 
     /**
-     * Set TPCLog after it has been rebuilt.
+     * Set TPCLog after it has been rebuilt. Operations that were prepared
+     * when the slave went down are prepared again, with their keys locked,
+     * so that the master's decision for them can still be applied.
      * @param tpcLog
      */
     public void setTPCLog(TPCLog tpcLog) {
         this.tpcLog = tpcLog;
+        for (KVMessage interrupted : tpcLog.getInterruptedTpcOperations()) {
+            prepare(interrupted);
+        }
+    }
+
+    /**
+     * Record a phase-1 request as prepared and lock its keys, all or none.
+     * A batched put too large for one frame arrives as several parts with
+     * the same tpcOpId, which are joined into one prepared transaction.
+     *
+     * @param msg put or del request from the master, possibly batched
+     * @return false if a key is locked by another prepared transaction
+     */
+    private boolean prepare(KVMessage msg) {
+        transactionLock.lock();
+        try {
+            List<String> keys = keysOf(msg);
+            for (String key : keys) {
+                String owner = lockedKeys.get(key);
+                if (owner != null && !owner.equals(msg.getTpcOpId())) {
+                    return false;
+                }
+            }
+            KVMessage prepared = preparedTransactions.get(msg.getTpcOpId());
+            if (prepared != null && tpcLog.isPartOf(msg, prepared)) {
+                try {
+                    msg = tpcLog.joinParts(prepared, msg);
+                } catch (KVException e) {
+                    return false;
+                }
+            }
+            for (String key : keys) {
+                lockedKeys.put(key, msg.getTpcOpId());
+            }
+            preparedTransactions.put(msg.getTpcOpId(), msg);
+            return true;
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return keys written by a put or del request, possibly batched
+     */
+    private List<String> keysOf(KVMessage msg) {
+        if (msg.getMsgType().equals(MPUT)) {
+            return new ArrayList<String>(msg.getEntries().keySet());
+        } else if (msg.getMsgType().equals(MDEL)) {
+            return msg.getKeys();
+        }
+        return Collections.singletonList(msg.getKey());
+    }
+
+    /**
+     * Replace the request recorded for a prepared transaction by the plain
+     * write it turned into, on the same keys.
+     */
+    private void replacePrepared(KVMessage msg) {
+        transactionLock.lock();
+        try {
+            preparedTransactions.put(msg.getTpcOpId(), msg);
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the prepared request for a transaction, null if this slave did
+     *         not vote ready on it or its decision was already applied
+     */
+    private KVMessage getPrepared(String tpcOpId) {
+        transactionLock.lock();
+        try {
+            return preparedTransactions.get(tpcOpId);
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * Forget a prepared transaction and unlock its keys.
+     */
+    private void finish(String tpcOpId) {
+        transactionLock.lock();
+        try {
+            KVMessage msg = preparedTransactions.remove(tpcOpId);
+            if (msg != null) {
+                for (String key : keysOf(msg)) {
+                    if (tpcOpId.equals(lockedKeys.get(key))) {
+                        lockedKeys.remove(key);
+                    }
+                }
+            }
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of transactions waiting for the master's decision
+     */
+    public int getPreparedCount() {
+        transactionLock.lock();
+        try {
+            return preparedTransactions.size();
+        } finally {
+            transactionLock.unlock();
+        }
+    }
+
+    /**
+     * Check and clear the ignoreNext flag in one step.
+     */
+    private synchronized boolean consumeIgnoreNext() {
+        boolean wasSet = ignoreNext;
+        ignoreNext = false;
+        return wasSet;
     }
 
     /**
@@ -105,7 +286,7 @@ public class TPCMasterHandler implements NetworkHandler {
             throws UnknownHostException, IOException, KVException {
         AutoGrader.agRegistrationStarted(slaveID);
 
-        Socket master = new Socket(masterHostName, 9090);
+        Socket master = Transport.get().connect(masterHostName, 9090, 0);
         KVMessage regMessage = new KVMessage(
             "register", slaveID + "@" + server.getHostname() + ":" + server.getPort());
         regMessage.sendMessage(master);
@@ -132,6 +313,9 @@ public class TPCMasterHandler implements NetworkHandler {
 
         public KVServer keyserver = null;
         public Socket master = null;
+        // Set when serving a persistent connection from the master's pool
+        DataOutputStream framedOut = null;
+        long frameId = -1;
 
         public void closeConn() {
             try {
@@ -146,50 +330,125 @@ public class TPCMasterHandler implements NetworkHandler {
 
         @Override
         public void run() {
-           
-            KVMessage masterMessage = null;
-            
+            boolean pooled = false;
             try {
-            	masterMessage = new KVMessage(master);
-            	String key = masterMessage.getKey();
-            	String msgType = masterMessage.getMsgType();
-            	if (msgType.equals("getreq")) {
-	                handleGet(masterMessage, key);
-	            } else if (msgType.equals("putreq")) {
-	            	if (!ignoreNext)
-	            		handlePut(masterMessage, key);
-	            	else 
-	            		resetIgnoreNext();
-	            } else if (msgType.equals("delreq")) {
-	            	if (!ignoreNext)
-	            		handleDel(masterMessage, key);
-	            	else 
-	            		resetIgnoreNext();
-	            } else if (msgType.equals("ignoreNext")) {
-	            		setIgnoreNext();
-	            } else if (msgType.equals("commit") || msgType.equals("abort")) {
-	            	if (tpcLog.hasInterruptedTpcOperation()){
-	            		originalMessage = tpcLog.getInterruptedTpcOperation();
-	            	}
-            	     if (msgType.equals(ABORTED))
-            	    	 aborted = true;
-            	     else 
-            	    	 aborted = false;
-            	     handleMasterResponse(masterMessage, originalMessage, 
-         	            	aborted);
-	            	aborted = false;
-	            	originalMessage = null;
-	            }
+                // Persistent connections from the master's connection pool
+                // start with a frame header rather than an XML document
+                PushbackInputStream input = new PushbackInputStream(master.getInputStream());
+                int first = input.read();
+                if (first == -1) {
+                    return;
+                }
+                input.unread(first);
+                if (first == (KVMessage.FRAME_MAGIC >>> 24)) {
+                    pooledConnections.addToQueue(new PooledConnectionHandler(this, input));
+                    pooled = true;
+                    return;
+                }
+                process(new KVMessage(input));
+            } catch (IOException e) {
+                // Master went away before sending a request
+            } catch (InterruptedException e) {
+                // Shutting down
+            } catch (KVException e) {
+                abortMessage(null);
+            } finally {
+                if (!pooled) {
+                    closeConn();
+                }
             }
-            catch (KVException e){
-            	abortMessage(masterMessage.tpcOpId);
+        }
+
+        /**
+         * Dispatch one request from the master. Requests on different
+         * connections are handled concurrently; transactions are kept apart
+         * by tpcOpId and conflicting ones by the key locks taken in phase 1.
+         */
+        public void process(KVMessage masterMessage) {
+        	String msgType = masterMessage.getMsgType();
+        	if (msgType.equals(HEARTBEAT)) {
+        		handleHeartbeat();
+        		return;
+        	}
+        	long span = Tracer.startSpan();
+        	dispatch(masterMessage);
+        	Tracer.endSpan("slave.process", masterMessage.getTpcOpId(), msgType, span);
+        }
+
+        private void dispatch(KVMessage masterMessage) {
+        	String key = masterMessage.getKey();
+        	String msgType = masterMessage.getMsgType();
+        	if (msgType.equals("getreq")) {
+                handleGet(masterMessage, key);
+            } else if (msgType.equals(RANGE)) {
+                handleRange(masterMessage);
+            } else if (msgType.equals(SCAN)) {
+                handleScan(masterMessage);
+            } else if (msgType.equals(MGET)) {
+                handleMultiGet(masterMessage);
+            } else if (msgType.equals(TREE)) {
+                handleTree(masterMessage);
+            } else if (msgType.equals(LEAF)) {
+                handleLeaf(masterMessage);
+            } else if (msgType.equals(CHUNK_PUT)) {
+                handleChunkPut(masterMessage);
+            } else if (msgType.equals(SYNC)) {
+                handleSync(masterMessage);
+            } else if (msgType.equals(SYNC_DONE)) {
+                handleSyncDone(masterMessage);
+            } else if (msgType.equals(CHAIN_PUT) || msgType.equals(CHAIN_DEL)) {
+                handleChain(masterMessage);
+            } else if (msgType.equals(QUORUM_PUT)) {
+                handleQuorumPut(masterMessage);
+            } else if (msgType.equals("putreq")) {
+            	if (!consumeIgnoreNext())
+            		handlePut(masterMessage, key);
+            	else 
+            		resetIgnoreNext();
+            } else if (msgType.equals("delreq")) {
+            	if (!consumeIgnoreNext())
+            		handleDel(masterMessage, key);
+            	else 
+            		resetIgnoreNext();
+            } else if (msgType.equals(CAS) || msgType.equals(INCR)) {
+            	if (!consumeIgnoreNext())
+            		handleConditional(masterMessage);
+            	else 
+            		resetIgnoreNext();
+            } else if (msgType.equals(MPUT) || msgType.equals(MDEL)) {
+            	if (!consumeIgnoreNext())
+            		handleBatch(masterMessage);
+            	else 
+            		resetIgnoreNext();
+            } else if (msgType.equals("ignoreNext")) {
+            		setIgnoreNext();
+            } else if (msgType.equals("commit") || msgType.equals("abort")) {
+            	// A transaction this slave aborted in phase 1 has no entry
+            	KVMessage origMsg = getPrepared(masterMessage.getTpcOpId());
+        	    handleMasterResponse(masterMessage, origMsg, origMsg == null);
             }
-            finally {
-            	closeConn();
+        }
+
+        /**
+         * Send a response to the master, framed if the request came in on a
+         * persistent connection.
+         */
+        private void reply(KVMessage msg) throws KVException {
+            if (framedOut != null) {
+                msg.sendFramedMessage(framedOut, frameId);
+            } else {
+                msg.sendMessage(master);
             }
         }
         
-       
+        /* Answer a heartbeat from the master's failure detector */
+        public void handleHeartbeat() {
+            try {
+                reply(new KVMessage(RESP, SUCCESS));
+            } catch (KVException e) {
+                // Master will count this as a missed heartbeat
+            }
+        }
 
         /* Handle a get request from the master */
         public void handleGet(KVMessage msg, String key) {
@@ -198,11 +457,14 @@ public class TPCMasterHandler implements NetworkHandler {
             KVMessage failureMessage;
             try {
             	if (kvServer.hasKey(key)){
-            		readyMessage(msg);
+            		KVMessage getResponse = new KVMessage(RESP);
+            		getResponse.setKey(key);
+            		getResponse.setValue(kvServer.get(key));
+            		reply(getResponse);
             	}
             	else {
             		failureMessage = new KVMessage(RESP, "KEY NOT HERE");
-        			failureMessage.sendMessage(master);
+        			reply(failureMessage);
             	}
             }
             catch (KVException e){
@@ -212,11 +474,295 @@ public class TPCMasterHandler implements NetworkHandler {
             AutoGrader.agGetFinished(slaveID);
         }
 
+        /**
+         * Handle a range request from the master: return the keys after the
+         * cursor whose ring position lies in the requested hash range, in key
+         * order, up to the requested number of entries and
+         * MAX_RANGE_RESPONSE_CHARS of values.
+         */
+        public void handleRange(KVMessage msg) {
+            ArrayList<String> keys = new ArrayList<String>();
+            String cursor = msg.getKey();
+            for (String key : kvServer.keysInRange(msg.getRangeStart(), msg.getRangeEnd())) {
+                if (cursor == null || key.compareTo(cursor) > 0) {
+                    keys.add(key);
+                }
+            }
+            Collections.sort(keys);
+            boolean more = keys.size() > msg.getLimit();
+            if (more) {
+                keys = new ArrayList<String>(keys.subList(0, msg.getLimit()));
+            }
+            LinkedHashMap<String, String> batch = new LinkedHashMap<String, String>();
+            Map<String, String> values = keys.isEmpty()
+                ? Collections.<String, String>emptyMap() : kvServer.getBatch(keys);
+            int chars = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (!batch.isEmpty() && chars + entry.getValue().length() > MAX_RANGE_RESPONSE_CHARS) {
+                    more = true;
+                    break;
+                }
+                batch.put(entry.getKey(), entry.getValue());
+                chars += entry.getValue().length();
+            }
+            try {
+                KVMessage resp = new KVMessage(RESP);
+                resp.setEntries(batch);
+                resp.setMore(more);
+                reply(resp);
+            } catch (KVException e) {
+                // Master retries the range
+            }
+        }
+
+        /**
+         * Handle a scan request from the master: return the pairs from the
+         * first key of the scan, or after the key it resumes after, up to its
+         * end key, in key order, up to the requested number of entries and
+         * MAX_RANGE_RESPONSE_CHARS of values.
+         */
+        public void handleScan(KVMessage msg) {
+            boolean resume = msg.getAfterKey() != null;
+            LinkedHashMap<String, String> pairs = kvServer.scan(resume ? msg.getAfterKey() : msg.getKey(), !resume,
+                    msg.getEndKey(), msg.getLimit() + 1);
+            LinkedHashMap<String, String> page = new LinkedHashMap<String, String>();
+            boolean more = false;
+            int chars = 0;
+            for (Map.Entry<String, String> entry : pairs.entrySet()) {
+                if (page.size() == msg.getLimit()
+                        || (!page.isEmpty() && chars + entry.getValue().length() > MAX_RANGE_RESPONSE_CHARS)) {
+                    more = true;
+                    break;
+                }
+                page.put(entry.getKey(), entry.getValue());
+                chars += entry.getValue().length();
+            }
+            try {
+                KVMessage resp = new KVMessage(RESP);
+                resp.setEntries(page);
+                resp.setMore(more);
+                reply(resp);
+            } catch (KVException e) {
+                // Master retries the scan
+            }
+        }
+
+        /**
+         * Handle a batched get from the master: return the pairs of the
+         * requested keys that this slave holds, read in one pass over the
+         * store, in request order up to MAX_RANGE_RESPONSE_CHARS of values.
+         * Missing keys are left out. If not all pairs fit, More is set and
+         * the master asks again for the keys after the last pair returned.
+         */
+        public void handleMultiGet(KVMessage msg) {
+            LinkedHashMap<String, String> page = new LinkedHashMap<String, String>();
+            boolean more = false;
+            int chars = 0;
+            for (Map.Entry<String, String> entry : kvServer.getBatch(msg.getKeys()).entrySet()) {
+                if (!page.isEmpty() && chars + entry.getValue().length() > MAX_RANGE_RESPONSE_CHARS) {
+                    more = true;
+                    break;
+                }
+                page.put(entry.getKey(), entry.getValue());
+                chars += entry.getValue().length();
+            }
+            try {
+                KVMessage resp = new KVMessage(RESP);
+                resp.setEntries(page);
+                resp.setMore(more);
+                reply(resp);
+            } catch (KVException e) {
+                // Master retries in its next round
+            }
+        }
+
+        /**
+         * Handle a tree request from the master's repair task: return the
+         * digest of each requested hash tree node, counting only the pairs in
+         * the requested ranges.
+         */
+        public void handleTree(KVMessage msg) {
+            LinkedHashMap<String, String> digests = new LinkedHashMap<String, String>();
+            for (Long node : msg.getNodes()) {
+                digests.put(Long.toString(node), Long.toString(kvServer.digest(msg.getLevel(), node, msg.getRanges())));
+            }
+            replyEntries(digests);
+        }
+
+        /**
+         * Handle a leaf request from the master's repair task: return the
+         * digest of every pair of the requested leaves in the requested
+         * ranges, by key.
+         */
+        public void handleLeaf(KVMessage msg) {
+            LinkedHashMap<String, String> digests = new LinkedHashMap<String, String>();
+            for (Long leaf : msg.getNodes()) {
+                for (Map.Entry<String, Long> entry : kvServer.leafDigests(leaf, msg.getRanges()).entrySet()) {
+                    digests.put(entry.getKey(), Long.toString(entry.getValue()));
+                }
+            }
+            replyEntries(digests);
+        }
+
+        private void replyEntries(LinkedHashMap<String, String> entries) {
+            try {
+                KVMessage resp = new KVMessage(RESP);
+                resp.setEntries(entries);
+                reply(resp);
+            } catch (KVException e) {
+                // Master retries in its next round
+            }
+        }
+
+        /**
+         * Handle one chunk of a state transfer: log it, then write its pairs
+         * straight to the store. The master holds the locks of the chunk's
+         * keys, so no transaction on them is in flight.
+         */
+        public void handleChunkPut(KVMessage msg) {
+            try {
+                tpcLog.appendAndFlush(msg);
+                kvServer.putBatch(msg.getEntries());
+                reply(new KVMessage(RESP, SUCCESS));
+            } catch (KVException e) {
+                // Master resends the chunk
+            }
+        }
+
+        /**
+         * Tell the master whether this slave needs a state transfer. The
+         * sync request is logged when one is needed, so that a restart before
+         * the transfer completes asks for it again.
+         */
+        public void handleSync(KVMessage msg) {
+            try {
+                boolean needed = tpcLog.isSyncNeeded();
+                if (needed) {
+                    tpcLog.appendAndFlush(msg);
+                }
+                reply(new KVMessage(RESP, needed ? SYNC_NEEDED : IN_SYNC));
+            } catch (KVException e) {
+                // Master asks again
+            }
+        }
+
+        /**
+         * Handle a chain write from the master, at the head of the chain,
+         * or from the previous replica: apply and log it, forward it to the
+         * rest of the chain, and acknowledge it once the tail did. The
+         * master holds the key's lock until the head answers, so chain
+         * writes of a key reach each replica in order. Deleting a key
+         * that is not here succeeds, as the replicas before may have had
+         * it.
+         */
+        public void handleChain(KVMessage msg) {
+            KVMessage resp;
+            try {
+                if (msg.getMsgType().equals(CHAIN_PUT)) {
+                    kvServer.put(msg.getKey(), msg.getValue());
+                } else {
+                    boolean exists = false;
+                    try {
+                        exists = kvServer.hasKey(msg.getKey());
+                    } catch (KVException e) {
+                        // KVStore reports a missing key as an error
+                    }
+                    if (exists) {
+                        kvServer.del(msg.getKey());
+                    }
+                }
+                tpcLog.appendAndFlush(msg);
+                List<String> successors = msg.getSuccessors();
+                if (successors == null || successors.isEmpty()) {
+                    resp = new KVMessage(RESP, SUCCESS);
+                } else {
+                    resp = forwardChain(msg, successors);
+                }
+            } catch (KVException e) {
+                resp = e.getMsg();
+            }
+            try {
+                reply(resp);
+            } catch (KVException e) {
+                // Master times out and reports the write as failed
+            }
+        }
+
+        /**
+         * Handle a quorum write, read repair or hinted write from the
+         * master: store the versioned value unless a newer one is here
+         * already. Either way the replica then holds the write, so it is
+         * acknowledged.
+         */
+        public void handleQuorumPut(KVMessage msg) {
+            KVMessage resp;
+            try {
+                if (kvServer.putIfNewer(msg.getKey(), msg.getValue())) {
+                    tpcLog.appendAndFlush(msg);
+                }
+                resp = new KVMessage(RESP, SUCCESS);
+            } catch (KVException e) {
+                resp = e.getMsg();
+            }
+            try {
+                reply(resp);
+            } catch (KVException e) {
+                // Master times out and counts the replica as not written
+            }
+        }
+
+        /**
+         * Send a chain write on to the next replica and wait until the
+         * tail acknowledged it.
+         *
+         * @return the answer of the next replica
+         * @throws KVException if the next replica could not be reached or
+         *         did not answer in time
+         */
+        private KVMessage forwardChain(KVMessage msg, List<String> successors) throws KVException {
+            String next = successors.get(0);
+            KVMessage forward = new KVMessage(msg.getMsgType());
+            forward.setKey(msg.getKey());
+            forward.setValue(msg.getValue());
+            forward.setTpcOpId(msg.getTpcOpId());
+            forward.setSuccessors(successors.subList(1, successors.size()));
+            int colon = next.lastIndexOf(':');
+            Socket socket = null;
+            try {
+                socket = Transport.get().connect(next.substring(0, colon),
+                    Integer.parseInt(next.substring(colon + 1)), CHAIN_TIMEOUT_MILLISECONDS);
+                forward.sendMessage(socket);
+                return new KVMessage(socket, CHAIN_TIMEOUT_MILLISECONDS * successors.size());
+            } catch (IOException e) {
+                throw new KVException(new KVMessage(RESP, "Network Error: Could not reach chain successor " + next));
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        /* Record that the master completed this slave's state transfer */
+        public void handleSyncDone(KVMessage msg) {
+            try {
+                tpcLog.appendAndFlush(msg);
+                reply(new KVMessage(RESP, SUCCESS));
+            } catch (KVException e) {
+                // Master resends it
+            }
+        }
+
         /* Handle a phase-1 2PC put request from the master */
         public void handlePut(KVMessage msg, String key) {
             AutoGrader.agTPCPutStarted(slaveID, msg, key);
            
             try {
+            	if (!prepare(msg)) {
+            		throw new KVException(msg);
+            	}
             	readyMessage(msg);
             }
             catch(KVException e){
@@ -233,11 +779,20 @@ public class TPCMasterHandler implements NetworkHandler {
             AutoGrader.agTPCDelStarted(slaveID, msg, key);
             
             try {
-            	if (kvServer.hasKey(key)){
-            		readyMessage(msg);
+            	if (!prepare(msg)) {
+            		throw new KVException(msg);
             	}
-            	else 
+            	boolean exists = false;
+            	try {
+            		exists = kvServer.hasKey(key);
+            	} catch (KVException e) {
+            		// KVStore reports a missing key as an error
+            	}
+            	if (!exists) {
+            		finish(msg.tpcOpId);
             		throw new KVException(msg);
+            	}
+            	readyMessage(msg);
             }
             catch(KVException e){
             	abortMessage(msg.tpcOpId);
@@ -246,32 +801,111 @@ public class TPCMasterHandler implements NetworkHandler {
             AutoGrader.agTPCDelFinished(slaveID, msg, key);
         }
 
+        /**
+         * Handle a phase-1 batched put or del from the master: lock all the
+         * batch's keys and vote ready. Keys of a batched del that do not
+         * exist here are skipped at commit rather than voted down.
+         */
+        public void handleBatch(KVMessage msg) {
+            try {
+                if (!prepare(msg)) {
+                    throw new KVException(msg);
+                }
+                readyMessage(msg);
+            } catch (KVException e) {
+                abortMessage(msg.tpcOpId);
+            }
+        }
+
+        /**
+         * Handle a phase-1 compare-and-set or increment from the master. The
+         * key is locked first, so its value cannot change before the
+         * decision arrives; the condition is checked against that value and
+         * the write it leads to is prepared and logged as a plain put, which
+         * is what a commit applies. A compare that fails is voted down with
+         * COMPARE_FAILED. The ready vote on an increment carries the new
+         * value, so that the master can check the replicas agree on it.
+         */
+        public void handleConditional(KVMessage msg) {
+            String id = msg.getTpcOpId();
+            if (!prepare(msg)) {
+                abortMessage(id);
+                return;
+            }
+            KVMessage put;
+            try {
+                String current = kvServer.getIfPresent(msg.getKey());
+                String value;
+                if (msg.getMsgType().equals(INCR)) {
+                    long delta;
+                    try {
+                        delta = Long.parseLong(msg.getValue());
+                    } catch (NumberFormatException e) {
+                        throw new KVException(new KVMessage(RESP, "Unknown Error: invalid delta"));
+                    }
+                    value = KVServer.incremented(current, delta);
+                } else {
+                    String expected = msg.getExpectedValue();
+                    if (current == null ? expected != null : !current.equals(expected)) {
+                        throw new KVException(new KVMessage(RESP, COMPARE_FAILED));
+                    }
+                    value = msg.getValue();
+                }
+                put = new KVMessage(PUT_MESSAGE);
+                put.setKey(msg.getKey());
+                put.setValue(value);
+                put.setTpcOpId(id);
+            } catch (KVException e) {
+                finish(id);
+                abortMessage(id, e.getMsg().getMessage());
+                return;
+            }
+            replacePrepared(put);
+            try {
+                readyMessage(put, msg.getMsgType().equals(INCR) ? put.getValue() : null);
+            } catch (KVException e) {
+                abortMessage(id);
+            }
+        }
+
         /**
          * Second phase of 2PC
          *
          * @param masterResp Global decision taken by the master
-         * @param origMsg Message from the actual client (received via the coordinator/master)
+         * @param origMsg Message from the actual client (received via the coordinator/master),
+         *            null if this slave holds no prepared transaction for the decision
          * @param origAborted Did this slave server abort it in the first phase
          */
         public void handleMasterResponse(KVMessage masterResp, KVMessage origMsg, boolean origAborted) {
             AutoGrader.agSecondPhaseStarted(slaveID, origMsg, origAborted);
             
             try {
-	            if (masterResp.getMsgType().equals(COMMIT)){
-	            	if (origMsg.getMsgType().equals(DEL_MESSAGE)){
-	            		String key = origMsg.getKey();
-	            		kvServer.del(key);
-	            	}
-	            	else if (origMsg.getMsgType().equals(PUT_MESSAGE)){
-	            		String value = origMsg.getValue();
-	            		String key = origMsg.getKey();
-	            		kvServer.put(key, value);
+            	// A decision for a transaction that is not prepared here was
+            	// either voted down or already applied, so it is only acked
+	            if (origMsg != null) {
+	            	if (masterResp.getMsgType().equals(COMMIT)){
+	            		if (origMsg.getMsgType().equals(DEL_MESSAGE)){
+	            			String key = origMsg.getKey();
+	            			kvServer.del(key);
+	            		}
+	            		else if (origMsg.getMsgType().equals(PUT_MESSAGE)){
+	            			String value = origMsg.getValue();
+	            			String key = origMsg.getKey();
+	            			kvServer.put(key, value);
+	            		}
+	            		else if (origMsg.getMsgType().equals(MPUT)) {
+	            			kvServer.putBatch(origMsg.getEntries());
+	            		}
+	            		else if (origMsg.getMsgType().equals(MDEL)) {
+	            			kvServer.delBatch(origMsg.getKeys());
+	            		}
 	            	}
-	            	tpcLog.appendAndFlush(new KVMessage(COMMIT));
-	            	sendAckMessage(masterResp.tpcOpId);
+	            	// The decision carries the tpcOpId so that recovery can
+	            	// match it with its phase-1 entry
+	            	tpcLog.appendAndFlush(masterResp);
+	            	finish(masterResp.tpcOpId);
 	            }
-	            else if (aborted)
-	            	sendAckMessage(masterResp.tpcOpId);
+	            sendAckMessage(masterResp.tpcOpId);
             }
             catch (KVException e){
             	abortMessage(masterResp.tpcOpId);
@@ -285,38 +919,44 @@ public class TPCMasterHandler implements NetworkHandler {
         	try {
         		KVMessage ackMessage = new KVMessage(ACK);
         		ackMessage.setTpcOpId(id);
-        		ackMessage.sendMessage(master);
+        		reply(ackMessage);
         	} catch (KVException e1) {
         	               	//Fail silently due to connection error
         	}
         }
         
         private void abortMessage(String id){
-        	aborted = true;
+        	abortMessage(id, null);
+        }
+        
+        /* Vote abort, telling the master why */
+        private void abortMessage(String id, String reason){
         	try {
         		KVMessage failureMessage = new KVMessage(ABORTED);
         		failureMessage.setTpcOpId(id);
-        		failureMessage.sendMessage(master);
+        		failureMessage.setMessage(reason);
+        		reply(failureMessage);
         	} catch (KVException e1) {
         	             //Fail silently due to connection error
         	}
         }
         
         private void setIgnoreNext(){
-        	ignoreNext = true;
+        	synchronized (TPCMasterHandler.this) {
+        		ignoreNext = true;
+        	}
         	try {
         		KVMessage respMessage = new KVMessage(RESP, SUCCESS);
-        		respMessage.sendMessage(master);
+        		reply(respMessage);
         	} catch (KVException e1) {
         		//Fail silently due to connection error
         	}
         }
         
         private void resetIgnoreNext(){
-        	ignoreNext = false;
     		try {
     			KVMessage ignoreMessage = new KVMessage(RESP, IGNORE_MESSAGE_RESPONSE);
-    			ignoreMessage.sendMessage(master);
+    			reply(ignoreMessage);
     		}
     		catch(KVException e){
     			//Fail silently like a turd missing the toilet
@@ -324,13 +964,54 @@ public class TPCMasterHandler implements NetworkHandler {
         }
         
         public void readyMessage(KVMessage msg) throws KVException{
-        	originalMessage = msg;
+        	readyMessage(msg, null);
+        }
+        
+        /* Vote ready, reporting the value the write will leave if given */
+        private void readyMessage(KVMessage msg, String result) throws KVException{
+        	// Log before voting, so a ready vote survives a crash
+        	tpcLog.appendAndFlush(msg);
         	KVMessage successMessage = new KVMessage(READY);
         	successMessage.setTpcOpId(msg.tpcOpId);
-        	successMessage.sendMessage(master);
-        	tpcLog.appendAndFlush(originalMessage);
+        	successMessage.setValue(result);
+        	reply(successMessage);
+        }
+
+    }
+
+    /**
+     * Serves a persistent connection from the master's connection pool,
+     * answering each request frame with a response frame carrying the same
+     * frame id until the master closes the connection.
+     */
+    public class PooledConnectionHandler implements Runnable {
+
+        private final MasterHandler handler;
+        private final DataInputStream input;
+
+        public PooledConnectionHandler(MasterHandler handler, PushbackInputStream input) {
+            this.handler = handler;
+            this.input = new DataInputStream(new BufferedInputStream(input));
         }
 
+        @Override
+        public void run() {
+            try {
+                handler.framedOut = new DataOutputStream(
+                    new BufferedOutputStream(handler.master.getOutputStream()));
+                while (true) {
+                    KVMessage request = new KVMessage(input);
+                    handler.frameId = request.getFrameId();
+                    handler.process(request);
+                }
+            } catch (IOException e) {
+                // Connection dropped
+            } catch (KVException e) {
+                // Master closed the connection or the stream is out of sync
+            } finally {
+                handler.closeConn();
+            }
+        }
     }
 
 }
@@ -0,0 +1,284 @@
+/**
+ * Randomized, non-deterministic 2PC stress runs over a simulated network
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Runs a master and its slaves in this process over a SimulatedNetwork, one
+ * scenario after the other. Each scenario sends a random sequence of puts,
+ * gets and dels through the master while the network delays and drops
+ * messages and, with some probability, a slave crashes part way through.
+ * This is a stress runner, not a deterministic simulation: timeouts,
+ * sleeps, heartbeats and retry delays use the real clock and threads are
+ * scheduled by the JVM, so the order in which connections are opened and
+ * which writes are cut by a crash differ from run to run.
+ *
+ * Every get is checked against what the client was told: it must return
+ * the value of the last acknowledged write of the key, or of a write that
+ * failed since, as a failed write may still have been applied. Scenarios
+ * that break this are listed with their seed. The seed fixes the
+ * operations a scenario sends and which slave it crashes, not the
+ * interleaving, so running again with it does not replay the failure;
+ * it only reruns a similar scenario, which may or may not hit it again.
+ *
+ * Read timeouts of the code under test are cut to a bound a few times the
+ * largest delay, so a dropped message costs milliseconds rather than the
+ * real timeout of seconds. A slow thread can then time out where a real
+ * deployment would not, which only adds failed writes to the scenario.
+ *
+ * USAGE: TPCSimulation [-option value]...
+ *   -scenarios n   number of scenarios (100)
+ *   -seed n        seed of the first scenario, the next ones count up (1);
+ *                  it is not enough to replay a scenario
+ *   -slaves n      slaves per scenario (3)
+ *   -ops n         operations per scenario (50)
+ *   -keys n        distinct keys per scenario (5)
+ *   -maxDelay ms   largest delay of a message (2)
+ *   -dropRate p    probability that a message is lost (0)
+ *   -crashRate p   probability that a scenario crashes a slave (0.3)
+ *   -timeout ms    longest read timeout (50)
+ */
+public class TPCSimulation {
+    private static final int REGISTRATION_PORT = 9090;
+    // Time the master and slaves have to come up
+    private static final long STARTUP_MILLIS = 5000;
+    // Time threads of a finished scenario have to stop
+    private static final long SHUTDOWN_MILLIS = 2000;
+
+    private static PrintStream out = System.out;
+
+    private final int numSlaves;
+    private final int ops;
+    private final int keys;
+    private final int maxDelay;
+    private final double dropRate;
+    private final double crashRate;
+    private final int timeout;
+
+    // Totals over all scenarios
+    private long operations = 0;
+    private long failedOperations = 0;
+    private long crashes = 0;
+    private long leakedThreads = 0;
+    private final ArrayList<String> violations = new ArrayList<String>();
+
+    TPCSimulation(int numSlaves, int ops, int keys, int maxDelay, double dropRate, double crashRate,
+            int timeout) {
+        this.numSlaves = numSlaves;
+        this.ops = ops;
+        this.keys = keys;
+        this.maxDelay = maxDelay;
+        this.dropRate = dropRate;
+        this.crashRate = crashRate;
+        this.timeout = timeout;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        int scenarios = LoadGenerator.intOption(options, "scenarios", 100);
+        long seed = LoadGenerator.longOption(options, "seed", 1);
+        TPCSimulation simulation = new TPCSimulation(LoadGenerator.intOption(options, "slaves", 3),
+            LoadGenerator.intOption(options, "ops", 50), LoadGenerator.intOption(options, "keys", 5),
+            LoadGenerator.intOption(options, "maxDelay", 2), LoadGenerator.doubleOption(options, "dropRate", 0),
+            LoadGenerator.doubleOption(options, "crashRate", 0.3), LoadGenerator.intOption(options, "timeout", 50));
+
+        AutoGrader.setStoreDelay(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < scenarios; i++) {
+            simulation.runScenario(seed + i);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Transport.set(Transport.TCP);
+
+        out.println(String.format("%d scenarios in %.1f s (%.0f per minute): %d operations, %d failed, "
+            + "%d slave crashes, %d threads left running", scenarios, seconds, scenarios * 60 / seconds,
+            simulation.operations, simulation.failedOperations, simulation.crashes, simulation.leakedThreads));
+        for (String violation : simulation.violations) {
+            out.println(violation);
+        }
+        out.println(simulation.violations.isEmpty() ? "NO VIOLATIONS" : simulation.violations.size() + " VIOLATIONS");
+        System.exit(simulation.violations.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * A slave and what it takes to crash and clean it up.
+     */
+    private static class Slave {
+        SocketServer server;
+        TPCMasterHandler handler;
+        File log;
+    }
+
+    void runScenario(final long seed) throws Exception {
+        final SimulatedNetwork network = new SimulatedNetwork(seed);
+        network.setDelay(0, maxDelay);
+        network.setDropRate(dropRate);
+        network.setMaxTimeout(timeout);
+        Transport.set(network);
+
+        // Every thread the scenario starts lands in this group, so that
+        // those still alive at the end can be stopped and counted
+        ThreadGroup group = new ThreadGroup("scenario-" + seed);
+        final Exception[] failure = new Exception[1];
+        Thread driver = new Thread(group, "scenario-" + seed) {
+            public void run() {
+                try {
+                    drive(seed, network);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        driver.start();
+        driver.join();
+        network.close();
+        group.interrupt();
+        long deadline = System.currentTimeMillis() + SHUTDOWN_MILLIS;
+        while (group.activeCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        leakedThreads += group.activeCount();
+        if (failure[0] != null) {
+            violations.add("seed " + seed + ": scenario failed: " + failure[0]);
+        }
+    }
+
+    private void drive(long seed, SimulatedNetwork network) throws Exception {
+        // Scrambled, as Randoms seeded with neighbouring numbers start alike
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L);
+        TPCMaster master = new TPCMaster(numSlaves);
+        ArrayList<Slave> slaves = new ArrayList<Slave>();
+        try {
+            master.run();
+            if (!network.awaitListening(REGISTRATION_PORT, STARTUP_MILLIS)) {
+                throw new IllegalStateException("master did not start");
+            }
+            for (int i = 0; i < numSlaves; i++) {
+                slaves.add(startSlave(1000L * (i + 1), seed));
+            }
+            long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+            while (master.ring.getSlaves().size() < numSlaves) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("slaves did not register");
+                }
+                Thread.sleep(1);
+            }
+            runOperations(seed, random, master, slaves, network);
+        } finally {
+            master.shutdown();
+            for (Slave slave : slaves) {
+                slave.server.closeSocket();
+                slave.handler.shutdown();
+                slave.log.delete();
+            }
+        }
+    }
+
+    private Slave startSlave(long slaveID, long seed) throws Exception {
+        final Slave slave = new Slave();
+        KVServer keyServer = new KVServer(100, 10);
+        slave.server = new SocketServer("localhost");
+        slave.handler = new TPCMasterHandler(keyServer, slaveID);
+        slave.server.addHandler(slave.handler);
+        slave.server.connect();
+        slave.log = new File(System.getProperty("java.io.tmpdir"), "sim-" + seed + "-" + slaveID + "-" + System.nanoTime());
+        TPCLog tpcLog = new TPCLog(slave.log.getPath(), keyServer);
+        tpcLog.rebuildKeyServer();
+        slave.handler.setTPCLog(tpcLog);
+        new Thread() {
+            public void run() {
+                try {
+                    slave.server.run();
+                } catch (Exception e) {
+                    // Crashed or shut down
+                }
+            }
+        }.start();
+        slave.handler.registerWithMaster("localhost", slave.server);
+        return slave;
+    }
+
+    private void runOperations(long seed, Random random, TPCMaster master, ArrayList<Slave> slaves,
+            SimulatedNetwork network) {
+        // Value of each key as of the last acknowledged write, null if
+        // absent, and the values failed writes since then may have left
+        HashMap<String, String> acknowledged = new HashMap<String, String>();
+        HashMap<String, HashSet<String>> uncertain = new HashMap<String, HashSet<String>>();
+        int crashAt = random.nextDouble() < crashRate ? random.nextInt(ops) : -1;
+        for (int op = 0; op < ops; op++) {
+            if (op == crashAt) {
+                Slave victim = slaves.get(random.nextInt(slaves.size()));
+                network.crash(victim.server.getPort());
+                victim.handler.shutdown();
+                crashes++;
+            }
+            String key = "key" + random.nextInt(keys);
+            if (!uncertain.containsKey(key)) {
+                uncertain.put(key, new HashSet<String>());
+            }
+            int kind = random.nextInt(10);
+            operations++;
+            try {
+                if (kind < 5) {
+                    String value = "value" + seed + "-" + op;
+                    try {
+                        KVMessage put = new KVMessage("putreq");
+                        put.setKey(key);
+                        put.setValue(value);
+                        master.performTPCOperation(put, true);
+                    } catch (KVException e) {
+                        uncertain.get(key).add(value);
+                        throw e;
+                    }
+                    acknowledged.put(key, value);
+                    uncertain.get(key).clear();
+                } else if (kind < 9) {
+                    KVMessage get = new KVMessage("getreq");
+                    get.setKey(key);
+                    String value;
+                    try {
+                        value = master.handleGet(get);
+                    } catch (KVException e) {
+                        // A replica without the key answers with an abort,
+                        // which carries no message
+                        if (e.getMsg().getMessage() != null) {
+                            throw e;
+                        }
+                        value = null;
+                    }
+                    String expected = acknowledged.get(key);
+                    boolean allowed = value == null ? expected == null : value.equals(expected);
+                    if (!allowed && !uncertain.get(key).contains(value)) {
+                        violations.add(String.format("seed %d: op %d read %s = %s, expected %s or one of %s",
+                            seed, op, key, value, expected, uncertain.get(key)));
+                    }
+                } else {
+                    try {
+                        KVMessage del = new KVMessage("delreq");
+                        del.setKey(key);
+                        master.performTPCOperation(del, false);
+                    } catch (KVException e) {
+                        // Also the answer to a del of an absent key
+                        uncertain.get(key).add(null);
+                        throw e;
+                    }
+                    acknowledged.put(key, null);
+                    uncertain.get(key).clear();
+                }
+            } catch (KVException e) {
+                failedOperations++;
+            }
+        }
+    }
+}
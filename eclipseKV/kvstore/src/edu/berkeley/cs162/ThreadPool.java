@@ -35,16 +35,29 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
+/**
+ * Jobs may be put in classes, each with its own FIFO queue and a weight.
+ * While several classes have jobs waiting, workers take them by deficit
+ * round robin: each turn a class may start as many jobs as its weight, so
+ * a class gets a share of the jobs started in proportion to its weight and
+ * a flood of one class cannot starve the others. A pool built with a
+ * single class is a plain FIFO pool.
+ */
 public class ThreadPool {
     /**
      * Set of threads in the threadpool
      */
     protected Thread threads[] = null;
-    public LinkedList<Runnable> jobQueue = new LinkedList<Runnable>();
+    volatile boolean shutdown = false;
     ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
     public WriteLock jobLock = rw.writeLock();
     public Condition jobCondition = jobLock.newCondition();
 
+    // Guarded by jobLock
+    private final JobClass[] jobClasses;
+    private int currentClass = 0;
+    private int queuedJobs = 0;
+
     /**
      * Initialize the number of threads required in the threadpool.
      *
@@ -52,6 +65,21 @@ public class ThreadPool {
      */
     public ThreadPool(int size)
     {
+      this(size, new int[] { 1 });
+    }
+
+    /**
+     * @param size  How many threads in the thread pool.
+     * @param weights  weight of each class of jobs, its index being the
+     *        class passed to addToQueue
+     */
+    public ThreadPool(int size, int[] weights)
+    {
+      jobClasses = new JobClass[weights.length];
+      for (int i = 0; i < weights.length; i++)
+      {
+        jobClasses[i] = new JobClass(Math.max(1, weights[i]));
+      }
       threads = new Thread[size];
       int counter = 0;
       while(counter < size)
@@ -69,9 +97,21 @@ public class ThreadPool {
      * @throws InterruptedException
      */
     public void addToQueue(Runnable r) throws InterruptedException
+    {
+      addToQueue(r, 0);
+    }
+
+    /**
+     * Add a job to the queue of one class of jobs.
+     * @param r job that has to be executed asynchronously
+     * @param jobClass index of the class's weight
+     * @throws InterruptedException
+     */
+    public void addToQueue(Runnable r, int jobClass) throws InterruptedException
     {
       jobLock.lock();
-      jobQueue.add(r);
+      jobClasses[jobClass].jobs.add(new Job(r));
+      queuedJobs++;
       jobCondition.signal();
       jobLock.unlock();
     }
@@ -83,13 +123,150 @@ public class ThreadPool {
      */
     public synchronized Runnable getJob() throws InterruptedException {
       jobLock.lock();
-      while(jobQueue.isEmpty())
+      try
       {
-        jobCondition.await();
+        while(queuedJobs == 0)
+        {
+          jobCondition.await();
+        }
+        queuedJobs--;
+        while(true)
+        {
+          JobClass current = jobClasses[currentClass];
+          if(!current.jobs.isEmpty() && current.deficit > 0)
+          {
+            current.deficit--;
+            Job job = current.jobs.remove();
+            long wait = System.nanoTime() - job.queued;
+            current.started++;
+            current.totalWaitNanos += wait;
+            current.maxWaitNanos = Math.max(current.maxWaitNanos, wait);
+            return job.runnable;
+          }
+          if(current.jobs.isEmpty())
+          {
+            // An idle class does not save up turns
+            current.deficit = 0;
+          }
+          currentClass = (currentClass + 1) % jobClasses.length;
+          jobClasses[currentClass].deficit += jobClasses[currentClass].weight;
+        }
+      }
+      finally
+      {
+        // Also when interrupted, or the other workers would never get in
+        jobLock.unlock();
+      }
+    }
+
+    /**
+     * @return jobs of the class waiting for a worker
+     */
+    public int getQueueDepth(int jobClass)
+    {
+      jobLock.lock();
+      try
+      {
+        return jobClasses[jobClass].jobs.size();
+      }
+      finally
+      {
+        jobLock.unlock();
+      }
+    }
+
+    /**
+     * @return jobs of the class handed to a worker so far
+     */
+    public long getStartedJobs(int jobClass)
+    {
+      jobLock.lock();
+      try
+      {
+        return jobClasses[jobClass].started;
+      }
+      finally
+      {
+        jobLock.unlock();
+      }
+    }
+
+    /**
+     * @return total time jobs of the class waited in the queue, in
+     *         nanoseconds
+     */
+    public long getTotalWaitNanos(int jobClass)
+    {
+      jobLock.lock();
+      try
+      {
+        return jobClasses[jobClass].totalWaitNanos;
+      }
+      finally
+      {
+        jobLock.unlock();
+      }
+    }
+
+    /**
+     * @return longest time a job of the class waited in the queue, in
+     *         nanoseconds
+     */
+    public long getMaxWaitNanos(int jobClass)
+    {
+      jobLock.lock();
+      try
+      {
+        return jobClasses[jobClass].maxWaitNanos;
+      }
+      finally
+      {
+        jobLock.unlock();
+      }
+    }
+
+    /**
+     * Stop the threads once they finish their current job. Jobs still
+     * queued are dropped.
+     */
+    public void shutdown()
+    {
+      shutdown = true;
+      for (Thread thread : threads)
+      {
+        thread.interrupt();
       }
-      Runnable myJob = jobQueue.remove();
-      jobLock.unlock();
-      return myJob;
+    }
+}
+
+/**
+ * A queued job and when it was queued.
+ */
+class Job {
+    final Runnable runnable;
+    final long queued = System.nanoTime();
+
+    Job(Runnable runnable)
+    {
+      this.runnable = runnable;
+    }
+}
+
+/**
+ * Queue and scheduling state of one class of jobs.
+ */
+class JobClass {
+    final int weight;
+    final LinkedList<Job> jobs = new LinkedList<Job>();
+    // Jobs the class may still start in its current turn
+    int deficit = 0;
+    long started = 0;
+    long totalWaitNanos = 0;
+    long maxWaitNanos = 0;
+
+    JobClass(int weight)
+    {
+      this.weight = weight;
     }
 }
 
@@ -122,6 +299,10 @@ class WorkerThread extends Thread {
       }
       catch(InterruptedException exception)
       {
+        if (pool.shutdown)
+        {
+          return;
+        }
         this.run(); //ignores exception, why is being interrupted while sleeping bad?
       }
     }
@@ -0,0 +1,275 @@
+/**
+ * Structured tracing of requests, written to a file in the background
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records events and spans of the request path in per-thread ring buffers,
+ * which a daemon thread drains to a file with one JSON object per line:
+ *
+ *   {"t":1520,"thread":"pool-3","level":"INFO","name":"2pc.phase1","op":"17","dur":840,"detail":"putreq"}
+ *
+ * t is microseconds since start(), dur the length of a span in
+ * microseconds. Only the owning thread writes a buffer and only the drainer
+ * reads it, so recording takes no lock. A thread whose buffer is full drops
+ * the record rather than wait; the drops are counted in the file at stop().
+ *
+ * Tracing is off until start(). While off, or below the chosen level, a
+ * call costs one read of a field. Details are turned into text when
+ * drained, so they should be immutable: strings, numbers or exceptions.
+ */
+public final class Tracer {
+    public enum Level {
+        DEBUG, INFO, WARN, OFF
+    }
+
+    // Records each thread can hold until the drainer catches up
+    private static final int RING_CAPACITY = 8192;
+    // Pause of the drainer between passes over the rings
+    private static final long DRAIN_INTERVAL_NANOS = 50 * 1000 * 1000;
+
+    private static volatile int threshold = Level.OFF.ordinal();
+
+    private static final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<Ring>();
+    private static final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>() {
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread());
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    private static long startNanos;
+    private static Writer out = null;
+    private static Thread drainer = null;
+    private static volatile boolean draining = false;
+
+    private Tracer() {
+    }
+
+    /**
+     * Start writing records of the given level and above to a file, which
+     * is overwritten.
+     */
+    public static synchronized void start(String path, Level level) throws IOException {
+        stop();
+        out = new BufferedWriter(new FileWriter(path));
+        startNanos = System.nanoTime();
+        for (Ring ring : rings) {
+            ring.skip();
+        }
+        draining = true;
+        drainer = new Thread("tracer") {
+            public void run() {
+                while (draining) {
+                    LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                    drain();
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Stop recording, write what is left and close the file.
+     */
+    public static synchronized void stop() {
+        if (drainer == null) {
+            return;
+        }
+        threshold = Level.OFF.ordinal();
+        draining = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainer = null;
+        drain();
+        long dropped = 0;
+        for (Ring ring : rings) {
+            dropped += ring.dropped.getAndSet(0);
+        }
+        try {
+            if (dropped > 0) {
+                out.write("{\"name\":\"tracer.dropped\",\"detail\":\"" + dropped + "\"}\n");
+            }
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public static void debug(String name, String tpcOpId, Object detail) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            localRing.get().add(Level.DEBUG, name, tpcOpId, detail, System.nanoTime(), -1);
+        }
+    }
+
+    public static void info(String name, String tpcOpId, Object detail) {
+        if (Level.INFO.ordinal() >= threshold) {
+            localRing.get().add(Level.INFO, name, tpcOpId, detail, System.nanoTime(), -1);
+        }
+    }
+
+    public static void warn(String name, String tpcOpId, Object detail) {
+        if (Level.WARN.ordinal() >= threshold) {
+            localRing.get().add(Level.WARN, name, tpcOpId, detail, System.nanoTime(), -1);
+        }
+    }
+
+    /**
+     * Begin an INFO span, to be closed by endSpan.
+     *
+     * @return start of the span, 0 when INFO is not traced
+     */
+    public static long startSpan() {
+        return Level.INFO.ordinal() >= threshold ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a span begun by startSpan. Does nothing if tracing was off
+     * when it began.
+     */
+    public static void endSpan(String name, String tpcOpId, Object detail, long start) {
+        if (start != 0 && Level.INFO.ordinal() >= threshold) {
+            long now = System.nanoTime();
+            localRing.get().add(Level.INFO, name, tpcOpId, detail, start, now - start);
+        }
+    }
+
+    /**
+     * Write every record buffered so far. Only the drainer, or stop() once
+     * the drainer has ended, calls this.
+     */
+    private static void drain() {
+        StringBuilder line = new StringBuilder();
+        for (Ring ring : rings) {
+            try {
+                ring.drainTo(out, line);
+            } catch (IOException e) {
+                // Lose the records rather than the caller's request
+            }
+            if (!ring.owner.isAlive() && ring.isEmpty()) {
+                rings.remove(ring);
+            }
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Records of one thread, written only by that thread. head counts
+     * records added and tail records drained; head is published after the
+     * slot is filled, and tail after it is read, so neither side sees a
+     * half written record.
+     */
+    private static class Ring {
+        final Thread owner;
+        final String threadName;
+        final Level[] levels = new Level[RING_CAPACITY];
+        final String[] names = new String[RING_CAPACITY];
+        final String[] opIds = new String[RING_CAPACITY];
+        final Object[] details = new Object[RING_CAPACITY];
+        final long[] times = new long[RING_CAPACITY];
+        final long[] durations = new long[RING_CAPACITY];
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+
+        Ring(Thread owner) {
+            this.owner = owner;
+            this.threadName = owner.getName();
+        }
+
+        void add(Level level, String name, String opId, Object detail, long time, long duration) {
+            long h = head.get();
+            if (h - tail.get() >= RING_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            int slot = (int) (h % RING_CAPACITY);
+            levels[slot] = level;
+            names[slot] = name;
+            opIds[slot] = opId;
+            details[slot] = detail;
+            times[slot] = time;
+            durations[slot] = duration;
+            head.lazySet(h + 1);
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        /**
+         * Forget records left from an earlier start().
+         */
+        void skip() {
+            tail.lazySet(head.get());
+        }
+
+        void drainTo(Writer writer, StringBuilder line) throws IOException {
+            long h = head.get();
+            long t = tail.get();
+            for (; t < h; t++) {
+                int slot = (int) (t % RING_CAPACITY);
+                line.setLength(0);
+                line.append("{\"t\":").append((times[slot] - startNanos) / 1000);
+                line.append(",\"thread\":");
+                quote(line, threadName);
+                line.append(",\"level\":\"").append(levels[slot]).append("\",\"name\":");
+                quote(line, names[slot]);
+                if (opIds[slot] != null) {
+                    line.append(",\"op\":");
+                    quote(line, opIds[slot]);
+                }
+                if (durations[slot] >= 0) {
+                    line.append(",\"dur\":").append(durations[slot] / 1000);
+                }
+                if (details[slot] != null) {
+                    line.append(",\"detail\":");
+                    quote(line, String.valueOf(details[slot]));
+                }
+                line.append("}\n");
+                // Let the details be collected
+                details[slot] = null;
+                tail.lazySet(t + 1);
+                writer.write(line.toString());
+            }
+        }
+
+        private static void quote(StringBuilder line, String text) {
+            line.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
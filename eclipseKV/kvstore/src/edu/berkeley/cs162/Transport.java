@@ -0,0 +1,55 @@
+/**
+ * Source of the sockets servers listen on and connect with
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Every connection between clients, master and slaves is opened through
+ * the current transport, so that tests can swap TCP for a simulated
+ * network. The transport is shared by the whole process and should only
+ * be changed while no servers are running.
+ */
+public abstract class Transport {
+    /**
+     * Real TCP sockets
+     */
+    public static final Transport TCP = new Transport() {
+        public Socket connect(String host, int port, int timeoutMillis) throws IOException {
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            return socket;
+        }
+
+        public ServerSocket listen(int port) throws IOException {
+            return new ServerSocket(port);
+        }
+    };
+
+    private static volatile Transport current = TCP;
+
+    public static Transport get() {
+        return current;
+    }
+
+    public static void set(Transport transport) {
+        current = transport;
+    }
+
+    /**
+     * @param timeoutMillis connect timeout, 0 to wait as long as the system
+     *        does
+     * @return a connected socket
+     * @throws IOException if nothing listens there or it cannot be reached
+     */
+    public abstract Socket connect(String host, int port, int timeoutMillis) throws IOException;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public abstract ServerSocket listen(int port) throws IOException;
+}
@@ -0,0 +1,73 @@
+/**
+ * Values of quorum keyspaces, stored with the version of their write
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Slaves store the keys of a quorum keyspace as "version;=value", or
+ * "version;-" once the key was deleted, so that the master can tell which of
+ * the replicas' answers is newest and a replica never lets an older write
+ * replace a newer one. The tombstone of a deleted key is kept for the same
+ * reason. Versions are assigned by the master and grow with every write.
+ *
+ * A stored value not in this form, written before its keyspace became a
+ * quorum keyspace, is a plain value of version 0.
+ */
+public final class VersionedValue {
+    private VersionedValue() {
+    }
+
+    /**
+     * @param value value written, null for a delete
+     * @return what the slaves store for the write
+     */
+    public static String encode(long version, String value) {
+        return value == null ? version + ";-" : version + ";=" + value;
+    }
+
+    /**
+     * @param stored stored value, null if the key does not exist
+     * @return version of the stored value, -1 if there is none
+     */
+    public static long versionOf(String stored) {
+        if (stored == null) {
+            return -1;
+        }
+        int separator = separatorOf(stored);
+        return separator < 0 ? 0 : Long.parseLong(stored.substring(0, separator));
+    }
+
+    /**
+     * @param stored stored value, null if the key does not exist
+     * @return value written, null if the key does not exist or was deleted
+     */
+    public static String valueOf(String stored) {
+        if (stored == null) {
+            return null;
+        }
+        int separator = separatorOf(stored);
+        if (separator < 0) {
+            return stored;
+        }
+        return stored.charAt(separator + 1) == '=' ? stored.substring(separator + 2) : null;
+    }
+
+    /**
+     * @return position of the ';' after the version, -1 if the value is not
+     *         versioned
+     */
+    private static int separatorOf(String stored) {
+        int i = 0;
+        while (i < stored.length() && i < 18 && Character.isDigit(stored.charAt(i))) {
+            i++;
+        }
+        if (i == 0 || i + 1 >= stored.length() || stored.charAt(i) != ';') {
+            return -1;
+        }
+        char kind = stored.charAt(i + 1);
+        if (kind == '=' || (kind == '-' && i + 2 == stored.length())) {
+            return i;
+        }
+        return -1;
+    }
+}
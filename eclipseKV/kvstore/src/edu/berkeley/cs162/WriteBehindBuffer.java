@@ -0,0 +1,255 @@
+/**
+ * Dirty table and background flusher of a KVServer in write-behind mode
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the writes of a KVServer that are in its cache but not yet in its
+ * KVStore, and writes them to the store from a background thread: all the
+ * puts of a flush with one KVStore.putBatch and all the dels with one
+ * KVStore.delBatch, so a flush pays the store's delay once per kind of
+ * write. A key written several times between flushes reaches the store
+ * once, with its last value.
+ *
+ * The table holds at most maxDirty keys. A write of a key not in it waits
+ * while it is full, so writers slow down to the pace of the store instead
+ * of the table growing without bound. A flush starts every flush interval,
+ * or as soon as the table is half full.
+ *
+ * Writes only in the table are lost if the slave goes down; TPCLog holds
+ * every write that was acknowledged and replays it on recovery.
+ */
+public class WriteBehindBuffer {
+    private final KVStore store;
+    private final int maxDirty;
+    private final long flushIntervalMillis;
+
+    // Latest write of each dirty key, in the order keys became dirty
+    private final LinkedHashMap<String, Entry> dirty = new LinkedHashMap<String, Entry>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushDue = lock.newCondition();
+    // Keeps the flusher and flush() from writing the store at once, so
+    // flushes reach it in order
+    private final Lock flushLock = new ReentrantLock();
+    private Thread flusher = null;
+    private boolean running = false;
+
+    private long flushes = 0;
+    private long flushedKeys = 0;
+    private long coalesced = 0;
+    private long stalls = 0;
+
+    /**
+     * A dirty key's latest write.
+     */
+    static final class Entry {
+        // Value written, null for a delete
+        final String value;
+
+        Entry(String value) {
+            this.value = value;
+        }
+    }
+
+    public WriteBehindBuffer(KVStore store, int maxDirty, long flushIntervalMillis) {
+        this.store = store;
+        this.maxDirty = Math.max(1, maxDirty);
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if (flusher != null) {
+                return;
+            }
+            running = true;
+            flusher = new Thread(new Flusher(), "write-behind");
+            flusher.setDaemon(true);
+            flusher.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the flusher and write every dirty key to the store.
+     */
+    public void stop() {
+        Thread stopped;
+        lock.lock();
+        try {
+            running = false;
+            stopped = flusher;
+            flusher = null;
+            flushDue.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (stopped != null) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Record a put, waiting while the table is full.
+     */
+    public void put(String key, String value) {
+        add(key, new Entry(value));
+    }
+
+    /**
+     * Record a delete, waiting while the table is full.
+     */
+    public void del(String key) {
+        add(key, new Entry(null));
+    }
+
+    /**
+     * The wait ignores interrupts, as the flusher always makes room and a
+     * write given up half way through a batch could not be taken back.
+     */
+    private void add(String key, Entry entry) {
+        lock.lock();
+        try {
+            if (dirty.containsKey(key)) {
+                coalesced++;
+            } else {
+                if (dirty.size() >= maxDirty) {
+                    stalls++;
+                    flushDue.signalAll();
+                }
+                while (dirty.size() >= maxDirty) {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            dirty.put(key, entry);
+            if (dirty.size() * 2 >= maxDirty) {
+                flushDue.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the key's latest write if the store does not have it yet, null
+     *         if the store is up to date for the key
+     */
+    Entry lookup(String key) {
+        lock.lock();
+        try {
+            return dirty.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write every key dirty now to the store before returning, e.g. before
+     * reading the store directly.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            LinkedHashMap<String, Entry> batch;
+            lock.lock();
+            try {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<String, Entry>(dirty);
+            } finally {
+                lock.unlock();
+            }
+            LinkedHashMap<String, String> puts = new LinkedHashMap<String, String>();
+            ArrayList<String> dels = new ArrayList<String>();
+            for (Map.Entry<String, Entry> write : batch.entrySet()) {
+                if (write.getValue().value == null) {
+                    dels.add(write.getKey());
+                } else {
+                    puts.put(write.getKey(), write.getValue().value);
+                }
+            }
+            // The store has the batch before its keys leave the table, so
+            // a read finds each write in one of the two
+            if (!puts.isEmpty()) {
+                store.putBatch(puts);
+            }
+            if (!dels.isEmpty()) {
+                store.delBatch(dels);
+            }
+            lock.lock();
+            try {
+                for (Map.Entry<String, Entry> write : batch.entrySet()) {
+                    // A key written again since keeps its newer write
+                    if (dirty.get(write.getKey()) == write.getValue()) {
+                        dirty.remove(write.getKey());
+                    }
+                }
+                flushes++;
+                flushedKeys += batch.size();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public int getDirtyCount() {
+        lock.lock();
+        try {
+            return dirty.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("write-behind: %d flushes, %d keys flushed, %d writes coalesced, %d writers stalled, %d dirty",
+                flushes, flushedKeys, coalesced, stalls, dirty.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class Flusher implements Runnable {
+        public void run() {
+            while (true) {
+                lock.lock();
+                try {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                    while (running && dirty.size() * 2 < maxDirty && remaining > 0) {
+                        remaining = flushDue.awaitNanos(remaining);
+                    }
+                    if (!running) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                flush();
+            }
+        }
+    }
+}
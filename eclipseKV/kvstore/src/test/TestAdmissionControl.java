@@ -0,0 +1,53 @@
+package test;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.AdmissionControl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdmissionControl {
+
+	@Test
+	public void testRateLimitsPerClientAndType() {
+		AdmissionControl admission = new AdmissionControl();
+		admission.setRateLimit("putreq", 0.001, 3);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(admission.tryConsume("10.0.0.1", "putreq"));
+		}
+		assertFalse(admission.tryConsume("10.0.0.1", "putreq"));
+		assertTrue(admission.tryConsume("10.0.0.2", "putreq"));
+		assertTrue(admission.tryConsume("10.0.0.1", "getreq"));
+		assertEquals(1, admission.getRateLimited());
+	}
+
+	@Test
+	public void testConcurrencyLimitFollowsLatency() {
+		AdmissionControl admission = new AdmissionControl();
+		admission.setConcurrencyLimits(2, 10, 20);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(admission.tryAcquire());
+		}
+		assertFalse(admission.tryAcquire());
+		assertEquals(1, admission.getOverloaded());
+
+		long millis = 1000 * 1000;
+		for (int i = 0; i < 10; i++) {
+			admission.release("getreq", millis, false);
+		}
+		// Latency at ten times the baseline shrinks the limit to its floor
+		for (int i = 0; i < 200; i++) {
+			assertTrue(admission.tryAcquire());
+			admission.release("getreq", 10 * millis, false);
+		}
+		assertEquals(2, admission.getLimit());
+		// and latency back at the baseline grows it again
+		for (int i = 0; i < 200; i++) {
+			assertTrue(admission.tryAcquire());
+			admission.release("getreq", millis, false);
+		}
+		assertTrue(admission.getLimit() > 10);
+	}
+}
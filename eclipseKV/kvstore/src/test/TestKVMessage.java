@@ -1,8 +1,185 @@
 package test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class TestKVMessage {
 
+	@Test
+	public void testBatchMessagesSurviveXML() throws Exception {
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		pairs.put("b", "2");
+		pairs.put("a", "1");
+		KVMessage put = new KVMessage("mputreq");
+		put.setEntries(pairs);
+		put.setTpcOpId("7");
+		KVMessage parsedPut = parse(put);
+		assertEquals(pairs, parsedPut.getEntries());
+		assertEquals("7", parsedPut.getTpcOpId());
+
+		KVMessage get = new KVMessage("mgetreq");
+		get.setKeys(Arrays.asList("x", "y"));
+		KVMessage parsedGet = parse(get);
+		assertEquals(Arrays.asList("x", "y"), parsedGet.getKeys());
+		assertNull(parsedGet.getTpcOpId());
+
+		Map<String, String> errors = new LinkedHashMap<String, String>();
+		errors.put("y", "Timeout Error: Could not receive data");
+		KVMessage resp = new KVMessage("resp");
+		resp.setEntries(pairs);
+		resp.setErrors(errors);
+		KVMessage parsedResp = parse(resp);
+		assertEquals(pairs, parsedResp.getEntries());
+		assertEquals(errors, parsedResp.getErrors());
+	}
+
+	@Test
+	public void testChainWritesSurviveXML() throws Exception {
+		KVMessage put = new KVMessage("chainput");
+		put.setKey("k");
+		put.setValue("v");
+		put.setSuccessors(Arrays.asList("10.0.0.2:9000", "10.0.0.3:9000"));
+		put.setTpcOpId("5");
+		KVMessage parsedPut = parse(put);
+		assertEquals("v", parsedPut.getValue());
+		assertEquals(put.getSuccessors(), parsedPut.getSuccessors());
+		assertEquals("5", parsedPut.getTpcOpId());
+
+		KVMessage del = new KVMessage("chaindel");
+		del.setKey("k");
+		del.setTpcOpId("6");
+		KVMessage parsedDel = parse(del);
+		assertEquals("k", parsedDel.getKey());
+		assertNull(parsedDel.getValue());
+		assertTrue(parsedDel.getSuccessors() == null || parsedDel.getSuccessors().isEmpty());
+	}
+
+	@Test
+	public void testQuorumsSurviveXML() throws Exception {
+		KVMessage get = new KVMessage("getreq");
+		get.setKey("k");
+		get.setQuorum(3);
+		assertEquals(3, parse(get).getQuorum());
+
+		KVMessage put = new KVMessage("putreq");
+		put.setKey("k");
+		put.setValue("v");
+		put.setTpcOpId("1");
+		assertEquals(0, parse(put).getQuorum());
+		put.setQuorum(1);
+		assertEquals(1, parse(put).getQuorum());
+
+		KVMessage write = new KVMessage("quorumput");
+		write.setKey("k");
+		write.setValue("12;=v");
+		write.setTpcOpId("2");
+		KVMessage parsed = parse(write);
+		assertEquals("quorumput", parsed.getMsgType());
+		assertEquals("12;=v", parsed.getValue());
+	}
+
+	@Test
+	public void testLargeValueTravelsInCheckedChunks() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 3 * KVMessage.VALUE_CHUNK_CHARS) {
+			builder.append("a<b>&c\r\n\uD83D\uDE00");
+		}
+		String value = builder.toString();
+		KVMessage put = new KVMessage("putreq");
+		put.setKey("big");
+		put.setValue(value);
+		put.setTpcOpId("3");
+		String xml = put.toXML();
+		assertTrue(xml.contains("<Chunk crc="));
+		KVMessage parsed = parse(put);
+		assertEquals("big", parsed.getKey());
+		assertEquals(value, parsed.getValue());
+
+		String corrupt = xml.replaceFirst("a&lt;b", "x&lt;b");
+		try {
+			new KVMessage(new ByteArrayInputStream(corrupt.getBytes("UTF-8")));
+			fail("corrupt chunk was accepted");
+		} catch (KVException e) {
+			assertEquals("Network Error: Value checksum mismatch", e.getMsg().getMessage());
+		}
+	}
+
+	@Test
+	public void testCompressedValuesSurviveXML() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < 200 * 1024; i++) {
+			builder.append("{\"user\":\"u").append(i % 97).append("\",\"note\":\"<&>\"}\n");
+		}
+		String value = builder.toString();
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		pairs.put("k", value.substring(0, 5000));
+		pairs.put("short", "v");
+		KVMessage.compressionThreshold = 100;
+		try {
+			KVMessage put = new KVMessage("putreq");
+			put.setKey("doc");
+			put.setValue(value);
+			put.setTpcOpId("4");
+			String xml = put.toXML();
+			assertTrue(xml.contains("codec=\"lz\""));
+			assertTrue(xml.length() < value.length() / 4);
+			assertEquals(value, parse(put).getValue());
+
+			KVMessage resp = new KVMessage("resp");
+			resp.setEntries(pairs);
+			assertEquals(pairs, parse(resp).getEntries());
+		} finally {
+			KVMessage.compressionThreshold = -1;
+		}
+	}
+
+	@Test
+	public void testOversizedFrameIsNotSent() throws Exception {
+		char[] chars = new char[256 * 1024];
+		Arrays.fill(chars, 'v');
+		String value = new String(chars);
+		Map<String, String> pairs = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 8; i++) {
+			pairs.put("k" + i, value);
+		}
+		KVMessage resp = new KVMessage("resp");
+		resp.setEntries(pairs);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		resp.sendFramedMessage(new DataOutputStream(bytes), 7);
+		KVMessage parsed = new KVMessage(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(pairs, parsed.getEntries());
+
+		for (int i = 8; i < 20; i++) {
+			pairs.put("k" + i, value);
+		}
+		resp.setEntries(pairs);
+		bytes.reset();
+		try {
+			resp.sendFramedMessage(new DataOutputStream(bytes), 8);
+			fail("frame over MAX_FRAME_SIZE was sent");
+		} catch (KVException e) {
+			assertEquals(KVMessage.OVERSIZED_MESSAGE, e.getMsg().getMessage());
+		}
+		assertEquals(0, bytes.size());
+	}
+
+	private static KVMessage parse(KVMessage msg) throws Exception {
+		return new KVMessage(new ByteArrayInputStream(msg.toXML().getBytes("UTF-8")));
+	}
 }
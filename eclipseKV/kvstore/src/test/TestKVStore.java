@@ -0,0 +1,219 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.CompressionStats;
+import edu.berkeley.cs162.FaultInjector;
+import edu.berkeley.cs162.Instrumentation;
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVServer;
+import edu.berkeley.cs162.KVStore;
+import edu.berkeley.cs162.LZCodec;
+import edu.berkeley.cs162.MerkleTree;
+import edu.berkeley.cs162.RingSnapshot;
+import edu.berkeley.cs162.TPCMaster;
+import edu.berkeley.cs162.VersionedValue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestKVStore {
+
+	@Test
+	public void testRangeDigestsMatchStoredPairs() throws KVException {
+		KVStore store = new KVStore();
+		Map<String, String> pairs = new HashMap<String, String>();
+		Random random = new Random(162);
+		for (int i = 0; i < 2000; i++) {
+			pairs.put(Long.toHexString(random.nextLong()), "value" + i);
+		}
+		store.putBatch(pairs);
+		store.del(pairs.keySet().iterator().next());
+		pairs.remove(pairs.keySet().iterator().next());
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		ranges.add(new long[] { random.nextLong(), random.nextLong() });
+		ranges.add(new long[] { random.nextLong(), random.nextLong() });
+		int depth = store.getTreeDepth();
+		for (int level = 0; level <= depth; level += 2) {
+			for (int n = 0; n < 8; n++) {
+				long index = level == 0 ? 0 : random.nextInt(1 << level);
+				long expected = 0;
+				for (Map.Entry<String, String> pair : pairs.entrySet()) {
+					long position = TPCMaster.hashKey(pair.getKey());
+					if (MerkleTree.nodeIndex(position, level) == index && inRanges(position, ranges)) {
+						expected ^= MerkleTree.digest(pair.getKey(), pair.getValue());
+					}
+				}
+				assertEquals(expected, store.digest(level, index, ranges));
+			}
+		}
+	}
+
+	@Test
+	public void testScanReturnsKeyOrderedPage() throws KVException {
+		KVStore store = new KVStore();
+		String[] keys = { "apple", "apricot", "banana", "ap", "b", "aq" };
+		for (String key : keys) {
+			store.put(key, key.toUpperCase());
+		}
+		store.del("apricot");
+
+		Map<String, String> prefix = store.scan("ap", true, KVStore.prefixEnd("ap"), 10);
+		assertEquals("[ap, apple]", prefix.keySet().toString());
+		assertEquals("APPLE", prefix.get("apple"));
+		assertEquals("[apple, aq]", store.scan("ap", false, "b", 10).keySet().toString());
+		assertEquals("[ap, apple, aq]", store.scan(null, true, null, 3).keySet().toString());
+		assertEquals("[b, banana]", store.scan("aq", false, null, 10).keySet().toString());
+		assertEquals(null, KVStore.prefixEnd("\uffff"));
+	}
+
+	@Test
+	public void testCompressedValuesReadBackAndDigestAsRaw() throws KVException {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\",\"tags\":[\"a\",\"b\"]},");
+		}
+		json.append("{}]");
+		StringBuilder noise = new StringBuilder();
+		Random random = new Random(162);
+		for (int i = 0; i < 500; i++) {
+			noise.append((char) ('!' + random.nextInt(90)));
+		}
+		KVStore compressed = new KVStore();
+		compressed.setCompressionThreshold(64);
+		KVStore plain = new KVStore();
+		for (KVStore store : new KVStore[] { compressed, plain }) {
+			store.put("json", "old");
+			store.put("json", json.toString());
+			store.put("noise", noise.toString());
+			store.put("short", "x");
+			store.put("gone", json.toString());
+			store.del("gone");
+		}
+		assertEquals(json.toString(), compressed.get("json"));
+		assertEquals(noise.toString(), compressed.get("noise"));
+		assertEquals("x", compressed.get("short"));
+		List<long[]> ring = new ArrayList<long[]>();
+		ring.add(new long[] { 0, 0 });
+		assertEquals(plain.digest(0, 0, ring), compressed.digest(0, 0, ring));
+
+		CompressionStats stats = compressed.getCompressionStats();
+		assertEquals(2, stats.getCompressedValues());
+		assertEquals(1, stats.getRawValues());
+		assertTrue(stats.getRatio() > 4);
+	}
+
+	@Test
+	public void testLZCodecRoundTrips() {
+		byte[][] inputs = { new byte[0], "abc".getBytes(), new byte[70000], "abcabcabcabcabcabcabcabcabcabcabcabc".getBytes() };
+		for (byte[] input : inputs) {
+			byte[] packed = LZCodec.compress(input);
+			if (packed != null) {
+				assertArrayEquals(input, LZCodec.decompress(packed));
+			}
+		}
+		assertNull(LZCodec.compress("abc".getBytes()));
+		try {
+			byte[] packed = LZCodec.compress(new byte[1000]);
+			packed[packed.length - 3] ^= 0x55;
+			LZCodec.decompress(packed);
+			assertTrue("corrupt data was accepted", false);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testInjectedFaultsFailStoreOperations() throws KVException {
+		FaultInjector injector = new FaultInjector(162);
+		injector.setErrorRate(Instrumentation.Point.STORE_PUT, 1);
+		injector.setLatency(Instrumentation.Point.STORE_GET, FaultInjector.Latency.fixed(5));
+		KVStore store = new KVStore();
+		store.put("key", "value");
+		Instrumentation.set(injector);
+		try {
+			try {
+				store.put("key", "other");
+				assertTrue("injected fault was not raised", false);
+			} catch (KVException e) {
+				assertEquals(FaultInjector.INJECTED_ERROR, e.getMsg().getMessage());
+			}
+			assertEquals("value", store.get("key"));
+			assertEquals(1, injector.getErrors(Instrumentation.Point.STORE_PUT));
+			assertEquals(5, injector.getDelayMillis(Instrumentation.Point.STORE_GET));
+		} finally {
+			Instrumentation.set(Instrumentation.NONE);
+		}
+	}
+
+	@Test
+	public void testVersionedValuesOnlyMoveForward() throws KVException {
+		assertEquals("7;=a;b", VersionedValue.encode(7, "a;b"));
+		assertEquals(7, VersionedValue.versionOf("7;=a;b"));
+		assertEquals("a;b", VersionedValue.valueOf("7;=a;b"));
+		assertNull(VersionedValue.valueOf(VersionedValue.encode(8, null)));
+		assertEquals(8, VersionedValue.versionOf("8;-"));
+		assertEquals(0, VersionedValue.versionOf("8;-x"));
+		assertEquals("plain", VersionedValue.valueOf("plain"));
+		assertEquals(-1, VersionedValue.versionOf(null));
+
+		KVServer server = new KVServer(4, 4);
+		assertTrue(server.putIfNewer("key", VersionedValue.encode(5, "new")));
+		assertFalse(server.putIfNewer("key", VersionedValue.encode(4, "old")));
+		assertFalse(server.putIfNewer("key", VersionedValue.encode(5, "same")));
+		assertEquals("new", VersionedValue.valueOf(server.get("key")));
+		assertTrue(server.putIfNewer("key", VersionedValue.encode(6, null)));
+		assertNull(VersionedValue.valueOf(server.get("key")));
+	}
+
+	@Test
+	public void testWriteBehindReadsDirtyWritesAndFlushesThem() throws KVException {
+		KVServer server = new KVServer(4, 4);
+		server.put("kept", "old");
+		server.setWriteBehind(8, 60 * 1000);
+		try {
+			for (int i = 0; i < 20; i++) {
+				server.put("key" + (i % 4), "value" + i);
+			}
+			server.del("kept");
+			// Four dirty puts, coalesced, and a dirty delete
+			assertEquals(5, server.getWriteBehind().getDirtyCount());
+			assertEquals("value19", server.get("key3"));
+			assertFalse(server.keySnapshot().contains("kept"));
+			assertEquals(0, server.getWriteBehind().getDirtyCount());
+			assertEquals("value18", server.getBatch(java.util.Collections.singletonList("key2")).get("key2"));
+			try {
+				server.get("kept");
+				assertTrue("deleted key was read", false);
+			} catch (KVException e) {
+			}
+			// More keys than the buffer holds: writers wait for flushes
+			for (int i = 0; i < 100; i++) {
+				server.put("more" + i, "v");
+			}
+			assertTrue(server.getWriteBehind().getDirtyCount() <= 8);
+		} finally {
+			server.setWriteBehind(0, 0);
+		}
+		assertEquals(104, server.keySnapshot().size());
+	}
+
+	private static boolean inRanges(long position, List<long[]> ranges) {
+		for (long[] range : ranges) {
+			if (RingSnapshot.inRange(position, range[0], range[1])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,35 @@
+package test;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.KVMessage;
+import edu.berkeley.cs162.Phase2RetryQueue;
+import edu.berkeley.cs162.TPCMaster;
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPhase2RetryQueue {
+
+	@Test
+	public void testReservedSlotsBoundTheQueue() throws KVException {
+		TPCMaster master = new TPCMaster(1);
+		SlaveInfo slave = master.new SlaveInfo("1000@localhost:10000");
+		Phase2RetryQueue retries = new Phase2RetryQueue(2, 10);
+		try {
+			assertTrue(retries.reserve(2));
+			assertFalse(retries.reserve(1));
+			retries.add(slave, new KVMessage("commit"));
+			retries.cancel(1);
+			assertTrue(retries.hasPending(slave));
+			assertTrue(retries.reserve(1));
+			// Full: hints are dropped and transactions fail before phase 1
+			assertFalse(retries.offer(slave, new KVMessage("commit")));
+			assertFalse(retries.reserve(1));
+		} finally {
+			retries.stop();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.SlaveConnectionPool;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSlaveConnectionPool {
+
+	@Test(timeout = 10000)
+	public void testOpenConnectionsCapped() throws Exception {
+		// Connections complete in the backlog without being accepted
+		ServerSocket slave = new ServerSocket(0, 2 * SlaveConnectionPool.MAX_OPEN_CONNECTIONS);
+		final SlaveConnectionPool pool = new SlaveConnectionPool("localhost", slave.getLocalPort(), 1000);
+		ArrayList<SlaveConnectionPool.Connection> held = new ArrayList<SlaveConnectionPool.Connection>();
+		try {
+			for (int i = 0; i < SlaveConnectionPool.MAX_OPEN_CONNECTIONS; i++) {
+				held.add(pool.acquire());
+			}
+			final CountDownLatch acquired = new CountDownLatch(1);
+			Thread waiter = new Thread() {
+				public void run() {
+					try {
+						pool.acquire().release();
+						acquired.countDown();
+					} catch (KVException e) {
+						// Left uncounted: the test fails
+					}
+				}
+			};
+			waiter.start();
+			assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+			// Handed back to the idle list, the connection goes to the waiter
+			held.remove(0).release();
+			assertTrue(acquired.await(2000, TimeUnit.MILLISECONDS));
+		} finally {
+			for (SlaveConnectionPool.Connection conn : held) {
+				conn.release();
+			}
+			pool.close();
+			slave.close();
+		}
+	}
+}
@@ -1,10 +1,24 @@
 package test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.Test;
 
+import edu.berkeley.cs162.KVException;
+import edu.berkeley.cs162.Rebalancer;
+import edu.berkeley.cs162.Rebalancer.MovedRange;
+import edu.berkeley.cs162.RingSnapshot;
+import edu.berkeley.cs162.TPCMaster;
+import edu.berkeley.cs162.TPCMaster.SlaveInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestTPCMaster {
@@ -19,4 +33,141 @@ public class TestTPCMaster {
 		
 		assertTrue(m.matches());
 	}
+
+	private TPCMaster masterWithSlaves(int numSlaves, int replicationFactor, int virtualNodes) throws KVException {
+		TPCMaster master = new TPCMaster(numSlaves, replicationFactor, virtualNodes);
+		// These slaves are not running, so there is nothing to move
+		master.rebalanceOnJoin = false;
+		for (int i = 0; i < numSlaves; i++) {
+			assertTrue(master.registerSlave(master.new SlaveInfo((i * 1000L) + "@localhost:" + (10000 + i))));
+		}
+		return master;
+	}
+
+	@Test
+	public void testReplicasAreDistinctSlaves() throws KVException {
+		TPCMaster master = masterWithSlaves(5, 3, 64);
+		for (int i = 0; i < 1000; i++) {
+			String key = "key" + i;
+			List<SlaveInfo> replicas = master.findReplicas(key);
+			assertEquals(3, replicas.size());
+			assertEquals(3, new HashSet<SlaveInfo>(replicas).size());
+			assertTrue(replicas.get(0) == master.findFirstReplica(key));
+		}
+	}
+
+	@Test
+	public void testReplicationFactorCappedBySlaveCount() throws KVException {
+		TPCMaster master = masterWithSlaves(2, 3, 8);
+		assertEquals(2, master.findReplicas("key").size());
+	}
+
+	@Test
+	public void testReregistrationKeepsRing() throws KVException {
+		TPCMaster master = masterWithSlaves(3, 2, 16);
+		SlaveInfo before = master.findFirstReplica("key");
+		assertTrue(master.registerSlave(master.new SlaveInfo(before.slaveID + "@otherhost:1234")));
+		SlaveInfo after = master.findFirstReplica("key");
+		assertTrue(before == after);
+		assertEquals("otherhost", after.hostName);
+		assertTrue(!master.registerSlave(master.new SlaveInfo("424242@localhost:1")));
+	}
+
+	@Test
+	public void testKeySpaceSharesWithVirtualNodes() throws KVException {
+		TPCMaster master = masterWithSlaves(4, 2, 256);
+		Map<Long, Double> shares = master.getKeySpaceShares();
+		double total = 0.0;
+		for (double share : shares.values()) {
+			total += share;
+			assertTrue("share " + share, share > 0.15 && share < 0.35);
+		}
+		assertEquals(4, shares.size());
+		assertEquals(1.0, total, 1e-9);
+	}
+
+	@Test
+	public void testSuccessorIsAnotherSlave() throws KVException {
+		TPCMaster master = masterWithSlaves(3, 2, 16);
+		for (SlaveInfo slave : master.findReplicas("key")) {
+			assertTrue(master.findSuccessor(slave) != slave);
+		}
+	}
+
+	@Test
+	public void testMovedRangesMatchReplicaChanges() throws KVException {
+		TPCMaster master = new TPCMaster(4);
+		List<SlaveInfo> slaves = new ArrayList<SlaveInfo>();
+		for (int i = 0; i < 4; i++) {
+			slaves.add(master.new SlaveInfo((i * 1000L) + "@localhost:" + (10000 + i)));
+		}
+		RingSnapshot before = RingSnapshot.build(slaves.subList(0, 3), 32, 2);
+		RingSnapshot after = RingSnapshot.build(slaves, 32, 2);
+		List<MovedRange> ranges = Rebalancer.movedRanges(before, after);
+		assertTrue(!ranges.isEmpty());
+		Random random = new Random(162);
+		for (int i = 0; i < 10000; i++) {
+			long hash = random.nextLong();
+			HashSet<SlaveInfo> gained = new HashSet<SlaveInfo>(after.replicasFor(hash));
+			gained.removeAll(before.replicasFor(hash));
+			MovedRange match = null;
+			for (MovedRange range : ranges) {
+				if (RingSnapshot.inRange(hash, range.start, range.end)) {
+					match = range;
+				}
+			}
+			if (gained.isEmpty()) {
+				assertTrue(match == null);
+			} else {
+				assertEquals(gained, new HashSet<SlaveInfo>(match.targets));
+				assertTrue(gained.contains(slaves.get(3)));
+			}
+		}
+	}
+
+	@Test
+	public void testBootstrapRangesCoverSlaveReplicas() throws KVException {
+		TPCMaster master = new TPCMaster(3);
+		List<SlaveInfo> slaves = new ArrayList<SlaveInfo>();
+		for (int i = 0; i < 3; i++) {
+			slaves.add(master.new SlaveInfo((i * 1000L) + "@localhost:" + (10000 + i)));
+		}
+		RingSnapshot ring = RingSnapshot.build(slaves, 32, 2);
+		SlaveInfo lost = slaves.get(1);
+		List<MovedRange> ranges = Rebalancer.bootstrapRanges(ring, lost);
+		Random random = new Random(162);
+		for (int i = 0; i < 10000; i++) {
+			long hash = random.nextLong();
+			List<SlaveInfo> sources = new ArrayList<SlaveInfo>(ring.replicasFor(hash));
+			boolean replicated = sources.remove(lost);
+			MovedRange match = null;
+			for (MovedRange range : ranges) {
+				if (RingSnapshot.inRange(hash, range.start, range.end)) {
+					match = range;
+				}
+			}
+			if (!replicated) {
+				assertTrue(match == null);
+			} else {
+				assertEquals(sources, match.sources);
+				assertEquals(1, match.targets.size());
+				assertTrue(match.targets.contains(lost));
+			}
+		}
+	}
+
+	@Test
+	public void testReplicationModeByLongestPrefix() {
+		TPCMaster master = new TPCMaster(2);
+		assertEquals(TPCMaster.ReplicationMode.TWO_PHASE_COMMIT, master.getReplicationMode("user1"));
+		master.setReplicationMode("user", TPCMaster.ReplicationMode.CHAIN);
+		master.setReplicationMode("user:admin", TPCMaster.ReplicationMode.TWO_PHASE_COMMIT);
+		assertEquals(TPCMaster.ReplicationMode.CHAIN, master.getReplicationMode("user1"));
+		assertEquals(TPCMaster.ReplicationMode.CHAIN, master.getReplicationMode("user:b"));
+		assertEquals(TPCMaster.ReplicationMode.TWO_PHASE_COMMIT, master.getReplicationMode("user:admin7"));
+		assertEquals(TPCMaster.ReplicationMode.TWO_PHASE_COMMIT, master.getReplicationMode("use"));
+		assertEquals(TPCMaster.ReplicationMode.TWO_PHASE_COMMIT, master.getReplicationMode("zebra"));
+		master.setReplicationMode("", TPCMaster.ReplicationMode.CHAIN);
+		assertEquals(TPCMaster.ReplicationMode.CHAIN, master.getReplicationMode("zebra"));
+	}
 }